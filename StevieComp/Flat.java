@@ -0,0 +1,188 @@
+import java.util.Vector;
+
+/** Represents a Target program that has been lowered to a single flat
+ *  array of encoded instructions.  Each instruction is stored as an
+ *  opcode followed by its operands; temporaries are replaced by their
+ *  numbers so that they can be held in an int[] register file, and
+ *  jumps are replaced by offsets into the code array.  This allows a
+ *  program to be executed by a single dispatch loop rather than by a
+ *  chain of recursive calls to Code.run().
+ */
+class FlatProgram {
+  // Opcodes for the flattened instruction set:
+  static final int RET   = 0;   // RET   r
+  static final int GOTO  = 1;   // GOTO  pc
+  static final int COND  = 2;   // COND  r pcTrue pcFalse
+  static final int LOAD  = 3;   // LOAD  r loc
+  static final int STORE = 4;   // STORE loc r
+  static final int IMMED = 5;   // IMMED r num
+  static final int ADD   = 6;   // ADD   r x y
+  static final int SUB   = 7;   // SUB   r x y
+  static final int MUL   = 8;   // MUL   r x y
+  static final int LT    = 9;   // LT    r x y
+  static final int EQ    = 10;  // EQ    r x y
+  static final int PRINT = 11;  // PRINT r
+  static final int ALLOC = 12;  // ALLOC r site len
+  static final int INDEX = 13;  // INDEX r arr idx
+  static final int MOVE  = 14;  // MOVE  r src
+  static final int TABLE = 15;  // TABLE r lo n pcDefault pc0 ... pc(n-1)
+
+  private int[] code;    // the encoded instructions
+  private int[] starts;  // starts[n] is the offset of the code for block Ln
+  private int   nregs;   // the number of registers that are needed
+
+  /** Flatten the given list of blocks into a single code array.
+   */
+  FlatProgram(Vector<Block> blocks) {
+    Flattener f = new Flattener(blocks.size());
+    for (int i=0; i<blocks.size(); i++) {
+      Block b = blocks.elementAt(i);
+      f.startBlock(b);
+      for (Code c=b.code(); c!=null; c=c.next()) {
+        c.flatten(f);
+      }
+    }
+    this.code   = f.finish();
+    this.starts = f.starts();
+    this.nregs  = Tmp.count();
+  }
+
+  /** Return the number of ints in the encoded program.
+   */
+  int size() { return code.length; }
+
+  /** Execute the flattened program, starting at the given entry
+   *  block, and using the specified memory.
+   */
+  void run(Block entry, Memory mem) {
+    int[] code = this.code;
+    int[] regs = new int[nregs];
+    int   pc   = starts[entry.num()];
+    for (;;) {
+      switch (code[pc]) {
+        case LOAD  : regs[code[pc+1]] = mem.load(code[pc+2]);
+                     pc += 3;
+                     break;
+        case STORE : mem.store(code[pc+1], regs[code[pc+2]]);
+                     pc += 3;
+                     break;
+        case IMMED : regs[code[pc+1]] = code[pc+2];
+                     pc += 3;
+                     break;
+        case ADD   : regs[code[pc+1]] = regs[code[pc+2]] + regs[code[pc+3]];
+                     pc += 4;
+                     break;
+        case SUB   : regs[code[pc+1]] = regs[code[pc+2]] - regs[code[pc+3]];
+                     pc += 4;
+                     break;
+        case MUL   : regs[code[pc+1]] = regs[code[pc+2]] * regs[code[pc+3]];
+                     pc += 4;
+                     break;
+        case LT    : regs[code[pc+1]] = (regs[code[pc+2]] < regs[code[pc+3]]) ? 1 : 0;
+                     pc += 4;
+                     break;
+        case EQ    : regs[code[pc+1]] = (regs[code[pc+2]] == regs[code[pc+3]]) ? 1 : 0;
+                     pc += 4;
+                     break;
+        case ALLOC : regs[code[pc+1]] = mem.alloc(code[pc+2], code[pc+3]);
+                     pc += 4;
+                     break;
+        case INDEX : regs[code[pc+1]] = mem.load(mem.index(regs[code[pc+2]],
+                                                           regs[code[pc+3]]));
+                     pc += 4;
+                     break;
+        case MOVE  : regs[code[pc+1]] = regs[code[pc+2]];
+                     pc += 3;
+                     break;
+        case TABLE : {
+                       long i = (long)regs[code[pc+1]] - code[pc+2];
+                       pc = (i>=0 && i<code[pc+3]) ? code[pc+5+(int)i]
+                                                   : code[pc+4];
+                     }
+                     break;
+        case GOTO  : pc = code[pc+1];
+                     break;
+        case COND  : pc = (regs[code[pc+1]] != 0) ? code[pc+2] : code[pc+3];
+                     break;
+        case PRINT : System.out.println("Output: " + regs[code[pc+1]]);
+                     pc += 2;
+                     break;
+        case RET   : mem.store(0, regs[code[pc+1]]);
+                     return;
+        default    : throw new IllegalStateException("bad opcode " + code[pc]);
+      }
+    }
+  }
+}
+
+/** Collects the encoded instructions for a FlatProgram.  References to
+ *  blocks are recorded as fixups and patched with real code offsets once
+ *  all of the blocks have been laid out.
+ */
+class Flattener {
+  private int[] code   = new int[64];
+  private int   used   = 0;
+  private int[] starts;
+  private Vector<Block> targets = new Vector<Block>();
+  private Vector<Integer> fixups  = new Vector<Integer>();
+
+  Flattener(int numBlocks) {
+    starts = new int[numBlocks];
+  }
+
+  /** Record the start of the code for the given block.
+   */
+  void startBlock(Block b) {
+    starts[b.num()] = used;
+  }
+
+  /** Append a single int to the encoded program.
+   */
+  void emit(int x) {
+    if (used==code.length) {
+      int[] bigger = new int[2*code.length];
+      System.arraycopy(code, 0, bigger, 0, used);
+      code = bigger;
+    }
+    code[used++] = x;
+  }
+
+  void emit(int op, int a) {
+    emit(op);
+    emit(a);
+  }
+
+  void emit(int op, int a, int b) {
+    emit(op);
+    emit(a);
+    emit(b);
+  }
+
+  void emit(int op, int a, int b, int c) {
+    emit(op);
+    emit(a);
+    emit(b);
+    emit(c);
+  }
+
+  /** Append a reference to a block, to be filled in by finish().
+   */
+  void emitBlock(Block b) {
+    targets.add(b);
+    fixups.add(used);
+    emit(-1);
+  }
+
+  /** Patch all block references and return the final code array.
+   */
+  int[] finish() {
+    for (int i=0; i<fixups.size(); i++) {
+      code[fixups.elementAt(i)] = starts[targets.elementAt(i).num()];
+    }
+    int[] result = new int[used];
+    System.arraycopy(code, 0, result, 0, used);
+    return result;
+  }
+
+  int[] starts() { return starts; }
+}
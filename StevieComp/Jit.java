@@ -0,0 +1,496 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.HashMap;
+import java.util.TreeSet;
+import java.util.Vector;
+
+/** Represents a Target program that has been translated into a JVM class
+ *  with a single static method, run(Memory), so that the Stevie program
+ *  itself can be compiled to native code by the JVM's JIT compiler.
+ *
+ *  Each block becomes a labelled sequence of bytecodes in that method,
+ *  each temporary becomes a JVM local variable, and the locations that
+ *  are used for variables are held in a local int[] that is loaded from
+ *  the Memory on entry and written back on return.  Arrays are still
+ *  accessed through the Memory.  The class is loaded as a hidden class,
+ *  which requires Java 15 or later.
+ */
+class JitProgram {
+  private MethodHandle run;
+
+  private JitProgram(MethodHandle run) {
+    this.run = run;
+  }
+
+  /** Translate the given program to a hidden class, returning null (and
+   *  printing the reason) if that is not possible, in which case the
+   *  caller should fall back to one of the interpreters.
+   */
+  static JitProgram compile(Program prog, Block entry, int numVars) {
+    try {
+      byte[] bytes = new Jit(prog, entry, numVars).classFile();
+      MethodHandles.Lookup lookup
+        = MethodHandles.lookup().defineHiddenClass(bytes, true);
+      return new JitProgram(lookup.findStatic(lookup.lookupClass(), "run",
+                             MethodType.methodType(void.class, Memory.class)));
+    } catch (JitError e) {
+      System.out.println("JIT: " + e.getMessage());
+    } catch (Throwable e) {
+      System.out.println("JIT: could not load generated class: " + e);
+    }
+    return null;
+  }
+
+  void run(Memory mem) {
+    try {
+      run.invokeExact(mem);
+    } catch (Throwable e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  // Helper methods that are called from generated code:
+
+  static void print(int x) {
+    System.out.println("Output: " + x);
+  }
+
+  static int lt(int x, int y) { return (x < y) ? 1 : 0; }
+  static int eq(int x, int y) { return (x == y) ? 1 : 0; }
+}
+
+/** Signals that a program cannot be translated to JVM bytecode.
+ */
+@SuppressWarnings("serial")
+class JitError extends Exception {
+  JitError(String msg) { super(msg); }
+}
+
+/** Generates the bytes of a class file for a Target program.  The code
+ *  for each instruction is produced by calling the jit() method of the
+ *  corresponding Code object, which in turn uses the methods below.
+ */
+class Jit {
+  private static final String CLASS  = "StevieJit";
+  private static final String MEMORY = "Memory";
+  private static final String HELPER = "JitProgram";
+
+  private static final int MEM  = 0;  // local holding the Memory
+  private static final int VARS = 1;  // local holding the variable array
+  private static final int TMPS = 2;  // first local used for temporaries
+
+  private int[]         locals;       // maps Tmp numbers to JVM locals
+  private int           numLocals = TMPS;
+  private int           numVars;
+  private TreeSet<Integer> loaded = new TreeSet<Integer>();
+  private TreeSet<Integer> stored = new TreeSet<Integer>();
+
+  private ByteArrayOutputStream body = new ByteArrayOutputStream();
+  private int[]         starts;        // offset of each block in body
+  private Vector<int[]> fixups = new Vector<int[]>();  // {at, from, block}
+  private Vector<Integer> returns = new Vector<Integer>();
+  private Vector<Integer> frames  = new Vector<Integer>();  // extra targets
+
+  private ConstPool pool = new ConstPool();
+
+  Jit(Program prog, Block entry, int numVars) throws JitError {
+    this.numVars = numVars;
+    this.locals  = new int[Tmp.count()];
+    Vector<Block> blocks = prog.blocks();
+    this.starts  = new int[blocks.size()];
+    emitBlock(entry);
+    for (int i=0; i<blocks.size(); i++) {
+      if (blocks.elementAt(i)!=entry) {
+        emitBlock(blocks.elementAt(i));
+      }
+    }
+    if (numLocals>=0xFFFF) {
+      throw new JitError("too many temporaries");
+    }
+  }
+
+  private void emitBlock(Block b) throws JitError {
+    starts[b.num()] = body.size();
+    b.code().jit(this);
+  }
+
+  //-- Methods used by Code.jit(): -------------------------------------------
+
+  private int local(Tmp t) {
+    if (locals[t.num()]==0) {
+      locals[t.num()] = numLocals++;
+    }
+    return locals[t.num()];
+  }
+
+  void iload(Tmp t)  { localOp(0x15, local(t)); }
+  void istore(Tmp t) { localOp(0x36, local(t)); }
+
+  void iconst(int n) { iconst(body, n); }
+
+  /** Push the value of the variable at location loc.
+   */
+  void loadVar(int loc) throws JitError {
+    checkVar(loc);
+    loaded.add(loc);
+    op(0x19); u1(VARS);  // aload
+    iconst(loc);
+    op(0x2e);            // iaload
+  }
+
+  /** Store the value of t in the variable at location loc.
+   */
+  void storeVar(int loc, Tmp t) throws JitError {
+    checkVar(loc);
+    stored.add(loc);
+    op(0x19); u1(VARS);  // aload
+    iconst(loc);
+    iload(t);
+    op(0x4f);            // iastore
+  }
+
+  private void checkVar(int loc) throws JitError {
+    if (loc<0 || loc>=numVars) {
+      throw new JitError("location " + loc + " is not a variable");
+    }
+  }
+
+  /** Apply a binary operator to the top two values on the stack.
+   */
+  void arith(char op) throws JitError {
+    switch (op) {
+      case '+' : op(0x60); break;  // iadd
+      case '-' : op(0x64); break;  // isub
+      case '*' : op(0x68); break;  // imul
+      case '<' : invoke(0xb8, HELPER, "lt", "(II)I"); break;
+      case '=' : invoke(0xb8, HELPER, "eq", "(II)I"); break;
+      default  : throw new JitError("unknown operator " + op);
+    }
+  }
+
+  void print() {
+    invoke(0xb8, HELPER, "print", "(I)V");
+  }
+
+  /** Push the location of the array for the given declaration site.
+   */
+  void alloc(int site, int len) {
+    op(0x19); u1(MEM);
+    iconst(site);
+    iconst(len);
+    invoke(0xb6, MEMORY, "alloc", "(II)I");
+  }
+
+  /** Push the value of element idx of array arr.
+   */
+  void index(Tmp arr, Tmp idx) {
+    op(0x19); u1(MEM);
+    op(0x19); u1(MEM);
+    iload(arr);
+    iload(idx);
+    invoke(0xb6, MEMORY, "index", "(II)I");
+    invoke(0xb6, MEMORY, "load", "(I)I");
+  }
+
+  void jump(Block b) {
+    int from = body.size();
+    op(0xc8);                       // goto_w
+    wideBranch(from, b);
+  }
+
+  void cond(Tmp t, Block ifTrue, Block ifFalse) {
+    iload(t);
+    op(0x99);                       // ifeq over the next goto_w
+    u2(8);
+    jump(ifTrue);
+    frames.add(body.size());
+    jump(ifFalse);
+  }
+
+  /** Jump to table[t - lo], or to dflt if t - lo is out of range.
+   */
+  void table(Tmp t, int lo, Block[] table, Block dflt) throws JitError {
+    if ((long)lo + table.length - 1 > Integer.MAX_VALUE) {
+      throw new JitError("jump table range is too large");
+    }
+    iload(t);
+    int from = body.size();
+    op(0xaa);                       // tableswitch
+    while (body.size()%4!=0) {      // (the prologue is padded so that
+      op(0);                        //  this alignment is preserved)
+    }
+    wideBranch(from, dflt);
+    u4(lo);
+    u4(lo + table.length - 1);
+    for (int i=0; i<table.length; i++) {
+      wideBranch(from, table[i]);
+    }
+  }
+
+  /** Return from the program; the result should already be stored in
+   *  location 0.
+   */
+  void ret() {
+    returns.add(body.size());
+    op(0xc8);                       // goto_w epilogue
+    u4(0);
+  }
+
+  //-- Bytecode generation: -------------------------------------------------
+
+  private void op(int b) { body.write(b); }
+  private void u1(int b) { body.write(b); }
+
+  private void u2(int x) {
+    body.write(x>>8);
+    body.write(x);
+  }
+
+  private void u4(int x) {
+    u2(x>>16);
+    u2(x);
+  }
+
+  private void localOp(int opcode, int slot) {
+    if (slot<256) {
+      op(opcode); u1(slot);
+    } else {
+      op(0xc4); op(opcode); u2(slot);  // wide
+    }
+  }
+
+  private void iconst(ByteArrayOutputStream out, int n) {
+    if (n>=-1 && n<=5) {
+      out.write(0x03 + n);                          // iconst_n
+    } else if (n>=-128 && n<=127) {
+      out.write(0x10); out.write(n);                // bipush
+    } else if (n>=-32768 && n<=32767) {
+      out.write(0x11); out.write(n>>8); out.write(n); // sipush
+    } else {
+      int i = pool.integer(n);
+      out.write(0x13); out.write(i>>8); out.write(i); // ldc_w
+    }
+  }
+
+  private void invoke(int opcode, String cls, String name, String desc) {
+    op(opcode);
+    u2(pool.method(cls, name, desc));
+  }
+
+  private void wideBranch(int from, Block b) {
+    fixups.add(new int[] { body.size(), from, b.num() });
+    u4(0);
+  }
+
+  /** Generate the complete class file.
+   */
+  byte[] classFile() throws JitError {
+    // Prologue: create the variable array, copy in the variables that
+    // are read, and initialize every temporary to zero.
+    ByteArrayOutputStream pro = new ByteArrayOutputStream();
+    iconst(pro, numVars);
+    pro.write(0xbc); pro.write(10);                 // newarray int
+    pro.write(0x3a); pro.write(VARS);               // astore
+    for (Integer loc : loaded) {
+      pro.write(0x19); pro.write(VARS);             // aload
+      iconst(pro, loc);
+      pro.write(0x19); pro.write(MEM);              // aload
+      iconst(pro, loc);
+      int m = pool.method(MEMORY, "load", "(I)I");
+      pro.write(0xb6); pro.write(m>>8); pro.write(m);
+      pro.write(0x4f);                              // iastore
+    }
+    for (int slot=TMPS; slot<numLocals; slot++) {
+      pro.write(0x03);                              // iconst_0
+      if (slot<256) {
+        pro.write(0x36); pro.write(slot);           // istore
+      } else {
+        pro.write(0xc4); pro.write(0x36); pro.write(slot>>8); pro.write(slot);
+      }
+    }
+    while (pro.size()%4!=0) {
+      pro.write(0);                                 // nop
+    }
+
+    // Epilogue: write back the variables that have been stored, along
+    // with the return value in location 0.
+    int epilogue = body.size();
+    stored.add(0);
+    for (Integer loc : stored) {
+      op(0x19); u1(MEM);
+      iconst(loc);
+      op(0x19); u1(VARS);
+      iconst(loc);
+      op(0x2e);                                     // iaload
+      invoke(0xb6, MEMORY, "store", "(II)V");
+    }
+    op(0xb1);                                       // return
+
+    byte[] code = body.toByteArray();
+    for (int i=0; i<fixups.size(); i++) {
+      int[] f = fixups.elementAt(i);
+      patch32(code, f[0], starts[f[2]] - f[1]);
+    }
+    for (int i=0; i<returns.size(); i++) {
+      int at = returns.elementAt(i);
+      patch32(code, at+1, epilogue - at);
+    }
+
+    int    shift = pro.size();
+    byte[] all   = new byte[shift + code.length];
+    System.arraycopy(pro.toByteArray(), 0, all, 0, shift);
+    System.arraycopy(code, 0, all, shift, code.length);
+    if (all.length>=0xFFFF) {
+      throw new JitError("generated code is too large");
+    }
+
+    // Every block, the epilogue, and the false branch of each conditional
+    // start with an empty stack and the same local variable types, so
+    // the same frame is used for each of them.
+    TreeSet<Integer> targets = new TreeSet<Integer>();
+    for (int i=0; i<starts.length; i++) {
+      targets.add(starts[i] + shift);
+    }
+    for (int i=0; i<frames.size(); i++) {
+      targets.add(frames.elementAt(i) + shift);
+    }
+    targets.add(epilogue + shift);
+
+    try {
+      return assemble(all, targets);
+    } catch (IOException e) {
+      throw new JitError(e.toString());
+    }
+  }
+
+  private static void patch32(byte[] code, int at, int offset) {
+    code[at]   = (byte)(offset>>24);
+    code[at+1] = (byte)(offset>>16);
+    code[at+2] = (byte)(offset>>8);
+    code[at+3] = (byte)offset;
+  }
+
+  private byte[] assemble(byte[] code, TreeSet<Integer> targets)
+   throws IOException {
+    int thisClass  = pool.cls(CLASS);
+    int superClass = pool.cls("java/lang/Object");
+    int name       = pool.utf8("run");
+    int desc       = pool.utf8("(L" + MEMORY + ";)V");
+    int codeAttr   = pool.utf8("Code");
+    int frameAttr  = pool.utf8("StackMapTable");
+    int memClass   = pool.cls(MEMORY);
+    int arrClass   = pool.cls("[I");
+
+    ByteArrayOutputStream frames = new ByteArrayOutputStream();
+    DataOutputStream      f      = new DataOutputStream(frames);
+    f.writeShort(targets.size());
+    int prev = -1;
+    for (Integer t : targets) {
+      f.writeByte(255);                    // full_frame
+      f.writeShort(t - prev - 1);
+      prev = t;
+      f.writeShort(numLocals);
+      f.writeByte(7); f.writeShort(memClass);
+      f.writeByte(7); f.writeShort(arrClass);
+      for (int i=TMPS; i<numLocals; i++) {
+        f.writeByte(1);                    // int
+      }
+      f.writeShort(0);                     // empty stack
+    }
+    byte[] frameBytes = frames.toByteArray();
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DataOutputStream      d   = new DataOutputStream(out);
+    d.writeInt(0xCAFEBABE);
+    d.writeShort(0);
+    d.writeShort(52);                      // Java 8 class file format
+    pool.write(d);
+    d.writeShort(0x0030);                  // ACC_FINAL | ACC_SUPER
+    d.writeShort(thisClass);
+    d.writeShort(superClass);
+    d.writeShort(0);                       // interfaces
+    d.writeShort(0);                       // fields
+    d.writeShort(1);                       // methods
+    d.writeShort(0x0009);                  // ACC_PUBLIC | ACC_STATIC
+    d.writeShort(name);
+    d.writeShort(desc);
+    d.writeShort(1);                       // attributes
+    d.writeShort(codeAttr);
+    d.writeInt(18 + code.length + frameBytes.length);
+    d.writeShort(6);                       // max_stack
+    d.writeShort(numLocals);               // max_locals
+    d.writeInt(code.length);
+    d.write(code);
+    d.writeShort(0);                       // exception table
+    d.writeShort(1);                       // attributes
+    d.writeShort(frameAttr);
+    d.writeInt(frameBytes.length);
+    d.write(frameBytes);
+    d.writeShort(0);                       // class attributes
+    return out.toByteArray();
+  }
+}
+
+/** Represents the constant pool of a class file that is being generated.
+ */
+class ConstPool {
+  private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+  private DataOutputStream      out   = new DataOutputStream(bytes);
+  private HashMap<String, Integer> index = new HashMap<String, Integer>();
+  private int count = 1;
+
+  private int add(String key, int tag, int a, int b) {
+    Integer i = index.get(key);
+    if (i!=null) {
+      return i;
+    }
+    try {
+      out.writeByte(tag);
+      if (tag==3) {                 // CONSTANT_Integer
+        out.writeInt(a);
+      } else {
+        out.writeShort(a);
+        if (b>=0) {
+          out.writeShort(b);
+        }
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    index.put(key, count);
+    return count++;
+  }
+
+  int utf8(String s) {
+    Integer i = index.get("U" + s);
+    if (i!=null) {
+      return i;
+    }
+    try {
+      out.writeByte(1);
+      out.writeUTF(s);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    index.put("U" + s, count);
+    return count++;
+  }
+
+  int integer(int n) { return add("I" + n, 3, n, -1); }
+  int cls(String name) { return add("C" + name, 7, utf8(name), -1); }
+
+  int method(String cls, String name, String desc) {
+    int c  = cls(cls);
+    int nt = add("N" + name + desc, 12, utf8(name), utf8(desc));
+    return add("M" + cls + "." + name + desc, 10, c, nt);
+  }
+
+  void write(DataOutputStream d) throws IOException {
+    d.writeShort(count);
+    d.write(bytes.toByteArray());
+  }
+}
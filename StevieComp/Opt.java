@@ -0,0 +1,204 @@
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Vector;
+
+/** Implements a simple optimizer for Target programs.  Each block is
+ *  processed in two phases:
+ *
+ *  - A forward pass (see Code.optimize()) that performs constant
+ *    folding, forwarding of stored and loaded values to later loads of
+ *    the same location, local value numbering, and copy propagation.
+ *    Nothing is assumed about the values of temporaries or memory at
+ *    the start of each block.
+ *
+ *  - A backward pass (see Code.eliminate()) that removes instructions
+ *    whose results are never used.  A temporary is treated as live on
+ *    exit from every block if any block might use it before setting it.
+ *
+ *  Each of the individual passes can be turned off independently.
+ */
+class Optimizer {
+  boolean fold    = true;   // constant folding
+  boolean forward = true;   // store-to-load and load-to-load forwarding
+  boolean lvn     = true;   // local value numbering and copy propagation
+  boolean dce     = true;   // dead temporary elimination
+
+  // Statistics:
+  int folded    = 0;        // instructions simplified by constant folding
+  int forwarded = 0;        // loads replaced by moves
+  int numbered  = 0;        // operations replaced by moves
+  int removed   = 0;        // dead instructions removed
+
+  // Facts that are known at the current point in a block:
+  private Map<Tmp, Integer> consts = new HashMap<Tmp, Integer>();
+  private Map<Tmp, Tmp>     copies = new HashMap<Tmp, Tmp>();
+  private Map<Integer, Tmp> memory = new HashMap<Integer, Tmp>();
+  private Map<OpKey, Tmp>   values = new HashMap<OpKey, Tmp>();
+
+  /** Optimize each of the blocks in the given program.
+   */
+  void run(Program prog) {
+    Vector<Block> blocks = prog.blocks();
+    for (int i=0; i<blocks.size(); i++) {
+      Block b = blocks.elementAt(i);
+      consts.clear();
+      copies.clear();
+      memory.clear();
+      values.clear();
+      b.set(b.code().optimize(this));
+    }
+
+    if (dce) {
+      // Find the temporaries that may be live on exit from a block by
+      // iterating until the set of temporaries that are live on entry
+      // to some block stops growing.
+      int           saved = removed;
+      HashSet<Tmp>  live  = new HashSet<Tmp>();
+      boolean       changed;
+      do {
+        HashSet<Tmp> entry = new HashSet<Tmp>();
+        for (int i=0; i<blocks.size(); i++) {
+          HashSet<Tmp> in = new HashSet<Tmp>(live);
+          blocks.elementAt(i).code().eliminate(this, in);
+          entry.addAll(in);
+        }
+        changed = !live.containsAll(entry);
+        live.addAll(entry);
+      } while (changed);
+      removed = saved;
+
+      for (int i=0; i<blocks.size(); i++) {
+        Block b = blocks.elementAt(i);
+        b.set(b.code().eliminate(this, new HashSet<Tmp>(live)));
+      }
+    }
+  }
+
+  /** Print a summary of the work done by each pass.
+   */
+  void report() {
+    System.out.println("Optimizer:"
+                       + " folded "    + folded
+                       + ", forwarded " + forwarded
+                       + ", numbered "  + numbered
+                       + ", removed "   + removed + " dead");
+  }
+
+  //-- Support for the forward pass: -----------------------------------------
+
+  /** Return the temporary that should be used in place of t.
+   */
+  Tmp rename(Tmp t) {
+    Tmp c = copies.get(t);
+    return (c==null) ? t : c;
+  }
+
+  /** Return the constant value of a temporary, or null if unknown.
+   */
+  Integer constOf(Tmp t) {
+    return fold ? consts.get(t) : null;
+  }
+
+  /** Discard all facts that depend on the value of t, which is about to
+   *  be overwritten.
+   */
+  void kill(Tmp t) {
+    consts.remove(t);
+    copies.remove(t);
+    copies.values().removeIf(v -> v==t);
+    memory.values().removeIf(v -> v==t);
+    Iterator<Map.Entry<OpKey, Tmp>> it = values.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<OpKey, Tmp> e = it.next();
+      if (e.getValue()==t || e.getKey().uses(t)) {
+        it.remove();
+      }
+    }
+  }
+
+  /** Record that r holds the constant n.
+   */
+  void setConst(Tmp r, int n) {
+    kill(r);
+    consts.put(r, n);
+  }
+
+  /** Record that r holds the same value as src.  Returns false if r and
+   *  src are the same temporary, in which case no move is needed.
+   */
+  boolean setCopy(Tmp r, Tmp src) {
+    if (r==src) {
+      return false;
+    }
+    kill(r);
+    if (lvn) {
+      copies.put(r, src);
+    }
+    Integer n = consts.get(src);
+    if (n!=null) {
+      consts.put(r, n);
+    }
+    return true;
+  }
+
+  /** Record that r holds the result of x op y.
+   */
+  void setValue(Tmp r, Tmp x, char op, Tmp y) {
+    kill(r);
+    if (lvn && r!=x && r!=y) {
+      values.put(new OpKey(x, op, y), r);
+    }
+  }
+
+  /** Return a temporary that already holds x op y, or null if none.
+   */
+  Tmp valueOf(Tmp x, char op, Tmp y) {
+    return lvn ? values.get(new OpKey(x, op, y)) : null;
+  }
+
+  /** Record that r holds the value stored in location loc.
+   */
+  void setMemory(int loc, Tmp r) {
+    if (forward) {
+      memory.put(loc, r);
+    }
+  }
+
+  /** Return a temporary that holds the value in loc, or null if none.
+   */
+  Tmp memoryAt(int loc) {
+    return forward ? memory.get(loc) : null;
+  }
+}
+
+/** Represents the operation x op y, used as a key for value numbering.
+ *  Operands of commutative operators are put in a canonical order.
+ */
+class OpKey {
+  private Tmp  x, y;
+  private char op;
+  OpKey(Tmp x, char op, Tmp y) {
+    if (op!='-' && op!='<' && x.num()>y.num()) {
+      Tmp t = x; x = y; y = t;
+    }
+    this.x  = x;
+    this.op = op;
+    this.y  = y;
+  }
+
+  boolean uses(Tmp t) { return x==t || y==t; }
+
+  public boolean equals(Object o) {
+    if (!(o instanceof OpKey)) {
+      return false;
+    }
+    OpKey k = (OpKey)o;
+    return x==k.x && op==k.op && y==k.y;
+  }
+
+  public int hashCode() {
+    return (x.num() * 31 + y.num()) * 31 + op;
+  }
+}
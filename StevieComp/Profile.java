@@ -0,0 +1,106 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.TreeMap;
+import java.util.Vector;
+
+/** Records an execution profile for a Target program: the number of
+ *  times each block is executed and the total wall clock time spent in
+ *  each one.  Because every block is a straight line sequence of
+ *  instructions, the number of times each kind of instruction is
+ *  executed can be calculated from the block counts afterwards, so the
+ *  instructions themselves do not need to be instrumented.
+ */
+class Profile {
+  private Vector<Block> blocks;
+  private long[]        counts;
+  private long[]        nanos;
+
+  Profile(Program prog) {
+    this.blocks = prog.blocks();
+    this.counts = new long[blocks.size()];
+    this.nanos  = new long[blocks.size()];
+  }
+
+  /** Run a target program using the Code.run() interpreter, recording
+   *  a profile as it runs.
+   */
+  void run(Block entry, Memory mem) {
+    Block pc = entry;
+    while (pc!=null) {
+      long  start = System.nanoTime();
+      Block next  = pc.code().run(mem);
+      nanos[pc.num()] += System.nanoTime() - start;
+      counts[pc.num()]++;
+      pc = next;
+    }
+  }
+
+  /** Return the number of times each kind of instruction was executed.
+   */
+  TreeMap<String, Long> kinds() {
+    TreeMap<String, Long> kinds = new TreeMap<String, Long>();
+    for (int i=0; i<blocks.size(); i++) {
+      for (Code c=blocks.elementAt(i).code(); c!=null; c=c.next()) {
+        String kind = c.getClass().getName();
+        Long   n    = kinds.get(kind);
+        kinds.put(kind, ((n==null) ? 0 : n) + counts[i]);
+      }
+    }
+    return kinds;
+  }
+
+  /** Print a report listing the blocks that were executed, with those
+   *  that took the most time first, followed by instruction counts.
+   */
+  void report() {
+    Integer[] order = new Integer[blocks.size()];
+    long      total = 0;
+    for (int i=0; i<order.length; i++) {
+      order[i] = i;
+      total   += nanos[i];
+    }
+    Arrays.sort(order, (a, b) -> Long.compare(nanos[b], nanos[a]));
+
+    System.out.println("Profile (hottest blocks first):");
+    System.out.println("  block        count   instrs     time(us)      %");
+    for (int k=0; k<order.length; k++) {
+      int i = order[k];
+      if (counts[i]>0) {
+        System.out.printf("  %-5s %12d %8d %12.1f %6.1f%n",
+                          blocks.elementAt(i), counts[i],
+                          counts[i] * blocks.elementAt(i).code().length(),
+                          nanos[i] / 1e3,
+                          (total==0) ? 0.0 : 100.0 * nanos[i] / total);
+      }
+    }
+    System.out.println("  instructions executed by kind:");
+    TreeMap<String, Long> kinds = kinds();
+    for (String kind : kinds.keySet()) {
+      System.out.printf("    %-10s %12d%n", kind, kinds.get(kind));
+    }
+  }
+
+  /** Write the profile to a file.  Each line has the form:
+   *
+   *    block <label> <count> <nanos> <instructions>
+   *    kind  <name>  <count>
+   */
+  void dump(String file) {
+    try {
+      PrintWriter out = new PrintWriter(new FileWriter(file));
+      for (int i=0; i<blocks.size(); i++) {
+        out.println("block " + blocks.elementAt(i) + " " + counts[i]
+                    + " " + nanos[i] + " " + blocks.elementAt(i).code().length());
+      }
+      TreeMap<String, Long> kinds = kinds();
+      for (String kind : kinds.keySet()) {
+        out.println("kind " + kind + " " + kinds.get(kind));
+      }
+      out.close();
+    } catch (IOException e) {
+      System.out.println("Could not write profile to " + file + ": " + e);
+    }
+  }
+}
@@ -1,3 +1,6 @@
+import java.util.Arrays;
+import java.util.HashSet;
+
 //____________________________________________________________________________
 // Static Analysis:
 
@@ -77,6 +80,17 @@ class TypeEnv {
     this.type  = type;
     this.next  = next;
     this.loc   = (next==null) ? 1 : 1 + next.loc;
+    if (loc>maxLoc) {
+      maxLoc = loc;
+    }
+  }
+
+  private static int maxLoc = 0;
+
+  /** Return the largest location that has been assigned to a variable.
+   */
+  static int maxLoc() {
+    return maxLoc;
   }
 
   /** Represents the empty environment that does not bind any
@@ -227,9 +241,10 @@ class Nth extends Expr {
   }
 
   Code compileTo(Tmp reg, Code next, Program prog) {
-    System.out.println("Array indexing not implemented");
-    System.exit(1);
-    return next; // not reached
+    Tmp tmp = new Tmp();
+    return arr.compileTo(tmp,
+           idx.compileTo(reg,
+           new Index(reg, tmp, reg, next),prog),prog);
   }
 }
 
@@ -340,19 +355,15 @@ class LAnd extends LogicBinExpr {
 
   String op() { return "&&"; }
 
+  // If l is false, then reg already holds the result (0); otherwise the
+  // result is just the value of r.
   Code compileTo(Tmp reg, Code next, Program prog) {
-    Code got = new Goto(prog.block(next));
-
-    return l.compileTo(reg, 
-		       new Cond(reg, 
-                                prog.block(r.compileTo(reg,
-			                               new Cond(reg, 
-                                                                prog.block(new Immed(reg, 1, got)),
-				                                prog.block(new Immed(reg, 0, got))),
-                                                       prog)),
-                                prog.block(new Immed(reg, 0, got))), 
-                                prog);    
-                        
+    Block join = prog.join(next);
+    return l.compileTo(reg,
+                       new Cond(reg,
+                                prog.block(r.compileTo(reg, new Goto(join), prog)),
+                                join),
+                       prog);
   }
 }
 
@@ -361,19 +372,15 @@ class LOr extends LogicBinExpr {
 
   String op() { return "||"; }
 
+  // If l is true, then reg already holds the result (1); otherwise the
+  // result is just the value of r.
   Code compileTo(Tmp reg, Code next, Program prog) {
-    Code got = new Goto(prog.block(next));
-
+    Block join = prog.join(next);
     return l.compileTo(reg,
                        new Cond(reg,
-                                prog.block(new Immed(reg, 1, got)),
-                                prog.block(r.compileTo(reg,
-                                                       new Cond(reg,
-                                                                prog.block(new Immed(reg, 1, got)),
-                                                                prog.block(new Immed(reg, 0, got))),
-                                                       prog))),
+                                join,
+                                prog.block(r.compileTo(reg, new Goto(join), prog))),
                        prog);
-    
   }
 }
 
@@ -483,11 +490,12 @@ class While extends Stmt {
   Code compile(Program prog, Code next, Block breakTo, Code continueTo) {
     Block head = prog.block();
     Code  loop = new Goto(head);
+    Block exit = prog.join(next);
     Tmp   tmp  = new Tmp();
     head.set(test.compileTo(tmp,
              new Cond(tmp,
-                      prog.block(body.compile(prog, loop, prog.block(next), loop)),
-                      prog.block(next)),prog));
+                      prog.block(body.compile(prog, loop, exit, loop)),
+                      exit),prog));
     return loop;
   }
 }
@@ -524,7 +532,7 @@ class If extends Stmt {
 
   Code compile(Program prog, Code next, Block breakTo, Code continueTo) {
     Tmp   tmp = new Tmp();
-    Block n   = prog.block(next);
+    Block n   = prog.join(next);
     Goto  got = new Goto(n);
     Block t   = prog.block(ifTrue.compile(prog, got, breakTo, continueTo));
     Block f   = (ifFalse==null)
@@ -601,7 +609,7 @@ class VarDecl extends Stmt {
   Code compile(Program prog, Code next, Block breakTo, Code continueTo) {
     int i = vars.length;
     while (--i>=0) {
-      next = vars[i].compile(next);
+      next = vars[i].compile(next, prog);
     }
     return next;
   }
@@ -621,8 +629,31 @@ class VarIntro {
     return te = new TypeEnv(name, type, env);
   }
 
-  Code compile(Code next) {
+  /** The number of elements that are reserved for each array.  Array
+   *  storage is allocated lazily, a page at a time, so only elements
+   *  that are actually written take up space in memory.
+   */
+  static final int ARRAY_LENGTH = 1 << 16;
+
+  /** The number of array declarations that have been compiled, which
+   *  are numbered from zero (see Memory.alloc()).
+   */
+  private static int sites = 0;
+
+  /** The number of this declaration, if it is for an array.
+   */
+  private int site = -1;
+
+  Code compile(Code next, Program prog) {
     Tmp tmp = new Tmp();
+    if (te.getType().elemType()!=null) {
+      if (site<0) {
+        site = sites++;
+      }
+      return new Alloc(tmp, site, ARRAY_LENGTH,
+             new Store(te.getLoc(), tmp,
+             next));
+    }
     return new Immed(tmp, 0,
            new Store(te.getLoc(), tmp,
            next));
@@ -644,11 +675,11 @@ class InitVarIntro extends VarIntro {
     return super.check(type, env);
   }
 
-  Code compile(Code next) {
+  Code compile(Code next, Program prog) {
     Tmp tmp = new Tmp();
     return expr.compileTo(tmp,
            new Store(te.getLoc(), tmp,
-           next),null);
+           next),prog);
   }
 }
 
@@ -679,16 +710,12 @@ class DoWhile extends Stmt {
 
   Code compile(Program prog, Code next, Block breakTo, Code continueTo) {
     Block head = prog.block();
-    Code  loop = new Goto(head);
+    Block exit = prog.join(next);
     Tmp   tmp  = new Tmp();
-
-    head.set(body.compile(prog,
-             test.compileTo(tmp,
-                  new Cond(tmp,
-                       prog.block(body.compile(prog, loop, prog.block(next), loop)),
-                       prog.block(next)),prog), prog.block(next), loop));
-          
-    return loop;
+    Code  cont = new Goto(prog.block(test.compileTo(tmp,
+                                     new Cond(tmp, head, exit),prog)));
+    head.set(body.compile(prog, cont, exit, cont));
+    return new Goto(head);
   }
 }
 
@@ -754,19 +781,114 @@ class Switch extends Stmt {
   TypeEnv check(TypeEnv env, boolean canContinue, boolean canBreak)
    throws StaticError {
     test.require(env, Type.INT);
+    HashSet<Integer> nums = new HashSet<Integer>();
+    boolean          dflt = false;
     for (int i=0; i<cases.length; i++) {
       cases[i].check(env, canContinue);
-      for (int j=i+1; j<cases.length; j++) {
-        cases[i].distinctFrom(cases[j]);
+      Integer num = cases[i].num();
+      if (num==null) {
+        if (dflt) {
+          throw new StaticError("switch statement contains two default cases");
+        }
+        dflt = true;
+      } else if (!nums.add(num)) {
+        throw new StaticError("switch statement contains two cases for " + num);
       }
     }
     return env;
   }
 
+  /** Use a jump table for a range of at least this many cases ...
+   */
+  static final int MIN_TABLE = 4;
+
+  /** ... so long as at least one in every DENSITY entries is used.
+   */
+  static final int DENSITY = 3;
+
+  /** Use a linear sequence of tests for at most this many cases.
+   */
+  static final int MAX_LINEAR = 3;
+
   Code compile(Program prog, Code next, Block breakTo, Code continueTo) {
-    System.err.println("DoWhile compile() method NOT IMPLEMENTED");
-    System.exit(1);
-    return next; // not reached
+    // Compile the case bodies from last to first so that each one can
+    // fall through to the next; a break goes to the exit block.
+    Block   exit   = prog.join(next);
+    Block   dflt   = exit;
+    Block   after  = exit;
+    Block[] blocks = new Block[cases.length];
+    int     count  = 0;
+    for (int i=cases.length-1; i>=0; i--) {
+      Stmt body = cases[i].body;
+      blocks[i] = (body==null)
+                  ? after
+                  : prog.block(body.compile(prog, new Goto(after),
+                                            exit, continueTo));
+      after = blocks[i];
+      if (cases[i].num()==null) {
+        dflt = blocks[i];
+      } else {
+        count++;
+      }
+    }
+
+    // Sort the numbered cases by value:
+    Integer[] order = new Integer[count];
+    for (int i=0, n=0; i<cases.length; i++) {
+      if (cases[i].num()!=null) {
+        order[n++] = i;
+      }
+    }
+    Arrays.sort(order, (a, b) -> Integer.compare(cases[a].num(), cases[b].num()));
+    int[]   keys    = new int[count];
+    Block[] targets = new Block[count];
+    for (int i=0; i<count; i++) {
+      keys[i]    = cases[order[i]].num();
+      targets[i] = blocks[order[i]];
+    }
+
+    Tmp tmp = new Tmp();
+    return test.compileTo(tmp,
+           dispatch(prog, tmp, keys, targets, 0, count, dflt), prog);
+  }
+
+  /** Generate code to jump to the target for whichever of the keys in
+   *  positions lo (inclusive) to hi (exclusive) matches the value in v,
+   *  or to dflt if there is no match.  Dense ranges of keys use a jump
+   *  table; otherwise, a binary search is used to split the range in
+   *  two, with a linear sequence of tests for small ranges.
+   */
+  private static Code dispatch(Program prog, Tmp v, int[] keys,
+                               Block[] targets, int lo, int hi, Block dflt) {
+    int  n     = hi - lo;
+    long range = (n==0) ? 0 : (long)keys[hi-1] - keys[lo] + 1;
+    if (n>=MIN_TABLE && range<=(long)DENSITY*n) {
+      Block[] table = new Block[(int)range];
+      Arrays.fill(table, dflt);
+      for (int i=lo; i<hi; i++) {
+        table[keys[i]-keys[lo]] = targets[i];
+      }
+      return new JumpTable(v, keys[lo], table, dflt);
+    } else if (n<=MAX_LINEAR) {
+      Code code = new Goto(dflt);
+      for (int i=hi-1; i>=lo; i--) {
+        Tmp k = new Tmp();
+        Tmp c = new Tmp();
+        code  = new Immed(k, keys[i],
+                new Op(c, v, '=', k,
+                new Cond(c, targets[i], prog.join(code))));
+      }
+      return code;
+    } else {
+      int mid = lo + n/2;
+      Tmp k   = new Tmp();
+      Tmp c   = new Tmp();
+      return new Immed(k, keys[mid],
+             new Op(c, v, '<', k,
+             new Cond(c,
+                      prog.block(dispatch(prog, v, keys, targets, lo, mid, dflt)),
+                      prog.block(dispatch(prog, v, keys, targets, mid, hi, dflt)))));
+    }
   }
 }
 
@@ -783,12 +905,11 @@ abstract class Case {
     }
   }
 
-  // Methods for checking that cases are disjoint: a single
-  // switch statement should not two default cases or two
-  // numeric cases with the same integer value.
-  abstract void distinctFrom(Case that) throws StaticError;
-  abstract void notCaseFor(int num)     throws StaticError;
-  abstract void notDefault()            throws StaticError;
+  /** Return the value for a numeric case, or null for a default case.
+   *  A single switch statement should not have two default cases or
+   *  two numeric cases with the same integer value.
+   */
+  abstract Integer num();
 }
 
 class NumCase extends Case {
@@ -803,19 +924,7 @@ class NumCase extends Case {
     }
   }
 
-  void distinctFrom(Case that) throws StaticError {
-    that.notCaseFor(num);
-  }
-
-  void notCaseFor(int num) throws StaticError {
-    if (this.num==num) {
-      throw new StaticError("switch statement contains two cases for " + num);
-    }
-  }
-
-  void notDefault() throws StaticError {
-    /* this is not a default case, so no action is required. */
-  }
+  Integer num() { return num; }
 }
 
 class DefaultCase extends Case {
@@ -829,17 +938,7 @@ class DefaultCase extends Case {
     }
   }
 
-  void distinctFrom(Case that) throws StaticError {
-    that.notDefault();
-  }
-
-  void notCaseFor(int num) throws StaticError {
-    /* this is not a number case, so no action is required. */
-  }
-
-  void notDefault() throws StaticError {
-    throw new StaticError("switch statement contains two default cases");
-  }
+  Integer num() { return null; }
 }
 
 //____________________________________________________________________________
@@ -1,10 +1,68 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Set;
 import java.util.Vector;
 
 /** Implements a compiler from Stevie to the target language.
+ *  By default, the compiled program is executed by the Code.run()
+ *  interpreter.  The following command line options are supported:
+ *
+ *    -flat       run the program using the flattened FlatProgram
+ *                engine instead of the Code.run() interpreter.
+ *    -jit        run the program by translating it to a JVM class (see
+ *                JitProgram), falling back to the interpreter if the
+ *                program cannot be translated.
+ *    -profile    run the program using the Code.run() interpreter and
+ *                report the number of times each block and each kind of
+ *                instruction is executed, and the time spent in each
+ *                block (see Profile).
+ *    -profile-file F
+ *                as -profile, but also write the profile to file F.
+ *    -bench N    compare the throughput of the execution engines by
+ *                running the program N times on each.
+ *    -O0         turn off all of the optimizer passes.
+ *    -no-fold, -no-forward, -no-lvn, -no-dce
+ *                turn off individual optimizer passes (see Optimizer).
  */
 class StevieComp {
 
   public static void main(String[] args) {
+    boolean   flat  = false;
+    boolean   jit   = false;
+    boolean   prof  = false;
+    String    pfile = null;
+    int       bench = 0;
+    Optimizer opt   = new Optimizer();
+    for (int i=0; i<args.length; i++) {
+      if (args[i].equals("-flat")) {
+        flat = true;
+      } else if (args[i].equals("-jit")) {
+        jit = true;
+      } else if (args[i].equals("-profile")) {
+        prof = true;
+      } else if (args[i].equals("-profile-file") && i+1<args.length) {
+        prof  = true;
+        pfile = args[++i];
+      } else if (args[i].equals("-bench") && i+1<args.length) {
+        bench = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-O0")) {
+        opt.fold = opt.forward = opt.lvn = opt.dce = false;
+      } else if (args[i].equals("-no-fold")) {
+        opt.fold = false;
+      } else if (args[i].equals("-no-forward")) {
+        opt.forward = false;
+      } else if (args[i].equals("-no-lvn")) {
+        opt.lvn = false;
+      } else if (args[i].equals("-no-dce")) {
+        opt.dce = false;
+      } else {
+        System.out.println("usage: java StevieComp [-flat] [-jit] [-profile]"
+                           + " [-profile-file F] [-bench N] [-O0]"
+                           + " [-no-fold] [-no-forward] [-no-lvn] [-no-dce]");
+        System.exit(1);
+      }
+    }
+
     // Read and parse a source program from standard input
     new Parser(System.in);
     Stmt p = null;
@@ -30,31 +88,250 @@ class StevieComp {
     Code    done   = new Immed(result, 0,
                      new Ret(result));
     Block   entry  = target.block(p.compile(target, done));
+    String  before = target.stats();
+    opt.run(target);
+    target.simplify(entry);
     System.out.println("Entry point is at " + entry);
     target.show();
-    
+    opt.report();
+    System.out.println("Program size: " + target.stats()
+                       + " (before optimization: " + before + ")");
+
     // Run the target language program:
     System.out.println("Running on an empty memory:");
-    Memory mem = new Memory();
-    Block  pc  = entry;
-    while (pc!=null)  {
-      pc = pc.code().run(mem);
-    } 
+    Memory     mem     = newMemory();
+    Profile    profile = prof ? new Profile(target) : null;
+    JitProgram code    = (jit && !prof)
+                         ? JitProgram.compile(target, entry, numVars())
+                         : null;
+    if (profile!=null) {
+      profile.run(entry, mem);
+    } else if (code!=null) {
+      code.run(mem);
+    } else if (flat) {
+      target.flatten().run(entry, mem);
+    } else {
+      run(entry, mem);
+    }
 
     // Display final result:
     System.out.println("Return value was: " + mem.load(0));
+    System.out.println("Memory used: " + mem.pages() + " pages of "
+                       + Memory.PAGE_SIZE + " words");
+
+    if (profile!=null) {
+      profile.report();
+      if (pfile!=null) {
+        profile.dump(pfile);
+      }
+    }
+
+    if (bench>0) {
+      benchmark(target, entry, bench);
+    }
+  }
+
+  /** Create an empty memory, with the heap placed just above the
+   *  locations that are used for variables.
+   */
+  static Memory newMemory() {
+    return new Memory(numVars());
+  }
+
+  /** Return the number of locations used for variables (including the
+   *  return value in location 0).
+   */
+  static int numVars() {
+    return TypeEnv.maxLoc() + 1;
+  }
+
+  /** Run a target program using the Code.run() interpreter.
+   */
+  static void run(Block entry, Memory mem) {
+    Block pc = entry;
+    while (pc!=null)  {
+      pc = pc.code().run(mem);
+    }
+  }
+
+  /** Compare the throughput of the Code.run() interpreter with that of
+   *  the flattened and JIT compiled engines by running the program the
+   *  specified number of times on each, with output from print
+   *  statements discarded.  The memory for each run is allocated before
+   *  the timing starts.
+   */
+  static void benchmark(Program target, Block entry, int iters) {
+    FlatProgram flat = target.flatten();
+    JitProgram  jit  = JitProgram.compile(target, entry, numVars());
+    PrintStream out  = System.out;
+    System.setOut(new PrintStream(new OutputStream() {
+      public void write(int b) { }
+    }));
+    long tree = 0, fast = 0, comp = 0;
+    for (int pass=0; pass<2; pass++) {  // first pass is a warm up
+      Memory[] mems  = newMemories(iters);
+      long     start = System.nanoTime();
+      for (int i=0; i<iters; i++) {
+        run(entry, mems[i]);
+      }
+      tree  = System.nanoTime() - start;
+      mems  = newMemories(iters);
+      start = System.nanoTime();
+      for (int i=0; i<iters; i++) {
+        flat.run(entry, mems[i]);
+      }
+      fast  = System.nanoTime() - start;
+      if (jit!=null) {
+        mems  = newMemories(iters);
+        start = System.nanoTime();
+        for (int i=0; i<iters; i++) {
+          jit.run(mems[i]);
+        }
+        comp  = System.nanoTime() - start;
+      }
+    }
+    System.setOut(out);
+    System.out.println("Benchmark (" + iters + " runs, "
+                       + flat.size() + " ints of flat code):");
+    report("Code.run()",  tree, iters);
+    report("FlatProgram", fast, iters);
+    System.out.printf("  speedup:     %.2fx%n", (double)tree / fast);
+    if (jit!=null) {
+      report("JitProgram", comp, iters);
+      System.out.printf("  speedup:     %.2fx%n", (double)tree / comp);
+    }
+  }
+
+  /** Create the given number of empty memories.
+   */
+  private static Memory[] newMemories(int n) {
+    Memory[] mems = new Memory[n];
+    for (int i=0; i<n; i++) {
+      mems[i] = newMemory();
+    }
+    return mems;
+  }
+
+  private static void report(String name, long nanos, int iters) {
+    System.out.printf("  %-12s %10.1f runs/sec  (%.3f us/run)%n",
+                      name + ":", iters * 1e9 / nanos, nanos / 1e3 / iters);
   }
 }
 
-/** Represent a memory as a simple array of integers,
- *  identifying individual variables by their locations.
- *  But how will we calculate those locations ... ?
+/** Represent a memory as a growable collection of fixed-size pages of
+ *  integers, identifying individual variables by their locations.
+ *  Pages are only allocated when a location on them is first written;
+ *  reading from a page that has never been written returns zero.
+ *
+ *  Locations below heapStart are used for variables (see TypeEnv);
+ *  the remaining locations form a heap from which storage for arrays
+ *  is allocated by simply bumping a pointer.  Each array is preceded
+ *  by a single header word that records its length.  The language has
+ *  no way to store into an array element, so every array holds only
+ *  zeros, and the storage for each array declaration is allocated the
+ *  first time that it runs and then shared by every later run of it.
  */
 class Memory {
-  private int[] mem = new int[100];
+  static final int PAGE_BITS = 10;
+  static final int PAGE_SIZE = 1 << PAGE_BITS;
+  static final int PAGE_MASK = PAGE_SIZE - 1;
+
+  private int[][] pages = new int[4][];
+  private int     used  = 0;  // number of pages that have been allocated
+  private int     heap;       // next free location in the heap
+  private int[]   sites = new int[0];  // arrays for each declaration
 
-  int load(int loc) { return mem[loc]; }
-  void store(int loc, int val) { mem[loc] = val; }
+  Memory(int heapStart) {
+    this.heap = heapStart;
+  }
+
+  int load(int loc) {
+    int p = loc >>> PAGE_BITS;
+    if (p<pages.length) {
+      int[] page = pages[p];
+      if (page!=null) {
+        return page[loc & PAGE_MASK];
+      }
+    }
+    if (loc<0) {
+      error("invalid memory location " + loc);
+    }
+    return 0;
+  }
+
+  void store(int loc, int val) {
+    page(loc)[loc & PAGE_MASK] = val;
+  }
+
+  /** Return the page containing a given location, allocating it (and
+   *  growing the page table) if necessary.
+   */
+  private int[] page(int loc) {
+    if (loc<0) {
+      error("invalid memory location " + loc);
+    }
+    int p = loc >>> PAGE_BITS;
+    if (p>=pages.length) {
+      int[][] bigger = new int[Math.max(2*pages.length, p+1)][];
+      System.arraycopy(pages, 0, bigger, 0, pages.length);
+      pages = bigger;
+    }
+    if (pages[p]==null) {
+      pages[p] = new int[PAGE_SIZE];
+      used++;
+    }
+    return pages[p];
+  }
+
+  /** Return the location of the first element of the array for the
+   *  given declaration site, allocating storage of the given length the
+   *  first time that the site is reached.
+   */
+  int alloc(int site, int len) {
+    if (site>=sites.length) {
+      int[] bigger = new int[Math.max(2*sites.length, site+1)];
+      System.arraycopy(sites, 0, bigger, 0, sites.length);
+      sites = bigger;
+    }
+    if (sites[site]==0) {
+      sites[site] = alloc(len);
+    }
+    return sites[site];
+  }
+
+  /** Allocate storage for an array of the given length, returning the
+   *  location of its first element.
+   */
+  private int alloc(int len) {
+    if (heap + len + 1 < 0) {
+      error("out of memory");
+    }
+    store(heap, len);
+    int arr = heap + 1;
+    heap   += len + 1;
+    return arr;
+  }
+
+  /** Return the location of element idx of the array at location arr.
+   */
+  int index(int arr, int idx) {
+    if (arr==0) {
+      error("attempt to index a null array");
+    }
+    if (idx<0 || idx>=load(arr-1)) {
+      error("array index " + idx + " out of bounds");
+    }
+    return arr + idx;
+  }
+
+  /** Return the number of pages that have been allocated.
+   */
+  int pages() { return used; }
+
+  private static void error(String msg) {
+    System.out.println("Runtime error: " + msg);
+    System.exit(1);
+  }
 }
 
 class Program {
@@ -70,6 +347,73 @@ class Program {
     return block(null);
   }
 
+  /** Return a block that will execute the given code, suitable for use
+   *  as a join point.  If the code is just a jump to an existing block,
+   *  then that block is returned instead of creating a new one.
+   */
+  Block join(Code code) {
+    Block b = code.jumpTarget();
+    return (b!=null) ? b : block(code);
+  }
+
+  /** Replace jumps to blocks that contain only a goto with direct jumps
+   *  to their final destination, and then discard (and renumber) any
+   *  blocks that are no longer reachable from the given entry point.
+   */
+  void simplify(Block entry) {
+    for (int i=0; i<blocks.size(); i++) {
+      blocks.elementAt(i).code().thread();
+    }
+
+    boolean[]     seen    = new boolean[blocks.size()];
+    Vector<Block> reached = new Vector<Block>();
+    reached.add(entry);
+    seen[entry.num()] = true;
+    for (int i=0; i<reached.size(); i++) {
+      Vector<Block> succs = new Vector<Block>();
+      reached.elementAt(i).code().succs(succs);
+      for (int j=0; j<succs.size(); j++) {
+        Block b = succs.elementAt(j);
+        if (!seen[b.num()]) {
+          seen[b.num()] = true;
+          reached.add(b);
+        }
+      }
+    }
+
+    Vector<Block> live = new Vector<Block>();
+    for (int i=0; i<blocks.size(); i++) {
+      Block b = blocks.elementAt(i);
+      if (seen[b.num()]) {
+        live.add(b);
+      }
+    }
+    for (int i=0; i<live.size(); i++) {
+      live.elementAt(i).renumber(i);
+    }
+    blocks = live;
+  }
+
+  /** Return a short description of the size of this program.
+   */
+  String stats() {
+    int instrs = 0;
+    for (int i=0; i<blocks.size(); i++) {
+      instrs += blocks.elementAt(i).code().length();
+    }
+    return blocks.size() + " blocks, " + instrs + " instructions";
+  }
+
+  Vector<Block> blocks() {
+    return blocks;
+  }
+
+  /** Lower this program to a flat array of encoded instructions.
+   */
+  FlatProgram flatten() {
+    return new FlatProgram(blocks);
+  }
+
   void show() {
     for (int i=0; i<blocks.size(); i++) {
       blocks.elementAt(i).print();
@@ -95,6 +439,28 @@ class Block {
     return code;
   }
 
+  int num() {
+    return num;
+  }
+
+  void renumber(int num) {
+    this.num = num;
+  }
+
+  /** Return the block that control will eventually reach from this
+   *  one by following a chain of blocks that contain only a goto.
+   */
+  Block target() {
+    Vector<Block> seen = new Vector<Block>();
+    Block b = this;
+    Block n;
+    while ((n = b.code.jumpTarget())!=null && !seen.contains(b)) {
+      seen.add(b);
+      b = n;
+    }
+    return b;
+  }
+
   public String toString() {
     return "L" + num;
   }
@@ -114,6 +480,12 @@ class Tmp {
 
   public String toString() { return "r" + num; }
 
+  int num() { return num; }
+
+  /** Return the total number of temporaries that have been created.
+   */
+  static int count() { return count; }
+
   void set(int x) { val = x; }
   int  get()      { return val; }
 
@@ -130,10 +502,60 @@ class Tmp {
 //        |  Immed Tmp Int Code
 //        |  Op Tmp Tmp Tmp Code
 //        |  PCode Tmp Code
+//        |  Move Tmp Tmp Code
+//        |  JumpTable Tmp Int Block[] Block
+//        |  Alloc Tmp Int Code
+//        |  Index Tmp Tmp Tmp Code
 
 abstract class Code {
   abstract Block run(Memory mem);
   abstract void print();
+
+  /** Append an encoded version of this instruction, but not the code
+   *  that follows it (see next()), to a flattened program.
+   */
+  abstract void flatten(Flattener f);
+
+  /** Return the target block if this code is just a goto, or else null.
+   */
+  Block jumpTarget() { return null; }
+
+  /** Return the code that follows this instruction in the same block,
+   *  or null if this is the last instruction in the block.
+   */
+  Code next() { return null; }
+
+  /** Redirect any jumps in this code to their final destinations.
+   */
+  abstract void thread();
+
+  /** Add each of the blocks that this code may jump to to a list.
+   */
+  abstract void succs(Vector<Block> blocks);
+
+  /** Return the number of instructions in this code sequence.
+   */
+  abstract int length();
+
+  /** Return an optimized version of this code, using and updating the
+   *  facts that the optimizer has collected so far in this block.
+   */
+  abstract Code optimize(Optimizer o);
+
+  /** Return a version of this code with instructions that compute
+   *  unused temporaries removed.  On entry, live contains the set of
+   *  temporaries that are live at the end of the block; on exit, it
+   *  contains those that are live at the start of this code.
+   */
+  abstract Code eliminate(Optimizer o, Set<Tmp> live);
+
+  /** Generate JVM bytecode for this code.  Forms of code that are not
+   *  supported by the JIT compiler can rely on this default, which will
+   *  cause the program to be run by an interpreter instead.
+   */
+  void jit(Jit j) throws JitError {
+    throw new JitError("cannot compile " + getClass().getName());
+  }
 }
 
 class Ret extends Code {
@@ -148,8 +570,31 @@ class Ret extends Code {
     mem.store(0, reg.get());
     return null;
   }
+
+  void flatten(Flattener f) {
+    f.emit(FlatProgram.RET, reg.num());
+  }
+
+  void thread() { }
+  void succs(Vector<Block> blocks) { }
+  int length() { return 1; }
+
+  Code optimize(Optimizer o) {
+    return new Ret(o.rename(reg));
+  }
+
+  Code eliminate(Optimizer o, Set<Tmp> live) {
+    live.add(reg);
+    return this;
+  }
+
+  void jit(Jit j) throws JitError {
+    j.storeVar(0, reg);
+    j.ret();
+  }
 }
 
+
 class Goto extends Code {
   private Block block;
   Goto(Block block) {
@@ -163,8 +608,32 @@ class Goto extends Code {
   Block run(Memory mem) {
     return block;
   }
+
+  void flatten(Flattener f) {
+    f.emit(FlatProgram.GOTO);
+    f.emitBlock(block);
+  }
+
+  Block jumpTarget() { return block; }
+
+  void thread() { block = block.target(); }
+  void succs(Vector<Block> blocks) { blocks.add(block); }
+  int length() { return 1; }
+
+  Code optimize(Optimizer o) {
+    return this;
+  }
+
+  Code eliminate(Optimizer o, Set<Tmp> live) {
+    return this;
+  }
+
+  void jit(Jit j) throws JitError {
+    j.jump(block);
+  }
 }
 
+
 class Cond extends Code {
   private Tmp reg;
   private Block t, f;
@@ -181,8 +650,46 @@ class Cond extends Code {
   Block run(Memory mem) {
     return reg.getBool() ? t : f;
   }
+
+  void flatten(Flattener fl) {
+    fl.emit(FlatProgram.COND, reg.num());
+    fl.emitBlock(t);
+    fl.emitBlock(f);
+  }
+
+  void thread() {
+    t = t.target();
+    f = f.target();
+  }
+
+  void succs(Vector<Block> blocks) {
+    blocks.add(t);
+    blocks.add(f);
+  }
+
+  int length() { return 1; }
+
+  Code optimize(Optimizer o) {
+    Tmp     r = o.rename(reg);
+    Integer c = o.constOf(r);
+    if (c!=null) {
+      o.folded++;
+      return new Goto((c!=0) ? t : f);
+    }
+    return new Cond(r, t, f);
+  }
+
+  Code eliminate(Optimizer o, Set<Tmp> live) {
+    live.add(reg);
+    return this;
+  }
+
+  void jit(Jit j) throws JitError {
+    j.cond(reg, t, f);
+  }
 }
 
+
 class Load extends Code {
   private Tmp reg;
   private int loc;
@@ -202,8 +709,45 @@ class Load extends Code {
     reg.set(mem.load(loc));
     return next.run(mem);
   }
+
+  void flatten(Flattener f) {
+    f.emit(FlatProgram.LOAD, reg.num(), loc);
+  }
+
+  Code next() { return next; }
+  void thread() { next.thread(); }
+  void succs(Vector<Block> blocks) { next.succs(blocks); }
+  int length() { return 1 + next.length(); }
+
+  Code optimize(Optimizer o) {
+    Tmp t = o.memoryAt(loc);
+    if (t!=null) {
+      o.forwarded++;
+      return o.setCopy(reg, t) ? new Move(reg, t, next.optimize(o))
+                               : next.optimize(o);
+    }
+    o.kill(reg);
+    o.setMemory(loc, reg);
+    return new Load(reg, loc, next.optimize(o));
+  }
+
+  Code eliminate(Optimizer o, Set<Tmp> live) {
+    Code n = next.eliminate(o, live);
+    if (!live.remove(reg)) {
+      o.removed++;
+      return n;
+    }
+    return new Load(reg, loc, n);
+  }
+
+  void jit(Jit j) throws JitError {
+    j.loadVar(loc);
+    j.istore(reg);
+    next.jit(j);
+  }
 }
 
+
 class Store extends Code {
   private int  loc;
   private Tmp  reg;
@@ -223,8 +767,35 @@ class Store extends Code {
     mem.store(loc, reg.get());
     return next.run(mem);
   }
+
+  void flatten(Flattener f) {
+    f.emit(FlatProgram.STORE, loc, reg.num());
+  }
+
+  Code next() { return next; }
+  void thread() { next.thread(); }
+  void succs(Vector<Block> blocks) { next.succs(blocks); }
+  int length() { return 1 + next.length(); }
+
+  Code optimize(Optimizer o) {
+    Tmp r = o.rename(reg);
+    o.setMemory(loc, r);
+    return new Store(loc, r, next.optimize(o));
+  }
+
+  Code eliminate(Optimizer o, Set<Tmp> live) {
+    Code n = next.eliminate(o, live);
+    live.add(reg);
+    return new Store(loc, reg, n);
+  }
+
+  void jit(Jit j) throws JitError {
+    j.storeVar(loc, reg);
+    next.jit(j);
+  }
 }
 
+
 class Immed extends Code {
   private Tmp reg;
   private int num;
@@ -244,8 +815,38 @@ class Immed extends Code {
     reg.set(num);
     return next.run(mem);
   }
+
+  void flatten(Flattener f) {
+    f.emit(FlatProgram.IMMED, reg.num(), num);
+  }
+
+  Code next() { return next; }
+  void thread() { next.thread(); }
+  void succs(Vector<Block> blocks) { next.succs(blocks); }
+  int length() { return 1 + next.length(); }
+
+  Code optimize(Optimizer o) {
+    o.setConst(reg, num);
+    return new Immed(reg, num, next.optimize(o));
+  }
+
+  Code eliminate(Optimizer o, Set<Tmp> live) {
+    Code n = next.eliminate(o, live);
+    if (!live.remove(reg)) {
+      o.removed++;
+      return n;
+    }
+    return new Immed(reg, num, n);
+  }
+
+  void jit(Jit j) throws JitError {
+    j.iconst(num);
+    j.istore(reg);
+    next.jit(j);
+  }
 }
 
+
 class Op extends Code {
   private Tmp r, x, y;
   private char op;
@@ -264,22 +865,105 @@ class Op extends Code {
   }
 
   Block run(Memory mem) {
+    r.set(eval(op, x.get(), y.get()));
+    return next.run(mem);
+  }
+
+  /** Calculate the result of applying op to the values a and b.
+   */
+  static int eval(char op, int a, int b) {
     switch (op) {
-      case '+' : r.set(x.get() + y.get());
-                 break;
-      case '-' : r.set(x.get() - y.get());
-                 break;
-      case '*' : r.set(x.get() * y.get());
-                 break;
-      case '<' : r.setBool(x.get() < y.get());
-                 break;
-      case '=' : r.setBool(x.get() == y.get());
-                 break;
+      case '+' : return a + b;
+      case '-' : return a - b;
+      case '*' : return a * b;
+      case '<' : return (a < b) ? 1 : 0;
+      case '=' : return (a == b) ? 1 : 0;
     }
-    return next.run(mem);
+    return 0;
+  }
+
+  void flatten(Flattener f) {
+    int code = 0;
+    switch (op) {
+      case '+' : code = FlatProgram.ADD; break;
+      case '-' : code = FlatProgram.SUB; break;
+      case '*' : code = FlatProgram.MUL; break;
+      case '<' : code = FlatProgram.LT;  break;
+      case '=' : code = FlatProgram.EQ;  break;
+    }
+    f.emit(code, r.num(), x.num(), y.num());
+  }
+
+  Code next() { return next; }
+  void thread() { next.thread(); }
+  void succs(Vector<Block> blocks) { next.succs(blocks); }
+  int length() { return 1 + next.length(); }
+
+  Code optimize(Optimizer o) {
+    Tmp     a  = o.rename(x);
+    Tmp     b  = o.rename(y);
+    Integer ca = o.constOf(a);
+    Integer cb = o.constOf(b);
+
+    // Constant folding and algebraic identities:
+    if (ca!=null && cb!=null) {
+      int n = eval(op, ca, cb);
+      o.folded++;
+      o.setConst(r, n);
+      return new Immed(r, n, next.optimize(o));
+    }
+    Tmp same = null;
+    if ((op=='+' || op=='-') && cb!=null && cb==0) {
+      same = a;
+    } else if (op=='+' && ca!=null && ca==0) {
+      same = b;
+    } else if (op=='*' && cb!=null && cb==1) {
+      same = a;
+    } else if (op=='*' && ca!=null && ca==1) {
+      same = b;
+    } else if (op=='*' && ((ca!=null && ca==0) || (cb!=null && cb==0))) {
+      o.folded++;
+      o.setConst(r, 0);
+      return new Immed(r, 0, next.optimize(o));
+    }
+    if (same!=null) {
+      o.folded++;
+      return o.setCopy(r, same) ? new Move(r, same, next.optimize(o))
+                                : next.optimize(o);
+    }
+
+    // Local value numbering:
+    Tmp t = o.valueOf(a, op, b);
+    if (t!=null) {
+      o.numbered++;
+      return o.setCopy(r, t) ? new Move(r, t, next.optimize(o))
+                             : next.optimize(o);
+    }
+    o.setValue(r, a, op, b);
+    return new Op(r, a, op, b, next.optimize(o));
+  }
+
+  Code eliminate(Optimizer o, Set<Tmp> live) {
+    Code n = next.eliminate(o, live);
+    if (!live.remove(r)) {
+      o.removed++;
+      return n;
+    }
+    live.add(x);
+    live.add(y);
+    return new Op(r, x, op, y, n);
+  }
+
+  void jit(Jit j) throws JitError {
+    j.iload(x);
+    j.iload(y);
+    j.arith(op);
+    j.istore(r);
+    next.jit(j);
   }
 }
 
+
 class PCode extends Code {
   private Tmp reg;
   private Code next;
@@ -297,4 +981,262 @@ class PCode extends Code {
     System.out.println("Output: " + reg.get());
     return next.run(mem);
   }
+
+  void flatten(Flattener f) {
+    f.emit(FlatProgram.PRINT, reg.num());
+  }
+
+  Code next() { return next; }
+  void thread() { next.thread(); }
+  void succs(Vector<Block> blocks) { next.succs(blocks); }
+  int length() { return 1 + next.length(); }
+
+  Code optimize(Optimizer o) {
+    Tmp r = o.rename(reg);
+    return new PCode(r, next.optimize(o));
+  }
+
+  Code eliminate(Optimizer o, Set<Tmp> live) {
+    Code n = next.eliminate(o, live);
+    live.add(reg);
+    return new PCode(reg, n);
+  }
+
+  void jit(Jit j) throws JitError {
+    j.iload(reg);
+    j.print();
+    next.jit(j);
+  }
+}
+
+
+class Alloc extends Code {
+  private Tmp reg;
+  private int site;
+  private int len;
+  private Code next;
+  Alloc(Tmp reg, int site, int len, Code next) {
+    this.reg  = reg;
+    this.site = site;
+    this.len  = len;
+    this.next = next;
+  }
+
+  void print() {
+    System.out.println("  " + reg + " <- alloc " + len + " (site " + site + ")");
+    next.print();
+  }
+
+  Block run(Memory mem) {
+    reg.set(mem.alloc(site, len));
+    return next.run(mem);
+  }
+
+  void flatten(Flattener f) {
+    f.emit(FlatProgram.ALLOC, reg.num(), site, len);
+  }
+
+  Code next() { return next; }
+  void thread() { next.thread(); }
+  void succs(Vector<Block> blocks) { next.succs(blocks); }
+  int length() { return 1 + next.length(); }
+
+  Code optimize(Optimizer o) {
+    o.kill(reg);
+    return new Alloc(reg, site, len, next.optimize(o));
+  }
+
+  Code eliminate(Optimizer o, Set<Tmp> live) {
+    Code n = next.eliminate(o, live);
+    live.remove(reg);
+    return new Alloc(reg, site, len, n);
+  }
+
+  void jit(Jit j) throws JitError {
+    j.alloc(site, len);
+    j.istore(reg);
+    next.jit(j);
+  }
+}
+
+
+class Index extends Code {
+  private Tmp r, arr, idx;
+  private Code next;
+  Index(Tmp r, Tmp arr, Tmp idx, Code next) {
+    this.r    = r;
+    this.arr  = arr;
+    this.idx  = idx;
+    this.next = next;
+  }
+
+  void print() {
+    System.out.println("  " + r + " <- [" + arr + " + " + idx + "]");
+    next.print();
+  }
+
+  Block run(Memory mem) {
+    r.set(mem.load(mem.index(arr.get(), idx.get())));
+    return next.run(mem);
+  }
+
+  void flatten(Flattener f) {
+    f.emit(FlatProgram.INDEX, r.num(), arr.num(), idx.num());
+  }
+
+  Code next() { return next; }
+  void thread() { next.thread(); }
+  void succs(Vector<Block> blocks) { next.succs(blocks); }
+  int length() { return 1 + next.length(); }
+
+  // Index instructions are never removed, even if their result is not
+  // used, because they may report an out of bounds error.
+  Code optimize(Optimizer o) {
+    Tmp a = o.rename(arr);
+    Tmp i = o.rename(idx);
+    o.kill(r);
+    return new Index(r, a, i, next.optimize(o));
+  }
+
+  Code eliminate(Optimizer o, Set<Tmp> live) {
+    Code n = next.eliminate(o, live);
+    live.remove(r);
+    live.add(arr);
+    live.add(idx);
+    return new Index(r, arr, idx, n);
+  }
+
+  void jit(Jit j) throws JitError {
+    j.index(arr, idx);
+    j.istore(r);
+    next.jit(j);
+  }
+}
+
+
+class Move extends Code {
+  private Tmp r, src;
+  private Code next;
+  Move(Tmp r, Tmp src, Code next) {
+    this.r    = r;
+    this.src  = src;
+    this.next = next;
+  }
+
+  void print() {
+    System.out.println("  " + r + " <- " + src);
+    next.print();
+  }
+
+  Block run(Memory mem) {
+    r.set(src.get());
+    return next.run(mem);
+  }
+
+  void flatten(Flattener f) {
+    f.emit(FlatProgram.MOVE, r.num(), src.num());
+  }
+
+  Code next() { return next; }
+  void thread() { next.thread(); }
+  void succs(Vector<Block> blocks) { next.succs(blocks); }
+  int length() { return 1 + next.length(); }
+
+  Code optimize(Optimizer o) {
+    Tmp s = o.rename(src);
+    return o.setCopy(r, s) ? new Move(r, s, next.optimize(o))
+                           : next.optimize(o);
+  }
+
+  Code eliminate(Optimizer o, Set<Tmp> live) {
+    Code n = next.eliminate(o, live);
+    if (!live.remove(r)) {
+      o.removed++;
+      return n;
+    }
+    live.add(src);
+    return new Move(r, src, n);
+  }
+
+  void jit(Jit j) throws JitError {
+    j.iload(src);
+    j.istore(r);
+    next.jit(j);
+  }
+}
+
+/** Jumps to table[v - lo], where v is the value in reg, or to the
+ *  default block if v - lo is outside the bounds of the table.
+ */
+class JumpTable extends Code {
+  private Tmp     reg;
+  private int     lo;
+  private Block[] table;
+  private Block   dflt;
+  JumpTable(Tmp reg, int lo, Block[] table, Block dflt) {
+    this.reg   = reg;
+    this.lo    = lo;
+    this.table = table;
+    this.dflt  = dflt;
+  }
+
+  void print() {
+    System.out.print("  " + reg + " - " + lo + " -> [");
+    for (int i=0; i<table.length; i++) {
+      System.out.print(((i==0) ? "" : ", ") + table[i]);
+    }
+    System.out.println("], " + dflt);
+  }
+
+  private Block select(int v) {
+    long i = (long)v - lo;
+    return (i>=0 && i<table.length) ? table[(int)i] : dflt;
+  }
+
+  Block run(Memory mem) {
+    return select(reg.get());
+  }
+
+  void flatten(Flattener f) {
+    f.emit(FlatProgram.TABLE, reg.num(), lo, table.length);
+    f.emitBlock(dflt);
+    for (int i=0; i<table.length; i++) {
+      f.emitBlock(table[i]);
+    }
+  }
+
+  void thread() {
+    for (int i=0; i<table.length; i++) {
+      table[i] = table[i].target();
+    }
+    dflt = dflt.target();
+  }
+
+  void succs(Vector<Block> blocks) {
+    for (int i=0; i<table.length; i++) {
+      blocks.add(table[i]);
+    }
+    blocks.add(dflt);
+  }
+
+  int length() { return 1; }
+
+  Code optimize(Optimizer o) {
+    Tmp     r = o.rename(reg);
+    Integer c = o.constOf(r);
+    if (c!=null) {
+      o.folded++;
+      return new Goto(select(c));
+    }
+    return new JumpTable(r, lo, table, dflt);
+  }
+
+  Code eliminate(Optimizer o, Set<Tmp> live) {
+    live.add(reg);
+    return this;
+  }
+
+  void jit(Jit j) throws JitError {
+    j.table(reg, lo, table, dflt);
+  }
 }
@@ -1,19 +1,45 @@
+import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
-
-/** Provides a simple mechanism for assembly language output.
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Provides a simple mechanism for assembly language output.  Output
+ *  is collected in a buffer of Insn objects, which is passed through
+ *  the peephole optimizer each time that it is flushed.  The output
+ *  goes either to an assembly file, or is kept in memory, to hold the
+ *  code for a single function until it can be copied with emitCode(),
+ *  or to be encoded as an object file when the assembly is closed.
  */
 class Assembly {
 
-    /** Used to store the output stream for this assembly file.
+    /** Used to store the output stream for this assembly file, or null
+     *  if the output is kept in memory.
      */
     private PrintWriter out;
 
-    /** A private constructor, used from the assembleToFile() method.
+    /** Holds the output that has been flushed, if it is kept in memory.
+     */
+    private Vector<Insn> done;
+
+    /** The name of the object file that is written by close(), or null.
+     */
+    private String objectName;
+
+    /** Used to keep the labels for different functions distinct.
      */
-    private Assembly(PrintWriter out) {
-        this.out = out;
+    private int namespace;
+
+    /** A private constructor, used from the assembleToFile(),
+     *  assembleToObject(), and assembleToBuffer() methods.
+     */
+    private Assembly(PrintWriter out, int namespace) {
+        this.out       = out;
+        this.namespace = namespace;
+        if (out==null) {
+            done = new Vector<Insn>();
+        }
     }
 
     /** Include this code in the platform choice if external symbols
@@ -26,13 +52,18 @@ class Assembly {
      */
     static final int ALIGN16 = 2;
 
+    /** Include this code in the platform choice if the assembler uses
+     *  Mach-O object files, which do not have a .rodata section.
+     */
+    static final int MACHO = 4;
+
     /** Platform flags for Linux.
      */
     static final int LINUX = 0;
 
     /** Platform flags for Mac OS X.
      */
-    static final int MACOSX = UNDERSCORES | ALIGN16;
+    static final int MACOSX = UNDERSCORES | ALIGN16 | MACHO;
 
     /** Set the platform flag for this machine.
      */
@@ -49,19 +80,97 @@ class Assembly {
     public static Assembly assembleToFile(String name) {
         try {
             PrintWriter out = new PrintWriter(new FileWriter(name));
-            Assembly    a   = new Assembly(out);
-            a.emit(".file",  "\"" + name + "\"");
+            Assembly    a   = new Assembly(out, 0);
+            a.emit(".file",  "\"" + new File(name).getName() + "\"");
             return a;
         } catch (IOException e) {
             return null;
         }
     }
 
-    /** Close this Assembly object and free up associated resources.
+    /** Create an assembly object that encodes its output directly as
+     *  a named ELF object file (see ObjectFile) when it is closed.
+     */
+    public static Assembly assembleToObject(String name) {
+        Assembly a   = new Assembly(null, 0);
+        a.objectName = name;
+        return a;
+    }
+
+    /** Create an assembly object that collects its output in memory,
+     *  generating labels in the given namespace.  Distinct functions
+     *  should use distinct namespaces so that the code for each one
+     *  can be generated independently.
+     */
+    public static Assembly assembleToBuffer(int namespace) {
+        return new Assembly(null, namespace);
+    }
+
+    /** Generate labels in the given namespace from now on, starting
+     *  again from the first label, so that code generated directly into
+     *  this object is the same as it would be in assembleToBuffer(n).
+     */
+    public void useNamespace(int namespace) {
+        this.namespace    = namespace;
+        this.labelCounter = 0;
+    }
+
+    /** Copy the output of an assembly object that was created by
+     *  assembleToBuffer() to the output of this one.
+     */
+    public void emitCode(Assembly b) {
+        flush();
+        b.flush();
+        for (int i=0; i<b.done.size(); i++) {
+            write(b.done.elementAt(i));
+        }
+    }
+
+    /** Close this Assembly object and free up associated resources,
+     *  writing the object file if there is one.
      */
     public void close() {
-        out.close();
-        out = null;
+        flush();
+        if (out!=null) {
+            out.close();
+            out = null;
+        } else if (objectName!=null) {
+            try {
+                new ObjectFile(done).write(objectName);
+            } catch (IOException e) {
+                System.out.println(e.toString());
+                throw new Exit(1);
+            }
+        }
+    }
+
+    /** Holds the code that has been emitted since the last flush().
+     */
+    private Vector<Insn> code = new Vector<Insn>();
+
+    /** Run the peephole optimizer over the buffered code, and then write
+     *  it to the output file.  This should be called at the end of each
+     *  function so that the optimizer sees one function at a time.
+     */
+    public void flush() {
+        handlePendingAdjust();
+        if (Peephole.enabled) {
+            new Peephole().run(code);
+        }
+        for (int i=0; i<code.size(); i++) {
+            write(code.elementAt(i));
+        }
+        code.clear();
+    }
+
+    /** Write a single line of output that has already been optimized.
+     */
+    private void write(Insn in) {
+        if (out!=null) {
+            out.println(in.toString());
+        } else {
+            done.add(in);
+        }
     }
 
     /** A counter that is used to generate new labels; the counter is
@@ -75,7 +184,7 @@ class Assembly {
      *  names in user programs.
      */
     public String label(int l) {
-        return "l" + l;
+        return "l" + namespace + "_" + l;
     }
 
     /** Return a fresh (i.e., previously unused) label name.
@@ -84,39 +193,45 @@ class Assembly {
         return label(labelCounter++);
     }
 
+    /** Return true if the given label was generated by newLabel(), and
+     *  hence cannot be referenced from outside the current function.
+     */
+    static boolean isLocalLabel(String name) {
+        return name.matches("l[0-9]+_[0-9]+");
+    }
+
     /** Output a label at the beginning of a line.
      */
     public void emitLabel(String name) {
         handlePendingAdjust();
-        out.print(name);
-        out.println(":");
+        code.add(new Insn(name, null, null, null));
     }
 
     /** Emit a blank line.
      */
     public void emit() {
-        out.println();
+        code.add(new Insn(null, null, null, null));
     }
 
     /** Emit an instruction with no operands.
      */
     public void emit(String op) {
         handlePendingAdjust();
-        out.println("\t" + op);
+        code.add(new Insn(null, op, null, null));
     }
 
     /** Emit an instruction with one operand.
      */
     public void emit(String op, String op1) {
         handlePendingAdjust();
-        out.println("\t" + op + "\t" + op1);
+        code.add(new Insn(null, op, op1, null));
     }
 
     /** Emit an instruction with two operands.
      */
     public void emit(String op, String op1, String op2) {
         handlePendingAdjust();
-        out.println("\t" + op + "\t" + op1 + ", " + op2);
+        code.add(new Insn(null, op, op1, op2));
     }
 
     /** Return a number as a string for use in contexts where only
@@ -159,6 +274,25 @@ class Assembly {
         return "(" + base + ", " + index + ", " + scale + ")";
     }
 
+    /** Output a jump table with the given name.  Each entry holds the
+     *  offset of a target label from the start of the table, so that
+     *  the code using it does not depend on where it is loaded.  On
+     *  Mach-O platforms, the table is left in the text section.
+     */
+    public void emitJumpTable(String name, String[] targets) {
+        if ((platform & MACHO)==0) {
+            emit(".section", ".rodata");
+        }
+        emit(".p2align", "2");
+        emitLabel(name);
+        for (int i=0; i<targets.length; i++) {
+            emit(".long", targets[i] + "-" + name);
+        }
+        if ((platform & MACHO)==0) {
+            emit(".text");
+        }
+    }
+
     /** We assume that all values can be stored within a single "quadword"
      *  (i.e., 64 value), each of which takes 8 bytes in memory:
      */
@@ -196,6 +330,13 @@ class Assembly {
         pendingAdjust += adjust;
     }
 
+    /** Return the number of bytes of stack adjustment that have been
+     *  requested but not yet emitted.
+     */
+    int getPendingAdjust() {
+        return pendingAdjust;
+    }
+
     /** Calculate how many additional bytes need to be pushed onto
      *  the stack to ensure correct alignment once "pushed" bytes
      *  have been pushed.
@@ -208,36 +349,103 @@ class Assembly {
         return ((platform & ALIGN16)==0) ? 0 : ((16 - pushed) & 15);
     }
 
-    /** Output the prologue code section at the start of a function.
+    /** Output the prologue code section at the start of a function,
+     *  saving the given list of callee saves registers on the stack
+     *  immediately below the saved base pointer.
      */
-    public void emitPrologue() {
+    public void emitPrologue(Reg[] saves) {
         emit("pushq", Reg.basePointer.r64());
         emit("movq",  Reg.stackPointer.r64(), Reg.basePointer.r64());
+        for (int i=0; i<saves.length; i++) {
+            emit("pushq", saves[i].r64());
+        }
         if (Assembly.DEBUG_FRAMES) {
             emit("# end prologue");
             emit();
         }
     }
 
-    /** Output the epilogue code section at the end of a program.
+    /** Output the epilogue code section at the end of a program,
+     *  restoring callee saves registers that were saved by the
+     *  corresponding call to emitPrologue().
      */
-    public void emitEpilogue() {
+    public void emitEpilogue(Reg[] saves) {
         pendingAdjust = 0;
         if (Assembly.DEBUG_FRAMES) {
             emit();
             emit("# start epilogue");
         }
+        for (int i=0; i<saves.length; i++) {
+            emit("movq", indirect(-(i+1)*QUADSIZE, Reg.basePointer.r64()),
+                         saves[i].r64());
+        }
         emit("movq", Reg.basePointer.r64(), Reg.stackPointer.r64());
         emit("popq", Reg.basePointer.r64());
         emit("ret");
     }
+
+    /** Remove the instructions that set up and restore the base pointer
+     *  from the buffered code for a function, provided that no other
+     *  instruction refers to the base pointer.  Returns true if the
+     *  instructions were removed.  The caller must ensure that the stack
+     *  pointer is back where the prologue left it at every epilogue.
+     */
+    public boolean omitFramePointer() {
+        String bp = Reg.basePointer.r64();
+        String sp = Reg.stackPointer.r64();
+        Vector<Insn> body = new Vector<Insn>();
+        for (int i=0; i<code.size(); i++) {
+            Insn in = code.elementAt(i);
+            if ((in.is("pushq") || in.is("popq")) && in.op1.equals(bp)
+             || in.is("movq") && (in.op1.equals(sp) && in.op2.equals(bp)
+                               || in.op1.equals(bp) && in.op2.equals(sp))) {
+                continue;
+            }
+            if (in.isInsn() && (in.op1!=null && in.op1.indexOf(bp)>=0
+                             || in.op2!=null && in.op2.indexOf(bp)>=0)) {
+                return false;
+            }
+            body.add(in);
+        }
+        code = body;
+        return true;
+    }
+
+    /** Output code that jumps to a function in place of a call followed
+     *  by a return.  If reuse is true, the target is a label within the
+     *  current function, after the prologue has saved the given callee
+     *  saves registers, and the frame is kept.  Otherwise, the frame is
+     *  removed as in emitEpilogue() so that the target function returns
+     *  directly to our caller.
+     */
+    public void emitTailJump(Reg[] saves, String label, boolean reuse) {
+        pendingAdjust = 0;
+        if (reuse && saves.length==0) {
+            emit("movq", Reg.basePointer.r64(), Reg.stackPointer.r64());
+        } else if (reuse) {
+            emit("leaq", indirect(-saves.length*QUADSIZE, Reg.basePointer.r64()),
+                         Reg.stackPointer.r64());
+        } else {
+            for (int i=0; i<saves.length; i++) {
+                emit("movq", indirect(-(i+1)*QUADSIZE, Reg.basePointer.r64()),
+                             saves[i].r64());
+            }
+            emit("movq", Reg.basePointer.r64(), Reg.stackPointer.r64());
+            emit("popq", Reg.basePointer.r64());
+        }
+        emit("jmp", label);
+    }
 }
 
-/** Represents a 64 bit register that also has a 32 bit register
- *  included as a component.
+/** Represents a 64 bit register that also has 32 bit and 8 bit
+ *  registers included as components.
  */
 class Reg {
 
+    /** The name of this register for 8 bit uses.
+     */
+    private String name8;
+
     /** The name of this register for 32 bit uses.
      */
     private String name32;
@@ -248,11 +456,16 @@ class Reg {
 
     /** Default constructor.
      */
-    public Reg(String name32, String name64) {
+    public Reg(String name8, String name32, String name64) {
+        this.name8  = name8;
         this.name32 = name32;
         this.name64 = name64;
     }
 
+    /** Return the name of this register for 8 bit uses.
+     */
+    public String r8() { return name8; }
+
     /** Return the name of this register for 32 bit uses.
      */
     public String r32() { return name32; }
@@ -264,44 +477,55 @@ class Reg {
     /** The list of registers that are used to pass argument values.
      */
     public static final Reg[] args = new Reg[] {
-        new Reg("%edi", "%rdi"),
-        new Reg("%esi", "%rsi"),
-        new Reg("%ecx", "%rcx"),
-        new Reg("%edx", "%rdx"),
-        new Reg("%r8d", "%r8"),
-        new Reg("%r9d", "%r9")
+        new Reg("%dil",  "%edi", "%rdi"),
+        new Reg("%sil",  "%esi", "%rsi"),
+        new Reg("%cl",   "%ecx", "%rcx"),
+        new Reg("%dl",   "%edx", "%rdx"),
+        new Reg("%r8b",  "%r8d", "%r8"),
+        new Reg("%r9b",  "%r9d", "%r9")
       };
 
     /** The list of registers that are used to return results.
      */
     public static final Reg[] results = new Reg[] {
-        new Reg("%eax", "%rax")
+        new Reg("%al",   "%eax", "%rax")
       };
 
     /** The list of caller saves registers.
      */
     public static final Reg[] callerSaves = new Reg[] {
-        new Reg("%r10d", "%r10"),
-        new Reg("%r11d", "%r11")
+        new Reg("%r10b", "%r10d", "%r10"),
+        new Reg("%r11b", "%r11d", "%r11")
       };
 
     /** The list of callee saves registers.
      */
     public static final Reg[] calleeSaves = new Reg[] {
-        new Reg("%ebx",  "%rbx"),
-        new Reg("%r12d", "%r12"),
-        new Reg("%r13d", "%r13"),
-        new Reg("%r14d", "%r14"),
-        new Reg("%r15d", "%r15")
+        new Reg("%bl",   "%ebx",  "%rbx"),
+        new Reg("%r12b", "%r12d", "%r12"),
+        new Reg("%r13b", "%r13d", "%r13"),
+        new Reg("%r14b", "%r14d", "%r14"),
+        new Reg("%r15b", "%r15d", "%r15")
       };
 
+    /** Return true if r is a callee saves register.
+     */
+    public static boolean isCalleeSaves(Reg r) {
+        for (int i=0; i<calleeSaves.length; i++) {
+            if (calleeSaves[i]==r) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /** The base pointer register.
      */
-    public static final Reg basePointer = new Reg("%ebp",  "%rbp");
+    public static final Reg basePointer = new Reg("%bpl",  "%ebp",  "%rbp");
 
     /** The stack pointer register.
      */
-    public static final Reg stackPointer = new Reg("%esp",  "%rsp");
+    public static final Reg stackPointer = new Reg("%spl",  "%esp",  "%rsp");
 }
 
 abstract class Width {
@@ -387,10 +611,121 @@ abstract class Frame {
      */
     protected int pushed = 0;
 
+    /** Lists the callee saves registers that hold variables in this
+     *  function, and hence must be saved by the prologue.
+     */
+    protected Reg[] saves = new Reg[0];
+
+    /** Set to true to save every caller saves register that is in use
+     *  at each call, and to give every function a full prologue.
+     */
+    static boolean fullFrames = false;
+
+    // Statistics for the whole program, which may be updated from more
+    // than one thread (see CompileTask): the numbers of caller saves
+    // registers saved at calls and not saved because they were dead,
+    // the number of functions compiled without a frame, and the number
+    // of registers spilled on to the stack while evaluating expressions.
+    static AtomicInteger savedRegs   = new AtomicInteger();
+    static AtomicInteger skippedRegs = new AtomicInteger();
+    static AtomicInteger leafFrames  = new AtomicInteger();
+    static AtomicInteger spilledRegs = new AtomicInteger();
+
+    /** Print a summary of the registers saved around calls, of the
+     *  functions that did not need a frame, and of the registers spilled
+     *  by expressions.
+     */
+    static void report() {
+        System.out.println("Calls: saved " + savedRegs
+                           + " caller saves registers, skipped " + skippedRegs
+                           + "; " + leafFrames + " functions without a frame");
+        System.out.println("Expressions: spilled " + spilledRegs
+                           + " registers");
+    }
+
+    /** Output the epilogue for this function.
+     */
+    public void emitEpilogue(Assembly a) {
+        a.emitEpilogue(saves);
+    }
+
+    /** Return true if a call to the named function with the given
+     *  number of arguments can be replaced by a jump when its result is
+     *  returned from the function that this frame belongs to.
+     */
+    public boolean canTailCall(String name, int nargs) {
+        return false;
+    }
+
+    /** Output a tail call to the named function, whose arguments have
+     *  already been loaded into the given call frame.
+     */
+    public void emitTailCall(Assembly a, CallFrame cf, String name) {
+        throw new Error("Tail calls are not supported in this frame");
+    }
+
+    /** Holds the targets for break and continue statements, or null if
+     *  there is no enclosing statement for them to refer to.
+     */
+    protected JumpTarget breakTo    = null;
+    protected JumpTarget continueTo = null;
+
+    public JumpTarget getBreak()    { return breakTo; }
+    public JumpTarget getContinue() { return continueTo; }
+    public void setBreak(JumpTarget t)    { breakTo    = t; }
+    public void setContinue(JumpTarget t) { continueTo = t; }
+
+    /** Return a target for a jump to the given label from code that has
+     *  the same number of bytes pushed on the stack as we have now.
+     */
+    public JumpTarget newTarget(String label) {
+        return new JumpTarget(label, pushed);
+    }
+
+    /** Jump to the given target, first removing any bytes that have
+     *  been pushed on the stack since the target was created.  The
+     *  frame itself is not changed because the code that follows the
+     *  jump is unreachable.
+     */
+    public void jumpTo(Assembly a, JumpTarget t) {
+        a.insertAdjust(t.pushed - pushed);
+        a.emit("jmp", t.label);
+        t.used = true;
+    }
+
+    /** Extend an environment to reflect that the value in register r
+     *  has been saved in the stack frame at the given offset: every
+     *  variable that is currently held in r can be found there instead
+     *  until the register is restored.
+     */
+    protected LocEnv saveReg(Reg r, int offset, LocEnv env) {
+        LocEnv saved = env;
+        for (LocEnv e=env; e!=null; e=e.next()) {
+            if (e.inReg(r) && env.find(e.getName())==e) {
+                saved = new SavedEnv(e.getName(), e.getWidth(), saved, offset);
+            }
+        }
+        return saved;
+    }
+
+    /** Remove the entries that were added by saveReg() for a register
+     *  saved at the given offset.
+     */
+    protected LocEnv restoreReg(int offset, LocEnv env) {
+        while (env instanceof SavedEnv && ((SavedEnv)env).getOffset()==offset) {
+            env = env.next();
+        }
+        return env;
+    }
+
     /** Return the current free register.
      */
     public Reg free() { return reg(free); }
 
+    /** Return the name of the current 8 bit register.
+     */
+    public String free8() { return free().r8(); }
+
     /** Return the name of the current 32 bit register.
      */
     public String free32() { return free().r32(); }
@@ -429,13 +764,11 @@ abstract class Frame {
             // Save register on the stack
             a.emit("pushq", r.r64());
             pushed += Assembly.QUADSIZE;
+            spilledRegs.incrementAndGet();
 
-            // If we just spilled a formal parameter, update
-            // the environment to reflect that.
-            int n = free - (regmap.length + paramBase);
-            if (n>=0 && formals!=null && n<formals.length && n<Reg.args.length) {
-                env = formals[n].extend(-pushed, env);
-            }
+            // If we just spilled a variable, update the environment
+            // to reflect that.
+            env = saveReg(r, -pushed, env);
         }
         return r;
     }
@@ -459,26 +792,27 @@ abstract class Frame {
     public void unspill(Assembly a) {
         Reg r = reg(free);
         if (free>=regmap.length) {
-            // Restore saved register value:
+            // Restore saved register value, and any variables that
+            // were held in it:
             a.emit("popq", r.r64());
+            env = restoreReg(-pushed, env);
             pushed -= Assembly.QUADSIZE;
-
-            // If we just unspilled a formal parameter, update
-            // the environment to reflect that.
-            int n = free - (regmap.length + paramBase);
-            if (n>=0 && formals!=null && n<formals.length && n<Reg.args.length) {
-                env = env.next();
-            }
         }
         free--;
     }
 
-    /** Allocate space on the stack for a local variable.
+    /** Allocate space for a local variable, either in the specified
+     *  register, or on the stack if reg is null.
      */
-    public void allocLocal(Assembly a, String name, Type type, String src) {
-        a.emit("pushq", src);
-        pushed += Assembly.QUADSIZE;
-        env = new FrameEnv(name, type.getWidth(), env, -pushed);
+    public void allocLocal(Assembly a, String name, Type type, String src, Reg reg) {
+        if (reg!=null) {
+            a.emit("movq", src, reg.r64());
+            env = new RegEnv(name, type.getWidth(), env, reg);
+        } else {
+            a.emit("pushq", src);
+            pushed += Assembly.QUADSIZE;
+            env = new FrameEnv(name, type.getWidth(), env, -pushed);
+        }
     }
 
     /** Reset the stack pointer to a previous position at the end
@@ -488,8 +822,10 @@ abstract class Frame {
      */
     public void resetTo(Assembly a, LocEnv origEnv) {
         for (; env!=origEnv; env=env.next()) {
-            pushed -= Assembly.QUADSIZE;
-            a.insertAdjust(-Assembly.QUADSIZE);
+            if (!(env instanceof RegEnv)) {
+                pushed -= Assembly.QUADSIZE;
+                a.insertAdjust(-Assembly.QUADSIZE);
+            }
         }
     }
 
@@ -540,31 +876,53 @@ abstract class Frame {
         }
     }
 
+    /** Return true if the value in logical register r, which is a
+     *  caller saves register, is needed by the arguments of the call at
+     *  the given site, or after the call (see Call.liveness()).  The
+     *  temporaries in a frame are always needed.
+     */
+    protected boolean liveAcross(int r, int site) {
+        return true;
+    }
+
+    /** Return the first logical register that might need to be saved
+     *  around a call.  Once free has wrapped around, only the most recent
+     *  use of each physical register, other than free itself, is live.
+     */
+    private int saveBase() {
+        return Math.max(paramBase, free - regmap.length + 1);
+    }
+
     /** Create a new Frame for a call from within the current frame.
      *  This entails saving the values of any active caller saves
-     *  registers on the stack and updating the environment to record
-     *  the new locations for each formal parameter.
+     *  registers that are live across the call on the stack and
+     *  updating the environment to record the new locations for each
+     *  formal parameter.
      */
-    public CallFrame prepareCallFrame(Assembly a, int nargs) {
-        // Save [b..r), counting down, skipping callee saves registers.
+    public CallFrame prepareCallFrame(Assembly a, int nargs, int site) {
+        // Save [b..r), counting down, skipping callee saves registers
+        // and registers whose values are not needed.
         int    r   = free;
-        int    b   = Math.max(paramBase, free - (regmap.length+1));
+        int    b   = saveBase();
         LocEnv env = this.env;
         while (--r>=b) {
             int rmod = r % regmap.length;
-            if (rmod>=paramBase) {   // Caller saves registers
-                pushed += a.QUADSIZE;// must be saved on the stack
+            if (rmod<paramBase) {    // Callee saves registers
+                continue;
+            } else if (!liveAcross(r, site)) {
+                skippedRegs.incrementAndGet();
+            } else {                 // Live caller saves registers
+                pushed += Assembly.QUADSIZE;// must be saved on the stack
                 a.emit("pushq", reg(r).r64());
-                if (r<freeBase) {    // Parameter registers?
-                    // Update environment to indicate that a parameter
-                    // variable is now on the stack instead of a register.
-                    env = formals[r-paramBase].extend(-pushed, env);
-                }
+                // Update environment to indicate that any variable in
+                // this register is now on the stack instead.
+                env = saveReg(reg(r), -pushed, env);
+                savedRegs.incrementAndGet();
             }
         }
 
         // Calculate space needed for stack arguments:
-        int argBytes = Math.max(0, nargs-Reg.args.length) * a.QUADSIZE;
+        int argBytes = Math.max(0, nargs-Reg.args.length) * Assembly.QUADSIZE;
 
         // Add bytes as necessary to ensure correct alignment:
         argBytes    += a.alignmentAdjust(pushed + argBytes);
@@ -583,21 +941,39 @@ abstract class Frame {
      *  the return result from the function is in the free register and
      *  restoring any saved registers from the stack.
      */
-    public void removeCallFrame(Assembly a) {
+    public void removeCallFrame(Assembly a, int site) {
         // Move result into free register.
         Reg result = Reg.results[0];
         if (free()!=result) {
             a.emit("movq", result.r64(), free64());
         }
 
-        // Restore [b..r), counting up, skipping callee saves registers.
+        restoreSaved(a, site, true);
+    }
+
+    /** Restore a frame to its original state after a tail call, which
+     *  does not return.  No code is emitted because the code that follows
+     *  the tail call is unreachable.
+     */
+    public void abandonCallFrame(Assembly a, int site) {
+        restoreSaved(a, site, false);
+    }
+
+    /** Pop the registers that were saved by prepareCallFrame(), emitting
+     *  the corresponding instructions if emit is true.
+     */
+    private void restoreSaved(Assembly a, int site, boolean emit) {
+        // Restore [b..r), counting up, skipping the same registers as
+        // prepareCallFrame().
         int r = free;
-        int b = Math.max(paramBase, free - (regmap.length+1));
+        int b = saveBase();
         for (; b<r; b++) {
             int bmod = b % regmap.length;
-            if (bmod>=paramBase) {   // Caller saves registers
-                pushed -= a.QUADSIZE;
-                a.emit("popq", reg(b).r64());
+            if (bmod>=paramBase && liveAcross(b, site)) {
+                pushed -= Assembly.QUADSIZE;
+                if (emit) {
+                    a.emit("popq", reg(b).r64());
+                }
             }
         }
     }
@@ -605,12 +981,47 @@ abstract class Frame {
 
 class FunctionFrame extends Frame {
 
+    /** Records the name of the function that this frame belongs to.
+     */
+    private String name;
+
+    /** Holds the label at the end of the prologue, where a tail call to
+     *  the same function can start.
+     */
+    private String entry;
+
+    /** Lists the registers that hold variables in this function, which
+     *  includes the callee saves registers in saves.
+     */
+    private Reg[] vars;
+
+    /** Records the formal parameter held in each of the argument
+     *  registers from paramBase up to freeBase.
+     */
+    private Formal[] argFormals = new Formal[Reg.args.length];
+
+    /** Set if an epilogue is output when the stack pointer is not where
+     *  the prologue left it, so the base pointer is needed to reset it.
+     */
+    private boolean needsFrame = false;
+
     /** Construct a new Frame Layout object for a function with the
      *  given list of formal parameters and the given environment
      *  describing global variables.
      */
-    public FunctionFrame(Formal[] formals, LocEnv globals) {
+    public FunctionFrame(String name, Formal[] formals, LocEnv globals) {
+        this(name, formals, globals, new Reg[0]);
+    }
+
+    /** Construct a new Frame Layout object for a function in which the
+     *  given registers have been allocated to variables.  Callee saves
+     *  registers in this list are saved by the prologue.
+     */
+    public FunctionFrame(String name, Formal[] formals, LocEnv globals, Reg[] vars) {
         super(formals, globals);
+        this.name  = name;
+        this.vars  = vars;
+        this.saves = calleeSaves(vars);
 
         // Initialize the register map, including paramBase,
         // freeBase, and free:
@@ -621,27 +1032,48 @@ class FunctionFrame extends Frame {
         int r  = 0;
         int i;
         // Callee Saves Register are considered "in use" from the
-        // start of the function.
+        // start of the function.  Registers that hold variables come
+        // last so that they are the last to be spilled when we wrap
+        // around.
         for (i=0; i<Reg.calleeSaves.length; i++) {
-            regmap[r++] = Reg.calleeSaves[i];
+            if (!holdsVar(Reg.calleeSaves[i])) {
+                regmap[r++] = Reg.calleeSaves[i];
+            }
+        }
+        for (i=0; i<vars.length; i++) {
+            regmap[r++] = vars[i];
         }
 
         // Next come the registers that are used to supply parameters.
         // These registers also contribute entries to the environment.
+        // Parameters that have been allocated to callee saves registers
+        // are moved there by the prologue, leaving the argument
+        // register free.
         paramBase = r;
         for (i=0; i<Reg.args.length && i<formals.length; i++) {
-            regmap[r++] = Reg.args[i];
-            env         = formals[i].extend(Reg.args[i], env);
+            if (formals[i].getReg()==null) {
+                argFormals[r-paramBase] = formals[i];
+                regmap[r++] = Reg.args[i];
+                env         = formals[i].extend(Reg.args[i], env);
+            }
         }
 
         // Any formal parameters that did not fit in registers will be
         // found on the stack at positive offsets from the base pointer,
         // and will require corresponding entries in the stack frame.
         for (int j=i; j<formals.length; j++) {
-            int offset = (2+j-i)*Assembly.QUADSIZE;
-            env        = formals[j].extend(offset, env);
+            if (formals[j].getReg()==null) {
+                env = formals[j].extend(paramOffset(j), env);
+            }
+        }
+
+        // Parameters that have been allocated to registers:
+        for (int j=0; j<formals.length; j++) {
+            if (formals[j].getReg()!=null) {
+                env = formals[j].extend(formals[j].getReg(), env);
+            }
         }
-        
+
         // Any remaining registers are considered free for use, starting
         // with the result register(s):
         freeBase = free = r;
@@ -649,17 +1081,143 @@ class FunctionFrame extends Frame {
             regmap[r++] = Reg.results[j];
         }
         // Followed by any unused argument registers:
-        for (; i<Reg.args.length; i++) {
-            regmap[r++] = Reg.args[i];
+        for (i=0; i<Reg.args.length; i++) {
+            if ((i>=formals.length || formals[i].getReg()!=null)
+                && !holdsVar(Reg.args[i])) {
+                regmap[r++] = Reg.args[i];
+            }
         }
         // And then any callerSaves registers:
         for (i=0; i<Reg.callerSaves.length; i++) {
-            regmap[r++] = Reg.callerSaves[i];
+            if (!holdsVar(Reg.callerSaves[i])) {
+                regmap[r++] = Reg.callerSaves[i];
+            }
         }
         // If we need any registers beyond this, we will need to wrap around
         // and start using the callee saves registers at the start of the
         // register map.  (With appropriate spilling, of course.)
     }
+
+    /** Return true if the given register holds a variable.
+     */
+    private boolean holdsVar(Reg r) {
+        for (int i=0; i<vars.length; i++) {
+            if (vars[i]==r) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Return the callee saves registers in the given list.
+     */
+    private static Reg[] calleeSaves(Reg[] regs) {
+        int n = 0;
+        for (int i=0; i<regs.length; i++) {
+            if (Reg.isCalleeSaves(regs[i])) {
+                n++;
+            }
+        }
+        Reg[] saves = new Reg[n];
+        n = 0;
+        for (int i=0; i<regs.length; i++) {
+            if (Reg.isCalleeSaves(regs[i])) {
+                saves[n++] = regs[i];
+            }
+        }
+        return saves;
+    }
+
+    /** A parameter that is still in its argument register only needs to
+     *  be saved around a call if it is used again.
+     */
+    protected boolean liveAcross(int r, int site) {
+        return fullFrames || r>=freeBase
+            || argFormals[r-paramBase].isLiveAfter(site);
+    }
+
+    /** Output the epilogue for this function, noting whether the base
+     *  pointer is needed to reset the stack pointer.
+     */
+    public void emitEpilogue(Assembly a) {
+        if (pushed-a.getPendingAdjust() != saves.length*Assembly.QUADSIZE) {
+            needsFrame = true;
+        }
+        super.emitEpilogue(a);
+    }
+
+    /** Remove the frame pointer setup from the code for this function if
+     *  it makes no calls and does not use the base pointer, so that the
+     *  prologue and epilogue are empty apart from the return.
+     */
+    public void omitFramePointer(Assembly a) {
+        if (!fullFrames && !needsFrame && a.omitFramePointer()) {
+            leafFrames.incrementAndGet();
+        }
+    }
+
+    /** Return the offset from the base pointer of the nth parameter,
+     *  which must be one that is passed on the stack.
+     */
+    private static int paramOffset(int n) {
+        return (2+n-Reg.args.length)*Assembly.QUADSIZE;
+    }
+
+    /** Output the prologue for this function, saving callee saves
+     *  registers and moving parameters into their allocated registers.
+     */
+    public void emitPrologue(Assembly a) {
+        a.emitPrologue(saves);
+        pushed = saves.length * Assembly.QUADSIZE;
+        entry  = a.newLabel();
+        a.emitLabel(entry);
+        for (int i=0; i<formals.length; i++) {
+            Reg r = formals[i].getReg();
+            if (r!=null) {
+                String src = (i<Reg.args.length)
+                           ? Reg.args[i].r64()
+                           : a.indirect(paramOffset(i), Reg.basePointer.r64());
+                a.emit("movq", src, r.r64());
+            }
+        }
+    }
+
+    /** Return the number of arguments for a function with n parameters
+     *  that are passed on the stack.
+     */
+    static int stackArgs(int n) {
+        return Math.max(0, n-Reg.args.length);
+    }
+
+    /** Return true if a call to the named function with the given
+     *  number of arguments can be replaced by a jump.  This requires
+     *  that any stack arguments fit in the space where the arguments
+     *  for this function were passed.
+     */
+    public boolean canTailCall(String name, int nargs) {
+        return Call.tailCalls && stackArgs(nargs)<=stackArgs(formals.length);
+    }
+
+    /** Output a tail call to the named function, whose arguments have
+     *  already been loaded into the given call frame.  Stack arguments
+     *  are copied into the space where our own arguments were passed.
+     *  A call to this function jumps back to the end of the prologue,
+     *  reusing the current frame; a call to any other function removes
+     *  the frame first.
+     */
+    public void emitTailCall(Assembly a, CallFrame cf, String name) {
+        String tmp = Reg.results[0].r64();
+        for (int j=0; j<cf.stackArgs(); j++) {
+            a.emit("movq", cf.stackArg(a, j), tmp);
+            a.emit("movq", tmp, a.indirect(paramOffset(Reg.args.length+j),
+                                           Reg.basePointer.r64()));
+        }
+        if (name.equals(this.name)) {
+            a.emitTailJump(saves, entry, true);
+        } else {
+            a.emitTailJump(saves, a.name(name), false);
+        }
+    }
 }
 
 class CallFrame extends Frame {
@@ -675,7 +1233,8 @@ class CallFrame extends Frame {
         super(null, env); // TODO: eliminate need for null?
         this.pushed   = pushed;
         this.argBytes = argBytes;
-        argOffset     = pushed;
+        argOffset     = pushed + argBytes;
+        argBase       = argOffset;
 
         // Initialize the register map, including paramBase,
         // freeBase, and free:
@@ -709,6 +1268,23 @@ class CallFrame extends Frame {
      */
     int argOffset;
 
+    /** Records offset for the first stack argument, which is at the
+     *  bottom of the space reserved for arguments.
+     */
+    private int argBase;
+
+    /** Return the number of arguments that have been saved on the stack.
+     */
+    public int stackArgs() {
+        return FunctionFrame.stackArgs(argsAdded);
+    }
+
+    /** Return the location of the nth stack argument.
+     */
+    public String stackArg(Assembly a, int n) {
+        return a.indirect(-(argBase - n*Assembly.QUADSIZE), Reg.basePointer.r64());
+    }
+
     /** Save the value in the current free register as the next
      *  argument to this function.
      */
@@ -719,7 +1295,7 @@ class CallFrame extends Frame {
         } else {
             // Remaining arguments are passed on the stack:
             a.emit("movq", free64(), a.indirect(-argOffset,Reg.basePointer.r64()));
-            argOffset -= a.QUADSIZE;
+            argOffset -= Assembly.QUADSIZE;
         }
         argsAdded++;
     }
@@ -734,6 +1310,22 @@ class CallFrame extends Frame {
     }
 }
 
+/** Records a label that can be used as the target of a break or continue
+ *  statement, and the number of bytes pushed on the stack at that label.
+ */
+class JumpTarget {
+    String  label;
+    int     pushed;
+    boolean used = false;   // set once a jump to this target is emitted
+
+    /** Default constructor.
+     */
+    public JumpTarget(String label, int pushed) {
+        this.label  = label;
+        this.pushed = pushed;
+    }
+}
+
 /** Represents a linked list of location environments, with each entry
  *  documenting the location of a particular variable in memory.
  */
@@ -762,6 +1354,11 @@ abstract class LocEnv {
      */
     public LocEnv next() { return next; }
 
+    /** Return true if this entry describes a variable held in the
+     *  given register.
+     */
+    public boolean inReg(Reg r) { return false; }
+
     /** Search this environment for an occurence of a given variable.
      *  We assume that a previous static analysis has already identified
      *  and eliminated references to unbound variables.
@@ -797,6 +1394,11 @@ class RegEnv extends LocEnv {
      *  this enviroment entry.
      */
     public String loc(Assembly a) { return wd.reg(reg); }
+
+    /** Return true if this entry describes a variable held in the
+     *  given register.
+     */
+    public boolean inReg(Reg r) { return reg==r; }
 }
 
 /** Represents an environment entry for a variable stored in the stack frame.
@@ -817,6 +1419,22 @@ class FrameEnv extends LocEnv {
     public String loc(Assembly a) {
       return a.indirect(offset, Reg.basePointer.r64());
     }
+
+    /** Return the offset of this entry from the base pointer.
+     */
+    public int getOffset() { return offset; }
+}
+
+/** Represents an environment entry for a variable whose register has
+ *  been temporarily saved in the stack frame.
+ */
+class SavedEnv extends FrameEnv {
+
+    /** Default constructor.
+     */
+    public SavedEnv(String name, Width wd, LocEnv next, int offset) {
+        super(name, wd, next, offset);
+    }
 }
 
 /** Represents an environment entry for a global variable.
@@ -839,17 +1457,80 @@ class GlobalEnv extends LocEnv {
  */
 class StevieFun {
   public static final String entry    = "main";
-  public static final String filename = "demo";
+
+  /** The name of the executable program, and of the assembly code or
+   *  object file, with a suffix, that it is generated from.
+   */
+  static String filename = "demo";
+
+  /** Set to false to stop once the assembly code or object file has
+   *  been generated, without running gcc.
+   */
+  static boolean link = true;
 
   public static void main(String[] args) {
+    try {
+      run(args);
+    } catch (Exit e) {
+      System.exit(e.status);
+    }
+  }
+
+  /** Run the compiler with the given command line options, throwing an
+   *  Exit if it stops after an error.
+   */
+  static void run(String[] args) {
+    // Process command line options:
+    for (int i=0; i<args.length; i++) {
+      if (args[i].equals("-no-regalloc")) {
+        RegAlloc.enabled = false;
+      } else if (args[i].equals("-no-inline")) {
+        Inliner.enabled = false;
+      } else if (args[i].startsWith("-inline-size=")) {
+        Inliner.maxSize = number(args[i].substring(13));
+      } else if (args[i].startsWith("-inline-budget=")) {
+        Inliner.budget = number(args[i].substring(15));
+      } else if (args[i].equals("-full-frames")) {
+        Frame.fullFrames = true;
+      } else if (args[i].equals("-no-simplify")) {
+        Simplifier.enabled = false;
+      } else if (args[i].equals("-no-loopopt")) {
+        LoopOpt.enabled = false;
+      } else if (args[i].equals("-no-bounds")) {
+        Bounds.enabled = false;
+      } else if (args[i].equals("-no-ranges")) {
+        Bounds.analysis = false;
+      } else if (args[i].equals("-no-tailcalls")) {
+        Call.tailCalls = false;
+      } else if (args[i].startsWith("-threads=")) {
+        Defn.threads = Math.max(1, number(args[i].substring(9)));
+      } else if (args[i].equals("-elf")) {
+        ObjectFile.enabled = true;
+      } else if (args[i].startsWith("-o=")) {
+        filename = args[i].substring(3);
+      } else if (args[i].equals("-no-link")) {
+        link = false;
+      } else if (args[i].equals("-no-peephole")) {
+        Peephole.enabled = false;
+      } else if (args[i].startsWith("-peephole=")) {
+        if (!Peephole.select(args[i].substring(10))) {
+          System.out.println("Unrecognized peephole rule in " + args[i]);
+          throw new Exit(1);
+        }
+      } else {
+        System.out.println("Unrecognized option " + args[i]);
+        throw new Exit(1);
+      }
+    }
+
     // Read and parse a source program from standard input
-    new Parser(System.in);
+    Parser parser  = new Parser(System.in);
     Defn[] program = null;
     try {
-      program = Parser.Top();
+      program = parser.Top();
     } catch (ParseException e) {
       System.out.println("Syntax Error");
-      System.exit(1);
+      throw new Exit(1);
     }
 
     // Display the source program:
@@ -860,20 +1541,70 @@ class StevieFun {
     new StaticAnalysis().run(program);
     System.out.println("Passes static analysis!");
 
-    // Generate some assembly code:
-    Defn.compile(filename + ".s", program);
-    System.out.println("Generated assembly code in " + filename + ".s");
+    // Inline calls to small functions, and then check the result:
+    if (Inliner.enabled) {
+      new Inliner().run(program);
+      Inliner.report();
+      new StaticAnalysis().run(program);
+    }
+
+    // Fold constants in expressions:
+    if (Simplifier.enabled) {
+      new Simplifier().run(program);
+    }
+
+    // Move invariant code and globals out of loops, and check the result:
+    if (LoopOpt.enabled) {
+      new LoopOpt().run(program);
+      LoopOpt.report();
+      new StaticAnalysis().run(program);
+    }
+
+    // Remove bounds checks from array accesses that are always in range:
+    if (Bounds.enabled && Bounds.analysis) {
+      new Bounds().run(program);
+    }
+
+    // Generate some assembly code, or an object file:
+    String output = filename + (ObjectFile.enabled ? ".o" : ".s");
+    Defn.compile(output, program);
+    System.out.println("Generated " + (ObjectFile.enabled ? "object" : "assembly")
+                       + " code in " + output);
+    if (RegAlloc.enabled) {
+      RegAlloc.report();
+    }
+    Frame.report();
+    if (Bounds.enabled) {
+      Bounds.report();
+    }
+    if (Peephole.enabled) {
+      Peephole.report();
+    }
 
     // Generate an executable file:
+    if (!link) {
+      return;
+    }
     try {
       Runtime.getRuntime()
-             .exec("gcc -o " + filename + " " + filename + ".s runtime.c")
+             .exec("gcc -o " + filename + " " + output + " runtime.c")
              .waitFor(); 
     } catch (Exception e) {
       System.out.println(e.toString());
-      System.exit(1);
+      throw new Exit(1);
     }
     System.out.println("Executable program in " + filename);
   }
+
+  /** Read a numeric argument for a command line option.
+   */
+  private static int number(String s) {
+    try {
+      return Integer.parseInt(s);
+    } catch (NumberFormatException e) {
+      System.out.println("Invalid number " + s);
+      throw new Exit(1);
+    }
+  }
 }
 
@@ -0,0 +1,337 @@
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Records a range lo <= var < limit for a loop variable, which holds
+ *  at the start of each iteration of a loop whose test is var < limit,
+ *  until the variable is next changed.  The limit is either a constant
+ *  or the length of an array that is held in a local variable.
+ */
+class Range {
+  String  var;
+  int     lo;
+  Integer limit;  // constant limit, or null
+  String  array;  // array whose length is the limit, or null
+  int     depth;  // loop nesting depth of the loop body
+
+  /** Records the total amount that the statements in the loop add to
+   *  the variable in a single iteration, and whether every change to
+   *  the variable in the loop is such an increment.
+   */
+  long    step  = 0;
+  boolean valid = true;
+
+  /** Lists the array accesses whose bounds checks have been removed
+   *  because of this range.
+   */
+  Vector<Nth> uses = new Vector<Nth>();
+
+  Range(String var, int lo, Integer limit, String array, int depth) {
+    this.var   = var;
+    this.lo    = lo;
+    this.limit = limit;
+    this.array = array;
+    this.depth = depth;
+  }
+
+  /** Return true if the variable really is bounded below by lo: it
+   *  starts at lo, only ever increases, and cannot wrap around, because
+   *  it is less than the limit at the start of each iteration.
+   */
+  boolean holds() {
+    long max = (array!=null) ? Integer.MAX_VALUE : limit;
+    return valid && max - 1 + step <= Integer.MAX_VALUE;
+  }
+}
+
+/** Implements a range analysis that runs just before code generation
+ *  and removes the bounds checks from array accesses whose index is
+ *  always in range.  Working through each function in order, it keeps
+ *  track of the local variables that hold known constants, the local
+ *  arrays whose length is a known constant, and the loop variables
+ *  whose range is known from the test of an enclosing for or while
+ *  loop of the form i < n or i < a.length.
+ *
+ *  A loop variable is only given a range if it holds a constant that
+ *  is not negative when the loop starts, and the limit does not change
+ *  in the loop.  The range holds from the start of the body until the
+ *  variable is next assigned.  Every assignment to the variable in the
+ *  loop must add a constant that is not negative, and may not be in
+ *  an inner loop, so that the variable never decreases; this is only
+ *  known at the end of the loop, so the checks that were removed are
+ *  put back if it turns out to be false.  An access a[i] needs no check
+ *  if i has a range with a lower bound of at least zero and a limit of
+ *  a.length, or a constant limit no larger than a constant length of
+ *  a.  Calls cannot change local variables, so they do not affect any
+ *  of this.  The length of an array is only known in the scope of its
+ *  declaration, and not at all if it has the same name as a parameter
+ *  or another local variable of the function.
+ */
+class Bounds {
+  /** Set to false to compile array accesses without bounds checks.
+   */
+  static boolean enabled = true;
+
+  /** Set to false to keep every bounds check.
+   */
+  static boolean analysis = true;
+
+  // Statistics for the whole program, which may be updated from more
+  // than one thread (see CompileTask): the numbers of array accesses
+  // compiled with and without a bounds check.
+  static AtomicInteger checked = new AtomicInteger();
+  static AtomicInteger removed = new AtomicInteger();
+
+  /** Remove bounds checks from the functions of the given program.
+   */
+  void run(Defn[] defns) {
+    for (int i=0; i<defns.length; i++) {
+      defns[i].checkRanges(this);
+    }
+  }
+
+  //-- Facts about the current function: ------------------------------------
+
+  private HashMap<String, Integer> consts;    // locals holding constants
+  private HashMap<String, Range>   ranges;    // loop variables in range
+  private HashMap<String, Integer> lengths;   // arrays of known length
+  private HashSet<String>          assigned;  // locals assigned anywhere
+  private HashSet<String>          declared;  // locals declared so far
+  private Vector<Range>            loops;     // ranges of enclosing loops
+  private int                      depth;     // loop nesting depth
+
+  /** Analyze the body of a function with the given parameters.
+   */
+  void function(Formal[] formals, Stmt body) {
+    consts   = new HashMap<String, Integer>();
+    ranges   = new HashMap<String, Range>();
+    lengths  = new HashMap<String, Integer>();
+    assigned = LoopOpt.changedIn(body, false);
+    declared = new HashSet<String>();
+    loops    = new Vector<Range>();
+    depth    = 0;
+    for (int i=0; i<formals.length; i++) {
+      declared.add(formals[i].getName());
+    }
+    body.checkRanges(this);
+  }
+
+  /** Analyze a statement that is a scope of its own, such as the body
+   *  of a loop or a branch of an if: the lengths of the arrays that are
+   *  declared in it are forgotten at the end.
+   */
+  private void scope(Stmt stmt) {
+    HashMap<String, Integer> savedLengths = lengths;
+    lengths = new HashMap<String, Integer>(savedLengths);
+    stmt.checkRanges(this);
+    lengths = savedLengths;
+  }
+
+  /** Discard the facts about the named variable, and the ranges that
+   *  are limited by its length.
+   */
+  private void kill(String name) {
+    consts.remove(name);
+    ranges.remove(name);
+    for (Iterator<Range> it=ranges.values().iterator(); it.hasNext(); ) {
+      if (name.equals(it.next().array)) {
+        it.remove();
+      }
+    }
+  }
+
+  /** Discard the facts about each of the named variables.
+   */
+  private void kill(HashSet<String> names) {
+    for (String name : names) {
+      kill(name);
+    }
+  }
+
+  //-- Hooks for statements and expressions: --------------------------------
+
+  /** Record an assignment of the given expression to a variable.
+   */
+  void assign(String name, Expr rhs) {
+    kill(name);
+    Integer n = rhs.intValue();
+    if (n!=null) {
+      consts.put(name, n);
+    }
+    for (int i=0; i<loops.size(); i++) {
+      Range r = loops.elementAt(i);
+      if (r.var.equals(name)) {
+        Integer c = rhs.incrementOf(name);
+        if (r.depth==depth && c!=null && c>=0) {
+          r.step += c;
+        } else {
+          r.valid = false;
+        }
+      }
+    }
+  }
+
+  /** Record the declaration of a local variable, with an optional
+   *  initializer.  A variable that is declared more than once in a
+   *  function, or that has the same name as a parameter, is not given
+   *  a known length, because it may hide another variable that is used
+   *  once its scope has ended.  A copy of an array of known length
+   *  has the same length, which is how the length of an array that is
+   *  passed to an inlined function is known.
+   */
+  void declare(String name, Expr init) {
+    kill(name);
+    for (int i=0; i<loops.size(); i++) {
+      if (loops.elementAt(i).var.equals(name)) {
+        loops.elementAt(i).valid = false;
+      }
+    }
+    Integer n   = (init==null) ? null : init.intValue();
+    Integer len = (init==null) ? null : init.arrayLength();
+    if (len==null && init!=null && init.localName()!=null) {
+      len = lengths.get(init.localName());
+    }
+    if (n!=null) {
+      consts.put(name, n);
+    }
+    if (declared.add(name) && len!=null && !assigned.contains(name)) {
+      lengths.put(name, len);
+    } else {
+      lengths.remove(name);
+    }
+  }
+
+  /** Return the range that the loop test l < r gives to the variable l,
+   *  given the variables that are changed in the loop, or null if it
+   *  does not give one.
+   */
+  Range induction(Expr l, Expr r, HashSet<String> changed) {
+    String  var = l.localName();
+    Integer lo  = (var==null) ? null : consts.get(var);
+    if (lo==null || lo<0) {
+      return null;
+    }
+    Integer limit = r.intValue();
+    String  n     = r.localName();
+    if (limit==null && n!=null && !changed.contains(n)) {
+      limit = consts.get(n);
+    }
+    String array = r.lengthOf();
+    if (array!=null && changed.contains(array)) {
+      array = null;
+    }
+    return (limit==null && array==null)
+           ? null : new Range(var, lo, limit, array, depth+1);
+  }
+
+  /** Analyze a loop with the given test, body, and step, any of which
+   *  other than the body may be null.  The facts about variables that
+   *  are changed in the loop do not hold at the start of the body,
+   *  because it can be reached from the end of the previous iteration.
+   */
+  void loop(Stmt loop, Expr test, Stmt body, Expr step) {
+    HashSet<String> changed = LoopOpt.changedIn(loop, true);
+    Range           r       = (test==null) ? null : test.induction(this, changed);
+    kill(changed);
+    if (test!=null) {
+      test.checkRanges(this);
+    }
+    depth++;
+    if (r!=null) {
+      ranges.put(r.var, r);
+      loops.add(r);
+    }
+    scope(body);
+    if (step!=null) {
+      step.checkRanges(this);
+    }
+    depth--;
+    if (r!=null) {
+      loops.remove(r);
+      if (!r.holds()) {
+        for (int i=0; i<r.uses.size(); i++) {
+          r.uses.elementAt(i).setChecked(true);
+        }
+      }
+    }
+    kill(changed);
+  }
+
+  /** Analyze the two branches of an if statement, each starting with
+   *  the facts that hold after the test.
+   */
+  void branches(Stmt stmt, Stmt ifTrue, Stmt ifFalse) {
+    HashMap<String, Integer> savedConsts = consts;
+    HashMap<String, Range>   savedRanges = ranges;
+    consts = new HashMap<String, Integer>(savedConsts);
+    ranges = new HashMap<String, Range>(savedRanges);
+    scope(ifTrue);
+    if (ifFalse!=null) {
+      consts = new HashMap<String, Integer>(savedConsts);
+      ranges = new HashMap<String, Range>(savedRanges);
+      scope(ifFalse);
+    }
+    consts = savedConsts;
+    ranges = savedRanges;
+    kill(LoopOpt.changedIn(stmt, true));
+  }
+
+  /** Analyze the cases of a switch statement.  A case can also be
+   *  reached by falling through from the one before, so each starts
+   *  without the facts about variables that are changed in the switch,
+   *  or the lengths of the arrays declared in the cases before it.
+   */
+  void cases(Stmt stmt, Case[] cases) {
+    kill(LoopOpt.changedIn(stmt, true));
+    HashMap<String, Integer> savedConsts  = consts;
+    HashMap<String, Range>   savedRanges  = ranges;
+    HashMap<String, Integer> savedLengths = lengths;
+    for (int i=0; i<cases.length; i++) {
+      consts  = new HashMap<String, Integer>(savedConsts);
+      ranges  = new HashMap<String, Range>(savedRanges);
+      lengths = new HashMap<String, Integer>(savedLengths);
+      cases[i].checkRanges(this);
+    }
+    consts  = savedConsts;
+    ranges  = savedRanges;
+    lengths = savedLengths;
+  }
+
+  /** Remove the bounds check from an access to the given array at the
+   *  given index if the index is known to be in range.
+   */
+  void access(Nth nth, Expr arr, Expr idx) {
+    String array = arr.localName();
+    if (array==null) {
+      return;
+    }
+    Integer len = lengths.get(array);
+    String  var = idx.localName();
+    Integer k   = idx.intValue();
+    if (k==null && var!=null) {
+      k = consts.get(var);
+    }
+    if (k!=null) {
+      if (len!=null && 0<=k && k<len) {
+        nth.setChecked(false);
+      }
+      return;
+    }
+    Range r = (var==null) ? null : ranges.get(var);
+    if (r!=null && r.lo>=0
+        && (array.equals(r.array)
+            || (len!=null && r.limit!=null && r.limit<=len))) {
+      nth.setChecked(false);
+      r.uses.add(nth);
+    }
+  }
+
+  /** Print a summary of the bounds checks for the whole program.
+   */
+  static void report() {
+    System.out.println("Bounds checks: removed " + removed + " of "
+                       + (checked.get() + removed.get()) + " array accesses");
+  }
+}
@@ -0,0 +1,526 @@
+import java.util.Vector;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/** Records a call that the inliner has found in the body of a function.
+ */
+class Site {
+  Call   call;
+  String callee;
+  int    loops;          // number of loops around the call
+  int    cost;           // size of the body of the called function
+
+  Site(Call call, String callee, int loops) {
+    this.call   = call;
+    this.callee = callee;
+    this.loops  = loops;
+  }
+
+  /** Return an estimate of the number of times that this call is made
+   *  for each call of the function in which it appears.
+   */
+  int frequency() {
+    int freq = 1;
+    for (int i=0; i<loops && i<3; i++) {
+      freq *= 10;
+    }
+    return freq;
+  }
+}
+
+/** Implements an inlining pass that replaces calls to small functions
+ *  with copies of their bodies.  The pass runs on the program after
+ *  static analysis, and the program is checked again afterwards so
+ *  that the new code is annotated in the same way as the original.
+ *
+ *  Functions are processed in a bottom up order over the call graph,
+ *  so that the functions that a function calls have already had their
+ *  own calls inlined.  Recursive functions are never inlined.  Within
+ *  each function, calls are ranked by the size of the called function
+ *  divided by an estimate of how often the call is executed (calls in
+ *  loops are assumed to run ten times as often), and then inlined in
+ *  that order until the function has grown by the size budget.
+ *
+ *  A call that is used as a statement, on the right of an assignment
+ *  statement, as the initializer of a local variable, in a return or
+ *  print statement, or as the test of an if statement is replaced by
+ *  declarations of fresh local variables for the parameters followed
+ *  by a renamed copy of the function body in which a return statement
+ *  assigns its value to the variable that would have received the
+ *  result (a new variable for print and if).  This requires every
+ *  return to be the last thing that the function does.  A call in any
+ *  other expression can only be inlined if the function body is just
+ *  "return e;" and each argument is a constant or a local variable,
+ *  in which case the call is replaced by a copy of e with the
+ *  arguments substituted for the parameters.  A call that cannot be
+ *  inlined is left unchanged.  The names of local variables in the
+ *  function being inlined are always renamed, so they cannot capture
+ *  variables at the call site; if the function uses a global variable
+ *  that has the same name as a local variable in the caller, the call
+ *  is not inlined.
+ */
+class Inliner {
+  /** Set to false to skip the inlining pass.
+   */
+  static boolean enabled = true;
+
+  /** The largest function (measured as a number of abstract syntax
+   *  tree nodes) that will be inlined.
+   */
+  static int maxSize = 40;
+
+  /** The largest number of nodes that will be added to any single
+   *  function by inlining.
+   */
+  static int budget = 200;
+
+  // Statistics for the whole program:
+  static int           calls   = 0;  // calls found
+  static int           inlined = 0;  // calls inlined
+  static StringBuilder log     = new StringBuilder();
+
+  /** Used in place of a variable name to request that the result
+   *  of an inlined function is returned from the calling function.
+   *  ("return" is a keyword, so it cannot clash with a variable.)
+   */
+  static final String RETURN = "return";
+
+  /** Returned by Stmt.copy() in place of a return statement that can
+   *  be dropped because it is the last statement of a void function.
+   */
+  static final Stmt SKIP = new Return(null);
+
+  private Vector<Function>              functions = new Vector<Function>();
+  private HashSet<String>               globals   = new HashSet<String>();
+  private HashMap<String,Vector<Site>>  sites     = new HashMap<String,Vector<Site>>();
+  private HashMap<String,Integer>       sizes     = new HashMap<String,Integer>();
+  private HashMap<String,HashSet<String>> localsOf = new HashMap<String,HashSet<String>>();
+  private HashSet<String>               recursive = new HashSet<String>();
+  private Vector<Function>              order     = new Vector<Function>();
+  private HashMap<String,Function>      byName    = new HashMap<String,Function>();
+
+  /** Add a function to the program.
+   */
+  void addFunction(Function fn) {
+    functions.add(fn);
+    byName.put(fn.getName(), fn);
+  }
+
+  /** Add a global variable to the program.
+   */
+  void addGlobal(String name) {
+    globals.add(name);
+  }
+
+  /** Run the inliner over the given program.
+   */
+  void run(Defn[] defns) {
+    for (int i=0; i<defns.length; i++) {
+      defns[i].addToInliner(this);
+    }
+    for (Function fn : functions) {
+      scan(fn);
+      calls += found.size();
+    }
+    components();
+    for (Function fn : order) {
+      inlineInto(fn);
+    }
+  }
+
+  /** Return the function with the given name.
+   */
+  private Function find(String name) {
+    return byName.get(name);
+  }
+
+  /** Find the strongly connected components of the call graph, using
+   *  Tarjan's algorithm.  A component is finished only after all of the
+   *  components that it calls, so adding each to the order as it is
+   *  finished puts every function after the functions that it calls.
+   *  The functions in a component with more than one member, or that
+   *  call themselves, are recursive.  The depth-first search keeps its
+   *  own stack of functions and the next call to follow in each, rather
+   *  than recursing, so a long chain of calls cannot overflow the Java
+   *  stack.
+   */
+  private void components() {
+    int                     n       = functions.size();
+    HashMap<String,Integer> number  = new HashMap<String,Integer>();
+    int[][]                 callees = new int[n][];
+    for (int i=0; i<n; i++) {
+      number.put(functions.get(i).getName(), i);
+    }
+    for (int i=0; i<n; i++) {
+      Vector<Site> ss = sites.get(functions.get(i).getName());
+      callees[i] = new int[ss.size()];
+      for (int j=0; j<ss.size(); j++) {
+        callees[i][j] = number.get(ss.get(j).callee);
+      }
+    }
+
+    int[]     index   = new int[n];     // order in which found, or -1
+    int[]     low     = new int[n];     // lowest index reachable
+    boolean[] onStack = new boolean[n];
+    int[]     stack   = new int[n];     // functions in open components
+    int[]     path    = new int[n];     // the path of the search
+    int[]     next    = new int[n];     // next call to follow on path
+    int       count   = 0;
+    int       sp      = 0;
+    Arrays.fill(index, -1);
+    for (int root=0; root<n; root++) {
+      if (index[root]>=0) {
+        continue;
+      }
+      int depth = 0;
+      path[depth++]  = root;
+      index[root]    = low[root] = count++;
+      stack[sp++]    = root;
+      onStack[root]  = true;
+      next[root]     = 0;
+      while (depth>0) {
+        int v = path[depth-1];
+        if (next[v]<callees[v].length) {
+          int w = callees[v][next[v]++];
+          if (index[w]<0) {
+            path[depth++] = w;
+            index[w]      = low[w] = count++;
+            stack[sp++]   = w;
+            onStack[w]    = true;
+            next[w]       = 0;
+          } else if (onStack[w]) {
+            low[v] = Math.min(low[v], index[w]);
+          }
+          continue;
+        }
+        depth--;
+        if (depth>0) {
+          int u  = path[depth-1];
+          low[u] = Math.min(low[u], low[v]);
+        }
+        if (low[v]==index[v]) {
+          int first = sp;
+          do {
+            onStack[stack[--first]] = false;
+          } while (stack[first]!=v);
+          boolean cycle = (sp-first>1);
+          for (int j=0; j<callees[v].length; j++) {
+            cycle |= (callees[v][j]==v);
+          }
+          for (int k=sp-1; k>=first; k--) {
+            Function fn = functions.get(stack[k]);
+            if (cycle) {
+              recursive.add(fn.getName());
+            }
+            order.add(fn);
+          }
+          sp = first;
+        }
+      }
+    }
+  }
+
+  //-- Scanning functions: --------------------------------------------------
+
+  /** Counts the nodes in the function being scanned.
+   */
+  int size;
+
+  private Vector<Site>    found;
+  private HashSet<String> locals = new HashSet<String>();
+
+  /** Record the size, calls, and local variables of a function.
+   */
+  private void scan(Function fn) {
+    size   = 0;
+    found  = new Vector<Site>();
+    locals = new HashSet<String>();
+    fn.scan(this);
+    sites.put(fn.getName(), found);
+    sizes.put(fn.getName(), size);
+    localsOf.put(fn.getName(), locals);
+  }
+
+  /** Record a call found while scanning a function.
+   */
+  void call(Call call, String callee, int loops) {
+    found.add(new Site(call, callee, loops));
+  }
+
+  /** Record a local variable or parameter found while scanning.
+   */
+  void local(String name) {
+    locals.add(name);
+  }
+
+  //-- Inlining calls: ------------------------------------------------------
+
+  private HashSet<Call>           chosen;
+  private HashMap<String,Integer> counts;
+
+  /** Choose calls to inline in the given function, and then inline them.
+   */
+  private void inlineInto(Function fn) {
+    String       name  = fn.getName();
+    Vector<Site> cands = new Vector<Site>();
+    for (Site s : sites.get(name)) {
+      s.cost = sizes.get(s.callee);
+      if (!recursive.contains(s.callee) && s.cost<=maxSize) {
+        cands.add(s);
+      }
+    }
+    // Cheapest calls first, weighted by how often they are made:
+    cands.sort((a, b) -> Long.compare((long)a.cost * b.frequency(),
+                                      (long)b.cost * a.frequency()));
+    chosen     = new HashSet<Call>();
+    int growth = 0;
+    for (Site s : cands) {
+      if (growth+s.cost <= budget) {
+        chosen.add(s.call);
+        growth += s.cost;
+      }
+    }
+    if (chosen.isEmpty()) {
+      return;
+    }
+
+    locals = localsOf.get(name);
+    counts = new HashMap<String,Integer>();
+    fn.inline(this);
+    for (String callee : counts.keySet()) {
+      log.append("  " + callee + " into " + name
+                 + " (" + counts.get(callee) + ")\n");
+    }
+
+    // Update the size of this function for its callers:
+    scan(fn);
+  }
+
+  /** Return true if the given call has been chosen for inlining.
+   */
+  boolean chosen(Call call) {
+    return chosen.contains(call);
+  }
+
+  /** Return true if the named variable might be a global variable.
+   */
+  boolean isGlobal(String name) {
+    return globals.contains(name);
+  }
+
+  /** Record the successful inlining of a call to the named function.
+   */
+  private void inlined(String callee) {
+    Integer n = counts.get(callee);
+    counts.put(callee, (n==null) ? 1 : n+1);
+    inlined++;
+  }
+
+  /** Return a statement that executes the body of the named function
+   *  with the given arguments.  The result of the function is assigned
+   *  to the variable called result, or returned if result is RETURN;
+   *  it is discarded if result is null.  If decl is not null, then it
+   *  is the declaration of the result variable, which is placed after
+   *  the arguments have been evaluated.  Returns null if the call
+   *  cannot be inlined.
+   */
+  Stmt expand(String callee, Expr[] args, String result, Stmt decl) {
+    Function fn      = find(callee);
+    Formal[] formals = fn.getFormals();
+    Stmt     code    = null;
+    int      mark    = mark();
+    for (int i=0; i<formals.length; i++) {
+      String v = fresh(formals[i].getName());
+      code = seq(code, declare(formals[i].getType(), v, args[i]));
+      bind(formals[i].getName(), v, new Var(v));
+    }
+    code = seq(code, decl);
+    if (result==null && fn.getRetType()!=null) {
+      result = fresh(callee);
+      code   = seq(code, declare(fn.getRetType(), result, null));
+    }
+
+    this.result   = result;
+    this.exprMode = false;
+    Stmt body     = fn.getBody().copy(this, true);
+    reset(mark);
+
+    if (body==null) {
+      return null;
+    } else if (body!=SKIP) {
+      code = seq(code, body);
+    }
+    if (code!=null) {
+      inlined(callee);
+    }
+    return code;
+  }
+
+  /** Return an expression that computes the result of calling the
+   *  named function with the given arguments, or null if the function
+   *  body is not a single return statement or the arguments are not
+   *  all simple.
+   */
+  Expr expandExpr(String callee, Expr[] args) {
+    for (int i=0; i<args.length; i++) {
+      if (!args[i].isSimple(this)) {
+        return null;
+      }
+    }
+    Function fn      = find(callee);
+    Formal[] formals = fn.getFormals();
+    int      mark    = mark();
+    for (int i=0; i<formals.length; i++) {
+      bind(formals[i].getName(), null, args[i]);
+    }
+
+    this.exprMode = true;
+    this.value    = null;
+    Stmt body     = fn.getBody().copy(this, true);
+    this.exprMode = false;
+    reset(mark);
+
+    if (body!=SKIP) {
+      return null;
+    }
+    inlined(callee);
+    return value;
+  }
+
+  //-- Copying function bodies: ---------------------------------------------
+
+  private static int counter = 0;
+
+  /** Return a fresh variable name based on the given name.  The result
+   *  includes a "." so it cannot clash with any name in the program.
+   */
+  static String fresh(String name) {
+    return name + "." + (counter++);
+  }
+
+  private String        result;    // where to put the function result
+  private boolean       exprMode;  // true if inlining into an expression
+  private Expr          value;     // result expression in exprMode
+
+  // Variables in scope in the body being copied:
+  private Vector<String> names   = new Vector<String>();
+  private Vector<String> renamed = new Vector<String>();
+  private Vector<Expr>   values  = new Vector<Expr>();
+
+  private void bind(String name, String newName, Expr value) {
+    names.add(name);
+    renamed.add(newName);
+    values.add(value);
+  }
+
+  /** Return a marker for the current set of variables in scope.
+   */
+  int mark() {
+    return names.size();
+  }
+
+  /** Reset the set of variables in scope to a previous mark.
+   */
+  void reset(int mark) {
+    names.setSize(mark);
+    renamed.setSize(mark);
+    values.setSize(mark);
+  }
+
+  /** Return the variable scope in which the given name is bound, or -1
+   *  if it is not bound (and so refers to a global variable).
+   */
+  private int lookup(String name) {
+    for (int i=names.size()-1; i>=0; i--) {
+      if (names.get(i).equals(name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /** Introduce a new local variable in the body being copied, returning
+   *  the name that should be used for it.
+   */
+  String define(String name) {
+    String v = fresh(name);
+    bind(name, v, new Var(v));
+    return v;
+  }
+
+  /** Return an expression to use in place of a reference to the named
+   *  variable in the body being copied, or null if it refers to a global
+   *  variable that is hidden by a local variable in the caller.
+   */
+  Expr var(String name) {
+    int i = lookup(name);
+    if (i>=0) {
+      return values.get(i).copy(clone);
+    }
+    return locals.contains(name) ? null : new Var(name);
+  }
+
+  /** Return the name to use in place of the named variable on the left
+   *  of an assignment in the body being copied, or null if the
+   *  assignment cannot be copied.
+   */
+  String rename(String name) {
+    if (exprMode) {
+      return null;
+    }
+    int i = lookup(name);
+    if (i>=0) {
+      return renamed.get(i);
+    }
+    return locals.contains(name) ? null : name;
+  }
+
+  /** Used to copy the expressions that are bound to variables, which
+   *  are already expressed in terms of the variables at the call site.
+   */
+  private static final Inliner clone = new Inliner();
+
+  /** Return the statement that replaces a return statement with the
+   *  given expression (null for a void return) in the body being copied,
+   *  or null if the return cannot be replaced.
+   */
+  Stmt result(Expr exp, boolean tail) {
+    if (exprMode) {
+      value = exp;
+      return tail ? SKIP : null;
+    } else if (RETURN.equals(result)) {
+      return new Return(exp);
+    } else if (!tail) {
+      return null;
+    } else if (result==null) {
+      return SKIP;
+    } else {
+      return new ExprStmt(new Assign(result, exp));
+    }
+  }
+
+  //-- Utilities: -----------------------------------------------------------
+
+  /** Return a declaration for a local variable.
+   */
+  static Stmt declare(Type type, String name, Expr init) {
+    VarIntro v = (init==null) ? new VarIntro(name)
+                              : new InitVarIntro(name, init);
+    return new VarDecl(type, new VarIntro[] { v });
+  }
+
+  /** Return a sequence of two statements, either of which may be null.
+   */
+  static Stmt seq(Stmt a, Stmt b) {
+    return (a==null) ? b : (b==null) ? a : new Seq(a, b);
+  }
+
+  /** Print a summary of the calls that have been inlined.
+   */
+  static void report() {
+    System.out.println("Inlining: inlined " + inlined + " of "
+                       + calls + " calls");
+    System.out.print(log);
+  }
+}
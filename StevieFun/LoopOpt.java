@@ -0,0 +1,231 @@
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Vector;
+
+/** Implements a loop optimization pass that runs after simplification.
+ *  Working from the innermost loops outwards, it moves arithmetic whose
+ *  value cannot change while a loop runs out of the loop, into new
+ *  variables that are initialized just before the loop.  In a loop that
+ *  makes no calls, it also keeps each global variable that the loop
+ *  uses in a new local variable, which the register allocator can then
+ *  put in a register, and writes the value back when the loop exits.
+ *
+ *  An expression is invariant in a loop if it only uses constants and
+ *  variables that are neither assigned nor declared anywhere in the
+ *  loop, and no global variables if the loop makes a call.  Only
+ *  arithmetic is moved: it cannot fail, so it does not matter if the
+ *  loop body is never executed.  A global that is assigned in a loop
+ *  that contains a return statement is left alone, because its value
+ *  would not be written back on the way out.  Print statements do not
+ *  count as calls, because the runtime print function does not use the
+ *  global variables of the program.
+ */
+class LoopOpt {
+  /** Set to false to leave loops as they are written.
+   */
+  static boolean enabled = true;
+
+  // Statistics for the whole program:
+  static int loops    = 0;  // loops examined
+  static int hoisted  = 0;  // expressions moved out of loops
+  static int promoted = 0;  // globals kept in local variables in loops
+
+  private HashMap<String, Type> globals   = new HashMap<String, Type>();
+  private Vector<Function>      functions = new Vector<Function>();
+
+  /** Record a global variable of the program.
+   */
+  void addGlobal(String name, Type type) {
+    globals.put(name, type);
+  }
+
+  /** Record a function of the program.
+   */
+  void addFunction(Function fn) {
+    functions.add(fn);
+  }
+
+  /** Optimize the loops in each function of the given program.
+   */
+  void run(Defn[] defns) {
+    for (int i=0; i<defns.length; i++) {
+      defns[i].addToLoopOpt(this);
+    }
+    for (int i=0; i<functions.size(); i++) {
+      scope.clear();
+      functions.elementAt(i).optimizeLoops(this);
+    }
+  }
+
+  //-- Local variables in scope: --------------------------------------------
+
+  private Vector<String> scope = new Vector<String>();
+
+  /** Record a parameter or local variable that is in scope from here on.
+   */
+  void local(String name) {
+    scope.add(name);
+  }
+
+  /** Return a marker for the current scope.
+   */
+  int mark() {
+    return scope.size();
+  }
+
+  /** Discard variables that were introduced since the given marker.
+   */
+  void reset(int mark) {
+    scope.setSize(mark);
+  }
+
+  /** Return true if the given name refers to a global variable at the
+   *  start of the current loop.
+   */
+  private boolean isGlobal(String name) {
+    return globals.containsKey(name) && !scope.contains(name);
+  }
+
+  //-- Analysis of a single loop: -------------------------------------------
+
+  private HashSet<String>       assigned;
+  private HashSet<String>       declared;
+  private LinkedHashSet<String> used;
+  private boolean               calls;
+  private boolean               returns;
+
+  /** Record an assignment to a variable in the current loop.
+   */
+  void assign(String name) {
+    assigned.add(name);
+    used.add(name);
+  }
+
+  /** Record a declaration of a variable in the current loop.
+   */
+  void declare(String name) {
+    declared.add(name);
+  }
+
+  /** Record a use of a variable in the current loop.
+   */
+  void use(String name) {
+    used.add(name);
+  }
+
+  /** Record a call in the current loop.
+   */
+  void call() {
+    calls = true;
+  }
+
+  /** Record a return statement in the current loop.
+   */
+  void ret() {
+    returns = true;
+  }
+
+  /** Return true if the value of the named variable cannot change while
+   *  the current loop runs.  Nothing is moved once globals are being
+   *  renamed.
+   */
+  boolean isInvariant(String name) {
+    return !renaming
+        && !assigned.contains(name) && !declared.contains(name)
+        && !(calls && isGlobal(name));
+  }
+
+  //-- Rewriting a single loop: ---------------------------------------------
+
+  private HashMap<String, String> renames;
+  private boolean                 renaming;
+  private Stmt                    decls;
+
+  /** Return the name of the local variable that holds the named global
+   *  in the current loop, or the name itself if it is not promoted.
+   */
+  String rename(String name) {
+    String r = renames.get(name);
+    return (r==null) ? name : r;
+  }
+
+  /** Return a variable that holds the value of an invariant expression,
+   *  declaring it before the current loop.
+   */
+  Expr hoist(Expr e) {
+    String v = Inliner.fresh("inv");
+    decls    = Inliner.seq(decls, Inliner.declare(Type.INT, v, e));
+    hoisted++;
+    return new Var(v);
+  }
+
+  /** Scan a loop, starting with empty sets of variables.
+   */
+  private void scan(Stmt loop) {
+    assigned = new HashSet<String>();
+    declared = new HashSet<String>();
+    used     = new LinkedHashSet<String>();
+    calls    = false;
+    returns  = false;
+    loop.loopScan(this);
+  }
+
+  /** Return the variables that are assigned anywhere in the given
+   *  statement, and also those that are declared in it if decls is
+   *  true (used by the range analysis, see Bounds).
+   */
+  static HashSet<String> changedIn(Stmt s, boolean decls) {
+    LoopOpt lo = new LoopOpt();
+    lo.scan(s);
+    if (decls) {
+      lo.assigned.addAll(lo.declared);
+    }
+    return lo.assigned;
+  }
+
+  /** Optimize a single loop, whose own inner loops have already been
+   *  optimized, returning the statement that should replace it.  The
+   *  loop is scanned a second time after invariant code has been moved
+   *  out, so that globals are only promoted if they are still used.
+   */
+  Stmt optimize(Stmt loop) {
+    loops++;
+    scan(loop);
+    renames = new HashMap<String, String>();
+    decls   = null;
+    loop.hoist(this);
+    if (calls) {
+      return Inliner.seq(decls, loop);
+    }
+
+    scan(loop);
+    Stmt after = null;
+    for (String g : used) {
+      if (isGlobal(g) && !declared.contains(g)
+          && !(returns && assigned.contains(g))) {
+        String p = Inliner.fresh(g);
+        renames.put(g, p);
+        decls = Inliner.seq(decls, Inliner.declare(globals.get(g), p, new Var(g)));
+        if (assigned.contains(g)) {
+          after = Inliner.seq(after, new ExprStmt(new Assign(g, new Var(p))));
+        }
+        promoted++;
+      }
+    }
+    if (!renames.isEmpty()) {
+      renaming = true;
+      loop.hoist(this);
+      renaming = false;
+    }
+    return Inliner.seq(decls, Inliner.seq(loop, after));
+  }
+
+  /** Print a summary of the loop optimizations for the whole program.
+   */
+  static void report() {
+    System.out.println("Loops: moved " + hoisted + " expressions out of "
+                       + loops + " loops, kept " + promoted
+                       + " globals in local variables");
+  }
+}
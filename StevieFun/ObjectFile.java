@@ -0,0 +1,809 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Vector;
+
+/** A growable buffer of bytes, written in little endian order, that
+ *  holds the contents of one section of an object file.
+ */
+class Bytes {
+  private byte[] buf  = new byte[256];
+  private int    size = 0;
+
+  int size() {
+    return size;
+  }
+
+  void clear() {
+    size = 0;
+  }
+
+  void byte1(int b) {
+    if (size==buf.length) {
+      buf = Arrays.copyOf(buf, 2*size);
+    }
+    buf[size++] = (byte)b;
+  }
+
+  void int16(int v) {
+    byte1(v);
+    byte1(v >> 8);
+  }
+
+  void int32(long v) {
+    for (int i=0; i<4; i++) {
+      byte1((int)(v >> (8*i)));
+    }
+  }
+
+  void int64(long v) {
+    for (int i=0; i<8; i++) {
+      byte1((int)(v >> (8*i)));
+    }
+  }
+
+  /** Add a string followed by a zero byte, returning its offset.
+   */
+  int string(String s) {
+    int offset = size;
+    for (int i=0; i<s.length(); i++) {
+      byte1(s.charAt(i));
+    }
+    byte1(0);
+    return offset;
+  }
+
+  /** Pad with the given byte up to a multiple of n bytes.
+   */
+  void align(int n, int fill) {
+    while (size%n!=0) {
+      byte1(fill);
+    }
+  }
+
+  void append(Bytes b) {
+    for (int i=0; i<b.size; i++) {
+      byte1(b.buf[i]);
+    }
+  }
+
+  void writeTo(OutputStream out) throws IOException {
+    out.write(buf, 0, size);
+  }
+}
+
+/** Describes one section of an object file, and its contents.
+ */
+class SectionHeader {
+  int   name;    // offset of the name in the section name table
+  int   type;
+  long  flags;
+  Bytes data;
+  int   link;
+  int   info;
+  int   align;
+  int   entsize;
+  int   offset;  // position of the contents in the file
+
+  SectionHeader(int name, int type, long flags, Bytes data,
+                int link, int info, int align, int entsize) {
+    this.name  = name;  this.type = type; this.flags = flags;
+    this.data  = data;  this.link = link; this.info  = info;
+    this.align = align; this.entsize = entsize;
+  }
+
+  /** Output the ELF64 header for this section.
+   */
+  void writeTo(Bytes file) {
+    file.int32(name);
+    file.int32(type);
+    file.int64(flags);
+    file.int64(0);                            // address
+    file.int64(type==0 ? 0 : offset);
+    file.int64(data.size());
+    file.int32(link);
+    file.int32(info);
+    file.int64(type==0 ? 0 : align);
+    file.int64(entsize);
+  }
+}
+
+/** Records a relocation at a given offset within a section.  The
+ *  symbol is the name of a label, which is replaced by the symbol for
+ *  its section when the object file is written if the label is local.
+ */
+class Reloc {
+  int    offset;
+  int    type;
+  String sym;
+  long   addend;
+
+  Reloc(int offset, int type, String sym, long addend) {
+    this.offset = offset;
+    this.type   = type;
+    this.sym    = sym;
+    this.addend = addend;
+  }
+}
+
+/** Describes a single operand of an instruction, in the AT&T syntax
+ *  that is produced by the Assembly class.
+ */
+class Operand {
+  static final int REG   = 0;  // a register, possibly with a * prefix
+  static final int IMM   = 1;  // an immediate value
+  static final int MEM   = 2;  // a memory reference
+  static final int LABEL = 3;  // a jump or call target
+
+  int    kind;
+  int    reg;              // REG: register number, from 0 to 15
+  int    size;             // REG: 8, 32, or 64 bits
+  long   imm;              // IMM: the value
+  int    base  = -1;       // MEM: base register, or -1 for %rip
+  int    index = -1;       // MEM: index register, or -1 if none
+  int    scale = 1;        // MEM: scale for the index register
+  int    disp;             // MEM: displacement
+  String sym;              // MEM: %rip relative label; LABEL: target
+
+  /** Return true if this is a register that needs a REX prefix when it
+   *  is used as an 8 bit register (%spl, %bpl, %sil, and %dil).
+   */
+  boolean needsRex8() {
+    return kind==REG && size==8 && reg>=4 && reg<8;
+  }
+
+  private static HashMap<String, Integer> regs = new HashMap<String, Integer>();
+  static {
+    String[] r64 = { "rax", "rcx", "rdx", "rbx", "rsp", "rbp", "rsi", "rdi" };
+    String[] r32 = { "eax", "ecx", "edx", "ebx", "esp", "ebp", "esi", "edi" };
+    String[] r8  = { "al",  "cl",  "dl",  "bl",  "spl", "bpl", "sil", "dil" };
+    for (int i=0; i<8; i++) {
+      regs.put("%" + r64[i], 64*16 + i);
+      regs.put("%" + r32[i], 32*16 + i);
+      regs.put("%" + r8[i],   8*16 + i);
+      regs.put("%r" + (i+8),       64*16 + i + 8);
+      regs.put("%r" + (i+8) + "d", 32*16 + i + 8);
+      regs.put("%r" + (i+8) + "b",  8*16 + i + 8);
+    }
+  }
+
+  /** Return the register number and size for a register name, coded as
+   *  size*16 + number.
+   */
+  private static int register(String name) {
+    Integer r = regs.get(name.trim());
+    if (r==null) {
+      throw new Error("Unrecognized register " + name);
+    }
+    return r;
+  }
+
+  static Operand parse(String s) {
+    Operand o = new Operand();
+    if (s.startsWith("$")) {
+      o.kind = IMM;
+      o.imm  = Long.parseLong(s.substring(1));
+    } else if (s.startsWith("%") || s.startsWith("*%")) {
+      int r  = register(s.substring(s.indexOf('%')));
+      o.kind = REG;
+      o.reg  = r % 16;
+      o.size = r / 16;
+    } else if (s.endsWith(")")) {
+      int      p     = s.indexOf('(');
+      String   pre   = s.substring(0, p);
+      String[] parts = s.substring(p+1, s.length()-1).split(",");
+      o.kind = MEM;
+      if (parts[0].trim().equals("%rip")) {
+        o.sym = pre;
+      } else {
+        o.base = register(parts[0]) % 16;
+        o.disp = pre.equals("") ? 0 : Integer.parseInt(pre);
+        if (parts.length>1) {
+          o.index = register(parts[1]) % 16;
+          o.scale = Integer.parseInt(parts[2].trim());
+        }
+      }
+    } else {
+      o.kind = LABEL;
+      o.sym  = s;
+    }
+    return o;
+  }
+}
+
+/** Encodes the instructions and directives that are produced by the
+ *  Assembly class as x86-64 machine code, and writes the result as an
+ *  ELF64 relocatable object file, so that the assembler is not needed.
+ *  Only the instructions and addressing modes that the code generator
+ *  and peephole optimizer use are supported.  The encodings are the
+ *  ones that the GNU assembler picks for the same input, so the text
+ *  section matches the one that it produces for the assembly file.
+ *
+ *  Jumps within the text section are resolved here.  They start out
+ *  in the short two byte form, and any whose target turns out to be
+ *  too far away are switched to the long form, repeating until no more
+ *  need to change.  References to global variables, labels in other
+ *  sections, and calls are left as relocations for the linker.
+ */
+class ObjectFile {
+  /** Set to true to write an object file in place of assembly code.
+   */
+  static boolean enabled = false;
+
+  // Section numbers, which are also their indices in the ELF file:
+  private static final int TEXT   = 1;
+  private static final int DATA   = 2;
+  private static final int RODATA = 3;
+  private static final String[] names = { null, ".text", ".data", ".rodata" };
+
+  // ELF relocation types:
+  private static final int R_X86_64_PC32  = 2;
+  private static final int R_X86_64_PLT32 = 4;
+
+  private Vector<Insn> code;
+  private Bytes[]      sections = new Bytes[4];
+  private Vector<Vector<Reloc>> relocs = new Vector<Vector<Reloc>>();
+
+  // The relocations for jumps to other object files, which the GNU
+  // assembler lists after all of the others in a section:
+  private Vector<Vector<Reloc>> jumpRelocs = new Vector<Vector<Reloc>>();
+
+  // The section and order of definition of each label, and the labels
+  // that are named by a .globl directive:
+  private HashMap<String, Integer> labelSection = new HashMap<String, Integer>();
+  private Vector<String>           labelOrder   = new Vector<String>();
+  private HashSet<String>          globls       = new HashSet<String>();
+
+  // The offsets of labels found in the previous and current passes:
+  private HashMap<String, Integer> labels = new HashMap<String, Integer>();
+  private HashMap<String, Integer> found  = new HashMap<String, Integer>();
+
+  // For each line of code: the offset at which it starts, whether it is
+  // a jump that was encoded in short form, and whether it must be long:
+  private int[]     start;
+  private boolean[] shortJump;
+  private boolean[] longJump;
+
+  private int   sec;  // the current section number
+  private Bytes out;  // ... and its contents
+
+  ObjectFile(Vector<Insn> code) {
+    this.code = code;
+    start     = new int[code.size()];
+    shortJump = new boolean[code.size()];
+    longJump  = new boolean[code.size()];
+    for (int s=0; s<sections.length; s++) {
+      sections[s] = new Bytes();
+      relocs.add(new Vector<Reloc>());
+      jumpRelocs.add(new Vector<Reloc>());
+    }
+
+    // Find the section in which each label is defined:
+    sec = TEXT;
+    for (int i=0; i<code.size(); i++) {
+      Insn in = code.elementAt(i);
+      if (in.label!=null) {
+        labelSection.put(in.label, sec);
+        labelOrder.add(in.label);
+      } else if (in.op!=null && in.op.startsWith(".")) {
+        directive(in, false);
+      }
+    }
+  }
+
+  /** Return true if name is a label in the text section that is not
+   *  visible outside this object file, so jumps to it can be resolved.
+   */
+  private boolean isLocalCode(String name) {
+    Integer s = labelSection.get(name);
+    return s!=null && s==TEXT && !globls.contains(name);
+  }
+
+  //-- Encoding: -------------------------------------------------------------
+
+  /** Encode all of the code, using the label offsets that were found in
+   *  the previous pass.
+   */
+  private void assemble() {
+    for (int s=1; s<sections.length; s++) {
+      sections[s].clear();
+      relocs.elementAt(s).clear();
+      jumpRelocs.elementAt(s).clear();
+    }
+    found = new HashMap<String, Integer>();
+    sec   = TEXT;
+    out   = sections[sec];
+    for (int i=0; i<code.size(); i++) {
+      Insn in  = code.elementAt(i);
+      start[i] = out.size();
+      if (in.label!=null) {
+        found.put(in.label, out.size());
+      } else if (in.op==null || in.op.startsWith("#")) {
+        continue;
+      } else if (in.op.startsWith(".")) {
+        directive(in, true);
+      } else {
+        instruction(i, in);
+      }
+    }
+    labels = found;
+  }
+
+  /** Switch to the long form for any short jump whose target is out of
+   *  range, returning true if there were any.
+   */
+  private boolean relax() {
+    boolean changed = false;
+    for (int i=0; i<code.size(); i++) {
+      if (shortJump[i]) {
+        long disp = labels.get(code.elementAt(i).op1) - (start[i] + 2);
+        if (disp!=(byte)disp) {
+          longJump[i] = true;
+          changed     = true;
+        }
+      }
+    }
+    return changed;
+  }
+
+  /** Handle a directive.  If emit is false, only the current section
+   *  and the set of global names are tracked.
+   */
+  private void directive(Insn in, boolean emit) {
+    if (in.is(".text")) {
+      sec = TEXT;
+    } else if (in.is(".data")) {
+      sec = DATA;
+    } else if (in.is(".section") && in.op1.equals(".rodata")) {
+      sec = RODATA;
+    } else if (in.is(".globl")) {
+      globls.add(in.op1);
+    } else if (!emit) {
+      return;
+    } else if (in.is(".p2align")) {
+      out.align(1 << Integer.parseInt(in.op1), sec==TEXT ? 0x90 : 0);
+    } else if (in.is(".long")) {
+      int minus = in.op1.indexOf('-', 1);
+      if (minus<0) {
+        out.int32(Long.parseLong(in.op1));
+      } else {
+        labelDifference(in.op1.substring(0, minus), in.op1.substring(minus+1));
+      }
+    } else if (in.is(".quad")) {
+      out.int64(Long.parseLong(in.op1));
+    } else if (!in.is(".file")) {
+      throw new Error("Cannot encode directive " + in);
+    }
+    out = sections[sec];
+  }
+
+  /** Output the value of a-b, where b is a label in the current section,
+   *  as used in jump tables.
+   */
+  private void labelDifference(String a, String b) {
+    Integer bsec = labelSection.get(b);
+    Integer boff = labels.get(b);
+    if (bsec==null || bsec!=sec) {
+      throw new Error("Cannot encode label difference " + a + "-" + b);
+    }
+    if (labelSection.get(a)==bsec) {
+      Integer aoff = labels.get(a);
+      out.int32((aoff==null || boff==null) ? 0 : aoff-boff);
+    } else {
+      // The linker computes a + addend - (address of this field):
+      int here = out.size();
+      reloc(R_X86_64_PC32, a, here - (boff==null ? 0 : boff));
+      out.int32(0);
+    }
+  }
+
+  /** Record a relocation at the current position.
+   */
+  private void reloc(int type, String sym, long addend) {
+    relocs.elementAt(sec).add(new Reloc(out.size(), type, sym, addend));
+  }
+
+  // Condition codes, in the order of their encodings:
+  private static final String[][] conds = {
+    { "o" }, { "no" }, { "b", "nae", "c" }, { "nb", "ae", "nc" },
+    { "e", "z" }, { "ne", "nz" }, { "be", "na" }, { "nbe", "a" },
+    { "s" }, { "ns" }, { "p", "pe" }, { "np", "po" },
+    { "l", "nge" }, { "nl", "ge" }, { "le", "ng" }, { "nle", "g" }
+  };
+
+  /** Return the encoding of a condition code, or -1 if it is not one.
+   */
+  private static int cond(String cc) {
+    for (int c=0; c<conds.length; c++) {
+      for (int j=0; j<conds[c].length; j++) {
+        if (conds[c][j].equals(cc)) {
+          return c;
+        }
+      }
+    }
+    return -1;
+  }
+
+  private static boolean fits8(long v) {
+    return v==(byte)v;
+  }
+
+  private static boolean fits32(long v) {
+    return v==(int)v;
+  }
+
+  /** Encode a single instruction.
+   */
+  private void instruction(int i, Insn in) {
+    String  op = in.op;
+    Operand a  = (in.op1==null) ? null : Operand.parse(in.op1);
+    Operand b  = (in.op2==null) ? null : Operand.parse(in.op2);
+    int     cc;
+    if (op.equals("ret")) {
+      out.byte1(0xc3);
+    } else if (op.equals("call")) {
+      branch(i, a, 0xe8, -1);
+    } else if (op.equals("jmp") && a.kind==Operand.REG) {
+      modrm(false, 0xff, 4, a, 0, false);
+    } else if (op.equals("jmp")) {
+      branch(i, a, 0xe9, 0xeb);
+    } else if (op.startsWith("j") && (cc=cond(op.substring(1)))>=0) {
+      branch(i, a, 0x0f80+cc, 0x70+cc);
+    } else if (op.startsWith("set") && (cc=cond(op.substring(3)))>=0) {
+      modrm(false, 0x0f90+cc, 0, a, 0, a.needsRex8());
+    } else if (op.equals("movslq")) {
+      modrm(true, 0x63, b.reg, a, 0, false);
+    } else if (op.equals("movzbl")) {
+      modrm(false, 0x0fb6, b.reg, a, 0, a.needsRex8());
+    } else if (op.endsWith("l") || op.endsWith("q")) {
+      sized(op.substring(0, op.length()-1), op.endsWith("q"), a, b, in);
+    } else {
+      throw new Error("Cannot encode instruction " + in);
+    }
+  }
+
+  /** Encode an instruction whose name has an l or q suffix, where w is
+   *  true for 64 bit operands.
+   */
+  private void sized(String op, boolean w, Operand a, Operand b, Insn in) {
+    int alu = Arrays.asList("add", "or", "adc", "sbb", "and", "sub", "xor", "cmp")
+                    .indexOf(op);
+    int sh  = Arrays.asList("rol", "ror", "rcl", "rcr", "shl", "shr", "sal", "sar")
+                    .indexOf(op);
+    if (alu>=0 && a.kind==Operand.IMM) {
+      if (fits8(a.imm)) {
+        modrm(w, 0x83, alu, b, 1, false);
+        out.byte1((int)a.imm);
+      } else if (b.kind==Operand.REG && b.reg==0) {
+        rex(w, 0, 0, 0, false);
+        out.byte1(0x05 + 8*alu);
+        out.int32(a.imm);
+      } else {
+        modrm(w, 0x81, alu, b, 4, false);
+        out.int32(a.imm);
+      }
+    } else if (alu>=0 && a.kind==Operand.REG) {
+      modrm(w, 0x01 + 8*alu, a.reg, b, 0, false);
+    } else if (alu>=0 && b.kind==Operand.REG) {
+      modrm(w, 0x03 + 8*alu, b.reg, a, 0, false);
+    } else if (op.equals("mov") && a.kind==Operand.IMM
+               && b.kind==Operand.REG && (!w || !fits32(a.imm))) {
+      rex(w, 0, 0, b.reg, false);
+      out.byte1(0xb8 + (b.reg & 7));
+      if (w) {
+        out.int64(a.imm);
+      } else {
+        out.int32(a.imm);
+      }
+    } else if (op.equals("mov") && a.kind==Operand.IMM) {
+      modrm(w, 0xc7, 0, b, 4, false);
+      out.int32(a.imm);
+    } else if (op.equals("mov") && a.kind==Operand.REG) {
+      modrm(w, 0x89, a.reg, b, 0, false);
+    } else if (op.equals("mov") && b.kind==Operand.REG) {
+      modrm(w, 0x8b, b.reg, a, 0, false);
+    } else if (op.equals("test") && a.kind==Operand.IMM) {
+      if (b.kind==Operand.REG && b.reg==0) {
+        rex(w, 0, 0, 0, false);
+        out.byte1(0xa9);
+      } else {
+        modrm(w, 0xf7, 0, b, 4, false);
+      }
+      out.int32(a.imm);
+    } else if (op.equals("test") && a.kind==Operand.REG) {
+      modrm(w, 0x85, a.reg, b, 0, false);
+    } else if (op.equals("lea") && a.kind==Operand.MEM) {
+      modrm(w, 0x8d, b.reg, a, 0, false);
+    } else if (op.equals("imul") && a.kind==Operand.IMM) {
+      if (fits8(a.imm)) {
+        modrm(w, 0x6b, b.reg, b, 1, false);
+        out.byte1((int)a.imm);
+      } else {
+        modrm(w, 0x69, b.reg, b, 4, false);
+        out.int32(a.imm);
+      }
+    } else if (op.equals("imul")) {
+      modrm(w, 0x0faf, b.reg, a, 0, false);
+    } else if (sh>=0 && a.kind==Operand.IMM && a.imm==1) {
+      modrm(w, 0xd1, sh, b, 0, false);
+    } else if (sh>=0 && a.kind==Operand.IMM) {
+      modrm(w, 0xc1, sh, b, 1, false);
+      out.byte1((int)a.imm);
+    } else if (sh>=0 && a.kind==Operand.REG && a.reg==1 && a.size==8) {
+      modrm(w, 0xd3, sh, b, 0, false);
+    } else if (op.equals("not") || op.equals("neg")) {
+      modrm(w, 0xf7, op.equals("not") ? 2 : 3, a, 0, false);
+    } else if (op.equals("xchg") && a.kind==Operand.REG
+               && b.kind==Operand.REG && (a.reg==0)!=(b.reg==0)) {
+      int r = a.reg + b.reg;  // the one that is not %eax
+      rex(w, 0, 0, r, false);
+      out.byte1(0x90 + (r & 7));
+    } else if (op.equals("xchg") && a.kind==Operand.REG) {
+      modrm(w, 0x87, a.reg, b, 0, false);
+    } else if (op.equals("xchg") && b.kind==Operand.REG) {
+      modrm(w, 0x87, b.reg, a, 0, false);
+    } else if (op.equals("push") && w && a.kind==Operand.REG) {
+      rex(false, 0, 0, a.reg, false);
+      out.byte1(0x50 + (a.reg & 7));
+    } else if (op.equals("push") && w && a.kind==Operand.IMM) {
+      if (fits8(a.imm)) {
+        out.byte1(0x6a);
+        out.byte1((int)a.imm);
+      } else {
+        out.byte1(0x68);
+        out.int32(a.imm);
+      }
+    } else if (op.equals("push") && w && a.kind==Operand.MEM) {
+      modrm(false, 0xff, 6, a, 0, false);
+    } else if (op.equals("pop") && w && a.kind==Operand.REG) {
+      rex(false, 0, 0, a.reg, false);
+      out.byte1(0x58 + (a.reg & 7));
+    } else if (op.equals("pop") && w && a.kind==Operand.MEM) {
+      modrm(false, 0x8f, 0, a, 0, false);
+    } else {
+      throw new Error("Cannot encode instruction " + in);
+    }
+  }
+
+  /** Output a REX prefix if one is needed for the given operand size and
+   *  register numbers for the ModRM reg field, SIB index, and ModRM r/m
+   *  or SIB base field, or if an 8 bit register needs one.
+   */
+  private void rex(boolean w, int reg, int index, int rm, boolean rex8) {
+    int rex = (w ? 8 : 0) | ((reg & 8)>>1) | ((index & 8)>>2) | ((rm & 8)>>3);
+    if (rex!=0 || rex8) {
+      out.byte1(0x40 | rex);
+    }
+  }
+
+  /** Output an opcode of one or two bytes.
+   */
+  private void opcode(int op) {
+    if (op>0xff) {
+      out.byte1(op >> 8);
+    }
+    out.byte1(op);
+  }
+
+  /** Output an instruction with a ModRM byte, using the given value for
+   *  the reg field, which is either a register or an opcode extension,
+   *  and the given operand for the r/m field.  The number of bytes of
+   *  immediate data that the caller will add is needed to compute the
+   *  displacement for a %rip relative address.
+   */
+  private void modrm(boolean w, int op, int reg, Operand rm, int imm, boolean rex8) {
+    if (rm.kind==Operand.REG) {
+      rex(w, reg, 0, rm.reg, rex8);
+      opcode(op);
+      out.byte1(0xc0 | (reg & 7)<<3 | (rm.reg & 7));
+    } else if (rm.kind!=Operand.MEM) {
+      throw new Error("Cannot encode operand " + rm.sym);
+    } else if (rm.base<0) {
+      rex(w, reg, 0, 0, rex8);
+      opcode(op);
+      out.byte1(0x05 | (reg & 7)<<3);
+      ripRelative(rm.sym, 4 + imm);
+    } else {
+      boolean sib = rm.index>=0 || (rm.base & 7)==4;
+      int     mod = (rm.disp==0 && (rm.base & 7)!=5) ? 0
+                  : fits8(rm.disp) ? 1 : 2;
+      rex(w, reg, Math.max(rm.index, 0), rm.base, rex8);
+      opcode(op);
+      out.byte1(mod<<6 | (reg & 7)<<3 | (sib ? 4 : (rm.base & 7)));
+      if (sib) {
+        int ss = Integer.numberOfTrailingZeros(rm.scale);
+        out.byte1(ss<<6 | (rm.index<0 ? 4 : (rm.index & 7))<<3 | (rm.base & 7));
+      }
+      if (mod==1) {
+        out.byte1(rm.disp);
+      } else if (mod==2) {
+        out.int32(rm.disp);
+      }
+    }
+  }
+
+  /** Output the 32 bit displacement for a %rip relative reference to a
+   *  label, where rest is the number of bytes from the displacement to
+   *  the end of the instruction.
+   */
+  private void ripRelative(String sym, int rest) {
+    if (isLocalCode(sym) && sec==TEXT) {
+      Integer target = labels.get(sym);
+      out.int32((target==null) ? 0 : target - (out.size() + rest));
+    } else {
+      reloc(R_X86_64_PC32, sym, -rest);
+      out.int32(0);
+    }
+  }
+
+  /** Output a call or jump to a label, using the given opcodes for the
+   *  long and short forms; calls have no short form.  As in the GNU
+   *  assembler, jumps to any label in the text section are resolved,
+   *  including tail calls to global functions, but calls to a global
+   *  function are left to the linker.  Jumps to functions in other
+   *  object files, such as the bounds check failure in the runtime, are
+   *  always long.
+   */
+  private void branch(int i, Operand target, int longOp, int shortOp) {
+    String  sym   = target.sym;
+    Integer to    = labels.get(sym);
+    boolean local = (shortOp<0) ? isLocalCode(sym)
+                                : Integer.valueOf(TEXT).equals(labelSection.get(sym));
+    shortJump[i]  = local && shortOp>=0 && !longJump[i];
+    if (shortJump[i]) {
+      out.byte1(shortOp);
+      out.byte1((to==null) ? 0 : to - (out.size() + 1));
+    } else {
+      opcode(longOp);
+      if (local) {
+        out.int32((to==null) ? 0 : to - (out.size() + 4));
+      } else if (shortOp<0) {
+        reloc(R_X86_64_PLT32, sym, -4);
+        out.int32(0);
+      } else {
+        jumpRelocs.elementAt(sec).add(new Reloc(out.size(), R_X86_64_PLT32, sym, -4));
+        out.int32(0);
+      }
+    }
+  }
+
+  //-- Object file output: ---------------------------------------------------
+
+  /** Encode the code and write it as an ELF64 relocatable object file.
+   */
+  void write(String name) throws IOException {
+    do {
+      assemble();
+    } while (relax());
+    assemble();  // now every label offset is final
+
+    // Build the symbol table: the null symbol and one for each section,
+    // then other local labels, and finally global and undefined names.
+    Bytes                    strtab  = new Bytes();
+    Bytes                    symtab  = new Bytes();
+    HashMap<String, Integer> symbols = new HashMap<String, Integer>();
+    strtab.string("");
+    symbol(symtab, 0, 0, 0, 0);
+    for (int s=1; s<sections.length; s++) {
+      symbol(symtab, 0, 3, s, 0);             // STB_LOCAL, STT_SECTION
+    }
+    int nsyms = sections.length;
+    for (String l : labelOrder) {
+      if (!globls.contains(l) && !Assembly.isLocalLabel(l)) {
+        symbol(symtab, strtab.string(l), 0, labelSection.get(l), labels.get(l));
+        nsyms++;
+      }
+    }
+    int firstGlobal = nsyms;
+    for (String l : labelOrder) {
+      if (globls.contains(l)) {
+        int s    = labelSection.get(l);
+        int type = (s==TEXT) ? 2 : 1;         // STT_FUNC or STT_OBJECT
+        symbol(symtab, strtab.string(l), 0x10 | type, s, labels.get(l));
+        symbols.put(l, nsyms++);
+      }
+    }
+    Bytes[] rela = new Bytes[sections.length];
+    for (int s=1; s<sections.length; s++) {
+      rela[s] = new Bytes();
+      Vector<Reloc> rs = new Vector<Reloc>(relocs.elementAt(s));
+      rs.addAll(jumpRelocs.elementAt(s));
+      for (Reloc r : rs) {
+        int  sym;
+        long addend = r.addend;
+        if (labelSection.containsKey(r.sym) && !globls.contains(r.sym)) {
+          sym     = labelSection.get(r.sym);  // the section symbol
+          addend += labels.get(r.sym);
+        } else {
+          if (!symbols.containsKey(r.sym)) {  // an undefined global
+            symbol(symtab, strtab.string(r.sym), 0x10, 0, 0);
+            symbols.put(r.sym, nsyms++);
+          }
+          sym = symbols.get(r.sym);
+        }
+        rela[s].int64(r.offset);
+        rela[s].int64(((long)sym<<32) | r.type);
+        rela[s].int64(addend);
+      }
+    }
+
+    // Describe the sections, in the order of their indices:
+    Vector<SectionHeader> shdrs    = new Vector<SectionHeader>();
+    Bytes                 shstrtab = new Bytes();
+    int                   symsec   = 2*sections.length;
+    shstrtab.string("");
+    shdrs.add(new SectionHeader(0, 0, 0, new Bytes(), 0, 0, 1, 0));
+    for (int s=1; s<sections.length; s++) {
+      long flags = (s==TEXT) ? 6 : (s==DATA) ? 3 : 2;   // AX, WA, A
+      shdrs.add(new SectionHeader(shstrtab.string(names[s]), 1, flags,
+                                  sections[s], 0, 0, (s==TEXT) ? 16 : 8, 0));
+    }
+    for (int s=1; s<sections.length; s++) {
+      shdrs.add(new SectionHeader(shstrtab.string(".rela" + names[s]), 4, 0x40,
+                                  rela[s], symsec, s, 8, 24));
+    }
+    shdrs.add(new SectionHeader(shstrtab.string(".note.GNU-stack"), 1, 0,
+                                new Bytes(), 0, 0, 1, 0));
+    shdrs.add(new SectionHeader(shstrtab.string(".symtab"), 2, 0,
+                                symtab, symsec+1, firstGlobal, 8, 24));
+    shdrs.add(new SectionHeader(shstrtab.string(".strtab"), 3, 0,
+                                strtab, 0, 0, 1, 0));
+    shdrs.add(new SectionHeader(shstrtab.string(".shstrtab"), 3, 0,
+                                shstrtab, 0, 0, 1, 0));
+
+    // Lay out the contents of the sections after the 64 byte header:
+    Bytes body = new Bytes();
+    for (SectionHeader h : shdrs) {
+      body.align(h.align, 0);
+      h.offset = 64 + body.size();
+      body.append(h.data);
+    }
+    body.align(8, 0);
+    int shoff = 64 + body.size();
+
+    Bytes file = new Bytes();
+    file.int32(0x464c457f);                   // \177ELF
+    file.byte1(2);                            // 64 bit
+    file.byte1(1);                            // little endian
+    file.byte1(1);                            // version
+    file.align(16, 0);
+    file.int16(1);                            // ET_REL
+    file.int16(62);                           // EM_X86_64
+    file.int32(1);                            // version
+    file.int64(0);                            // entry point
+    file.int64(0);                            // program headers
+    file.int64(shoff);                        // section headers
+    file.int32(0);                            // flags
+    file.int16(64);                           // size of this header
+    file.int16(0);                            // program header size
+    file.int16(0);                            // program header count
+    file.int16(64);                           // section header size
+    file.int16(shdrs.size());                 // section header count
+    file.int16(shdrs.size()-1);               // index of .shstrtab
+    file.append(body);
+    for (SectionHeader h : shdrs) {
+      h.writeTo(file);
+    }
+
+    OutputStream f = new FileOutputStream(name);
+    try {
+      file.writeTo(f);
+    } finally {
+      f.close();
+    }
+  }
+
+  /** Add an entry to a symbol table.
+   */
+  private static void symbol(Bytes symtab, int name, int info, int shndx, long value) {
+    symtab.int32(name);
+    symtab.byte1(info);
+    symtab.byte1(0);
+    symtab.int16(shndx);
+    symtab.int64(value);
+    symtab.int64(0);
+  }
+}
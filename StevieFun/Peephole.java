@@ -0,0 +1,663 @@
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Represents a single line of buffered assembly language output: a
+ *  label, an instruction or directive with up to two operands, or a
+ *  blank line.
+ */
+class Insn {
+  String label;  // the name of a label, or null
+  String op;     // an instruction or directive, or null
+  String op1;    // the first operand, or null
+  String op2;    // the second operand, or null
+
+  // Information that is cached by the peephole optimizer: the registers
+  // that this instruction reads and overwrites (or -1 if they have not
+  // been found yet), and the registers that are live after it:
+  int uses = -1;
+  int defs = -1;
+  int liveOut;
+
+  Insn(String label, String op, String op1, String op2) {
+    this.label = label;
+    this.op    = op;
+    this.op1   = op1;
+    this.op2   = op2;
+  }
+
+  /** Return true if this is an instruction, rather than a label,
+   *  directive, comment, or blank line.
+   */
+  boolean isInsn() {
+    return op!=null && !op.startsWith(".") && !op.startsWith("#");
+  }
+
+  /** Return true if this is an instruction with the given opcode.
+   */
+  boolean is(String o) {
+    return op!=null && op.equals(o);
+  }
+
+  public String toString() {
+    if (label!=null) {
+      return label + ":";
+    } else if (op==null) {
+      return "";
+    } else if (op1==null) {
+      return "\t" + op;
+    } else if (op2==null) {
+      return "\t" + op + "\t" + op1;
+    } else {
+      return "\t" + op + "\t" + op1 + ", " + op2;
+    }
+  }
+}
+
+/** Implements a peephole optimizer that runs over the buffered code for
+ *  each function before it is written out.  The individual rules are:
+ *
+ *  - moves:   removes self moves and reloads of a value that was just
+ *             stored, and forwards the source of a move into the next
+ *             instruction when the register it was moved into is dead.
+ *  - jumps:   removes unused local labels.
+ *  - chain:   retargets jumps to jumps, and replaces a conditional jump
+ *             over an unconditional jump with a single inverted jump.
+ *
+ *  Rules that depend on a register being dead use a liveness analysis
+ *  over the control flow graph of the function, which is calculated
+ *  once for each pass over the code.  None of the rules make a register
+ *  live where it was not live before, so the results stay safe to use
+ *  for the rest of the pass, as long as the instruction that replaces
+ *  others takes over the live registers of the last one (see replace).
+ */
+class Peephole {
+  static boolean enabled = true;
+  static boolean moves   = true;
+  static boolean jumps   = true;
+  static boolean chain   = true;
+
+  // Statistics, as numbers of instructions removed by each rule, which
+  // may be updated from more than one thread (see CompileTask):
+  static AtomicInteger before       = new AtomicInteger();
+  static AtomicInteger after        = new AtomicInteger();
+  static AtomicInteger movesSaved   = new AtomicInteger();
+  static AtomicInteger labelsSaved  = new AtomicInteger();
+  static AtomicInteger chainSaved   = new AtomicInteger();
+
+  /** Print a summary of the work done by each rule.
+   */
+  static void report() {
+    System.out.println("Peephole: removed " + (before.get()-after.get()) + " of "
+                       + before + " instructions"
+                       + " (moves "   + movesSaved
+                       + ", chain "   + chainSaved + ")"
+                       + " and " + labelsSaved + " labels");
+  }
+
+  /** Enable just the rules named in a comma separated list, returning
+   *  false if the list includes an unrecognized name.
+   */
+  static boolean select(String list) {
+    moves = jumps = chain = false;
+    for (String r : list.split(",")) {
+      if (r.equals("moves")) {
+        moves = true;
+      } else if (r.equals("jumps")) {
+        jumps = true;
+      } else if (r.equals("chain")) {
+        chain = true;
+      } else if (!r.equals("")) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private Vector<Insn> code;
+
+  /** Optimize a list of buffered instructions in place.
+   */
+  void run(Vector<Insn> code) {
+    this.code = code;
+    before.addAndGet(count());
+    boolean changed;
+    do {
+      changed = false;
+      dirty   = true;
+      for (int i=0; i<code.size(); i++) {
+        if (step(i)) {
+          changed = true;
+          i       = Math.max(-1, i-4);
+        }
+      }
+      if (jumps && removeLabels()) {
+        changed = true;
+      }
+    } while (changed);
+    after.addAndGet(count());
+  }
+
+  /** Count the number of instructions in the code.
+   */
+  private int count() {
+    int n = 0;
+    for (int i=0; i<code.size(); i++) {
+      if (code.elementAt(i).isInsn()) {
+        n++;
+      }
+    }
+    return n;
+  }
+
+  private Insn at(int i) {
+    return (i>=0 && i<code.size()) ? code.elementAt(i) : null;
+  }
+
+  /** Try each of the rules at position i, returning true if the code
+   *  was changed.
+   */
+  private boolean step(int i) {
+    Insn in = code.elementAt(i);
+    if (!in.isInsn()) {
+      return false;
+    }
+    return (moves && (selfMove(i) || reload(i) || forward(i) || opInto(i)))
+        || (chain && (chainJump(i) || invertJump(i)));
+  }
+
+  //-- moves: ----------------------------------------------------------------
+
+  private static boolean isMov(String op) {
+    return op.equals("movl") || op.equals("movq");
+  }
+
+  private static boolean isReg(String o) {
+    return o.startsWith("%");
+  }
+
+  private static boolean isImm(String o) {
+    return o.startsWith("$");
+  }
+
+  private static boolean isMem(String o) {
+    return !isReg(o) && !isImm(o);
+  }
+
+  /** movq x, x  ==>  (nothing)
+   *
+   *  (A movl from a register to itself is kept because it clears the
+   *  upper half of the 64 bit register.)
+   */
+  private boolean selfMove(int i) {
+    Insn in = code.elementAt(i);
+    if (in.is("movq") && in.op2!=null && in.op1.equals(in.op2)) {
+      code.removeElementAt(i);
+      movesSaved.incrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  /** mov a, b; mov b, a  ==>  mov a, b
+   */
+  private boolean reload(int i) {
+    Insn in = code.elementAt(i);
+    Insn nx = at(i+1);
+    if (isMov(in.op) && nx!=null && nx.is(in.op)
+        && in.op1.equals(nx.op2) && in.op2.equals(nx.op1)
+        && !(isReg(in.op2) && (regs(in.op1) & regs(in.op2))!=0)) {
+      replace(i, 2, in);
+      movesSaved.incrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  /** Forward the source of a move into the following instruction when
+   *  the register that it was moved into is dead afterwards:
+   *
+   *    mov s, %t; mov %t, d       ==>  mov s, d
+   *    movl s, %et; movq %rt, %rd ==>  movl s, %ed
+   *    mov s, %t; op %t, d        ==>  op s, d
+   *    mov s, %t; cmp a, %t       ==>  cmp a, s
+   */
+  private boolean forward(int i) {
+    Insn in = code.elementAt(i);
+    Insn nx = at(i+1);
+    if (!isMov(in.op) || !isReg(in.op2) || nx==null || !nx.isInsn()
+        || nx.op2==null) {
+      return false;
+    }
+    String s = in.op1;
+    String t = in.op2;
+    int    tm = regs(t);
+    String w  = in.op.substring(3);   // "l" or "q"
+    if (nx.op1.equals(t) && (regs(nx.op2) & tm)==0
+        && !(isMem(s) && isMem(nx.op2)) && deadAfter(i+1, tm)) {
+      if (nx.is(in.op)) {
+        replace(i, 2, new Insn(null, in.op, s, nx.op2));
+        movesSaved.incrementAndGet();
+        return true;
+      }
+      if (isArith(nx.op, w) || nx.is("cmp"+w)) {
+        if (nx.is("imul"+w) && !isReg(nx.op2)) {
+          return false;
+        }
+        replace(i, 2, new Insn(null, nx.op, s, nx.op2));
+        movesSaved.incrementAndGet();
+        return true;
+      }
+    }
+    if (in.is("movl") && nx.is("movq") && isReg(nx.op1) && isReg(nx.op2)
+        && regs(nx.op1)==tm && (regs(nx.op2) & tm)==0 && deadAfter(i+1, tm)) {
+      replace(i, 2, new Insn(null, "movl", s, reg32(nx.op2)));
+      movesSaved.incrementAndGet();
+      return true;
+    }
+    if (nx.is("cmp"+w) && nx.op2.equals(t) && (regs(nx.op1) & tm)==0
+        && !isImm(s) && !(isMem(s) && isMem(nx.op1)) && deadAfter(i+1, tm)) {
+      replace(i, 2, new Insn(null, nx.op, nx.op1, s));
+      movesSaved.incrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  /** Return true if op is a two operand arithmetic instruction of the
+   *  given width.
+   */
+  private static boolean isArith(String op, String w) {
+    return op.equals("add"+w) || op.equals("sub"+w) || op.equals("imul"+w)
+        || op.equals("and"+w) || op.equals("or"+w)  || op.equals("xor"+w);
+  }
+
+  /** mov d, %t; op s, %t; mov %t, d  ==>  op s, d
+   */
+  private boolean opInto(int i) {
+    Insn in = code.elementAt(i);
+    Insn op = at(i+1);
+    Insn st = at(i+2);
+    if (!isMov(in.op) || !isReg(in.op2) || op==null || st==null
+        || !st.is(in.op) || op.op2==null) {
+      return false;
+    }
+    String d  = in.op1;
+    String t  = in.op2;
+    int    tm = regs(t);
+    String w  = in.op.substring(3);
+    if (isArith(op.op, w) && op.op2.equals(t) && (regs(op.op1) & tm)==0
+        && st.op1.equals(t) && st.op2.equals(d) && (regs(d) & tm)==0
+        && !(isMem(d) && (isMem(op.op1) || op.is("imul"+w)))
+        && deadAfter(i+2, tm)) {
+      replace(i, 3, new Insn(null, op.op, op.op1, d));
+      movesSaved.addAndGet(2);
+      return true;
+    }
+    return false;
+  }
+
+  //-- jumps: ----------------------------------------------------------------
+
+  private static boolean isJump(Insn in) {
+    return in.op!=null && in.op.startsWith("j") && in.op1!=null
+        && !in.op1.startsWith("*");
+  }
+
+  /** Remove local labels that are not referenced anywhere in the code.
+   */
+  private boolean removeLabels() {
+    HashSet<String> used = new HashSet<String>();
+    for (int i=0; i<code.size(); i++) {
+      Insn in = code.elementAt(i);
+      addNames(used, in.op1);
+      addNames(used, in.op2);
+    }
+    boolean changed = false;
+    for (int i=code.size()-1; i>=0; i--) {
+      String l = code.elementAt(i).label;
+      if (l!=null && !used.contains(l) && Assembly.isLocalLabel(l)) {
+        code.removeElementAt(i);
+        labelsSaved.incrementAndGet();
+        changed = true;
+      }
+    }
+    return changed;
+  }
+
+  /** Add each of the names that appear in an operand to a set.
+   */
+  private static void addNames(HashSet<String> used, String o) {
+    if (o!=null) {
+      int p = 0;
+      while (p<o.length()) {
+        int q = p;
+        while (q<o.length() && isNameChar(o.charAt(q))) {
+          q++;
+        }
+        if (q>p) {
+          used.add(o.substring(p, q));
+        }
+        p = q+1;
+      }
+    }
+  }
+
+  private static boolean isNameChar(char c) {
+    return Character.isLetterOrDigit(c) || c=='_';
+  }
+
+  /** Return the position of the given label, or -1 if it is not in
+   *  this code.
+   */
+  private int find(String label) {
+    for (int i=0; i<code.size(); i++) {
+      if (label.equals(code.elementAt(i).label)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /** Return the first instruction that will be executed after a jump to
+   *  the given label, or null if there is none.
+   */
+  private Insn target(String label) {
+    int j = find(label);
+    if (j<0) {
+      return null;
+    }
+    while (j<code.size() && !code.elementAt(j).isInsn()) {
+      if (code.elementAt(j).op!=null) {
+        return null;   // Do not look past a directive
+      }
+      j++;
+    }
+    return at(j);
+  }
+
+  /** j l; ... l: jmp m  ==>  j m; ... l: jmp m
+   */
+  private boolean chainJump(int i) {
+    Insn in = code.elementAt(i);
+    if (isJump(in)) {
+      Insn t = target(in.op1);
+      if (t!=null && t.is("jmp") && isJump(t) && !t.op1.equals(in.op1)) {
+        // Check that following the chain does not lead to a cycle:
+        HashSet<String> seen = new HashSet<String>();
+        String          l    = in.op1;
+        while (t!=null && t.is("jmp") && isJump(t)) {
+          if (!seen.add(l)) {
+            return false;
+          }
+          l = t.op1;
+          t = target(l);
+        }
+        in.op1 = l;
+        chainSaved.incrementAndGet();
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** jcc l; jmp m; l:  ==>  jncc m; l:
+   */
+  private boolean invertJump(int i) {
+    Insn in = code.elementAt(i);
+    Insn nx = at(i+1);
+    Insn lb = at(i+2);
+    if (isJump(in) && !in.is("jmp") && invert(in.op)!=null
+        && nx!=null && nx.is("jmp") && isJump(nx)
+        && lb!=null && in.op1.equals(lb.label)) {
+      replace(i, 2, new Insn(null, invert(in.op), nx.op1, null));
+      chainSaved.incrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  private static final String[] conds = {
+    "l", "nl", "le", "nle", "g", "ng", "ge", "nge",
+    "z", "nz", "e", "ne", "b", "nb", "a", "na"
+  };
+
+  /** Return the conditional jump with the opposite condition to the
+   *  given one, or null if the jump is not recognized.
+   */
+  private static String invert(String jcc) {
+    for (int k=0; k<conds.length; k++) {
+      if (jcc.equals("j" + conds[k])) {
+        return "j" + conds[k^1];
+      }
+    }
+    return null;
+  }
+
+  /** Replace n instructions starting at position i with the given
+   *  instruction (or with nothing, if none is given).  The last of the
+   *  new instructions is followed by the same code as the last of the
+   *  old ones, so it takes over the registers that were live after it.
+   */
+  private void replace(int i, int n, Insn... with) {
+    if (with.length>0) {
+      with[with.length-1].liveOut = code.elementAt(i+n-1).liveOut;
+    }
+    for (int k=0; k<n; k++) {
+      code.removeElementAt(i);
+    }
+    for (int k=with.length-1; k>=0; k--) {
+      code.insertElementAt(with[k], i);
+    }
+  }
+
+  //-- Registers and liveness: -----------------------------------------------
+
+  private static final HashMap<String, Integer> regNums = new HashMap<String, Integer>();
+  private static void addReg(int n, String... names) {
+    for (String name : names) {
+      regNums.put(name, n);
+    }
+  }
+  static {
+    addReg(0,  "al",  "ax",  "eax", "rax");
+    addReg(1,  "bl",  "bx",  "ebx", "rbx");
+    addReg(2,  "cl",  "cx",  "ecx", "rcx");
+    addReg(3,  "dl",  "dx",  "edx", "rdx");
+    addReg(4,  "sil", "si",  "esi", "rsi");
+    addReg(5,  "dil", "di",  "edi", "rdi");
+    addReg(6,  "bpl", "bp",  "ebp", "rbp");
+    addReg(7,  "spl", "sp",  "esp", "rsp");
+    for (int r=8; r<16; r++) {
+      addReg(r, "r"+r+"b", "r"+r+"w", "r"+r+"d", "r"+r);
+    }
+  }
+
+  private static final int ALL     = 0xffff;
+  private static final int ARGS    = (1<<5)|(1<<4)|(1<<2)|(1<<3)|(1<<8)|(1<<9);
+  private static final int CLOBBER = ARGS|(1<<0)|(1<<10)|(1<<11);
+  private static final int RETURN  = (1<<0)|(1<<1)|(1<<6)|(1<<7)
+                                   |(1<<12)|(1<<13)|(1<<14)|(1<<15);
+
+  /** Return the set of registers mentioned in an operand.
+   */
+  private static int regs(String o) {
+    int mask = 0;
+    if (o!=null) {
+      int p = o.indexOf('%');
+      while (p>=0) {
+        int q = p+1;
+        while (q<o.length() && Character.isLetterOrDigit(o.charAt(q))) {
+          q++;
+        }
+        Integer n = regNums.get(o.substring(p+1, q));
+        if (n!=null) {
+          mask |= 1<<n;
+        }
+        p = o.indexOf('%', q);
+      }
+    }
+    return mask;
+  }
+
+  /** Return the 32 bit name for a 64 bit register.
+   */
+  private static String reg32(String r) {
+    int n = regNums.get(r.substring(1));
+    if (n>=8) {
+      return "%r" + n + "d";
+    }
+    return "%e" + r.substring(2);
+  }
+
+  /** Return the set of registers read by an instruction.
+   */
+  private static int uses(Insn in) {
+    if (in.uses<0) {
+      in.uses = findUses(in);
+    }
+    return in.uses;
+  }
+
+  /** Return the set of registers completely overwritten by an
+   *  instruction.
+   */
+  private static int defs(Insn in) {
+    if (in.defs<0) {
+      in.defs = findDefs(in);
+    }
+    return in.defs;
+  }
+
+  /** Calculate the set of registers read by an instruction from its
+   *  operands.
+   */
+  private static int findUses(Insn in) {
+    if (!in.isInsn()) {
+      return 0;
+    }
+    String op = in.op;
+    int    sp = 1<<7;
+    if (op.equals("call")) {
+      return ARGS | sp;
+    } else if (op.equals("ret")) {
+      return RETURN;
+    } else if (op.startsWith("j")) {
+      return regs(in.op1);
+    } else if (op.equals("pushq")) {
+      return regs(in.op1) | sp;
+    } else if (op.equals("popq")) {
+      return (isReg(in.op1) ? 0 : regs(in.op1)) | sp;
+    } else if (isMov(op) || op.startsWith("movz") || op.startsWith("movs")
+               || op.startsWith("lea")) {
+      return regs(in.op1) | (isReg(in.op2) ? 0 : regs(in.op2));
+    } else if (op.startsWith("set")) {
+      return regs(in.op1);
+    } else if (in.op2!=null && (op.startsWith("cmp") || op.startsWith("test")
+               || op.startsWith("xchg") || isArith(op, "l") || isArith(op, "q")
+               || op.startsWith("sal") || op.startsWith("sar")
+               || op.startsWith("shl") || op.startsWith("shr"))) {
+      return regs(in.op1) | regs(in.op2);
+    }
+    return ALL;
+  }
+
+  /** Calculate the set of registers completely overwritten by an
+   *  instruction from its operands.
+   */
+  private static int findDefs(Insn in) {
+    if (!in.isInsn()) {
+      return 0;
+    }
+    String op = in.op;
+    int    sp = 1<<7;
+    if (op.equals("call")) {
+      return CLOBBER;
+    } else if (op.equals("pushq")) {
+      return sp;
+    } else if (op.equals("popq")) {
+      return (isReg(in.op1) ? regs(in.op1) : 0) | sp;
+    } else if (isMov(op) || op.startsWith("movz") || op.startsWith("movs")
+               || op.startsWith("lea")) {
+      return isReg(in.op2) ? regs(in.op2) : 0;
+    }
+    return 0;
+  }
+
+  /** Set at the start of each pass over the code, so that the liveness
+   *  analysis is run again the first time that it is needed.
+   */
+  private boolean dirty = true;
+
+  /** Return true if none of the registers in mask are live after the
+   *  instruction at position i.
+   */
+  private boolean deadAfter(int i, int mask) {
+    if (dirty) {
+      liveness();
+      dirty = false;
+    }
+    return (code.elementAt(i).liveOut & mask)==0;
+  }
+
+  /** Calculate the set of registers that are live after each
+   *  instruction.  Jumps to unknown labels, indirect jumps, and the end
+   *  of the code are treated as using every register.
+   */
+  private void liveness() {
+    int   n       = code.size();
+    int[] liveIn  = new int[n+1];
+    int[] liveOut = new int[n];
+    int[] use     = new int[n];
+    int[] def     = new int[n];
+    int[] jump    = new int[n];  // target of a jump, -1 for none, -2 if unknown
+    liveIn[n]     = ALL;
+    HashMap<String, Integer> labels = new HashMap<String, Integer>();
+    for (int i=0; i<n; i++) {
+      Insn in = code.elementAt(i);
+      if (in.label!=null) {
+        labels.put(in.label, i);
+      }
+    }
+    for (int i=0; i<n; i++) {
+      Insn in = code.elementAt(i);
+      use[i]  = uses(in);
+      def[i]  = defs(in);
+      jump[i] = -1;
+      if (in.op!=null && in.op.startsWith("j")) {
+        Integer t = isJump(in) ? labels.get(in.op1) : null;
+        jump[i]   = (t==null) ? -2 : t;
+      }
+    }
+    boolean changed;
+    do {
+      changed = false;
+      for (int i=n-1; i>=0; i--) {
+        Insn in  = code.elementAt(i);
+        int  out = 0;
+        if (in.is("ret")) {
+          out = 0;
+        } else if (jump[i]==-2) {
+          out = ALL;
+        } else {
+          if (!in.is("jmp")) {
+            out |= liveIn[i+1];
+          }
+          if (jump[i]>=0) {
+            out |= liveIn[jump[i]];
+          }
+        }
+        int live = use[i] | (out & ~def[i]);
+        if (live!=liveIn[i] || out!=liveOut[i]) {
+          liveIn[i]  = live;
+          liveOut[i] = out;
+          changed    = true;
+        }
+      }
+    } while (changed);
+    for (int i=0; i<n; i++) {
+      code.elementAt(i).liveOut = liveOut[i];
+    }
+  }
+}
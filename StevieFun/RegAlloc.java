@@ -0,0 +1,230 @@
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Represents the live interval for a single local variable or formal
+ *  parameter.  Positions are numbered by a walk over the body of the
+ *  function in which the variable appears (see Stmt.liveness()).
+ */
+class Interval {
+  String  name;
+  int     start;          // position at which the variable is defined
+  int     end;            // position of the last use of the variable
+  boolean inArgReg;       // true for parameters passed in a register
+  boolean crossesCall;    // true if the variable is live across a call
+  Reg     reg;            // allocated register, or null if none
+
+  Interval(String name, int start, boolean inArgReg) {
+    this.name     = name;
+    this.start    = start;
+    this.end      = start;
+    this.inArgReg = inArgReg;
+  }
+
+  /** Return true if this variable should be given a callee saves
+   *  register.  Parameters that arrive in a register and are not
+   *  needed after any call can stay where they are.
+   */
+  boolean wantsReg() {
+    return !inArgReg || crossesCall;
+  }
+}
+
+/** Implements a linear scan register allocator that assigns the local
+ *  variables and parameters of a function to callee saves registers.
+ *  A variable that is kept in a callee saves register survives calls
+ *  without being saved and restored, and is read and written without
+ *  any memory traffic.  Variables that do not get a register are kept
+ *  in the stack frame (or, for parameters, in the original argument
+ *  register or stack slot) exactly as before.
+ *
+ *  A function that makes no calls uses the caller saves registers that
+ *  are not needed for parameters first (see leafRegs()), so that its
+ *  prologue does not need to save anything.
+ *
+ *  Intervals are conservative: a variable is live from its definition
+ *  to its last use, extended to the end of any loop in which it is used
+ *  but not defined.  Temporaries are still allocated by the register
+ *  stack in Frame, which only spills to memory when it runs out of the
+ *  registers that are not holding variables.
+ */
+class RegAlloc {
+  /** Set to false to keep all variables in the stack frame.
+   */
+  static boolean enabled = true;
+
+  // Statistics for the whole program, which may be updated from more
+  // than one thread (see CompileTask):
+  static AtomicInteger allocated = new AtomicInteger();  // in registers
+  static AtomicInteger spilled   = new AtomicInteger();  // wanted one but missed
+
+  private Vector<Interval> intervals = new Vector<Interval>();
+  private Vector<Interval> scope     = new Vector<Interval>();
+  private Vector<Integer>  calls     = new Vector<Integer>();
+  private int              pos       = 0;
+
+  /** Record the definition of a new variable at the current position.
+   */
+  Interval define(String name, boolean inArgReg) {
+    Interval i = new Interval(name, ++pos, inArgReg);
+    intervals.add(i);
+    scope.add(i);
+    return i;
+  }
+
+  /** Record a use (or assignment) of a variable at the current position.
+   *  Uses of global variables are ignored.
+   */
+  void use(String name) {
+    pos++;
+    for (int k=scope.size()-1; k>=0; k--) {
+      Interval i = scope.elementAt(k);
+      if (i.name.equals(name)) {
+        i.end = pos;
+        return;
+      }
+    }
+  }
+
+  /** Record a call at the current position.
+   */
+  void call() {
+    calls.add(++pos);
+  }
+
+  /** Return the current position, used to mark the start of a loop.
+   */
+  int here() {
+    return ++pos;
+  }
+
+  /** Mark the end of a loop that started at the given position.  Any
+   *  variable that was defined before the loop and used inside it must
+   *  be kept alive for the whole of the loop.
+   */
+  void loop(int start) {
+    int end = ++pos;
+    for (int k=0; k<intervals.size(); k++) {
+      Interval i = intervals.elementAt(k);
+      if (i.start<start && i.end>=start) {
+        i.end = end;
+      }
+    }
+  }
+
+  /** Return true if no calls have been recorded.
+   */
+  boolean isLeaf() {
+    return calls.isEmpty();
+  }
+
+  /** Return a marker for the current scope.
+   */
+  int mark() {
+    return scope.size();
+  }
+
+  /** Discard variables that were introduced since the given marker.
+   */
+  void reset(int mark) {
+    scope.setSize(mark);
+  }
+
+  /** Return the registers that can hold variables in a function that
+   *  makes no calls: the caller saves and argument registers that are
+   *  not used for parameters, leaving two of them free for temporaries,
+   *  followed by the callee saves registers.
+   */
+  static Reg[] leafRegs(int nformals) {
+    Vector<Reg> regs = new Vector<Reg>();
+    for (int i=0; i<Reg.callerSaves.length; i++) {
+      regs.add(Reg.callerSaves[i]);
+    }
+    for (int i=Reg.args.length-1; i>=nformals; i--) {
+      regs.add(Reg.args[i]);
+    }
+    regs.setSize(Math.max(0, regs.size()-2));
+    for (int i=0; i<Reg.calleeSaves.length; i++) {
+      regs.add(Reg.calleeSaves[i]);
+    }
+    return regs.toArray(new Reg[regs.size()]);
+  }
+
+  /** Assign registers from the given list to the recorded intervals,
+   *  returning the list of registers that have been used.  Any callee
+   *  saves registers in this list must be saved in the function
+   *  prologue.
+   */
+  Reg[] allocate(Reg[] regs) {
+    // Find the intervals that contain a call:
+    for (int k=0; k<intervals.size(); k++) {
+      Interval i = intervals.elementAt(k);
+      for (int c=0; c<calls.size() && !i.crossesCall; c++) {
+        int p = calls.elementAt(c);
+        i.crossesCall = (i.start<p && p<i.end);
+      }
+    }
+
+    // Intervals are created in order of their start positions, so we
+    // can scan them in the order they were defined:
+    Interval[] holder = new Interval[regs.length];
+    boolean[]  used   = new boolean[regs.length];
+    for (int k=0; k<intervals.size(); k++) {
+      Interval i = intervals.elementAt(k);
+      if (!i.wantsReg()) {
+        continue;
+      }
+      // Free registers whose intervals have ended, and look for the
+      // active interval that ends last:
+      int r       = -1;
+      int longest = -1;
+      for (int j=0; j<regs.length; j++) {
+        if (holder[j]!=null && holder[j].end<i.start) {
+          holder[j] = null;
+        }
+        if (holder[j]==null) {
+          if (r<0) {
+            r = j;
+          }
+        } else if (longest<0 || holder[j].end>holder[longest].end) {
+          longest = j;
+        }
+      }
+      if (r<0) {
+        // No free register: spill whichever interval ends last.
+        spilled.incrementAndGet();
+        if (holder[longest].end<=i.end) {
+          continue;
+        }
+        holder[longest].reg = null;
+        allocated.decrementAndGet();
+        r = longest;
+      }
+      i.reg     = regs[r];
+      holder[r] = i;
+      used[r]   = true;
+      allocated.incrementAndGet();
+    }
+
+    int n = 0;
+    for (int j=0; j<regs.length; j++) {
+      if (used[j]) {
+        n++;
+      }
+    }
+    Reg[] saves = new Reg[n];
+    n = 0;
+    for (int j=0; j<regs.length; j++) {
+      if (used[j]) {
+        saves[n++] = regs[j];
+      }
+    }
+    return saves;
+  }
+
+  /** Print a summary of the allocations for the whole program.
+   */
+  static void report() {
+    System.out.println("Register allocation: " + allocated
+                       + " variables in registers, " + spilled + " spilled");
+  }
+}
@@ -1,3 +1,8 @@
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
 //____________________________________________________________________________
 // Static Analysis:
 //____________________________________________________________________________
@@ -185,7 +190,23 @@ class StaticAnalysis {
       new Context().check(defns);
     } catch (StaticError e) {
       System.out.println(e.toString());
-      System.exit(1);
+      throw new Exit(1);
+    }
+  }
+}
+
+//----------------------------------------------------------------------------
+/** Represents a simplification phase that runs after static analysis
+ *  and folds constants in expressions (see Expr.simplify()).
+ */
+class Simplifier {
+  /** Set to false to compile expressions exactly as they are written.
+   */
+  static boolean enabled = true;
+
+  void run(Defn[] defns) {
+    for (int i=0; i<defns.length; i++) {
+      defns[i].simplify();
     }
   }
 }
@@ -271,6 +292,19 @@ class StaticError extends Exception {
   StaticError(String msg) { super(msg); }
 }
 
+//----------------------------------------------------------------------------
+/** Thrown to stop the compiler after an error, with the status that
+ *  main() passes to System.exit().  The compile server in ../StevieServer
+ *  calls run() instead, and catches this to end only the request.  It is
+ *  an Error rather than an exception, so that the handlers for other
+ *  errors do not catch it.
+ */
+@SuppressWarnings("serial")
+class Exit extends Error {
+  final int status;
+  Exit(int status) { super("exit " + status); this.status = status; }
+}
+
 //____________________________________________________________________________
 // Expr ::= Var
 //       |  Int
@@ -294,19 +328,62 @@ abstract class Expr {
     }
   }
 
-  /** Return the depth of this expression as a measure of how complicated
-   *  the expression is / how many registers will be needed to evaluate it.
+  /** Return the number of registers that are needed to evaluate this
+   *  expression without spilling (its Ershov number), given that the
+   *  operands of each subexpression are evaluated in the order chosen
+   *  by before().
+   */
+  abstract int getNeed();
+
+  /** Used as the register need of a call.  A call may change any of
+   *  the caller saves registers, so every value that is held in a
+   *  register while it runs must be saved on the stack and restored
+   *  afterwards: it is as if the call needed all of the registers.  An
+   *  expression whose need is at least CALL is treated as having a
+   *  potential side effect.  (A side-effect free expression would have
+   *  to be stunningly complex to need this many registers; oh well,
+   *  we'll just miss some reordering in such (highly unlikely) cases.)
+   */
+  public static final int CALL = Reg.calleeSaves.length
+                               + Reg.args.length
+                               + Reg.results.length
+                               + Reg.callerSaves.length;
+
+  /** Return true if this expression only uses constants and local
+   *  variables, so that its value cannot be changed by a call.  Only
+   *  valid once static analysis has resolved the variables.
+   */
+  boolean isLocal() {
+    return false;
+  }
+
+  /** Return true if evaluating this expression might assign to a
+   *  variable.
+   */
+  boolean assigns() {
+    return false;
+  }
+
+  /** Return true if b, which would normally be evaluated after a,
+   *  should be evaluated first.  This is the case if b needs more
+   *  registers and neither has a side effect, or if b contains a call
+   *  that cannot change the value of a, so that the value of a does
+   *  not have to be saved around the call.
    */
-  abstract int getDepth();
+  static boolean before(Expr b, Expr a) {
+    int na = a.getNeed();
+    int nb = b.getNeed();
+    return nb>na && (nb<CALL || (a.isLocal() && !b.assigns()));
+  }
 
-  /** Used as a depth value to indicate an expression that has a
-   *  potential side effect, and hence requires order of evaluation
-   *  to be preserved.  (The same depth value could, in theory, be
-   *  produced as the depth of a stunningly complex but side-effect
-   *  free expression; oh well, we'll just miss the attempt to
-   *  minimize register usage in such (highly unlikely) cases. :-)
+  /** Return the register need of an expression that evaluates both a
+   *  and b, in the order chosen by before(), keeping the value of the
+   *  first in a register while the second is evaluated.
    */
-  public static final int DEEP = 1000;
+  static int need(Expr a, Expr b) {
+    return before(b, a) ? Math.max(b.getNeed(), a.getNeed()+1)
+                        : Math.max(a.getNeed(), b.getNeed()+1);
+  }
 
   /** Generate assembly language code for this expression that will
    *  evaluate the expression when it is executed and leave the result
@@ -314,6 +391,135 @@ abstract class Expr {
    */
   abstract void compileExpr(Assembly a, Frame f);
 
+  /** Record the uses of local variables in this expression for the
+   *  register allocator.
+   */
+  abstract void liveness(RegAlloc ra);
+
+  /** Generate code that will evaluate this expression and return its
+   *  value from the current function.
+   */
+  void compileReturn(Assembly a, Frame f) {
+    compileExpr(a, f);
+    f.emitEpilogue(a);
+  }
+
+  /** Record the size of this expression, and the calls that it makes,
+   *  for the inliner.
+   */
+  abstract void scan(Inliner in, int loops);
+
+  /** Return a copy of this expression for use in the body of an
+   *  inlined function, or null if it cannot be copied.
+   */
+  abstract Expr copy(Inliner in);
+
+  /** Replace calls that have been chosen for inlining in this
+   *  expression, returning the resulting expression.
+   */
+  Expr inline(Inliner in) {
+    return this;
+  }
+
+  /** If this expression is a call that has been chosen for inlining,
+   *  return a statement that executes the body of the called function
+   *  in its place (see Inliner.expand()), or else return null.
+   */
+  Stmt expand(Inliner in, String result, Stmt decl) {
+    return null;
+  }
+
+  /** Return true if this expression is a constant or a local variable,
+   *  whose value cannot be changed by evaluating another expression.
+   */
+  boolean isSimple(Inliner in) {
+    return false;
+  }
+
+  /** Return an expression that is equivalent to this one, with constant
+   *  subexpressions folded.  Only used once static analysis is done.
+   */
+  Expr simplify() {
+    return this;
+  }
+
+  /** Record the variables that this expression uses and assigns, and
+   *  the calls that it makes, for the loop optimizer.
+   */
+  abstract void loopScan(LoopOpt lo);
+
+  /** Return true if the value of this expression cannot change while
+   *  the loop that the loop optimizer is working on runs.
+   */
+  boolean isInvariant(LoopOpt lo) {
+    return false;
+  }
+
+  /** Return an expression that is equivalent to this one, with
+   *  invariant arithmetic moved out of the current loop and promoted
+   *  globals renamed (see LoopOpt).
+   */
+  Expr hoist(LoopOpt lo) {
+    return this;
+  }
+
+  /** Return the value of this expression if it is an integer literal,
+   *  or null otherwise.
+   */
+  Integer intValue() {
+    return null;
+  }
+
+  /** Return the value of this expression if it is a boolean literal,
+   *  or null otherwise.
+   */
+  Boolean boolValue() {
+    return null;
+  }
+
+  /** Return the name of this expression if it is a local variable, or
+   *  null otherwise.  Only valid once static analysis is done.
+   */
+  String localName() {
+    return null;
+  }
+
+  /** Return the length of the array if this expression allocates an
+   *  array whose length is a constant, or null otherwise.
+   */
+  Integer arrayLength() {
+    return null;
+  }
+
+  /** Return the name of the array if this expression returns the length
+   *  of an array that is held in a local variable, or null otherwise.
+   */
+  String lengthOf() {
+    return null;
+  }
+
+  /** Return the amount that is added to the named variable if this
+   *  expression is of the form name + n for a constant n, or null
+   *  otherwise.
+   */
+  Integer incrementOf(String name) {
+    return null;
+  }
+
+  /** Return the bound on a loop variable that this loop test
+   *  guarantees at the start of each iteration, or null if it does not
+   *  give one (see Bounds.induction()).
+   */
+  Range induction(Bounds b, HashSet<String> changed) {
+    return null;
+  }
+
+  /** Record the facts that this expression establishes, and remove the
+   *  bounds checks from array accesses in it that are always in range,
+   *  for the range analysis (see Bounds).
+   */
+  abstract void checkRanges(Bounds b);
+
   /** Generate code that will evaluate this (boolean-valued) expression
    *  and jump to the specified label if the result is true.
    */
@@ -337,26 +543,69 @@ abstract class Expr {
 class Var extends Expr {
   private String name;
   Var(String name) { this.name = name; }
-  int getDepth()   { return 1; }
+  int getNeed()    { return 1; }
 
   String show() { return name; }
 
   private TypeEnv te = null; // initialized during static analysis
+  private boolean local = false; // set during static analysis
 
   Type typeOf(Context ctxt, TypeEnv env) throws StaticError {
+    local = TypeEnv.find(name, env)!=null;
     return ctxt.findType(name, env);
   }
 
+  boolean isLocal() {
+    return local;
+  }
+
+  String localName() {
+    return local ? name : null;
+  }
+
   void compileExpr(Assembly a, Frame f) {
     f.load(a, name);
   }
+
+  void liveness(RegAlloc ra) {
+    ra.use(name);
+  }
+
+  void scan(Inliner in, int loops) {
+    in.size++;
+  }
+
+  Expr copy(Inliner in) {
+    return in.var(name);
+  }
+
+  boolean isSimple(Inliner in) {
+    return !in.isGlobal(name);
+  }
+
+  void loopScan(LoopOpt lo) {
+    lo.use(name);
+  }
+
+  boolean isInvariant(LoopOpt lo) {
+    return lo.isInvariant(name);
+  }
+
+  Expr hoist(LoopOpt lo) {
+    String n = lo.rename(name);
+    return n.equals(name) ? this : new Var(n);
+  }
+
+  void checkRanges(Bounds b) {
+    // No array accesses here
+  }
 }
 
 //----------------------------------------------------------------------------
 class Int extends Expr {
   private int num;
   Int(int num)   { this.num = num; }
-  int getDepth() { return 1; }
+  int getNeed()  { return 1; }
 
   String show() { return Integer.toString(num); }
 
@@ -367,13 +616,49 @@ class Int extends Expr {
   void compileExpr(Assembly a, Frame f) {
     a.emit("movl", a.immed(num), f.free32());
   }
+
+  void liveness(RegAlloc ra) {
+    // No variables are used here
+  }
+
+  void scan(Inliner in, int loops) {
+    in.size++;
+  }
+
+  Expr copy(Inliner in) {
+    return new Int(num);
+  }
+
+  boolean isSimple(Inliner in) {
+    return true;
+  }
+
+  Integer intValue() {
+    return num;
+  }
+
+  boolean isLocal() {
+    return true;
+  }
+
+  void loopScan(LoopOpt lo) {
+    // No variables are used here
+  }
+
+  boolean isInvariant(LoopOpt lo) {
+    return true;
+  }
+
+  void checkRanges(Bounds b) {
+    // No array accesses here
+  }
 }
 
 //----------------------------------------------------------------------------
 class Bool extends Expr {
   private boolean val;
   Bool(boolean val) { this.val = val; }
-  int getDepth()    { return 1; }
+  int getNeed()     { return 1; }
 
   String show() { return Boolean.toString(val); }
 
@@ -384,20 +669,81 @@ class Bool extends Expr {
   void compileExpr(Assembly a, Frame f) {
     a.emit("movl", a.immed(val ? 1 : 0), f.free32());
   }
+
+  void liveness(RegAlloc ra) {
+    // No variables are used here
+  }
+
+  void scan(Inliner in, int loops) {
+    in.size++;
+  }
+
+  Expr copy(Inliner in) {
+    return new Bool(val);
+  }
+
+  boolean isSimple(Inliner in) {
+    return true;
+  }
+
+  Boolean boolValue() {
+    return val;
+  }
+
+  boolean isLocal() {
+    return true;
+  }
+
+  void loopScan(LoopOpt lo) {
+    // No variables are used here
+  }
+
+  boolean isInvariant(LoopOpt lo) {
+    return true;
+  }
+
+  void checkRanges(Bounds b) {
+    // No array accesses here
+  }
+
+  /** A constant test either always jumps or never does.
+   */
+  void branchTrue(Assembly a, Frame f, String lab) {
+    if (val) {
+      a.emit("jmp", lab);
+    }
+  }
+
+  void branchFalse(Assembly a, Frame f, String lab) {
+    if (!val) {
+      a.emit("jmp", lab);
+    }
+  }
 }
 
 //----------------------------------------------------------------------------
 class Nth extends Expr {
   private Expr arr;
   private Expr idx;
-  private int  depth;
+  private int  need;
   Nth(Expr arr, Expr idx) {
-    this.arr   = arr;
-    this.idx   = idx;
-    this.depth = 1 + Math.max(arr.getDepth(), idx.getDepth());
+    this.arr = arr;
+    this.idx = idx;
+    measure();
+  }
+
+  int getNeed() { return need; }
+
+  /** Compute the register need of this expression, which needs one
+   *  register for the array and one for the index.
+   */
+  private void measure() {
+    need = need(arr, idx);
   }
 
-  int getDepth() { return depth; }
+  boolean assigns() {
+    return arr.assigns() || idx.assigns();
+  }
 
   String show() { return arr.show() + "[" + idx.show() + "]"; }
 
@@ -411,167 +757,754 @@ class Nth extends Expr {
       throw new StaticError(arr.show() + " has type " + arrType
                           + " and cannot be used as an array");
     }
+    measure();
     return elemType;
   }
 
+  /** Set to false if the index is known to be in range, either because
+   *  bounds checks are turned off or because the range analysis has
+   *  shown that the check cannot fail (see Bounds).
+   */
+  private boolean checked = Bounds.enabled;
+
+  void setChecked(boolean checked) {
+    this.checked = checked;
+  }
+
+  /** The index is evaluated first if it needs more registers than the
+   *  array (see Expr.before()).
+   */
   void compileExpr(Assembly a, Frame f) {
     Width  wd = elemType.getWidth();
-    String r0 = f.free64();  // Use for address calculations
+    Reg    r0 = f.free();    // Use for address calculations
     String r  = wd.free(f);  // Use for final result
-    arr.compileExpr(a, f);
-    String r1 = f.spill64(a);// Use for index calculation
-    idx.compileExpr(a, f);
-    a.emit(wd.mov(), a.indexed(r0, r1, wd.bytes()), r);
+    if (before(idx, arr)) {
+      idx.compileExpr(a, f);
+      Reg r1 = f.spill(a);   // Use for array address
+      arr.compileExpr(a, f);
+      compileCheck(a, r1, r0);
+      a.emit(wd.mov(), a.indexed(r1.r64(), r0.r64(), wd.bytes()), r);
+    } else {
+      arr.compileExpr(a, f);
+      Reg r1 = f.spill(a);   // Use for index calculation
+      idx.compileExpr(a, f);
+      compileCheck(a, r0, r1);
+      a.emit(wd.mov(), a.indexed(r0.r64(), r1.r64(), wd.bytes()), r);
+    }
     f.unspill(a);
   }
-}
 
-//----------------------------------------------------------------------------
-/** An abstract base class for expressions that can be used in a
- *  a statement (i.e., for expressions that might have a side-effect).
- */
-abstract class StmtExpr extends Expr {
-  int getDepth() {
-    return DEEP; // A StmtExpr may have side effects
+  /** Generate code to check that the index in register i is in range
+   *  for the array whose address is in register arr, and jump to the
+   *  runtime error routine if not.  A single unsigned comparison with
+   *  the length catches negative indices as well.
+   */
+  private void compileCheck(Assembly a, Reg arr, Reg i) {
+    if (checked) {
+      a.emit("cmpl", a.indirect(NewArray.LENGTH, arr.r64()), i.r32());
+      a.emit("jae", a.name("boundsError"));
+      Bounds.checked.incrementAndGet();
+    } else if (Bounds.enabled) {
+      Bounds.removed.incrementAndGet();
+    }
   }
 
-  abstract Type check(Context ctxt, TypeEnv env) throws StaticError;
-}
+  void liveness(RegAlloc ra) {
+    if (before(idx, arr)) {
+      idx.liveness(ra);
+      arr.liveness(ra);
+    } else {
+      arr.liveness(ra);
+      idx.liveness(ra);
+    }
+  }
 
-//----------------------------------------------------------------------------
-class Assign extends StmtExpr {
-  private String lhs;
-  private Expr   rhs;
-  Assign(String lhs, Expr rhs) {
-    this.lhs = lhs; this.rhs = rhs;
+  void scan(Inliner in, int loops) {
+    in.size++;
+    arr.scan(in, loops);
+    idx.scan(in, loops);
   }
 
-  String show() {
-    return "(" + lhs + " = " + rhs.show() + ")";
+  Expr copy(Inliner in) {
+    Expr a = arr.copy(in);
+    Expr i = idx.copy(in);
+    return (a==null || i==null) ? null : new Nth(a, i);
   }
 
-  Type typeOf(Context ctxt, TypeEnv env) throws StaticError {
-    return check(ctxt, env);
+  Expr inline(Inliner in) {
+    arr   = arr.inline(in);
+    idx   = idx.inline(in);
+    measure();
+    return this;
   }
 
-  Type check(Context ctxt, TypeEnv env) throws StaticError {
-    Type type = ctxt.findType(lhs, env);
-    rhs.require(ctxt, env, type);
-    return type;
+  Expr simplify() {
+    arr   = arr.simplify();
+    idx   = idx.simplify();
+    measure();
+    return this;
   }
 
-  void compileExpr(Assembly a, Frame f) {
-    rhs.compileExpr(a, f);
-    f.store(a, lhs);
+  void loopScan(LoopOpt lo) {
+    arr.loopScan(lo);
+    idx.loopScan(lo);
+  }
+
+  Expr hoist(LoopOpt lo) {
+    arr   = arr.hoist(lo);
+    idx   = idx.hoist(lo);
+    measure();
+    return this;
+  }
+
+  void checkRanges(Bounds b) {
+    arr.checkRanges(b);
+    idx.checkRanges(b);
+    b.access(this, arr, idx);
   }
 }
 
 //----------------------------------------------------------------------------
-class Call extends StmtExpr {
-  /** The name of the function that is being called.
+/** An expression that allocates a new array, with every element set to
+ *  zero.  Arrays are allocated by the runtime library, which stores the
+ *  length of each array just before its first element, where Length
+ *  and the bounds checks in Nth can find it.
+ */
+class NewArray extends Expr {
+  private Type elemType;
+  private Expr len;
+  NewArray(Type elemType, Expr len) {
+    this.elemType = elemType;
+    this.len      = len;
+  }
+
+  /** The offset of the length of an array from its address.
    */
-  private String name;
+  static final int LENGTH = -8;
 
-  /** The sequence of expressions provided as arguments.
+  /** Records the position of the call to the runtime library (see
+   *  Call.site).
    */
-  private Expr[] args;
+  private int site;
 
-  /** Default constructor.
+  /** Allocation calls the runtime library, which may change any caller
+   *  saves register, and fails if the length is negative.
    */
-  public Call(String name, Expr[] args) {
-    this.name = name;
-    this.args = args;
+  int getNeed() {
+    return CALL;
+  }
+
+  boolean assigns() {
+    return len.assigns();
   }
 
   String show() {
-    StringBuilder buf = new StringBuilder(name);
-    buf.append('(');
-    for (int i=0; i<args.length; i++) {
-      if (i>0) {
-        buf.append(", ");
-      }
-      buf.append(args[i].show());
+    String dims = "";
+    Type   base = elemType;
+    while (base.elemType()!=null) {
+      dims += "[]";
+      base  = base.elemType();
     }
-    buf.append(')');
-    return buf.toString();
+    return "new " + base + "[" + len.show() + "]" + dims;
   }
 
   Type typeOf(Context ctxt, TypeEnv env) throws StaticError {
-    Type rt = check(ctxt, env);
-    if (rt==null) {
-      throw new StaticError("function " + name + " does not return a value");
+    if (ctxt.isGlobal) {
+      throw new StaticError("illegal array allocation in global variable initializer");
     }
-    return rt;
+    len.require(ctxt, env, Type.INT);
+    return new ArrayType(elemType);
   }
 
-  public Type check(Context ctxt, TypeEnv env) throws StaticError {
-    if (ctxt.isGlobal) {
-      throw new StaticError("illegal call in global variable initializer");
-    }
-    FunctionEnv fe = FunctionEnv.find(name, ctxt.functions);
-    if (fe==null) {
-      throw new StaticError("call to undefined function " + name);
-    }
-    return fe.getFunction().checkArgs(ctxt, env, args);
+  void compileExpr(Assembly a, Frame f) {
+    // Allocation is implemented by calling a runtime library function
+    // called "new" that takes the length and the size of an element:
+    CallFrame cf = f.prepareCallFrame(a, 2, site);
+    len.compileExpr(a, cf);
+    cf.saveArg(a);
+    a.emit("movl", a.immed(elemType.getWidth().bytes()), cf.free32());
+    cf.saveArg(a);
+    cf.call(a, "new");
+    f.removeCallFrame(a, site);
   }
 
-  void compileExpr(Assembly a, Frame f) {   // name(args)
-    // Create a new call frame, saving registers as necessary:
-    CallFrame cf = f.prepareCallFrame(a, args.length);
-    cf.dump(a);
+  void liveness(RegAlloc ra) {
+    site = ra.here();
+    len.liveness(ra);
+    ra.call();
+  }
 
-    // Evaluate the arguments and add them to the frame:
-    for (int i=0; i<args.length; i++) {
-      args[i].compileExpr(a, cf);
-      cf.saveArg(a);
-    }
+  void scan(Inliner in, int loops) {
+    in.size++;
+    len.scan(in, loops);
+  }
 
-    // Call the function, and remove stack arguments:
-    cf.call(a, name);
+  Expr copy(Inliner in) {
+    Expr l = len.copy(in);
+    return (l==null) ? null : new NewArray(elemType, l);
+  }
 
-    // Set result register and restore saved registers:
-    f.removeCallFrame(a);
+  Expr inline(Inliner in) {
+    len = len.inline(in);
+    return this;
   }
-}
+
+  Expr simplify() {
+    len = len.simplify();
+    return this;
+  }
+
+  /** Allocation is not treated as a call by the loop optimizer, because
+   *  the runtime library does not use global variables.
+   */
+  void loopScan(LoopOpt lo) {
+    len.loopScan(lo);
+  }
+
+  Expr hoist(LoopOpt lo) {
+    len = len.hoist(lo);
+    return this;
+  }
+
+  Integer arrayLength() {
+    Integer n = len.intValue();
+    return (n==null || n<0) ? null : n;
+  }
+
+  void checkRanges(Bounds b) {
+    len.checkRanges(b);
+  }
+}
+
+//----------------------------------------------------------------------------
+/** An expression that returns the length of an array.
+ */
+class Length extends Expr {
+  private Expr arr;
+  Length(Expr arr) { this.arr = arr; }
+
+  int getNeed() { return arr.getNeed(); }
+
+  /** The length of an array never changes, so it can only be changed
+   *  by a call if the array can.
+   */
+  boolean isLocal() {
+    return arr.isLocal();
+  }
+
+  boolean assigns() {
+    return arr.assigns();
+  }
+
+  String show() { return arr.show() + ".length"; }
+
+  Type typeOf(Context ctxt, TypeEnv env) throws StaticError {
+    Type arrType = arr.typeOf(ctxt, env);
+    if (arrType.elemType()==null) {
+      throw new StaticError(arr.show() + " has type " + arrType
+                          + " and does not have a length");
+    }
+    return Type.INT;
+  }
+
+  void compileExpr(Assembly a, Frame f) {
+    arr.compileExpr(a, f);
+    a.emit("movl", a.indirect(NewArray.LENGTH, f.free64()), f.free32());
+  }
+
+  void liveness(RegAlloc ra) {
+    arr.liveness(ra);
+  }
+
+  void scan(Inliner in, int loops) {
+    in.size++;
+    arr.scan(in, loops);
+  }
+
+  Expr copy(Inliner in) {
+    Expr a = arr.copy(in);
+    return (a==null) ? null : new Length(a);
+  }
+
+  Expr inline(Inliner in) {
+    arr = arr.inline(in);
+    return this;
+  }
+
+  Expr simplify() {
+    arr = arr.simplify();
+    return this;
+  }
+
+  void loopScan(LoopOpt lo) {
+    arr.loopScan(lo);
+  }
+
+  Expr hoist(LoopOpt lo) {
+    arr = arr.hoist(lo);
+    return this;
+  }
+
+  String lengthOf() {
+    return arr.localName();
+  }
+
+  void checkRanges(Bounds b) {
+    arr.checkRanges(b);
+  }
+}
+
+//----------------------------------------------------------------------------
+/** An abstract base class for expressions that can be used in a
+ *  a statement (i.e., for expressions that might have a side-effect).
+ */
+abstract class StmtExpr extends Expr {
+  int getNeed() {
+    return CALL; // A StmtExpr may have side effects
+  }
+
+  abstract Type check(Context ctxt, TypeEnv env) throws StaticError;
+
+  abstract StmtExpr copy(Inliner in);
+
+  /** Replace calls that have been chosen for inlining in the
+   *  subexpressions of this expression.
+   */
+  abstract void inlineParts(Inliner in);
+
+  Expr inline(Inliner in) {
+    inlineParts(in);
+    return this;
+  }
+
+  /** Simplify the subexpressions of this expression.
+   */
+  abstract void simplifyParts();
+
+  Expr simplify() {
+    simplifyParts();
+    return this;
+  }
+
+  /** Rewrite the subexpressions of this expression for the loop
+   *  optimizer (see Expr.hoist()).
+   */
+  abstract void hoistParts(LoopOpt lo);
+
+  Expr hoist(LoopOpt lo) {
+    hoistParts(lo);
+    return this;
+  }
+}
+
+//----------------------------------------------------------------------------
+class Assign extends StmtExpr {
+  private String lhs;
+  private Expr   rhs;
+  Assign(String lhs, Expr rhs) {
+    this.lhs = lhs; this.rhs = rhs;
+  }
+
+  String show() {
+    return "(" + lhs + " = " + rhs.show() + ")";
+  }
+
+  Type typeOf(Context ctxt, TypeEnv env) throws StaticError {
+    return check(ctxt, env);
+  }
+
+  Type check(Context ctxt, TypeEnv env) throws StaticError {
+    Type type = ctxt.findType(lhs, env);
+    rhs.require(ctxt, env, type);
+    return type;
+  }
+
+  void compileExpr(Assembly a, Frame f) {
+    rhs.compileExpr(a, f);
+    f.store(a, lhs);
+  }
+
+  boolean assigns() {
+    return true;
+  }
+
+  void liveness(RegAlloc ra) {
+    rhs.liveness(ra);
+    ra.use(lhs);
+  }
+
+  void scan(Inliner in, int loops) {
+    in.size++;
+    rhs.scan(in, loops);
+  }
+
+  StmtExpr copy(Inliner in) {
+    String l = in.rename(lhs);
+    Expr   r = rhs.copy(in);
+    return (l==null || r==null) ? null : new Assign(l, r);
+  }
+
+  void inlineParts(Inliner in) {
+    rhs = rhs.inline(in);
+  }
+
+  void simplifyParts() {
+    rhs = rhs.simplify();
+  }
+
+  void loopScan(LoopOpt lo) {
+    rhs.loopScan(lo);
+    lo.assign(lhs);
+  }
+
+  void hoistParts(LoopOpt lo) {
+    lhs = lo.rename(lhs);
+    rhs = rhs.hoist(lo);
+  }
+
+  void checkRanges(Bounds b) {
+    rhs.checkRanges(b);
+    b.assign(lhs, rhs);
+  }
+
+  /** An assignment statement whose right hand side is a call that has
+   *  been chosen for inlining is replaced by the body of the function,
+   *  which assigns its result to the variable on the left.
+   */
+  Stmt expand(Inliner in, String result, Stmt decl) {
+    return (result==null) ? rhs.expand(in, lhs, null) : null;
+  }
+}
+
+//----------------------------------------------------------------------------
+class Call extends StmtExpr {
+  /** The name of the function that is being called.
+   */
+  private String name;
+
+  /** The sequence of expressions provided as arguments.
+   */
+  private Expr[] args;
+
+  /** Records the position of this call in the walk made by the register
+   *  allocator, just before the arguments are evaluated.  A parameter
+   *  that is not used after this position does not need to be saved
+   *  around the call (see Frame.prepareCallFrame()).
+   */
+  private int site;
+
+  /** Default constructor.
+   */
+  public Call(String name, Expr[] args) {
+    this.name = name;
+    this.args = args;
+  }
+
+  String show() {
+    StringBuilder buf = new StringBuilder(name);
+    buf.append('(');
+    for (int i=0; i<args.length; i++) {
+      if (i>0) {
+        buf.append(", ");
+      }
+      buf.append(args[i].show());
+    }
+    buf.append(')');
+    return buf.toString();
+  }
+
+  Type typeOf(Context ctxt, TypeEnv env) throws StaticError {
+    Type rt = check(ctxt, env);
+    if (rt==null) {
+      throw new StaticError("function " + name + " does not return a value");
+    }
+    return rt;
+  }
+
+  public Type check(Context ctxt, TypeEnv env) throws StaticError {
+    if (ctxt.isGlobal) {
+      throw new StaticError("illegal call in global variable initializer");
+    }
+    FunctionEnv fe = FunctionEnv.find(name, ctxt.functions);
+    if (fe==null) {
+      throw new StaticError("call to undefined function " + name);
+    }
+    return fe.getFunction().checkArgs(ctxt, env, args);
+  }
+
+  boolean assigns() {
+    for (int i=0; i<args.length; i++) {
+      if (args[i].assigns()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  void compileExpr(Assembly a, Frame f) {   // name(args)
+    // Create a new call frame, saving registers as necessary:
+    CallFrame cf = f.prepareCallFrame(a, args.length, site);
+    cf.dump(a);
+
+    // Evaluate the arguments and add them to the frame:
+    for (int i=0; i<args.length; i++) {
+      args[i].compileExpr(a, cf);
+      cf.saveArg(a);
+    }
+
+    // Call the function, and remove stack arguments:
+    cf.call(a, name);
+
+    // Set result register and restore saved registers:
+    f.removeCallFrame(a, site);
+  }
+
+  /** Set to false to compile calls in tail position as normal calls.
+   */
+  static boolean tailCalls = true;
+
+  /** Generate code for a call whose result is returned directly from
+   *  the current function.  When possible, the call is replaced by a
+   *  jump so that the called function returns directly to our caller.
+   */
+  void compileReturn(Assembly a, Frame f) {
+    if (!f.canTailCall(name, args.length)) {
+      super.compileReturn(a, f);
+      return;
+    }
+    CallFrame cf = f.prepareCallFrame(a, args.length, site);
+    cf.dump(a);
+    for (int i=0; i<args.length; i++) {
+      args[i].compileExpr(a, cf);
+      cf.saveArg(a);
+    }
+    f.emitTailCall(a, cf, name);
+    f.abandonCallFrame(a, site);
+  }
+
+  void liveness(RegAlloc ra) {
+    site = ra.here();
+    for (int i=0; i<args.length; i++) {
+      args[i].liveness(ra);
+    }
+    ra.call();
+  }
+
+  void scan(Inliner in, int loops) {
+    in.size++;
+    in.call(this, name, loops);
+    for (int i=0; i<args.length; i++) {
+      args[i].scan(in, loops);
+    }
+  }
+
+  StmtExpr copy(Inliner in) {
+    Expr[] as = new Expr[args.length];
+    for (int i=0; i<args.length; i++) {
+      if ((as[i]=args[i].copy(in))==null) {
+        return null;
+      }
+    }
+    return new Call(name, as);
+  }
+
+  void inlineParts(Inliner in) {
+    for (int i=0; i<args.length; i++) {
+      args[i] = args[i].inline(in);
+    }
+  }
+
+  void simplifyParts() {
+    for (int i=0; i<args.length; i++) {
+      args[i] = args[i].simplify();
+    }
+  }
+
+  void loopScan(LoopOpt lo) {
+    for (int i=0; i<args.length; i++) {
+      args[i].loopScan(lo);
+    }
+    lo.call();
+  }
+
+  void hoistParts(LoopOpt lo) {
+    for (int i=0; i<args.length; i++) {
+      args[i] = args[i].hoist(lo);
+    }
+  }
+
+  void checkRanges(Bounds b) {
+    for (int i=0; i<args.length; i++) {
+      args[i].checkRanges(b);
+    }
+  }
+
+  Expr inline(Inliner in) {
+    inlineParts(in);
+    if (in.chosen(this)) {
+      Expr e = in.expandExpr(name, args);
+      if (e!=null) {
+        return e;
+      }
+    }
+    return this;
+  }
+
+  Stmt expand(Inliner in, String result, Stmt decl) {
+    return in.chosen(this) ? in.expand(name, args, result, decl) : null;
+  }
+}
 
 //----------------------------------------------------------------------------
 abstract class BinExpr extends Expr {
   protected Expr l, r;
 
-  /** Records the depth of this expression; this value is computed
-   *  at the time the constructor is called and then saved here so
-   *  that it can be accessed without further computation later on.
+  /** Records the register need of this expression, and whether it only
+   *  uses constants and local variables, or might assign to a variable.
+   *  These values are computed by measure() when the expression is
+   *  constructed, and again whenever its arguments change, and then
+   *  saved here so that they can be accessed without further
+   *  computation later on.
    */
-  protected int depth;
+  protected int     need;
+  protected boolean local;
+  protected boolean assigns;
 
   BinExpr(Expr l, Expr r) {
-    this.l     = l;
-    this.r     = r;
-    this.depth = 1 + Math.max(l.getDepth(), r.getDepth());
+    this.l = l;
+    this.r = r;
+    measure();
+  }
+
+  int getNeed() {
+    return need;
+  }
+
+  boolean isLocal() {
+    return local;
   }
 
-  int getDepth() {
-    // Return the depth value that was computed by the constructor
-    return depth;
+  boolean assigns() {
+    return assigns;
+  }
+
+  /** Compute the register need and other properties of this expression
+   *  from those of its arguments.  An immediate right argument does
+   *  not need a register of its own.  This is repeated by typeOf(),
+   *  once the variables in the arguments have been resolved.
+   */
+  void measure() {
+    need    = (immediate(r)!=null) ? l.getNeed() : need(l, r);
+    local   = l.isLocal() && r.isLocal();
+    assigns = l.assigns() || r.assigns();
   }
 
   String show() { return "(" + l.show() + " " + op() + " " + r.show() + ")"; }
   abstract String op();
 
+  /** Uses are recorded in the order in which compileBin() evaluates
+   *  the arguments, so that a variable that is only used after a call
+   *  in the other argument is saved around it.
+   */
+  void liveness(RegAlloc ra) {
+    if (before(r, l)) {
+      r.liveness(ra);
+      l.liveness(ra);
+    } else {
+      l.liveness(ra);
+      r.liveness(ra);
+    }
+  }
+
+  void scan(Inliner in, int loops) {
+    in.size++;
+    l.scan(in, loops);
+    r.scan(in, loops);
+  }
+
+  Expr copy(Inliner in) {
+    Expr a = l.copy(in);
+    Expr b = r.copy(in);
+    return (a==null || b==null) ? null : make(a, b);
+  }
+
+  /** Make a new expression using the same operator as this one.
+   */
+  abstract BinExpr make(Expr l, Expr r);
+
+  Expr inline(Inliner in) {
+    l = l.inline(in);
+    r = r.inline(in);
+    measure();
+    return this;
+  }
+
+  Expr simplify() {
+    l = l.simplify();
+    r = r.simplify();
+    measure();
+    return fold();
+  }
+
+  void loopScan(LoopOpt lo) {
+    l.loopScan(lo);
+    r.loopScan(lo);
+  }
+
+  boolean isInvariant(LoopOpt lo) {
+    return l.isInvariant(lo) && r.isInvariant(lo);
+  }
+
+  void checkRanges(Bounds b) {
+    l.checkRanges(b);
+    r.checkRanges(b);
+  }
+
+  Expr hoist(LoopOpt lo) {
+    l = l.hoist(lo);
+    r = r.hoist(lo);
+    measure();
+    return this;
+  }
+
+  /** Return an expression that is equivalent to this one, given that
+   *  both arguments have already been simplified.  Constant arguments
+   *  are folded and, for commutative operators, a constant is moved to
+   *  the right, where it can be used as an immediate operand.
+   */
+  abstract Expr fold();
+
+  /** Return true if evaluating e cannot have a side effect, so that it
+   *  can be left out if its value is not needed.
+   */
+  static boolean pure(Expr e) {
+    return e.getNeed()<CALL;
+  }
+
+  /** Return the value of e if it is an integer literal that should be
+   *  used as an immediate operand, or null otherwise.
+   */
+  static Integer immediate(Expr e) {
+    return Simplifier.enabled ? e.intValue() : null;
+  }
+
   /** Generate code to evalute both of the expressions l and r,
    *  changing the order of evaluation if possible/beneficial to
-   *  reduce the number of registers that are required.  The return
-   *  boolean indicates the order in which the two expressions have
-   *  been evaluated and stored in registers.  A true result indicates
-   *  that reg(free) contains the value of l and reg(free+1) contains
-   *  the value of r.  A false result indicates that the order has
-   *  been reversed.  In both cases, reg(free+1) will need to be
-   *  unspilled once the value in that register has been used.
+   *  reduce the number of registers that are required (see
+   *  Expr.before()), and then combine them using the given operator.
+   *  If the order is reversed for an operator that is not commutative,
+   *  the two values are exchanged before they are combined.
    */
   void compileBin(Assembly a, Frame f, String op, boolean commutative) {
-    String r0 = f.free32();
-    String r1;
-    if (l.getDepth()>=r.getDepth() || r.getDepth()>=DEEP) {
+    String  r0 = f.free32();
+    String  r1;
+    Integer n  = immediate(r);
+    if (n!=null) {
+      l.compileExpr(a, f);
+      a.emit(op, a.immed(n), r0);
+      return;
+    }
+    if (!before(r, l)) {
       l.compileExpr(a, f);
       r1 = f.spill32(a);
       r.compileExpr(a, f);
@@ -595,27 +1528,87 @@ abstract class ArithBinExpr extends BinExpr {
   Type typeOf(Context ctxt, TypeEnv env) throws StaticError {
     l.require(ctxt, env, Type.INT);
     r.require(ctxt, env, Type.INT);
+    measure();
     return Type.INT;
   }
+
+  /** Invariant arithmetic is moved out of the loop as a whole.  Tests
+   *  are left in place, because they are compiled as branches.
+   */
+  Expr hoist(LoopOpt lo) {
+    return isInvariant(lo) ? lo.hoist(this) : super.hoist(lo);
+  }
 }
 
 //----------------------------------------------------------------------------
 class Plus extends ArithBinExpr {
   Plus(Expr l, Expr r) { super(l, r); }
   String op() { return "+"; }
+  BinExpr make(Expr l, Expr r) { return new Plus(l, r); }
+
+  Expr fold() {
+    Integer a = l.intValue();
+    Integer b = r.intValue();
+    if (a!=null && b!=null) {
+      return new Int(a + b);
+    } else if (a!=null) {
+      return (a==0) ? r : new Plus(r, l);
+    } else if (b!=null && b==0) {
+      return l;
+    }
+    return this;
+  }
 
   void compileExpr(Assembly a, Frame f) {
     compileBin(a, f, "addl", true);
   }
+
+  Integer incrementOf(String name) {
+    if (name.equals(l.localName())) {
+      return r.intValue();
+    } else if (name.equals(r.localName())) {
+      return l.intValue();
+    }
+    return null;
+  }
 }
 
 //----------------------------------------------------------------------------
 class Minus extends ArithBinExpr {
   Minus(Expr l, Expr r) { super(l, r); }
   String op() { return "-"; }
+  BinExpr make(Expr l, Expr r) { return new Minus(l, r); }
+
+  Expr fold() {
+    Integer a = l.intValue();
+    Integer b = r.intValue();
+    if (a!=null && b!=null) {
+      return new Int(a - b);
+    } else if (b!=null && b==0) {
+      return l;
+    }
+    return this;
+  }
+
+  void measure() {
+    super.measure();
+    if (immediate(l)!=null && immediate(r)==null) {
+      need = r.getNeed();
+    }
+  }
 
+  /** A constant on the left is added to the negated right argument,
+   *  which avoids the need for a second register.
+   */
   void compileExpr(Assembly a, Frame f) {
-    compileBin(a, f, "subl", false);
+    Integer n = immediate(l);
+    if (n!=null && immediate(r)==null) {
+      r.compileExpr(a, f);
+      a.emit("negl", f.free32());
+      a.emit("addl", a.immed(n), f.free32());
+    } else {
+      compileBin(a, f, "subl", false);
+    }
   }
 }
 
@@ -623,9 +1616,49 @@ class Minus extends ArithBinExpr {
 class Mult extends ArithBinExpr {
   Mult(Expr l, Expr r) { super(l, r); }
   String op() { return "*"; }
+  BinExpr make(Expr l, Expr r) { return new Mult(l, r); }
+
+  Expr fold() {
+    Integer a = l.intValue();
+    Integer b = r.intValue();
+    if (a!=null && b!=null) {
+      return new Int(a * b);
+    } else if (a!=null) {
+      return new Mult(r, l).fold();
+    } else if (b!=null && b==1) {
+      return l;
+    } else if (b!=null && b==0 && pure(l)) {
+      return r;
+    }
+    return this;
+  }
 
+  /** Multiplication by a constant of the form m*2^k, where m is 1, 3,
+   *  5, or 9, uses a leal for m and a shift for 2^k in place of imull.
+   */
   void compileExpr(Assembly a, Frame f) {
-    compileBin(a, f, "imull", true);
+    Integer n = immediate(r);
+    if (n==null || n==0) {
+      compileBin(a, f, "imull", true);
+      return;
+    }
+    String r0 = f.free32();
+    int    k  = Integer.numberOfTrailingZeros(n);
+    int    m  = n >> k;
+    l.compileExpr(a, f);
+    if (m==1 || m==3 || m==5 || m==9) {
+      if (m>1) {
+        String r64 = f.free64();
+        a.emit("leal", a.indexed(r64, r64, m-1), r0);
+      }
+      if (k>0) {
+        a.emit("shll", a.immed(k), r0);
+      }
+    } else if (n==-1) {
+      a.emit("negl", r0);
+    } else {
+      a.emit("imull", a.immed(n), r0);
+    }
   }
 }
 
@@ -636,6 +1669,7 @@ abstract class RelBinExpr extends BinExpr {
   Type typeOf(Context ctxt, TypeEnv env) throws StaticError {
     l.require(ctxt, env, Type.INT);
     r.require(ctxt, env, Type.INT);
+    measure();
     return Type.BOOLEAN;
   }
 
@@ -647,9 +1681,15 @@ abstract class RelBinExpr extends BinExpr {
    *  not need to handle spilling.
    */
   void compileCond(Assembly a, Frame f) {
-    String r0 = f.free32();
-    String r1;
-    if (l.getDepth()>r.getDepth() || r.getDepth()>=DEEP) {
+    String  r0 = f.free32();
+    String  r1;
+    Integer n  = immediate(r);
+    if (n!=null) {
+      l.compileExpr(a, f);
+      a.emit("cmpl", a.immed(n), r0);
+      return;
+    }
+    if (!before(r, l)) {
       l.compileExpr(a, f);
       r1 = f.spill32(a);
       r.compileExpr(a, f);
@@ -665,19 +1705,14 @@ abstract class RelBinExpr extends BinExpr {
 
   /** Generate code for a comparison that computes either 1 (for
    *  true) or 0 (for false) in the specified free register.  The
-   *  given "test" instruction is used to trigger a branch in the
-   *  true case.
+   *  given "test" instruction is the conditional jump that would be
+   *  used to trigger a branch in the true case; the corresponding
+   *  setcc instruction is used to compute the value without a branch.
    */
   void compileCondValue(Assembly a, Frame f, String test) {
-    String lab1 = a.newLabel();  // jump here if true
-    String lab2 = a.newLabel();  // jump here when done
     compileCond(a, f);           // compare the two arguments
-    a.emit(test, lab1);          // jump if condition is true
-    a.emit("movl", a.immed(0), f.free32());
-    a.emit("jmp",  lab2);
-    a.emitLabel(lab1);
-    a.emit("movl", a.immed(1), f.free32());
-    a.emitLabel(lab2);           // continue with value in free
+    a.emit("set" + test.substring(1), f.free8());
+    a.emit("movzbl", f.free8(), f.free32());
   }
 }
 
@@ -685,6 +1720,17 @@ abstract class RelBinExpr extends BinExpr {
 class LT extends RelBinExpr {
   LT(Expr l, Expr r) { super(l, r); }
   String op() { return "<"; }
+  BinExpr make(Expr l, Expr r) { return new LT(l, r); }
+
+  Range induction(Bounds b, HashSet<String> changed) {
+    return b.induction(l, r, changed);
+  }
+
+  Expr fold() {
+    Integer a = l.intValue();
+    Integer b = r.intValue();
+    return (a!=null && b!=null) ? new Bool(a < b) : this;
+  }
 
   /** Generate assembly language code for this expression that will
    *  evaluate the expression when it is executed and leave the result
@@ -716,6 +1762,18 @@ class LT extends RelBinExpr {
 class EqEq extends RelBinExpr {
   EqEq(Expr l, Expr r) { super(l, r); }
   String op() { return "=="; }
+  BinExpr make(Expr l, Expr r) { return new EqEq(l, r); }
+
+  Expr fold() {
+    Integer a = l.intValue();
+    Integer b = r.intValue();
+    if (a!=null && b!=null) {
+      return new Bool(a.intValue()==b.intValue());
+    } else if (a!=null) {
+      return new EqEq(r, l);
+    }
+    return this;
+  }
 
   /** Generate assembly language code for this expression that will
    *  evaluate the expression when it is executed and leave the result
@@ -750,6 +1808,7 @@ abstract class LogicBinExpr extends BinExpr {
   Type typeOf(Context ctxt, TypeEnv env) throws StaticError {
     l.require(ctxt, env, Type.BOOLEAN);
     r.require(ctxt, env, Type.BOOLEAN);
+    measure();
     return Type.BOOLEAN;
   }
 }
@@ -759,10 +1818,28 @@ class LAnd extends LogicBinExpr {
   LAnd(Expr l, Expr r) { super(l, r); }
 
   String op() { return "&&"; }
+  BinExpr make(Expr l, Expr r) { return new LAnd(l, r); }
+
+  /** The right argument is only evaluated if the left is true, so it
+   *  can be dropped when the left is false; a false right argument
+   *  can only be dropped if the left has no side effects.
+   */
+  Expr fold() {
+    Boolean a = l.boolValue();
+    Boolean b = r.boolValue();
+    if (a!=null) {
+      return a ? r : l;
+    } else if (b!=null && b) {
+      return l;
+    } else if (b!=null && pure(l)) {
+      return r;
+    }
+    return this;
+  }
 
   void compileExpr(Assembly a, Frame f) {
     System.err.println("LAnd compile() method NOT IMPLEMENTED");
-    System.exit(1);
+    throw new Exit(1);
   }
 }
 
@@ -771,10 +1848,27 @@ class LOr extends LogicBinExpr {
   LOr(Expr l, Expr r) { super(l, r); }
 
   String op() { return "||"; }
+  BinExpr make(Expr l, Expr r) { return new LOr(l, r); }
+
+  /** The right argument is only evaluated if the left is false (see
+   *  LAnd.fold()).
+   */
+  Expr fold() {
+    Boolean a = l.boolValue();
+    Boolean b = r.boolValue();
+    if (a!=null) {
+      return a ? l : r;
+    } else if (b!=null && !b) {
+      return l;
+    } else if (b!=null && pure(l)) {
+      return r;
+    }
+    return this;
+  }
 
   void compileExpr(Assembly a, Frame f) {
     System.err.println("LOr compile() method NOT IMPLEMENTED");
-    System.exit(1);
+    throw new Exit(1);
   }
 }
 
@@ -831,6 +1925,85 @@ abstract class Stmt {
     f.resetTo(a, origEnv);
     return b;
   }
+
+  /** Record the definitions and uses of local variables in this
+   *  statement for the register allocator.
+   */
+  abstract void liveness(RegAlloc ra);
+
+  /** Record the definitions and uses of local variables in this
+   *  statement as a new block, so that local variables are discarded
+   *  at the end of the block.
+   */
+  void livenessBlock(RegAlloc ra) {
+    int mark = ra.mark();
+    liveness(ra);
+    ra.reset(mark);
+  }
+
+  /** Record the size of this statement, and the local variables and
+   *  calls that it contains, for the inliner.
+   */
+  abstract void scan(Inliner in, int loops);
+
+  /** Return a copy of this statement for use in the body of an inlined
+   *  function, or null if it cannot be copied.  The tail flag is true
+   *  if the function returns once this statement has been executed.
+   */
+  abstract Stmt copy(Inliner in, boolean tail);
+
+  /** Return a copy of this statement as a new block, so that local
+   *  variables that are introduced in the block are discarded at the
+   *  end of the block.
+   */
+  Stmt copyBlock(Inliner in, boolean tail) {
+    int  mark = in.mark();
+    Stmt s    = copy(in, tail);
+    in.reset(mark);
+    return s;
+  }
+
+  /** Replace calls that have been chosen for inlining in this
+   *  statement, returning the resulting statement.
+   */
+  abstract Stmt inline(Inliner in);
+
+  /** Simplify the expressions in this statement (see Expr.simplify()).
+   */
+  abstract void simplify();
+
+  /** Record the variables that this statement uses, assigns, and
+   *  declares, and the calls and returns that it contains, for the loop
+   *  optimizer.
+   */
+  abstract void loopScan(LoopOpt lo);
+
+  /** Rewrite the expressions in this statement, which is part of the
+   *  loop that the loop optimizer is working on (see Expr.hoist()).
+   */
+  abstract void hoist(LoopOpt lo);
+
+  /** Optimize the loops in this statement, returning the statement
+   *  that should be used in its place.
+   */
+  abstract Stmt optimizeLoops(LoopOpt lo);
+
+  /** Record the facts that this statement establishes, and remove the
+   *  bounds checks from array accesses in it that are always in range,
+   *  for the range analysis (see Bounds).
+   */
+  abstract void checkRanges(Bounds b);
+
+  /** Optimize the loops in this statement as a block, so that local
+   *  variables that are introduced in the block are discarded at the
+   *  end of the block.
+   */
+  Stmt optimizeLoopsBlock(LoopOpt lo) {
+    int  mark = lo.mark();
+    Stmt s    = optimizeLoops(lo);
+    lo.reset(mark);
+    return s;
+  }
 }
 
 //----------------------------------------------------------------------------
@@ -856,6 +2029,46 @@ class ExprStmt extends Stmt {
       exp.compileExpr(a, f);
       return true;
   }
+
+  void liveness(RegAlloc ra) {
+    exp.liveness(ra);
+  }
+
+  void scan(Inliner in, int loops) {
+    in.size++;
+    exp.scan(in, loops);
+  }
+
+  Stmt copy(Inliner in, boolean tail) {
+    StmtExpr e = exp.copy(in);
+    return (e==null) ? null : new ExprStmt(e);
+  }
+
+  Stmt inline(Inliner in) {
+    exp.inlineParts(in);
+    Stmt s = exp.expand(in, null, null);
+    return (s==null) ? this : s;
+  }
+
+  void simplify() {
+    exp.simplifyParts();
+  }
+
+  void loopScan(LoopOpt lo) {
+    exp.loopScan(lo);
+  }
+
+  void hoist(LoopOpt lo) {
+    exp.hoistParts(lo);
+  }
+
+  Stmt optimizeLoops(LoopOpt lo) {
+    return this;
+  }
+
+  void checkRanges(Bounds b) {
+    exp.checkRanges(b);
+  }
 }
 
 //----------------------------------------------------------------------------
@@ -883,6 +2096,54 @@ class Seq extends Stmt {
   boolean compile(Assembly a, Frame f) {
     return l.compile(a, f) && r.compile(a, f);
   }
+
+  void liveness(RegAlloc ra) {
+    l.liveness(ra);
+    r.liveness(ra);
+  }
+
+  void scan(Inliner in, int loops) {
+    l.scan(in, loops);
+    r.scan(in, loops);
+  }
+
+  Stmt copy(Inliner in, boolean tail) {
+    Stmt a = l.copy(in, false);
+    Stmt b = (a==null) ? null : r.copy(in, tail);
+    return (b==null) ? null : (b==Inliner.SKIP) ? a : new Seq(a, b);
+  }
+
+  Stmt inline(Inliner in) {
+    l = l.inline(in);
+    r = r.inline(in);
+    return this;
+  }
+
+  void simplify() {
+    l.simplify();
+    r.simplify();
+  }
+
+  void loopScan(LoopOpt lo) {
+    l.loopScan(lo);
+    r.loopScan(lo);
+  }
+
+  void hoist(LoopOpt lo) {
+    l.hoist(lo);
+    r.hoist(lo);
+  }
+
+  Stmt optimizeLoops(LoopOpt lo) {
+    l = l.optimizeLoops(lo);
+    r = r.optimizeLoops(lo);
+    return this;
+  }
+
+  void checkRanges(Bounds b) {
+    l.checkRanges(b);
+    r.checkRanges(b);
+  }
 }
 
 //----------------------------------------------------------------------------
@@ -911,15 +2172,74 @@ class While extends Stmt {
   }
 
   boolean compile(Assembly a, Frame f) {
-    String lab1 = a.newLabel();
-    String lab2 = a.newLabel();
+    String     lab1     = a.newLabel();
+    String     lab2     = a.newLabel();
+    JumpTarget oldBreak = f.getBreak();
+    JumpTarget oldCont  = f.getContinue();
+    JumpTarget exit     = f.newTarget(a.newLabel());
+    f.setBreak(exit);
+    f.setContinue(f.newTarget(lab2));
     a.emit("jmp", lab2);
     a.emitLabel(lab1);
     body.compileBlock(a, f);
     a.emitLabel(lab2);
     test.branchTrue(a, f, lab1);
+    f.setBreak(oldBreak);
+    f.setContinue(oldCont);
+    if (exit.used) {
+      a.emitLabel(exit.label);
+    }
     return true;
   }
+
+  void liveness(RegAlloc ra) {
+    int start = ra.here();
+    test.liveness(ra);
+    body.livenessBlock(ra);
+    ra.loop(start);
+  }
+
+  void scan(Inliner in, int loops) {
+    in.size++;
+    test.scan(in, loops+1);
+    body.scan(in, loops+1);
+  }
+
+  Stmt copy(Inliner in, boolean tail) {
+    Expr t = test.copy(in);
+    Stmt b = (t==null) ? null : body.copyBlock(in, false);
+    return (b==null) ? null : new While(t, b);
+  }
+
+  Stmt inline(Inliner in) {
+    test = test.inline(in);
+    body = body.inline(in);
+    return this;
+  }
+
+  void simplify() {
+    test = test.simplify();
+    body.simplify();
+  }
+
+  void loopScan(LoopOpt lo) {
+    test.loopScan(lo);
+    body.loopScan(lo);
+  }
+
+  void hoist(LoopOpt lo) {
+    test = test.hoist(lo);
+    body.hoist(lo);
+  }
+
+  Stmt optimizeLoops(LoopOpt lo) {
+    body = body.optimizeLoopsBlock(lo);
+    return lo.optimize(this);
+  }
+
+  void checkRanges(Bounds b) {
+    b.loop(this, test, body, null);
+  }
 }
 
 //----------------------------------------------------------------------------
@@ -982,6 +2302,94 @@ class If extends Stmt {
     }
     return c;
   }
+
+  void liveness(RegAlloc ra) {
+    test.liveness(ra);
+    ifTrue.livenessBlock(ra);
+    if (ifFalse!=null) {
+      ifFalse.livenessBlock(ra);
+    }
+  }
+
+  void scan(Inliner in, int loops) {
+    in.size++;
+    test.scan(in, loops);
+    ifTrue.scan(in, loops);
+    if (ifFalse!=null) {
+      ifFalse.scan(in, loops);
+    }
+  }
+
+  Stmt copy(Inliner in, boolean tail) {
+    Expr t = test.copy(in);
+    Stmt a = (t==null) ? null : ifTrue.copyBlock(in, tail);
+    if (a==null || a==Inliner.SKIP) {
+      return null;
+    }
+    Stmt b = null;
+    if (ifFalse!=null) {
+      b = ifFalse.copyBlock(in, tail);
+      if (b==null || b==Inliner.SKIP) {
+        return null;
+      }
+    }
+    return new If(t, a, b);
+  }
+
+  /** A test that is a call chosen for inlining is replaced by the body
+   *  of the function, saving its result in a new variable to test.
+   */
+  Stmt inline(Inliner in) {
+    test   = test.inline(in);
+    ifTrue = ifTrue.inline(in);
+    if (ifFalse!=null) {
+      ifFalse = ifFalse.inline(in);
+    }
+    String v = Inliner.fresh("test");
+    Stmt   s = test.expand(in, v, Inliner.declare(Type.BOOLEAN, v, null));
+    if (s!=null) {
+      test = new Var(v);
+      return Inliner.seq(s, this);
+    }
+    return this;
+  }
+
+  void simplify() {
+    test = test.simplify();
+    ifTrue.simplify();
+    if (ifFalse!=null) {
+      ifFalse.simplify();
+    }
+  }
+
+  void loopScan(LoopOpt lo) {
+    test.loopScan(lo);
+    ifTrue.loopScan(lo);
+    if (ifFalse!=null) {
+      ifFalse.loopScan(lo);
+    }
+  }
+
+  void hoist(LoopOpt lo) {
+    test = test.hoist(lo);
+    ifTrue.hoist(lo);
+    if (ifFalse!=null) {
+      ifFalse.hoist(lo);
+    }
+  }
+
+  Stmt optimizeLoops(LoopOpt lo) {
+    ifTrue = ifTrue.optimizeLoopsBlock(lo);
+    if (ifFalse!=null) {
+      ifFalse = ifFalse.optimizeLoopsBlock(lo);
+    }
+    return this;
+  }
+
+  void checkRanges(Bounds b) {
+    test.checkRanges(b);
+    b.branches(this, ifTrue, ifFalse);
+  }
 }
 
 //----------------------------------------------------------------------------
@@ -991,6 +2399,10 @@ class Print extends Stmt {
   private Expr exp;
   Print(Expr exp) { this.exp = exp; }
 
+  /** Records the position of the call to print (see Call.site).
+   */
+  private int site;
+
   void print(int ind) {
     indent(ind);
     System.out.println("print " + exp.show() + ";");
@@ -1005,13 +2417,62 @@ class Print extends Stmt {
   boolean compile(Assembly a, Frame f) {
     // Print is implemented by calling a runtime library
     // function called "print" that takes one argument:
-    CallFrame cf = f.prepareCallFrame(a, 1);
+    CallFrame cf = f.prepareCallFrame(a, 1, site);
     exp.compileExpr(a, cf);
     cf.saveArg(a);
     cf.call(a, "print");
-    f.removeCallFrame(a);
+    f.removeCallFrame(a, site);
     return true;
   }
+
+  void liveness(RegAlloc ra) {
+    site = ra.here();
+    exp.liveness(ra);
+    ra.call();
+  }
+
+  void scan(Inliner in, int loops) {
+    in.size++;
+    exp.scan(in, loops);
+  }
+
+  Stmt copy(Inliner in, boolean tail) {
+    Expr e = exp.copy(in);
+    return (e==null) ? null : new Print(e);
+  }
+
+  /** A call that has been chosen for inlining is replaced by the body
+   *  of the function, saving its result in a new variable to print.
+   */
+  Stmt inline(Inliner in) {
+    exp      = exp.inline(in);
+    String v = Inliner.fresh("print");
+    Stmt   s = exp.expand(in, v, Inliner.declare(Type.INT, v, null));
+    return (s==null) ? this : Inliner.seq(s, new Print(new Var(v)));
+  }
+
+  void simplify() {
+    exp = exp.simplify();
+  }
+
+  /** Printing is not treated as a call by the loop optimizer, because
+   *  the runtime print function does not use global variables.
+   */
+  void loopScan(LoopOpt lo) {
+    exp.loopScan(lo);
+  }
+
+  void hoist(LoopOpt lo) {
+    exp = exp.hoist(lo);
+  }
+
+  Stmt optimizeLoops(LoopOpt lo) {
+    return this;
+  }
+
+  void checkRanges(Bounds b) {
+    exp.checkRanges(b);
+  }
 }
 
 //----------------------------------------------------------------------------
@@ -1054,11 +2515,73 @@ class Return extends Stmt {
 
   boolean compile(Assembly a, Frame f) {
       if (exp!=null) {
-         exp.compileExpr(a, f);
+         exp.compileReturn(a, f);
+      } else {
+         f.emitEpilogue(a);
       }
-      a.emitEpilogue();
       return false;
   }
+
+  void liveness(RegAlloc ra) {
+    if (exp!=null) {
+      exp.liveness(ra);
+    }
+  }
+
+  void scan(Inliner in, int loops) {
+    in.size++;
+    if (exp!=null) {
+      exp.scan(in, loops);
+    }
+  }
+
+  Stmt copy(Inliner in, boolean tail) {
+    Expr e = null;
+    if (exp!=null && (e=exp.copy(in))==null) {
+      return null;
+    }
+    return in.result(e, tail);
+  }
+
+  Stmt inline(Inliner in) {
+    if (exp!=null) {
+      exp    = exp.inline(in);
+      Stmt s = exp.expand(in, Inliner.RETURN, null);
+      if (s!=null) {
+        return s;
+      }
+    }
+    return this;
+  }
+
+  void simplify() {
+    if (exp!=null) {
+      exp = exp.simplify();
+    }
+  }
+
+  void loopScan(LoopOpt lo) {
+    if (exp!=null) {
+      exp.loopScan(lo);
+    }
+    lo.ret();
+  }
+
+  void hoist(LoopOpt lo) {
+    if (exp!=null) {
+      exp = exp.hoist(lo);
+    }
+  }
+
+  Stmt optimizeLoops(LoopOpt lo) {
+    return this;
+  }
+
+  void checkRanges(Bounds b) {
+    if (exp!=null) {
+      exp.checkRanges(b);
+    }
+  }
 }
 
 //----------------------------------------------------------------------------
@@ -1088,6 +2611,92 @@ class VarDecl extends Stmt {
     f.dump(a);
     return true;
   }
+
+  void liveness(RegAlloc ra) {
+    for (int i=0; i<vars.length; i++) {
+      vars[i].liveness(ra);
+    }
+  }
+
+  void scan(Inliner in, int loops) {
+    in.size++;
+    for (int i=0; i<vars.length; i++) {
+      vars[i].scan(in, loops);
+    }
+  }
+
+  Stmt copy(Inliner in, boolean tail) {
+    VarIntro[] vs = new VarIntro[vars.length];
+    for (int i=0; i<vars.length; i++) {
+      if ((vs[i]=vars[i].copy(in))==null) {
+        return null;
+      }
+    }
+    return new VarDecl(type, vs);
+  }
+
+  /** A variable whose initializer is a call that has been chosen for
+   *  inlining is declared separately, and then set by the body of the
+   *  function.  The remaining variables are left in declarations of
+   *  their own, so that the order of the declarations is preserved.
+   */
+  Stmt inline(Inliner in) {
+    Stmt code  = null;
+    int  start = 0;
+    for (int i=0; i<vars.length; i++) {
+      Stmt s = vars[i].inline(in, type);
+      if (s!=null) {
+        code  = Inliner.seq(code, Inliner.seq(part(start, i), s));
+        start = i+1;
+      }
+    }
+    return (code==null) ? this : Inliner.seq(code, part(start, vars.length));
+  }
+
+  void simplify() {
+    for (int i=0; i<vars.length; i++) {
+      vars[i].simplify();
+    }
+  }
+
+  void loopScan(LoopOpt lo) {
+    for (int i=0; i<vars.length; i++) {
+      vars[i].loopScan(lo);
+    }
+  }
+
+  void hoist(LoopOpt lo) {
+    for (int i=0; i<vars.length; i++) {
+      vars[i].hoist(lo);
+    }
+  }
+
+  Stmt optimizeLoops(LoopOpt lo) {
+    for (int i=0; i<vars.length; i++) {
+      lo.local(vars[i].name);
+    }
+    return this;
+  }
+
+  void checkRanges(Bounds b) {
+    for (int i=0; i<vars.length; i++) {
+      vars[i].checkRanges(b);
+    }
+  }
+
+  /** Return a declaration for the variables from start up to (but not
+   *  including) end, or null if there are no such variables.
+   */
+  private Stmt part(int start, int end) {
+    if (start>=end) {
+      return null;
+    }
+    VarIntro[] vs = new VarIntro[end-start];
+    for (int i=start; i<end; i++) {
+      vs[i-start] = vars[i];
+    }
+    return new VarDecl(type, vs);
+  }
 }
 
 //----------------------------------------------------------------------------
@@ -1117,6 +2726,65 @@ class VarIntro {
     return te = new TypeEnv(name, type, env);
   }
 
+  /** Records the live interval for this variable, or null if it has
+   *  not been considered for register allocation.
+   */
+  protected Interval live;
+
+  /** Record the definition of this variable for the register allocator.
+   */
+  void liveness(RegAlloc ra) {
+    live = ra.define(name, false);
+  }
+
+  void scan(Inliner in, int loops) {
+    in.local(name);
+  }
+
+  VarIntro copy(Inliner in) {
+    return new VarIntro(in.define(name));
+  }
+
+  /** Replace calls that have been chosen for inlining in the initializer
+   *  for this variable.  Returns a statement to use in place of this
+   *  variable introduction if the initializer itself is inlined, or
+   *  else null.
+   */
+  Stmt inline(Inliner in, Type type) {
+    return null;
+  }
+
+  /** Simplify the initializer, if any, for this variable.
+   */
+  void simplify() {
+    // No initializer
+  }
+
+  /** Record the variable introduced here for the loop optimizer.
+   */
+  void loopScan(LoopOpt lo) {
+    lo.declare(name);
+  }
+
+  /** Rewrite the initializer, if any, for the loop optimizer.
+   */
+  void hoist(LoopOpt lo) {
+    // No initializer
+  }
+
+  /** Record the variable introduced here for the range analysis.
+   */
+  void checkRanges(Bounds b) {
+    b.declare(name, null);
+  }
+
+  /** Return the register allocated to this variable, or null if the
+   *  variable should be stored on the stack.
+   */
+  Reg getReg() {
+    return (live==null) ? null : live.reg;
+  }
+
   /** Extend the global environment with an entry for the variable
    *  that is introduced here, using the given type.
    */
@@ -1134,7 +2802,7 @@ class VarIntro {
 
   void compile(Assembly a, Type type, Frame f) {
       // If no explicit initializer is given, initialize with zero:
-      f.allocLocal(a, name, type, a.immed(0));
+      f.allocLocal(a, name, type, a.immed(0), getReg());
   }
 
   /** Generate code to initialize local variables introduced
@@ -1174,7 +2842,45 @@ class InitVarIntro extends VarIntro {
   void compile(Assembly a, Type type, Frame f) {
     // Evaluate the initializer expression and save the result:
     expr.compileExpr(a, f);
-    f.allocLocal(a, name, type, f.free64());
+    f.allocLocal(a, name, type, f.free64(), getReg());
+  }
+
+  void liveness(RegAlloc ra) {
+    expr.liveness(ra);
+    super.liveness(ra);
+  }
+
+  void scan(Inliner in, int loops) {
+    expr.scan(in, loops);
+    super.scan(in, loops);
+  }
+
+  VarIntro copy(Inliner in) {
+    Expr e = expr.copy(in);
+    return (e==null) ? null : new InitVarIntro(in.define(name), e);
+  }
+
+  Stmt inline(Inliner in, Type type) {
+    expr = expr.inline(in);
+    return expr.expand(in, name, Inliner.declare(type, name, null));
+  }
+
+  void simplify() {
+    expr = expr.simplify();
+  }
+
+  void loopScan(LoopOpt lo) {
+    expr.loopScan(lo);
+    lo.declare(name);
+  }
+
+  void hoist(LoopOpt lo) {
+    expr = expr.hoist(lo);
+  }
+
+  void checkRanges(Bounds b) {
+    expr.checkRanges(b);
+    b.declare(name, expr);
   }
 
   /** Generate code to initialize local variables introduced
@@ -1248,14 +2954,24 @@ class For extends Stmt {
 
     String lab1 = a.newLabel();
     String lab2 = a.newLabel();
+    String lab3 = a.newLabel();  // continue with the step
 
     // make sure init isn't null
     if (init!=null) {
       init.compileExpr(a,f);
     }
+    JumpTarget oldBreak = f.getBreak();
+    JumpTarget oldCont  = f.getContinue();
+    JumpTarget exit     = f.newTarget(a.newLabel());
+    JumpTarget cont     = f.newTarget(lab3);
+    f.setBreak(exit);
+    f.setContinue(cont);
     a.emit("jmp", lab2);
     a.emitLabel(lab1);
     body.compileBlock(a,f);
+    if (cont.used) {
+      a.emitLabel(lab3);
+    }
     // make sure step isn't null
     if (step!=null) {
       step.compileExpr(a,f);
@@ -1270,9 +2986,126 @@ class For extends Stmt {
      // l1 i.e. the body of the loop 
       a.emit("jmp", lab1);
     }
-    
-    
-    return true;
+    f.setBreak(oldBreak);
+    f.setContinue(oldCont);
+    if (exit.used) {
+      a.emitLabel(exit.label);
+    }
+
+    // Without a test, the loop can only be left by a break:
+    return test!=null || exit.used;
+  }
+
+  void liveness(RegAlloc ra) {
+    if (init!=null) {
+      init.liveness(ra);
+    }
+    int start = ra.here();
+    if (test!=null) {
+      test.liveness(ra);
+    }
+    body.livenessBlock(ra);
+    if (step!=null) {
+      step.liveness(ra);
+    }
+    ra.loop(start);
+  }
+
+  void scan(Inliner in, int loops) {
+    in.size++;
+    if (init!=null) {
+      init.scan(in, loops);
+    }
+    if (test!=null) {
+      test.scan(in, loops+1);
+    }
+    if (step!=null) {
+      step.scan(in, loops+1);
+    }
+    body.scan(in, loops+1);
+  }
+
+  Stmt copy(Inliner in, boolean tail) {
+    StmtExpr i = null;
+    Expr     t = null;
+    StmtExpr s = null;
+    if ((init!=null && (i=init.copy(in))==null)
+     || (test!=null && (t=test.copy(in))==null)
+     || (step!=null && (s=step.copy(in))==null)) {
+      return null;
+    }
+    Stmt b = body.copyBlock(in, false);
+    return (b==null) ? null : new For(i, t, s, b);
+  }
+
+  Stmt inline(Inliner in) {
+    if (init!=null) {
+      init.inlineParts(in);
+    }
+    if (test!=null) {
+      test = test.inline(in);
+    }
+    if (step!=null) {
+      step.inlineParts(in);
+    }
+    body = body.inline(in);
+    return this;
+  }
+
+  void simplify() {
+    if (init!=null) {
+      init.simplifyParts();
+    }
+    if (test!=null) {
+      test = test.simplify();
+    }
+    if (step!=null) {
+      step.simplifyParts();
+    }
+    body.simplify();
+  }
+
+  /** The initializer is treated as part of the loop, because it is
+   *  executed after any new declarations are made.
+   */
+  void loopScan(LoopOpt lo) {
+    if (init!=null) {
+      init.loopScan(lo);
+    }
+    if (test!=null) {
+      test.loopScan(lo);
+    }
+    if (step!=null) {
+      step.loopScan(lo);
+    }
+    body.loopScan(lo);
+  }
+
+  void hoist(LoopOpt lo) {
+    if (init!=null) {
+      init.hoistParts(lo);
+    }
+    if (test!=null) {
+      test = test.hoist(lo);
+    }
+    if (step!=null) {
+      step.hoistParts(lo);
+    }
+    body.hoist(lo);
+  }
+
+  Stmt optimizeLoops(LoopOpt lo) {
+    body = body.optimizeLoopsBlock(lo);
+    return lo.optimize(this);
+  }
+
+  /** The initializer is executed once, before the loop starts.
+   */
+  void checkRanges(Bounds b) {
+    if (init!=null) {
+      init.checkRanges(b);
+    }
+    b.loop(this, test, body, step);
   }
 }
 
@@ -1303,8 +3136,59 @@ class DoWhile extends Stmt {
 
   boolean compile(Assembly a, Frame f) {
     System.err.println("DoWhile compile() method NOT IMPLEMENTED");
-    System.exit(1);
-    return false; // not reached
+    throw new Exit(1);
+  }
+
+  void liveness(RegAlloc ra) {
+    int start = ra.here();
+    body.livenessBlock(ra);
+    test.liveness(ra);
+    ra.loop(start);
+  }
+
+  void scan(Inliner in, int loops) {
+    in.size++;
+    body.scan(in, loops+1);
+    test.scan(in, loops+1);
+  }
+
+  Stmt copy(Inliner in, boolean tail) {
+    Stmt b = body.copyBlock(in, false);
+    Expr t = (b==null) ? null : test.copy(in);
+    return (t==null) ? null : new DoWhile(b, t);
+  }
+
+  Stmt inline(Inliner in) {
+    body = body.inline(in);
+    test = test.inline(in);
+    return this;
+  }
+
+  void simplify() {
+    body.simplify();
+    test = test.simplify();
+  }
+
+  void loopScan(LoopOpt lo) {
+    body.loopScan(lo);
+    test.loopScan(lo);
+  }
+
+  void hoist(LoopOpt lo) {
+    body.hoist(lo);
+    test = test.hoist(lo);
+  }
+
+  Stmt optimizeLoops(LoopOpt lo) {
+    body = body.optimizeLoopsBlock(lo);
+    return lo.optimize(this);
+  }
+
+  /** The test is treated as part of the body, because it is only
+   *  evaluated after the body.
+   */
+  void checkRanges(Bounds b) {
+    b.loop(this, null, body, test);
   }
 }
 
@@ -1328,9 +3212,44 @@ class Break extends Stmt {
   }
 
   boolean compile(Assembly a, Frame f) {
-    System.err.println("Break compile() method NOT IMPLEMENTED");
-    System.exit(1);
-    return false; // not reached
+    f.jumpTo(a, f.getBreak());
+    return false;
+  }
+
+  void liveness(RegAlloc ra) {
+    // No variables are used here
+  }
+
+  void scan(Inliner in, int loops) {
+    in.size++;
+  }
+
+  Stmt copy(Inliner in, boolean tail) {
+    return new Break();
+  }
+
+  Stmt inline(Inliner in) {
+    return this;
+  }
+
+  void simplify() {
+    // Nothing to simplify
+  }
+
+  void loopScan(LoopOpt lo) {
+    // No variables are used here
+  }
+
+  void hoist(LoopOpt lo) {
+    // Nothing to rewrite
+  }
+
+  Stmt optimizeLoops(LoopOpt lo) {
+    return this;
+  }
+
+  void checkRanges(Bounds b) {
+    // No array accesses here
   }
 }
 
@@ -1354,9 +3273,44 @@ class Continue extends Stmt {
   }
 
   boolean compile(Assembly a, Frame f) {
-    System.err.println("Continue compile() method NOT IMPLEMENTED");
-    System.exit(1);
-    return false; // not reached
+    f.jumpTo(a, f.getContinue());
+    return false;
+  }
+
+  void liveness(RegAlloc ra) {
+    // No variables are used here
+  }
+
+  void scan(Inliner in, int loops) {
+    in.size++;
+  }
+
+  Stmt copy(Inliner in, boolean tail) {
+    return new Continue();
+  }
+
+  Stmt inline(Inliner in) {
+    return this;
+  }
+
+  void simplify() {
+    // Nothing to simplify
+  }
+
+  void loopScan(LoopOpt lo) {
+    // No variables are used here
+  }
+
+  void hoist(LoopOpt lo) {
+    // Nothing to rewrite
+  }
+
+  Stmt optimizeLoops(LoopOpt lo) {
+    return this;
+  }
+
+  void checkRanges(Bounds b) {
+    // No array accesses here
   }
 }
 
@@ -1383,19 +3337,212 @@ class Switch extends Stmt {
   TypeEnv check(Context ctxt, boolean canContinue, boolean canBreak, TypeEnv env)
    throws StaticError {
     test.require(ctxt, env, Type.INT);
+    int[]   nums  = new int[cases.length];
+    int     count = 0;
+    boolean dflt  = false;
     for (int i=0; i<cases.length; i++) {
       cases[i].check(ctxt, canContinue, env);
-      for (int j=i+1; j<cases.length; j++) {
-        cases[i].distinctFrom(cases[j]);
+      Integer num = cases[i].num();
+      if (num==null) {
+        if (dflt) {
+          throw new StaticError("switch statement contains two default cases");
+        }
+        dflt = true;
+      } else {
+        nums[count++] = num;
+      }
+    }
+    // Any duplicate case values will be next to each other once sorted:
+    Arrays.sort(nums, 0, count);
+    for (int i=1; i<count; i++) {
+      if (nums[i]==nums[i-1]) {
+        throw new StaticError("switch statement contains two cases for " + nums[i]);
       }
     }
     return env;
   }
 
+  /** Use a jump table for a range of at least this many cases ...
+   */
+  static final int MIN_TABLE = 4;
+
+  /** ... so long as at least one in every DENSITY entries is used.
+   */
+  static final int DENSITY = 3;
+
+  /** Use a linear sequence of tests for at most this many cases.
+   */
+  static final int MAX_LINEAR = 3;
+
   boolean compile(Assembly a, Frame f) {
-    System.err.println("Switch compile() method NOT IMPLEMENTED");
-    System.exit(1);
-    return false; // not reached
+    // Each case body starts with a new label and falls through to the
+    // next; a break goes to the exit label.
+    JumpTarget exit   = f.newTarget(a.newLabel());
+    String     dflt   = null;
+    String[]   labels = new String[cases.length];
+    int        count  = 0;
+    for (int i=0; i<cases.length; i++) {
+      labels[i] = a.newLabel();
+      if (cases[i].num()==null) {
+        dflt = labels[i];
+      } else {
+        count++;
+      }
+    }
+
+    // Sort the numbered cases by value:
+    Integer[] order = new Integer[count];
+    for (int i=0, n=0; i<cases.length; i++) {
+      if (cases[i].num()!=null) {
+        order[n++] = i;
+      }
+    }
+    Arrays.sort(order, (x, y) -> Integer.compare(cases[x].num(), cases[y].num()));
+    int[]    keys    = new int[count];
+    String[] targets = new String[count];
+    for (int i=0; i<count; i++) {
+      keys[i]    = cases[order[i]].num();
+      targets[i] = labels[order[i]];
+    }
+
+    test.compileExpr(a, f);
+    dispatch(a, f, keys, targets, 0, count, (dflt==null) ? exit.label : dflt);
+
+    JumpTarget oldBreak = f.getBreak();
+    f.setBreak(exit);
+    boolean c = true;
+    for (int i=0; i<cases.length; i++) {
+      a.emitLabel(labels[i]);
+      c = cases[i].compile(a, f);
+    }
+    f.setBreak(oldBreak);
+    if (c || exit.used || dflt==null) {
+      a.emitLabel(exit.label);
+      return true;
+    }
+    return false;
+  }
+
+  /** Generate code to jump to the target for whichever of the keys in
+   *  positions lo (inclusive) to hi (exclusive) matches the value in the
+   *  free register, or to dflt if there is no match.  Dense ranges of
+   *  keys use a jump table; otherwise, a binary search is used to split
+   *  the range in two, with a linear sequence of tests for small ranges.
+   */
+  private static void dispatch(Assembly a, Frame f, int[] keys,
+                               String[] targets, int lo, int hi, String dflt) {
+    int    n     = hi - lo;
+    long   range = (n==0) ? 0 : (long)keys[hi-1] - keys[lo] + 1;
+    String v     = f.free32();
+    if (n>=MIN_TABLE && range<=(long)DENSITY*n) {
+      String[] table = new String[(int)range];
+      Arrays.fill(table, dflt);
+      for (int i=lo; i<hi; i++) {
+        table[keys[i]-keys[lo]] = targets[i];
+      }
+      // An unsigned comparison catches values on either side of the
+      // range, and leaves a zero extended index in the 64 bit register:
+      if (keys[lo]!=0) {
+        a.emit("subl", a.immed(keys[lo]), v);
+      } else {
+        a.emit("movl", v, v);       // Clear the upper half
+      }
+      a.emit("cmpl", a.immed(table.length-1), v);
+      a.emit("ja",   dflt);
+      String idx  = f.free64();
+      String base = f.spill64(a);   // Never needs to push in a statement
+      String tab  = a.newLabel();
+      a.emit("leaq",   tab + "(%rip)", base);
+      a.emit("movslq", a.indexed(base, idx, 4), idx);
+      a.emit("addq",   base, idx);
+      a.emit("jmp",    "*" + idx);
+      f.unspill(a);
+      a.emitJumpTable(tab, table);
+    } else if (n<=MAX_LINEAR) {
+      for (int i=lo; i<hi; i++) {
+        a.emit("cmpl", a.immed(keys[i]), v);
+        a.emit("je",   targets[i]);
+      }
+      a.emit("jmp", dflt);
+    } else {
+      int    mid = lo + n/2;
+      String low = a.newLabel();
+      a.emit("cmpl", a.immed(keys[mid]), v);
+      a.emit("jl",   low);
+      dispatch(a, f, keys, targets, mid, hi, dflt);
+      a.emitLabel(low);
+      dispatch(a, f, keys, targets, lo, mid, dflt);
+    }
+  }
+
+  void liveness(RegAlloc ra) {
+    test.liveness(ra);
+    for (int i=0; i<cases.length; i++) {
+      cases[i].liveness(ra);
+    }
+  }
+
+  void scan(Inliner in, int loops) {
+    in.size++;
+    test.scan(in, loops);
+    for (int i=0; i<cases.length; i++) {
+      cases[i].scan(in, loops);
+    }
+  }
+
+  Stmt copy(Inliner in, boolean tail) {
+    Expr t = test.copy(in);
+    if (t==null) {
+      return null;
+    }
+    Case[] cs = new Case[cases.length];
+    for (int i=0; i<cases.length; i++) {
+      if ((cs[i]=cases[i].copy(in))==null) {
+        return null;
+      }
+    }
+    return new Switch(t, cs);
+  }
+
+  Stmt inline(Inliner in) {
+    test = test.inline(in);
+    for (int i=0; i<cases.length; i++) {
+      cases[i].inline(in);
+    }
+    return this;
+  }
+
+  void simplify() {
+    test = test.simplify();
+    for (int i=0; i<cases.length; i++) {
+      cases[i].simplify();
+    }
+  }
+
+  void loopScan(LoopOpt lo) {
+    test.loopScan(lo);
+    for (int i=0; i<cases.length; i++) {
+      cases[i].loopScan(lo);
+    }
+  }
+
+  void hoist(LoopOpt lo) {
+    test = test.hoist(lo);
+    for (int i=0; i<cases.length; i++) {
+      cases[i].hoist(lo);
+    }
+  }
+
+  Stmt optimizeLoops(LoopOpt lo) {
+    for (int i=0; i<cases.length; i++) {
+      cases[i].optimizeLoops(lo);
+    }
+    return this;
+  }
+
+  void checkRanges(Bounds b) {
+    test.checkRanges(b);
+    b.cases(this, cases);
   }
 }
 
@@ -1415,12 +3562,87 @@ abstract class Case {
     }
   }
 
-  // Methods for checking that cases are disjoint: a single
-  // switch statement should not two default cases or two
-  // numeric cases with the same integer value.
-  abstract void distinctFrom(Case that) throws StaticError;
-  abstract void notCaseFor(int num)     throws StaticError;
-  abstract void notDefault()            throws StaticError;
+  /** Generate code for the body of this case, returning true if
+   *  execution may fall through to the next case.
+   */
+  boolean compile(Assembly a, Frame f) {
+    return body==null || body.compileBlock(a, f);
+  }
+
+  void liveness(RegAlloc ra) {
+    if (body!=null) {
+      body.livenessBlock(ra);
+    }
+  }
+
+  void scan(Inliner in, int loops) {
+    if (body!=null) {
+      body.scan(in, loops);
+    }
+  }
+
+  Case copy(Inliner in) {
+    Stmt b = null;
+    if (body!=null && (b=body.copyBlock(in, false))==null) {
+      return null;
+    }
+    return make(b);
+  }
+
+  /** Make a new case with the same label as this one.
+   */
+  abstract Case make(Stmt body);
+
+  void inline(Inliner in) {
+    if (body!=null) {
+      body = body.inline(in);
+    }
+  }
+
+  void simplify() {
+    if (body!=null) {
+      body.simplify();
+    }
+  }
+
+  /** Record the variables used in the body of this case for the loop
+   *  optimizer.
+   */
+  void loopScan(LoopOpt lo) {
+    if (body!=null) {
+      body.loopScan(lo);
+    }
+  }
+
+  /** Rewrite the body of this case for the loop optimizer.
+   */
+  void hoist(LoopOpt lo) {
+    if (body!=null) {
+      body.hoist(lo);
+    }
+  }
+
+  /** Optimize the loops in the body of this case.
+   */
+  void optimizeLoops(LoopOpt lo) {
+    if (body!=null) {
+      body = body.optimizeLoopsBlock(lo);
+    }
+  }
+
+  /** Remove bounds checks in the body of this case (see Bounds).
+   */
+  void checkRanges(Bounds b) {
+    if (body!=null) {
+      body.checkRanges(b);
+    }
+  }
+
+  /** Return the value for a numeric case, or null for a default case.
+   *  A single switch statement should not have two default cases or
+   *  two numeric cases with the same integer value.
+   */
+  abstract Integer num();
 }
 
 //----------------------------------------------------------------------------
@@ -1438,19 +3660,9 @@ class NumCase extends Case {
     }
   }
 
-  void distinctFrom(Case that) throws StaticError {
-    that.notCaseFor(num);
-  }
-
-  void notCaseFor(int num) throws StaticError {
-    if (this.num==num) {
-      throw new StaticError("switch statement contains two cases for " + num);
-    }
-  }
+  Integer num() { return num; }
 
-  void notDefault() throws StaticError {
-    /* this is not a default case, so no action is required. */
-  }
+  Case make(Stmt body) { return new NumCase(num, body); }
 }
 
 //----------------------------------------------------------------------------
@@ -1467,22 +3679,45 @@ class DefaultCase extends Case {
     }
   }
 
-  void distinctFrom(Case that) throws StaticError {
-    that.notDefault();
-  }
-
-  void notCaseFor(int num) throws StaticError {
-    /* this is not a number case, so no action is required. */
-  }
+  Integer num() { return null; }
 
-  void notDefault() throws StaticError {
-    throw new StaticError("switch statement contains two default cases");
-  }
+  Case make(Stmt body) { return new DefaultCase(body); }
 }
 
 //____________________________________________________________________________
 // Programs:
 
+//----------------------------------------------------------------------------
+/** Generates code for a range of definitions, splitting the range in
+ *  half until each part holds a single definition.  The code for each
+ *  definition goes into its own buffer, using the position of the
+ *  definition to pick a label namespace (namespace 0 is used for the
+ *  initGlobals function), so the output does not depend on the order
+ *  in which the parts are run.
+ */
+@SuppressWarnings("serial")
+class CompileTask extends RecursiveAction {
+  private Defn[]     defns;
+  private LocEnv     globals;
+  private Assembly[] parts;
+  private int        lo, hi;
+  CompileTask(Defn[] defns, LocEnv globals, Assembly[] parts, int lo, int hi) {
+    this.defns = defns; this.globals = globals; this.parts = parts;
+    this.lo    = lo;    this.hi      = hi;
+  }
+
+  protected void compute() {
+    if (hi-lo==1) {
+      parts[lo] = Assembly.assembleToBuffer(lo+1);
+      defns[lo].compileFunction(parts[lo], globals);
+    } else {
+      int mid = (lo+hi) >>> 1;
+      invokeAll(new CompileTask(defns, globals, parts, lo, mid),
+                new CompileTask(defns, globals, parts, mid, hi));
+    }
+  }
+}
+
 //----------------------------------------------------------------------------
 /** Abstract syntax for definitions (either global variables or functions.
  */
@@ -1506,7 +3741,8 @@ abstract class Defn {
    */
   static void compile(String name, Defn[] defns) {
     LocEnv   globals = null;
-    Assembly a       = Assembly.assembleToFile(name);
+    Assembly a       = ObjectFile.enabled ? Assembly.assembleToObject(name)
+                                          : Assembly.assembleToFile(name);
 
     a.emit();
     a.emit(".data");
@@ -1520,13 +3756,36 @@ abstract class Defn {
     // Emit a definition for the initGlobals function:
     Function.emitInitGlobals(a, defns, globals);
 
-    for (int i=0; i<defns.length; i++) {
-      defns[i].compileFunction(a, globals);
+    // With a single thread, or a single definition, generate the code
+    // for each function directly, using the label namespace that its
+    // buffer would have had.  Otherwise generate code for the functions
+    // in parallel, each in its own buffer, and then output the buffers
+    // in definition order:
+    if (threads<=1 || defns.length<=1) {
+      for (int i=0; i<defns.length; i++) {
+        a.useNamespace(i+1);
+        defns[i].compileFunction(a, globals);
+      }
+    } else {
+      Assembly[] parts = new Assembly[defns.length];
+      ForkJoinPool pool = new ForkJoinPool(threads);
+      try {
+        pool.invoke(new CompileTask(defns, globals, parts, 0, defns.length));
+      } finally {
+        pool.shutdown();
+      }
+      for (int i=0; i<defns.length; i++) {
+        a.emitCode(parts[i]);
+      }
     }
 
     a.close();
   }
 
+  /** The number of threads that are used to generate code.
+   */
+  static int threads = Runtime.getRuntime().availableProcessors();
+
   /** Declare storage for global variables.
    */
   abstract LocEnv declareGlobals(Assembly a, LocEnv env);
@@ -1539,6 +3798,25 @@ abstract class Defn {
    *  in this definition.
    */
   abstract void emitInitGlobals(Assembly a, Frame f);
+
+  /** Add the functions and global variables introduced in this
+   *  definition to the inliner.
+   */
+  abstract void addToInliner(Inliner in);
+
+  /** Simplify the expressions in this definition.
+   */
+  abstract void simplify();
+
+  /** Add the functions and global variables introduced in this
+   *  definition to the loop optimizer.
+   */
+  abstract void addToLoopOpt(LoopOpt lo);
+
+  /** Remove the bounds checks that the range analysis shows are not
+   *  needed from the functions in this definition (see Bounds).
+   */
+  abstract void checkRanges(Bounds b);
 }
 
 //----------------------------------------------------------------------------
@@ -1600,6 +3878,36 @@ class Globals extends Defn {
       vars[i].emitInitGlobals(a, f);
     }
   }
+
+  /** Add the functions and global variables introduced in this
+   *  definition to the inliner.
+   */
+  void addToInliner(Inliner in) {
+    for (int i=0; i<vars.length; i++) {
+      in.addGlobal(vars[i].name);
+    }
+  }
+
+  /** Simplify the expressions in this definition.
+   */
+  void simplify() {
+    for (int i=0; i<vars.length; i++) {
+      vars[i].simplify();
+    }
+  }
+
+  /** Add the global variables introduced in this definition to the
+   *  loop optimizer.
+   */
+  void addToLoopOpt(LoopOpt lo) {
+    for (int i=0; i<vars.length; i++) {
+      lo.addGlobal(vars[i].name, type);
+    }
+  }
+
+  void checkRanges(Bounds b) {
+    // Global initializers cannot allocate arrays
+  }
 }
 
 //----------------------------------------------------------------------------
@@ -1731,13 +4039,41 @@ class Function extends Defn {
   void compileFunction(Assembly a, LocEnv globals) {
     a.emit(".globl", a.name(name));
     a.emitLabel(a.name(name));
-    a.emitPrologue();
-    Frame f = new FunctionFrame(formals, globals);
+    FunctionFrame f = new FunctionFrame(name, formals, globals, allocateRegs());
+    f.emitPrologue(a);
     f.dump(a);
     if (body.compile(a, f)) {
-      a.emitEpilogue();
+      f.emitEpilogue(a);
+    }
+    if (leaf) {
+      f.omitFramePointer(a);
     }
     a.emit();
+    a.flush();
+  }
+
+  /** Set by allocateRegs() if this function makes no calls.
+   */
+  private boolean leaf;
+
+  /** Record the live intervals of the parameters and local variables of
+   *  this function and the positions of its calls, and then run the
+   *  register allocator, returning the list of registers that it uses.
+   *  A function that makes no calls uses caller saves registers first.
+   */
+  private Reg[] allocateRegs() {
+    RegAlloc ra = new RegAlloc();
+    for (int i=0; i<formals.length; i++) {
+      formals[i].liveness(ra, i<Reg.args.length);
+    }
+    body.liveness(ra);
+    leaf = ra.isLeaf();
+    if (!RegAlloc.enabled) {
+      return new Reg[0];
+    }
+    return ra.allocate((leaf && !Frame.fullFrames)
+                       ? RegAlloc.leafRegs(formals.length)
+                       : Reg.calleeSaves);
   }
 
   /** Generate code for the initGlobals function.
@@ -1748,15 +4084,17 @@ class Function extends Defn {
 
     a.emit(".globl", a.name(name));
     a.emitLabel(a.name(name));
-    a.emitPrologue();
-    Frame f = new FunctionFrame(formals, globals);
+    FunctionFrame f = new FunctionFrame(name, formals, globals);
+    f.emitPrologue(a);
 
     for (int i=0; i<defns.length; i++) { // Initialize each global
       defns[i].emitInitGlobals(a, f);
     }
 
-    a.emitEpilogue();
+    f.emitEpilogue(a);
+    f.omitFramePointer(a);  // initializers cannot make calls
     a.emit();
+    a.flush();
   }
 
   /** Generate code to initialize local variables introduced
@@ -1765,6 +4103,71 @@ class Function extends Defn {
   void emitInitGlobals(Assembly a, Frame f) {
     // No global variables introduced in a function definition!
   }
+
+  /** Add the functions and global variables introduced in this
+   *  definition to the inliner.
+   */
+  void addToInliner(Inliner in) {
+    in.addFunction(this);
+  }
+
+  /** Record the size, calls, and local variables of this function
+   *  for the inliner.
+   */
+  void scan(Inliner in) {
+    for (int i=0; i<formals.length; i++) {
+      in.local(formals[i].getName());
+    }
+    body.scan(in, 0);
+  }
+
+  /** Replace the calls in the body of this function that have been
+   *  chosen for inlining.
+   */
+  void inline(Inliner in) {
+    body = body.inline(in);
+  }
+
+  /** Simplify the expressions in the body of this function.
+   */
+  void simplify() {
+    body.simplify();
+  }
+
+  /** Add this function to the loop optimizer.
+   */
+  void addToLoopOpt(LoopOpt lo) {
+    lo.addFunction(this);
+  }
+
+  /** Optimize the loops in the body of this function.
+   */
+  void optimizeLoops(LoopOpt lo) {
+    for (int i=0; i<formals.length; i++) {
+      lo.local(formals[i].getName());
+    }
+    body = body.optimizeLoops(lo);
+  }
+
+  void checkRanges(Bounds b) {
+    b.function(formals, body);
+  }
+
+  /** Return the name of this function.
+   */
+  String getName() { return name; }
+
+  /** Return the formal parameters of this function.
+   */
+  Formal[] getFormals() { return formals; }
+
+  /** Return the return type of this function (null for void).
+   */
+  Type getRetType() { return retType; }
+
+  /** Return the body of this function.
+   */
+  Stmt getBody() { return body; }
 }
 
 //----------------------------------------------------------------------------
@@ -1818,6 +4221,31 @@ class Formal {
     return type;
   }
 
+  /** Records the live interval for this parameter, or null if it has
+   *  not been considered for register allocation.
+   */
+  private Interval live;
+
+  /** Record the definition of this parameter for the register allocator.
+   */
+  void liveness(RegAlloc ra, boolean inArgReg) {
+    live = ra.define(name, inArgReg);
+  }
+
+  /** Return the callee saves register allocated to this parameter, or
+   *  null if it should be left where it was passed.
+   */
+  Reg getReg() {
+    return (live==null) ? null : live.reg;
+  }
+
+  /** Return true if this parameter might be used after the given
+   *  position in the walk made by the register allocator.
+   */
+  boolean isLiveAfter(int pos) {
+    return live==null || live.end>pos;
+  }
+
   /** Check to see if this array of formal parameter includes
    *  two definitions for the same variable name.
    */
@@ -1,4 +1,5 @@
 #include <stdio.h>
+#include <stdlib.h>
 
 extern void Xmain(void);
 extern void XinitGlobals();
@@ -13,3 +14,34 @@ int main(int argc, char** argv) {
 void Xprint(int val) {
     printf("output: %d\n", val);
 }
+
+/* Allocate an array with the given length and element size, with every
+ * element set to zero.  The length is stored in the 8 bytes before the
+ * first element, which is where the compiled code expects to find it.
+ * The compiled code only aligns the stack for calls on platforms that
+ * need it, and the library functions used here may not work without
+ * the alignment, so it is restored on entry.
+ */
+__attribute__((force_align_arg_pointer))
+void* Xnew(int length, int size) {
+    if (length<0) {
+        fprintf(stderr, "Negative array length %d\n", length);
+        exit(1);
+    }
+    long* p = calloc(1, 8 + (long)length * size);
+    if (p==NULL) {
+        fprintf(stderr, "Out of memory allocating an array of length %d\n", length);
+        exit(1);
+    }
+    *(int*)p = length;
+    return p + 1;
+}
+
+/* Called (by a jump, rather than a call, so the stack may not be
+ * aligned) when an array index is out of bounds.
+ */
+__attribute__((force_align_arg_pointer))
+void XboundsError(void) {
+    fprintf(stderr, "Array index out of bounds\n");
+    exit(1);
+}
@@ -0,0 +1,146 @@
+//----------------------------------------------------------------------------
+import java.util.Random;
+import llvm.Block;
+import llvm.BoolVal;
+import llvm.CFG;
+import llvm.Code;
+import llvm.Cond;
+import llvm.Goto;
+import llvm.RetVoid;
+
+//____________________________________________________________________________
+/** Times the analyses in llvm.CFG on synthetic control flow graphs of
+ *  increasing size, to check that the time per block stays the same as
+ *  the graphs get larger.  Run using "make bench".
+ */
+class CFGBench {
+  public static void main(String[] args) {
+    int[] sizes = { 10000, 20000, 40000, 80000 };
+    System.out.println("shape      blocks     build  dominators  frontiers"
+                     + "  postdoms     loops  (ns per block)");
+    for (int i=0; i<sizes.length; i++) {
+      int n = sizes[i];
+      time("diamonds", () -> diamonds(n));
+      time("loops",    () -> loops(n, 8));
+      time("nest",     () -> loops(n, (n-2)/2));
+      time("random",   () -> random(n));
+    }
+  }
+
+  /** Makes a new copy of a synthetic function.
+   */
+  interface Shape {
+    llvm.Function make();
+  }
+
+  /** Time each analysis on a function of the given shape, showing the
+   *  best of several runs, after some runs to warm up the JIT, divided
+   *  by the number of blocks that can be reached.
+   */
+  static void time(String name, Shape shape) {
+    long[] best = new long[5];
+    int    n    = 0;
+    for (int run=0; run<15; run++) {
+      llvm.Function fn = shape.make();
+      long[] t = new long[6];
+      t[0]  = System.nanoTime();
+      CFG g = fn.cfg();
+      t[1]  = System.nanoTime();
+      g.idom(0);
+      t[2]  = System.nanoTime();
+      g.frontier(0);
+      t[3]  = System.nanoTime();
+      g.ipdom(0);
+      t[4]  = System.nanoTime();
+      g.loops();
+      t[5]  = System.nanoTime();
+      n     = g.size();
+      for (int i=0; i<5; i++) {
+        if (run==5 || (run>5 && t[i+1]-t[i]<best[i])) {
+          best[i] = t[i+1]-t[i];
+        }
+      }
+    }
+    System.out.println(String.format("%-8s %8d %9d %11d %10d %9d %9d",
+                       name, n, best[0]/n, best[1]/n, best[2]/n,
+                       best[3]/n, best[4]/n));
+  }
+
+  /** Add n blocks to a function, with code to be filled in later, and
+   *  the first as the entry.
+   */
+  static Block[] blocks(llvm.Function fn, int n) {
+    Block[] bs = new Block[n];
+    for (int i=n-1; i>=0; i--) {    // the entry, bs[0], is added last
+      bs[i] = fn.block();
+    }
+    return bs;
+  }
+
+  /** A conditional branch to one of two blocks.
+   */
+  static Code branch(Block t, Block f) {
+    return new Cond(BoolVal.TRUE, t, f);
+  }
+
+  /** A sequence of if-then-else statements.
+   */
+  static llvm.Function diamonds(int n) {
+    llvm.Function fn = new llvm.Function(null, "diamonds", new llvm.Formal[0]);
+    Block[]       bs = blocks(fn, n);
+    int           i  = 0;
+    for (; i+3<n; i+=3) {
+      bs[i].set(branch(bs[i+1], bs[i+2]));
+      bs[i+1].set(new Goto(bs[i+3]));
+      bs[i+2].set(new Goto(bs[i+3]));
+    }
+    for (; i<n-1; i++) {
+      bs[i].set(new Goto(bs[i+1]));
+    }
+    bs[n-1].set(new RetVoid());
+    return fn;
+  }
+
+  /** A sequence of loops, each nested to the given depth, with a test at
+   *  the top of each loop.
+   */
+  static llvm.Function loops(int n, int depth) {
+    llvm.Function fn = new llvm.Function(null, "loops", new llvm.Formal[0]);
+    Block[]       bs = blocks(fn, n);
+    int           i  = 0;
+    while (i+2*depth+1<n) {
+      // Headers at i .. i+depth-1, the innermost body at i+depth, and the
+      // exits from each loop at i+depth+1 .. i+2*depth:
+      for (int d=0; d<depth; d++) {
+        bs[i+d].set(branch(bs[i+d+1], bs[i+2*depth-d]));
+      }
+      bs[i+depth].set(new Goto(bs[i+depth-1]));
+      for (int d=0; d<depth-1; d++) {
+        bs[i+depth+1+d].set(new Goto(bs[i+depth-2-d]));
+      }
+      bs[i+2*depth].set(new Goto(bs[i+2*depth+1]));
+      i += 2*depth+1;
+    }
+    for (; i<n-1; i++) {
+      bs[i].set(new Goto(bs[i+1]));
+    }
+    bs[n-1].set(new RetVoid());
+    return fn;
+  }
+
+  /** Blocks that branch forward, and sometimes back, at random, which
+   *  gives irreducible control flow.
+   */
+  static llvm.Function random(int n) {
+    llvm.Function fn  = new llvm.Function(null, "random", new llvm.Formal[0]);
+    Block[]       bs  = blocks(fn, n);
+    Random        rnd = new Random(42);
+    for (int i=0; i<n-1; i++) {
+      int j = i+1+rnd.nextInt(Math.min(10, n-1-i));
+      int k = (rnd.nextInt(4)==0) ? Math.max(0, i-rnd.nextInt(50)) : i+1;
+      bs[i].set(branch(bs[j], bs[k]));
+    }
+    bs[n-1].set(new RetVoid());
+    return fn;
+  }
+}
@@ -0,0 +1,164 @@
+import java.util.Vector;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+
+/** Implements an escape analysis that finds the arrays that cannot be
+ *  used after the function that allocates them has returned, so that
+ *  they can be allocated on the stack instead of by a call to
+ *  XallocArray, which uses malloc and never frees the space.  The pass
+ *  runs on the program after static analysis (and inlining), when each
+ *  variable has been resolved to its location.
+ *
+ *  The analysis builds a graph for the whole program whose nodes are the
+ *  allocation sites (new expressions), the local variables and
+ *  parameters of each function, and a single node that stands for
+ *  everywhere that an array escapes to.  There is an edge from one node
+ *  to another when a value that the first holds may be copied to the
+ *  second: by an assignment or initializer for a local variable, or by
+ *  passing an argument to a call, which copies it to the parameter of
+ *  the called function.  A value that is returned, stored in a global
+ *  variable, or stored in an element of an array (which may itself
+ *  escape) is copied to the escape node.  Values that are only indexed,
+ *  have their length taken, or are compared do not go anywhere.  An
+ *  array escapes if there is a path from its allocation site to the
+ *  escape node; so an array that is passed to a function that only
+ *  reads it does not escape, but one that is passed to a function that
+ *  returns or stores its parameter does.  The graph does not depend on
+ *  the order of the statements, so a variable that holds an escaping
+ *  array anywhere in a function makes every array that it holds escape.
+ *
+ *  An array that does not escape is allocated on the stack if it is an
+ *  int[] array, its size is a constant of at most maxLength elements,
+ *  and it is not allocated inside a loop.  The space, including the
+ *  slot for the length, is allocated in the entry block of the function
+ *  with the slots for its local variables, so a site inside a loop would
+ *  reuse the same space for arrays that may still be in use.
+ */
+class Escape {
+  /** Set to false to allocate every array on the heap.
+   */
+  static boolean enabled = true;
+
+  /** The largest number of elements in an array that will be allocated
+   *  on the stack.
+   */
+  static int maxLength = 1024;
+
+  // Statistics for the whole program:
+  static int sites     = 0;  // allocation sites found
+  static int converted = 0;  // allocation sites moved to the stack
+  static int bytes     = 0;  // heap space saved each time they are run
+
+  /** Stands for everywhere that an array can escape to.
+   */
+  static final Object ESCAPES = "escapes";
+
+  /** Maps each node of the graph to the nodes that its values may be
+   *  copied to.
+   */
+  private HashMap<Object,Vector<Object>> flows
+    = new HashMap<Object,Vector<Object>>();
+
+  /** The allocation sites that could be moved to the stack if they do
+   *  not escape, with the function that each appears in.
+   */
+  private LinkedHashMap<NewArray,Function> candidates
+    = new LinkedHashMap<NewArray,Function>();
+
+  /** The function that is being scanned.
+   */
+  private Function current;
+
+  /** The number of loops around the code that is being scanned.
+   */
+  int loops;
+
+  /** Run the escape analysis over the given program.
+   */
+  void run(Defn[] defns) {
+    for (int i=0; i<defns.length; i++) {
+      defns[i].addToEscape(this);
+    }
+
+    // Find the nodes that can reach the escape node:
+    HashMap<Object,Vector<Object>> back = new HashMap<Object,Vector<Object>>();
+    for (Object from : flows.keySet()) {
+      for (Object to : flows.get(from)) {
+        Vector<Object> froms = back.get(to);
+        if (froms==null) {
+          back.put(to, froms = new Vector<Object>());
+        }
+        froms.add(from);
+      }
+    }
+    HashSet<Object> escaped = new HashSet<Object>();
+    Vector<Object>  work    = new Vector<Object>();
+    escaped.add(ESCAPES);
+    work.add(ESCAPES);
+    while (!work.isEmpty()) {
+      Vector<Object> froms = back.get(work.remove(work.size()-1));
+      if (froms!=null) {
+        for (Object from : froms) {
+          if (escaped.add(from)) {
+            work.add(from);
+          }
+        }
+      }
+    }
+
+    for (NewArray a : candidates.keySet()) {
+      if (!escaped.contains(a)) {
+        candidates.get(a).addStackArray(a);
+        converted++;
+        bytes += 4 * (a.constSize()+1);
+      }
+    }
+  }
+
+  /** Display a summary of the allocation sites that were moved.
+   */
+  static void report() {
+    System.out.println("Escape analysis: allocated " + converted + " of "
+                       + sites + " arrays on the stack, saving " + bytes
+                       + " bytes of heap each time they are run");
+  }
+
+  /** Scan the body of a function.
+   */
+  void scan(Function fn) {
+    current = fn;
+    loops   = 0;
+    fn.escape(this);
+  }
+
+  /** Record that the values held in one node may be copied to another.
+   *  Nothing is recorded if the destination is null, which means that
+   *  the value is only used where it is.
+   */
+  void flow(Object from, Object to) {
+    if (to!=null && from!=to) {
+      Vector<Object> tos = flows.get(from);
+      if (tos==null) {
+        flows.put(from, tos = new Vector<Object>());
+      }
+      tos.add(to);
+    }
+  }
+
+  /** Return the node for a variable with the given location: global
+   *  variables are part of the escape node.
+   */
+  static Object node(llvm.Location loc) {
+    return (loc instanceof llvm.Local) ? loc : ESCAPES;
+  }
+
+  /** Record an allocation site in the function that is being scanned.
+   */
+  void site(NewArray a, boolean fits) {
+    sites++;
+    if (fits && loops==0) {
+      candidates.put(a, current);
+    }
+  }
+}
@@ -0,0 +1,623 @@
+//----------------------------------------------------------------------------
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.Vector;
+
+//____________________________________________________________________________
+/** Runs the LLVM code in a file written by the compiler (demo.ll), for
+ *  testing on machines that do not have LLVM.  Only the instructions
+ *  that the compiler generates are understood, each in the form that
+ *  it prints them.  Before the program is run, the code is checked as
+ *  the LLVM verifier would: every register must be defined just once,
+ *  phi functions must come at the start of a block, and each must take
+ *  exactly one value for each edge into its block.  While it runs, the
+ *  interpreter checks that an array on the stack is not used after the
+ *  function that allocated it has returned.  The output of the program
+ *  goes to standard output, and the number of instructions that were
+ *  executed, with the number of arrays that XallocArray allocated and
+ *  the bytes that it asked malloc for, to standard error.  Run using:
+ *
+ *    java Interp demo.ll
+ */
+class Interp {
+  public static void main(String[] args) {
+    if (args.length!=1) {
+      System.err.println("usage: java Interp file.ll");
+      System.exit(1);
+    }
+    Interp interp = new Interp();
+    try {
+      interp.read(args[0]);
+      interp.verify();
+      interp.call("initGlobals", new Object[0]);
+      interp.call("main", new Object[0]);
+    } catch (IOException e) {
+      System.err.println("Cannot read " + args[0] + ": " + e.getMessage());
+      System.exit(1);
+    } catch (Failure f) {
+      interp.out.flush();
+      System.err.println("Interp: " + f.getMessage());
+      System.exit(1);
+    }
+    interp.out.flush();
+    System.err.println("Executed " + interp.steps + " instructions");
+    System.err.println("Allocated " + interp.arrays + " arrays on the heap, "
+                       + interp.heap + " bytes");
+  }
+
+  /** Signals a problem with the code or with running it.
+   */
+  @SuppressWarnings("serial")
+  static class Failure extends RuntimeException {
+    Failure(String msg) {
+      super(msg);
+    }
+  }
+
+  /** Holds the cells of a global variable or array; a pointer to
+   *  memory is a Ptr that gives one of the cells.
+   */
+  static class Ptr {
+    Object[] cells;
+    int      index;
+    Ptr(Object[] cells, int index) {
+      this.cells = cells; this.index = index;
+    }
+  }
+
+  /** Represents a single instruction: the register that it defines (or
+   *  null), the name of the operation, and its operands, which are the
+   *  names of values and of blocks, in the order that they are printed.
+   */
+  static class Insn {
+    String   lhs;
+    String   op;
+    String[] args;
+    Insn(String lhs, String op, String... args) {
+      this.lhs = lhs; this.op = op; this.args = args;
+    }
+  }
+
+  /** Represents a basic block.
+   */
+  static class Blk {
+    String       label;
+    Vector<Insn> code = new Vector<Insn>();
+    Blk(String label) {
+      this.label = label;
+    }
+  }
+
+  /** Represents a function, with the names of its parameters.
+   */
+  static class Fn {
+    String      name;
+    String[]    params;
+    Vector<Blk> blocks = new Vector<Blk>();
+    HashMap<String,Blk> labels = new HashMap<String,Blk>();
+    Fn(String name, String[] params) {
+      this.name = name; this.params = params;
+    }
+  }
+
+  private HashMap<String,Fn>     fns     = new HashMap<String,Fn>();
+  private HashMap<String,Object> globals = new HashMap<String,Object>();
+
+  /** The number of instructions that have been executed.
+   */
+  private long steps = 0;
+
+  /** The number of calls to XallocArray, and the bytes that they have
+   *  asked for.
+   */
+  private long arrays = 0;
+  private long heap   = 0;
+
+  /** The memory allocated on the stack by functions that have returned.
+   */
+  private Set<Object[]> freed
+    = Collections.newSetFromMap(new IdentityHashMap<Object[],Boolean>());
+
+  /** Output from the program is buffered here.
+   */
+  private PrintStream out = new PrintStream(System.out, false);
+
+  //--------------------------------------------------------------------------
+  // Reading the code:
+
+  /** Read the LLVM code in the named file.
+   */
+  void read(String file) throws IOException {
+    BufferedReader in = new BufferedReader(new FileReader(file));
+    Fn     fn  = null;
+    Blk    blk = null;
+    String line;
+    while ((line = in.readLine())!=null) {
+      String s = line.trim();
+      if (s.startsWith("switch")) {
+        // The cases of a switch are on the lines that follow:
+        while (!s.endsWith("]") && (line = in.readLine())!=null) {
+          s = s + " " + line.trim();
+        }
+      }
+      if (s.length()==0 || s.startsWith(";") || s.startsWith("declare")) {
+        continue;
+      } else if (s.startsWith("@")) {
+        // @name = global ty value, align n
+        String[] w = s.split(" ");
+        Object   v = constant(w[4].replace(",", ""), w[3]);
+        globals.put(w[0], new Ptr(new Object[] { v }, 0));
+      } else if (s.startsWith("define ")) {
+        int      open   = s.indexOf('(');
+        String   ps     = s.substring(open+1, s.lastIndexOf(')'));
+        String[] params = ps.length()==0 ? new String[0] : ps.split(", ");
+        for (int i=0; i<params.length; i++) {
+          params[i] = last(params[i]);
+        }
+        String name = s.substring(s.indexOf('@')+2, open);
+        fns.put(name, fn = new Fn(name, params));
+        blk = null;
+      } else if (s.equals("}")) {
+        fn = null;
+      } else if (fn==null) {
+        throw new Failure("cannot read \"" + s + "\"");
+      } else if (s.endsWith(":")) {
+        blk = new Blk(s.substring(0, s.length()-1));
+        fn.blocks.add(blk);
+        fn.labels.put(blk.label, blk);
+      } else if (blk==null) {
+        throw new Failure("instruction outside a block in " + fn.name);
+      } else {
+        blk.code.add(insn(s));
+      }
+    }
+    in.close();
+  }
+
+  /** Return the last word of a value with its type, which is its name.
+   */
+  private static String last(String s) {
+    return s.substring(s.lastIndexOf(' ')+1);
+  }
+
+  /** Return the names of the values in a list of values with their types.
+   */
+  private static String[] values(String s) {
+    String[] vs = s.length()==0 ? new String[0] : s.split(", ");
+    for (int i=0; i<vs.length; i++) {
+      vs[i] = last(vs[i]);
+    }
+    return vs;
+  }
+
+  /** Return the label that a "label %L" operand refers to.
+   */
+  private static String label(String s) {
+    return s.substring(s.indexOf('%')+1);
+  }
+
+  /** Read a single instruction.
+   */
+  private static Insn insn(String s) {
+    String lhs = null;
+    int    eq  = s.indexOf(" = ");
+    if (s.startsWith("%") && eq>0) {
+      lhs = s.substring(0, eq);
+      s   = s.substring(eq+3);
+    }
+    int    sp   = s.indexOf(' ');
+    String op   = sp<0 ? s : s.substring(0, sp);
+    String rest = sp<0 ? "" : s.substring(sp+1);
+    switch (op) {
+      case "add": case "sub": case "mul": case "sdiv":
+        // op ty l, r
+        return new Insn(lhs, op, values(rest.substring(rest.indexOf(' ')+1)));
+      case "icmp": {
+        // icmp cc ty l, r
+        String[] w = rest.split(" ", 3);
+        String[] v = values(w[2]);
+        return new Insn(lhs, op, w[0], v[0], v[1]);
+      }
+      case "load":
+        return new Insn(lhs, op, last(rest));
+      case "alloca": {
+        // alloca ty or alloca ty, i32 n
+        int comma = rest.indexOf(", ");
+        return new Insn(lhs, op, comma<0 ? "1" : last(rest));
+      }
+      case "bitcast":
+        return new Insn(lhs, op, last(rest.substring(0, rest.indexOf(" to "))));
+      case "getelementptr":
+        return new Insn(lhs, op, values(rest.substring(rest.indexOf(' ')+1)));
+      case "call": {
+        // call ty @Xname(args)
+        int    open = rest.indexOf('(');
+        String name = rest.substring(rest.indexOf('@')+2, open);
+        String[] vs = values(rest.substring(open+1, rest.lastIndexOf(')')));
+        String[] as = new String[vs.length+1];
+        as[0] = name;
+        System.arraycopy(vs, 0, as, 1, vs.length);
+        return new Insn(lhs, op, as);
+      }
+      case "phi": {
+        // phi ty [ v, %L ], ...: args alternate values and labels
+        String[] ps = rest.substring(rest.indexOf('[')).split(", \\[|\\[");
+        Vector<String> as = new Vector<String>();
+        for (int i=0; i<ps.length; i++) {
+          String p = ps[i].replace("]", "").trim();
+          if (p.length()>0) {
+            String[] w = p.split(", ");
+            as.add(w[0].trim());
+            as.add(label(w[1].trim()));
+          }
+        }
+        return new Insn(lhs, op, as.toArray(new String[0]));
+      }
+      case "store":
+        return new Insn(lhs, op, values(rest));
+      case "br": {
+        String[] w = rest.split(", ");
+        if (w.length==1) {
+          return new Insn(lhs, "goto", label(w[0]));
+        }
+        return new Insn(lhs, op, last(w[0]), label(w[1]), label(w[2]));
+      }
+      case "switch": {
+        // switch ty v, label %D [ ty n, label %L ... ]: args are the
+        // value, the default, and then pairs of numbers and labels
+        String   head = rest.substring(0, rest.indexOf('['));
+        String[] w    = head.split(", ");
+        Vector<String> as = new Vector<String>();
+        as.add(last(w[0]));
+        as.add(label(w[1].trim()));
+        String[] cs = rest.substring(rest.indexOf('[')+1, rest.lastIndexOf(']'))
+                          .trim().split(" ");
+        for (int i=0; i+3<cs.length; i+=4) {
+          as.add(cs[i+1].replace(",", ""));
+          as.add(label(cs[i+3]));
+        }
+        return new Insn(lhs, op, as.toArray(new String[0]));
+      }
+      case "ret":
+        return rest.equals("void") ? new Insn(lhs, op) : new Insn(lhs, op, last(rest));
+      case "unreachable":
+        return new Insn(lhs, op);
+      default:
+        throw new Failure("unknown instruction \"" + s + "\"");
+    }
+  }
+
+  /** Return the value of a constant.
+   */
+  private static Object constant(String s, String ty) {
+    switch (s) {
+      case "true":  return 1;
+      case "false": return 0;
+      case "undef": return 0;
+      case "null":  return null;
+      default:
+        try {
+          return Integer.parseInt(s);
+        } catch (NumberFormatException e) {
+          throw new Failure("unknown value " + s + " of type " + ty);
+        }
+    }
+  }
+
+  //--------------------------------------------------------------------------
+  // Checking the code:
+
+  /** Return the labels of the blocks that a block branches to, with
+   *  one entry for each edge.
+   */
+  private static Vector<String> succs(Blk b) {
+    Vector<String> succs = new Vector<String>();
+    Insn last = b.code.lastElement();
+    switch (last.op) {
+      case "goto":
+        succs.add(last.args[0]);
+        break;
+      case "br":
+        succs.add(last.args[1]);
+        succs.add(last.args[2]);
+        break;
+      case "switch":
+        succs.add(last.args[1]);
+        for (int i=3; i<last.args.length; i+=2) {
+          succs.add(last.args[i]);
+        }
+        break;
+    }
+    return succs;
+  }
+
+  /** Check the code of every function.
+   */
+  void verify() {
+    for (Fn fn : fns.values()) {
+      HashSet<String> defined = new HashSet<String>();
+      for (String p : fn.params) {
+        defined.add(p);
+      }
+      // The predecessors of each block, with one entry for each edge:
+      HashMap<String,Vector<String>> preds = new HashMap<String,Vector<String>>();
+      for (Blk b : fn.blocks) {
+        preds.put(b.label, new Vector<String>());
+      }
+      for (Blk b : fn.blocks) {
+        if (b.code.isEmpty()) {
+          throw new Failure("empty block " + b.label + " in " + fn.name);
+        }
+        for (String s : succs(b)) {
+          if (!preds.containsKey(s)) {
+            throw new Failure("branch to unknown block " + s + " in " + fn.name);
+          }
+          preds.get(s).add(b.label);
+        }
+      }
+      for (Blk b : fn.blocks) {
+        boolean start = true;
+        for (Insn i : b.code) {
+          if (i.lhs!=null && !defined.add(i.lhs)) {
+            throw new Failure(i.lhs + " is defined more than once in " + fn.name);
+          }
+          if (!i.op.equals("phi")) {
+            start = false;
+          } else if (!start) {
+            throw new Failure("phi for " + i.lhs + " is not at the start of "
+                              + b.label + " in " + fn.name);
+          } else {
+            Vector<String> edges = new Vector<String>(preds.get(b.label));
+            for (int j=1; j<i.args.length; j+=2) {
+              if (!edges.remove(i.args[j])) {
+                throw new Failure("phi for " + i.lhs + " in " + b.label
+                                  + " of " + fn.name + " takes a value from "
+                                  + i.args[j] + ", which is not a predecessor"
+                                  + " or has no edge left");
+              }
+            }
+            if (!edges.isEmpty()) {
+              throw new Failure("phi for " + i.lhs + " in " + b.label
+                                + " of " + fn.name + " has no value for the"
+                                + " edge from " + edges.firstElement());
+            }
+          }
+        }
+      }
+    }
+  }
+
+  //--------------------------------------------------------------------------
+  // Running the code:
+
+  /** Return the value of an operand in the given environment.
+   */
+  private Object value(HashMap<String,Object> env, String s) {
+    if (s.startsWith("%")) {
+      if (!env.containsKey(s)) {
+        throw new Failure("use of " + s + " before it is defined");
+      }
+      return env.get(s);
+    } else if (s.startsWith("@")) {
+      Object g = globals.get(s);
+      if (g==null) {
+        throw new Failure("unknown global " + s);
+      }
+      return g;
+    }
+    return constant(s, "i32");
+  }
+
+  private int num(HashMap<String,Object> env, String s) {
+    return (Integer)value(env, s);
+  }
+
+  private Ptr ptr(HashMap<String,Object> env, String s) {
+    Object p = value(env, s);
+    if (!(p instanceof Ptr)) {
+      throw new Failure("use of " + s + ", which is not a pointer");
+    }
+    return (Ptr)p;
+  }
+
+  /** Call the named function with the given arguments, and return its
+   *  result, or null if it has none.
+   */
+  Object call(String name, Object[] args) {
+    switch (name) {
+      case "print":
+        out.println("output: " + args[0]);
+        return null;
+      case "allocArray": {
+        int n = (Integer)args[0];
+        if (n<0) {
+          throw new Failure("Invalid array size " + n);
+        }
+        arrays++;
+        heap += (long)(n+1) * (Integer)args[1];
+        Object[] cells = new Object[n+1];
+        cells[0] = n;
+        for (int i=1; i<=n; i++) {
+          cells[i] = 0;
+        }
+        return new Ptr(cells, 0);
+      }
+    }
+    Fn fn = fns.get(name);
+    if (fn==null) {
+      throw new Failure("call to unknown function " + name);
+    }
+    HashMap<String,Object> env = new HashMap<String,Object>();
+    for (int i=0; i<fn.params.length; i++) {
+      env.put(fn.params[i], args[i]);
+    }
+    return run(fn, env);
+  }
+
+  /** Run the body of a function in the given environment.
+   */
+  private Object run(Fn fn, HashMap<String,Object> env) {
+    Vector<Object[]> frame = new Vector<Object[]>();
+    try {
+      return run(fn, env, frame);
+    } finally {
+      freed.addAll(frame);
+    }
+  }
+
+  /** Run the body of a function, recording the memory that it allocates
+   *  on the stack in frame.
+   */
+  private Object run(Fn fn, HashMap<String,Object> env, Vector<Object[]> frame) {
+    Blk prev = null;
+    Blk blk  = fn.blocks.firstElement();
+    for (;;) {
+      // The phi functions take their values together, on entry:
+      HashMap<String,Object> phis = new HashMap<String,Object>();
+      int i = 0;
+      for (; i<blk.code.size() && blk.code.get(i).op.equals("phi"); i++) {
+        Insn p = blk.code.get(i);
+        int  j = 1;
+        while (j<p.args.length && (prev==null || !p.args[j].equals(prev.label))) {
+          j += 2;
+        }
+        if (j>=p.args.length) {
+          throw new Failure("phi for " + p.lhs + " has no value from "
+                            + (prev==null ? "the entry" : prev.label));
+        }
+        phis.put(p.lhs, value(env, p.args[j-1]));
+      }
+      env.putAll(phis);
+      String next = null;
+      for (; next==null; i++) {
+        Insn c = blk.code.get(i);
+        String[] a = c.args;
+        steps++;
+        switch (c.op) {
+          case "add":
+            env.put(c.lhs, num(env, a[0]) + num(env, a[1]));
+            break;
+          case "sub":
+            env.put(c.lhs, num(env, a[0]) - num(env, a[1]));
+            break;
+          case "mul":
+            env.put(c.lhs, num(env, a[0]) * num(env, a[1]));
+            break;
+          case "sdiv": {
+            int d = num(env, a[1]);
+            if (d==0) {
+              throw new Failure("division by zero in " + fn.name);
+            }
+            env.put(c.lhs, num(env, a[0]) / d);
+            break;
+          }
+          case "icmp":
+            env.put(c.lhs, compare(a[0], value(env, a[1]), value(env, a[2])) ? 1 : 0);
+            break;
+          case "alloca": {
+            Object[] cells = new Object[Integer.parseInt(a[0])];
+            for (int j=0; j<cells.length; j++) {
+              cells[j] = 0;
+            }
+            frame.add(cells);
+            env.put(c.lhs, new Ptr(cells, 0));
+            break;
+          }
+          case "load": {
+            Ptr p = ptr(env, a[0]);
+            env.put(c.lhs, p.cells[cell(p)]);
+            break;
+          }
+          case "store": {
+            Ptr p = ptr(env, a[1]);
+            p.cells[cell(p)] = value(env, a[0]);
+            break;
+          }
+          case "bitcast":
+            env.put(c.lhs, value(env, a[0]));
+            break;
+          case "getelementptr": {
+            Ptr p = ptr(env, a[0]);
+            env.put(c.lhs, new Ptr(p.cells, p.index + num(env, a[1])));
+            break;
+          }
+          case "call": {
+            Object[] args = new Object[a.length-1];
+            for (int j=0; j<args.length; j++) {
+              args[j] = value(env, a[j+1]);
+            }
+            Object r = call(a[0], args);
+            if (c.lhs!=null) {
+              env.put(c.lhs, r);
+            }
+            break;
+          }
+          case "goto":
+            next = a[0];
+            break;
+          case "br":
+            next = num(env, a[0])!=0 ? a[1] : a[2];
+            break;
+          case "switch": {
+            int v = num(env, a[0]);
+            next  = a[1];
+            for (int j=2; j<a.length; j+=2) {
+              if (Integer.parseInt(a[j])==v) {
+                next = a[j+1];
+                break;
+              }
+            }
+            break;
+          }
+          case "ret":
+            return a.length==0 ? null : value(env, a[0]);
+          case "unreachable":
+            throw new Failure("reached unreachable code in " + fn.name);
+          default:
+            throw new Failure("phi for " + c.lhs + " is not at the start of a block");
+        }
+      }
+      prev = blk;
+      blk  = fn.labels.get(next);
+    }
+  }
+
+  /** Return the index of the cell that a pointer gives, checking that
+   *  it is inside the memory that it points into.
+   */
+  private int cell(Ptr p) {
+    if (p.index<0 || p.index>=p.cells.length) {
+      throw new Failure("access outside an array or variable");
+    } else if (freed.contains(p.cells)) {
+      throw new Failure("use of memory on the stack after its function"
+                        + " has returned");
+    }
+    return p.index;
+  }
+
+  /** Compare two values using the given condition.
+   */
+  private static boolean compare(String cc, Object l, Object r) {
+    if (cc.equals("eq")) {
+      return l==r || (l!=null && l.equals(r));
+    } else if (cc.equals("ne")) {
+      return !(l==r || (l!=null && l.equals(r)));
+    }
+    int x = (Integer)l;
+    int y = (Integer)r;
+    switch (cc) {
+      case "slt": return x<y;
+      case "sle": return x<=y;
+      case "sgt": return x>y;
+      case "sge": return x>=y;
+    }
+    throw new Failure("unknown comparison " + cc);
+  }
+}
@@ -2,6 +2,8 @@
 import java.io.PrintWriter;
 import java.io.FileWriter;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Vector;
 import llvm.Block;
 import llvm.Code;
 import llvm.Rhs;
@@ -149,9 +151,46 @@ abstract class Expr {
                    final llvm.Block t,
                    final llvm.Block f) {
     System.err.println("compileCond() method NOT IMPLEMENTED");
-    System.exit(1);
-    return null; // not reached
+    throw new Exit(1);
   }
+
+  /** Record the size of this expression, and the calls that it makes,
+   *  for the inliner.
+   */
+  abstract void scan(Inliner in, int loops);
+
+  /** Return a copy of this expression for use in the body of an
+   *  inlined function, or null if it cannot be copied.
+   */
+  abstract Expr copy(Inliner in);
+
+  /** Replace calls that have been chosen for inlining in this
+   *  expression, returning the resulting expression.
+   */
+  Expr inline(Inliner in) {
+    return this;
+  }
+
+  /** If this expression is a call that has been chosen for inlining,
+   *  return a statement that executes the body of the called function
+   *  in its place (see Inliner.expand()), or else return null.
+   */
+  Stmt expand(Inliner in, Expr result, Stmt decl) {
+    return null;
+  }
+
+  /** Return true if this expression is a constant or a local variable,
+   *  whose value cannot be changed by evaluating another expression.
+   */
+  boolean isSimple(Inliner in) {
+    return false;
+  }
+
+  /** Record, for the escape analysis, that the value of this expression
+   *  may be copied to the given node (or only used, if it is null), and
+   *  where the values of its subexpressions go.
+   */
+  abstract void escape(Escape esc, Object to);
 }
 
 //----------------------------------------------------------------------------
@@ -172,6 +211,26 @@ class Int extends Expr {
   Code compile(final llvm.Function fn, final ValCont k) {
     return k.with(new llvm.IntVal(num));
   }
+
+  void scan(Inliner in, int loops) {
+    in.size++;
+  }
+
+  Expr copy(Inliner in) {
+    return new Int(num);
+  }
+
+  boolean isSimple(Inliner in) {
+    return true;
+  }
+
+  void escape(Escape esc, Object to) {
+    /* Integers are not arrays. */
+  }
+
+  /** Return the value of this constant.
+   */
+  int getNum() { return num; }
 }
 
 //----------------------------------------------------------------------------
@@ -192,6 +251,22 @@ class Bool extends Expr {
   Code compile(final llvm.Function fn, final ValCont k) {
     return k.with(new llvm.BoolVal(val));
   }
+
+  void scan(Inliner in, int loops) {
+    in.size++;
+  }
+
+  Expr copy(Inliner in) {
+    return new Bool(val);
+  }
+
+  boolean isSimple(Inliner in) {
+    return true;
+  }
+
+  void escape(Escape esc, Object to) {
+    /* Booleans are not arrays. */
+  }
 }
 
 //----------------------------------------------------------------------------
@@ -217,6 +292,12 @@ abstract class LValue extends Expr {
    *  this LValue.
    */
   abstract Code compileLoc(final llvm.Function fn, final ValCont k);
+
+  /** Record, for the escape analysis, where the values of the parts of
+   *  this LValue go, and return the node for the location that it
+   *  stands for.
+   */
+  abstract Object target(Escape esc);
 }
 
 //----------------------------------------------------------------------------
@@ -242,6 +323,26 @@ class Var extends LValue {
   Code compileLoc(final llvm.Function fn, final ValCont k) {
     return k.with(loc);
   }
+
+  void scan(Inliner in, int loops) {
+    in.size++;
+  }
+
+  Expr copy(Inliner in) {
+    return in.var(name);
+  }
+
+  boolean isSimple(Inliner in) {
+    return !in.isGlobal(name);
+  }
+
+  void escape(Escape esc, Object to) {
+    esc.flow(Escape.node(loc), to);
+  }
+
+  Object target(Escape esc) {
+    return Escape.node(loc);
+  }
 }
 
 //----------------------------------------------------------------------------
@@ -304,6 +405,37 @@ class Nth extends LValue {
                       k.with(rg)));
            }));
   }
+
+  void scan(Inliner in, int loops) {
+    in.size++;
+    arr.scan(in, loops);
+    idx.scan(in, loops);
+  }
+
+  Expr copy(Inliner in) {
+    Expr a = arr.copy(in);
+    Expr i = idx.copy(in);
+    return (a==null || i==null) ? null : new Nth(a, i);
+  }
+
+  Expr inline(Inliner in) {
+    arr = arr.inline(in);
+    idx = idx.inline(in);
+    return this;
+  }
+
+  void escape(Escape esc, Object to) {
+    arr.escape(esc, null);
+    idx.escape(esc, null);
+  }
+
+  /** An array that is stored in an element of another array escapes,
+   *  as the analysis does not follow the array that holds it.
+   */
+  Object target(Escape esc) {
+    escape(esc, null);
+    return Escape.ESCAPES;
+  }
 }
 
 //----------------------------------------------------------------------------
@@ -327,6 +459,11 @@ class NewArray extends Expr {
    *  code, represented by the continuation argument.
    */
   Code compile(final llvm.Function fn, final ValCont k) {
+    if (slot!=null) {
+      // The space was allocated on entry to the function (see Escape),
+      // so it only remains to store the length in the first slot:
+      return size.compile(fn, n -> new llvm.Store(n, slot, k.with(slot)));
+    }
     return size.compile(fn, n -> {
       // "ty" is the type i8*, which corresponds to the
       // return type of the allocArray function.
@@ -375,6 +512,54 @@ class NewArray extends Expr {
              k.with(na)));
     });
   }
+
+  void scan(Inliner in, int loops) {
+    in.size++;
+    size.scan(in, loops);
+  }
+
+  Expr copy(Inliner in) {
+    Expr n = size.copy(in);
+    return (n==null) ? null : new NewArray(type, n);
+  }
+
+  Expr inline(Inliner in) {
+    size = size.inline(in);
+    return this;
+  }
+
+  void escape(Escape esc, Object to) {
+    size.escape(esc, null);
+    esc.site(this, type.equal(Type.INT) && constSize()>=0
+                                        && constSize()<=Escape.maxLength);
+    esc.flow(this, to);
+  }
+
+  /** Return the number of elements if the size is a constant, or else -1.
+   */
+  int constSize() {
+    return (size instanceof Int) ? Math.max(-1, ((Int)size).getNum()) : -1;
+  }
+
+  /** The register that holds the address of the space for this array
+   *  on the stack, or null if it is allocated on the heap.
+   */
+  private llvm.Reg slot = null;
+
+  /** Allocate this array on the stack, using the given register for
+   *  its address.
+   */
+  void setSlot(llvm.Reg slot) {
+    this.slot = slot;
+  }
+
+  /** Return an instruction for the entry block that allocates space on
+   *  the stack for this array and its length.
+   */
+  Code alloca(Code andThen) {
+    return new llvm.Op(slot, new llvm.Alloca(llvm.Type.i32, constSize()+1),
+                       andThen);
+  }
 }
 
 //----------------------------------------------------------------------------
@@ -414,6 +599,25 @@ class Length extends Expr {
       return new llvm.Op(rg, new llvm.Getelementptr(a, new llvm.IntVal(0)), k.with(rg));
     });
   }
+
+  void scan(Inliner in, int loops) {
+    in.size++;
+    arr.scan(in, loops);
+  }
+
+  Expr copy(Inliner in) {
+    Expr a = arr.copy(in);
+    return (a==null) ? null : new Length(a);
+  }
+
+  Expr inline(Inliner in) {
+    arr = arr.inline(in);
+    return this;
+  }
+
+  void escape(Escape esc, Object to) {
+    arr.escape(esc, null);
+  }
 }
 
 //----------------------------------------------------------------------------
@@ -433,6 +637,18 @@ abstract class StmtExpr extends Expr {
   Code compileDiscard(final llvm.Function fn, final Code andThen) {
     return compile(fn, v -> andThen);
   }
+
+  abstract StmtExpr copy(Inliner in);
+
+  /** Replace calls that have been chosen for inlining in the
+   *  subexpressions of this expression.
+   */
+  abstract void inlineParts(Inliner in);
+
+  Expr inline(Inliner in) {
+    inlineParts(in);
+    return this;
+  }
 }
 
 //----------------------------------------------------------------------------
@@ -471,6 +687,43 @@ class Assign extends StmtExpr {
            lv.compileLoc(fn, loc ->
            new llvm.Store(v, loc, k.with(v))));
   }
+
+  void scan(Inliner in, int loops) {
+    in.size++;
+    lhs.scan(in, loops);
+    rhs.scan(in, loops);
+  }
+
+  StmtExpr copy(Inliner in) {
+    if (!in.canAssign()) {
+      return null;
+    }
+    Expr l = lhs.copy(in);
+    Expr r = rhs.copy(in);
+    return (l==null || r==null) ? null : new Assign(l, r);
+  }
+
+  void inlineParts(Inliner in) {
+    lhs = lhs.inline(in);
+    rhs = rhs.inline(in);
+  }
+
+  /** An assignment statement whose right hand side is a call that has
+   *  been chosen for inlining is replaced by the body of the function,
+   *  which assigns its result to the left hand side.
+   */
+  Stmt expand(Inliner in, Expr result, Stmt decl) {
+    return (result==null) ? rhs.expand(in, lhs, null) : null;
+  }
+
+  /** The value is copied to the left hand side, and the result of the
+   *  assignment is the value that the left hand side then holds.
+   */
+  void escape(Escape esc, Object to) {
+    Object node = lv.target(esc);
+    rhs.escape(esc, node);
+    esc.flow(node, to);
+  }
 }
 
 //----------------------------------------------------------------------------
@@ -545,6 +798,56 @@ class Call extends StmtExpr {
   Code compileDiscard(final llvm.Function fn, final Code andThen) {
     return f.compile(fn, args, andThen);
   }
+
+  void scan(Inliner in, int loops) {
+    in.size++;
+    in.call(this, name, loops);
+    for (int i=0; i<args.length; i++) {
+      args[i].scan(in, loops);
+    }
+  }
+
+  StmtExpr copy(Inliner in) {
+    Expr[] as = new Expr[args.length];
+    for (int i=0; i<args.length; i++) {
+      if ((as[i]=args[i].copy(in))==null) {
+        return null;
+      }
+    }
+    return new Call(name, as);
+  }
+
+  void inlineParts(Inliner in) {
+    for (int i=0; i<args.length; i++) {
+      args[i] = args[i].inline(in);
+    }
+  }
+
+  Expr inline(Inliner in) {
+    inlineParts(in);
+    if (in.chosen(this)) {
+      Expr e = in.expandExpr(name, args);
+      if (e!=null) {
+        return e;
+      }
+    }
+    return this;
+  }
+
+  Stmt expand(Inliner in, Expr result, Stmt decl) {
+    return in.chosen(this) ? in.expand(name, args, result, decl) : null;
+  }
+
+  /** Each argument is copied to the corresponding parameter.  The result
+   *  cannot be an array that has not escaped, because returning an
+   *  array makes it escape.
+   */
+  void escape(Escape esc, Object to) {
+    Formal[] formals = f.getFormals();
+    for (int i=0; i<args.length; i++) {
+      args[i].escape(esc, Escape.node(formals[i].getLoc()));
+    }
+  }
 }
 
 //----------------------------------------------------------------------------
@@ -559,6 +862,33 @@ abstract class BinExpr extends Expr {
   String show() { return "(" + l.show() + " " + op() + " " + r.show() + ")"; }
   abstract String op();
 
+  void scan(Inliner in, int loops) {
+    in.size++;
+    l.scan(in, loops);
+    r.scan(in, loops);
+  }
+
+  Expr copy(Inliner in) {
+    Expr a = l.copy(in);
+    Expr b = r.copy(in);
+    return (a==null || b==null) ? null : make(a, b);
+  }
+
+  /** Make a new expression using the same operator as this one.
+   */
+  abstract BinExpr make(Expr l, Expr r);
+
+  Expr inline(Inliner in) {
+    l = l.inline(in);
+    r = r.inline(in);
+    return this;
+  }
+
+  void escape(Escape esc, Object to) {
+    l.escape(esc, null);
+    r.escape(esc, null);
+  }
+
   /** Captures a general pattern for compiling a binary operator by
    *  evaluating each of the two arguments and then applying the
    *  specified LLVM primitive.  Note that we include two operators,
@@ -592,6 +922,7 @@ abstract class ArithBinExpr extends BinExpr {
 class Plus extends ArithBinExpr {
   Plus(Expr l, Expr r) { super(l, r); }
   String op() { return "+"; }
+  BinExpr make(Expr l, Expr r) { return new Plus(l, r); }
 
   /** Generate LLVM code that will evaluate this expression,
    *  and then pass the resulting value on to the following
@@ -606,6 +937,7 @@ class Plus extends ArithBinExpr {
 class Minus extends ArithBinExpr {
   Minus(Expr l, Expr r) { super(l, r); }
   String op() { return "-"; }
+  BinExpr make(Expr l, Expr r) { return new Minus(l, r); }
 
   /** Generate LLVM code that will evaluate this expression,
    *  and then pass the resulting value on to the following
@@ -620,6 +952,7 @@ class Minus extends ArithBinExpr {
 class Mult extends ArithBinExpr {
   Mult(Expr l, Expr r) { super(l, r); }
   String op() { return "*"; }
+  BinExpr make(Expr l, Expr r) { return new Mult(l, r); }
 
   /** Generate LLVM code that will evaluate this expression,
    *  and then pass the resulting value on to the following
@@ -634,6 +967,7 @@ class Mult extends ArithBinExpr {
 class Div extends ArithBinExpr {
   Div(Expr l, Expr r) { super(l, r); }
   String op() { return "/"; }
+  BinExpr make(Expr l, Expr r) { return new Div(l, r); }
 
   /** Generate LLVM code that will evaluate this expression,
    *  and then pass the resulting value on to the following
@@ -659,6 +993,7 @@ abstract class RelBinExpr extends BinExpr {
 class LT extends RelBinExpr {
   LT(Expr l, Expr r) { super(l, r); }
   String op() { return "<"; }
+  BinExpr make(Expr l, Expr r) { return new LT(l, r); }
 
   /** Generate LLVM code that will evaluate this expression,
    *  and then pass the resulting value on to the following
@@ -673,6 +1008,7 @@ class LT extends RelBinExpr {
 class EqEq extends RelBinExpr {
   EqEq(Expr l, Expr r) { super(l, r); }
   String op() { return "=="; }
+  BinExpr make(Expr l, Expr r) { return new EqEq(l, r); }
 
   /** Generate LLVM code that will evaluate this expression,
    *  and then pass the resulting value on to the following
@@ -699,6 +1035,7 @@ class LAnd extends LogicBinExpr {
   LAnd(Expr l, Expr r) { super(l, r); }
 
   String op() { return "&&"; }
+  BinExpr make(Expr l, Expr r) { return new LAnd(l, r); }
 
   /** Generate LLVM code that will evaluate this expression,
    *  and then pass the resulting value on to the following
@@ -726,6 +1063,7 @@ class LOr extends LogicBinExpr {
   LOr(Expr l, Expr r) { super(l, r); }
 
   String op() { return "||"; }
+  BinExpr make(Expr l, Expr r) { return new LOr(l, r); }
 
   /** Generate LLVM code that will evaluate this expression,
    *  and then pass the resulting value on to the following
@@ -779,6 +1117,38 @@ abstract class Stmt {
    *  then continue with the follow on code.
    */
   abstract Code compile(final llvm.Function fn, final Code andThen);
+
+  /** Record the size of this statement, and the local variables and
+   *  calls that it contains, for the inliner.
+   */
+  abstract void scan(Inliner in, int loops);
+
+  /** Return a copy of this statement for use in the body of an inlined
+   *  function, or null if it cannot be copied.  The tail flag is true
+   *  if the function returns once this statement has been executed.
+   */
+  abstract Stmt copy(Inliner in, boolean tail);
+
+  /** Return a copy of this statement as a new block, so that local
+   *  variables that are introduced in the block are only renamed
+   *  within the block.
+   */
+  Stmt copyBlock(Inliner in, boolean tail) {
+    int  mark = in.mark();
+    Stmt s    = copy(in, tail);
+    in.reset(mark);
+    return s;
+  }
+
+  /** Replace calls that have been chosen for inlining in this
+   *  statement, returning the resulting statement.
+   */
+  abstract Stmt inline(Inliner in);
+
+  /** Record where the values in this statement go, for the escape
+   *  analysis.
+   */
+  abstract void escape(Escape esc);
 }
 
 //----------------------------------------------------------------------------
@@ -806,6 +1176,26 @@ class ExprStmt extends Stmt {
   Code compile(final llvm.Function fn, final Code andThen) {
     return exp.compileDiscard(fn, andThen);
   }
+
+  void scan(Inliner in, int loops) {
+    in.size++;
+    exp.scan(in, loops);
+  }
+
+  Stmt copy(Inliner in, boolean tail) {
+    StmtExpr e = exp.copy(in);
+    return (e==null) ? null : new ExprStmt(e);
+  }
+
+  Stmt inline(Inliner in) {
+    exp.inlineParts(in);
+    Stmt s = exp.expand(in, null, null);
+    return (s==null) ? this : s;
+  }
+
+  void escape(Escape esc) {
+    exp.escape(esc, null);
+  }
 }
 
 //----------------------------------------------------------------------------
@@ -836,12 +1226,72 @@ class Seq extends Stmt {
   Code compile(final llvm.Function fn, final Code andThen) {
     return l.compile(fn, r.compile(fn, andThen));
   }
+
+  void scan(Inliner in, int loops) {
+    l.scan(in, loops);
+    r.scan(in, loops);
+  }
+
+  Stmt copy(Inliner in, boolean tail) {
+    Stmt a = l.copy(in, false);
+    Stmt b = (a==null) ? null : r.copy(in, tail);
+    return (b==null) ? null : (b==Inliner.SKIP) ? a : new Seq(a, b);
+  }
+
+  Stmt inline(Inliner in) {
+    l = l.inline(in);
+    r = r.inline(in);
+    return this;
+  }
+
+  void escape(Escape esc) {
+    l.escape(esc);
+    r.escape(esc);
+  }
+}
+
+//----------------------------------------------------------------------------
+/** Base class for the statements that a break statement inside them
+ *  leaves: while loops and switch statements.
+ */
+abstract class Breakable extends Stmt {
+
+  /** The function that this statement is being compiled in, and the
+   *  code that follows it.
+   */
+  private llvm.Function fn;
+  private Code          andThen;
+
+  /** The block that a break statement jumps to, or null if no break
+   *  statement has been compiled yet.
+   */
+  private Block exit;
+
+  /** Record the code that follows this statement, before compiling the
+   *  statements inside it.
+   */
+  void startCompile(llvm.Function fn, Code andThen) {
+    this.fn      = fn;
+    this.andThen = andThen;
+    this.exit    = null;
+  }
+
+  /** Return the block for the code that follows this statement, making
+   *  it the first time that it is needed.  If nothing can follow (when
+   *  this statement comes after a return), the block is unreachable.
+   */
+  Block exit() {
+    if (exit==null) {
+      exit = fn.block((andThen==null) ? new llvm.Unreachable() : andThen);
+    }
+    return exit;
+  }
 }
 
 //----------------------------------------------------------------------------
 /** Abstract syntax for a while loop.
  */
-class While extends Stmt {
+class While extends Breakable {
   private Expr test;
   private Stmt body;
   While(Expr test, Stmt body) {
@@ -859,7 +1309,10 @@ class While extends Stmt {
   TypeEnv check(Context ctxt, boolean canContinue, boolean canBreak, TypeEnv env)
    throws StaticError {
     test.require(ctxt, env, Type.BOOLEAN);
+    Breakable outer = ctxt.breakTo;
+    ctxt.breakTo    = this;
     body.check(ctxt, true, true, env);
+    ctxt.breakTo    = outer;
     return env;
   }
 
@@ -869,11 +1322,36 @@ class While extends Stmt {
   Code compile(final llvm.Function fn, final Code andThen) {
     final Block head = fn.block();
     final Code  loop = new llvm.Goto(head);
+    startCompile(fn, andThen);
     head.set(test.compile(fn, v ->
-        new llvm.Cond(v, fn.block(body.compile(fn, loop)),
-                         fn.block(andThen))));
+        new llvm.Cond(v, fn.block(body.compile(fn, loop)), exit())));
     return loop;
   }
+
+  void scan(Inliner in, int loops) {
+    in.size++;
+    test.scan(in, loops+1);
+    body.scan(in, loops+1);
+  }
+
+  Stmt copy(Inliner in, boolean tail) {
+    Expr t = test.copy(in);
+    Stmt b = (t==null) ? null : body.copyBlock(in, false);
+    return (b==null) ? null : new While(t, b);
+  }
+
+  Stmt inline(Inliner in) {
+    test = test.inline(in);
+    body = body.inline(in);
+    return this;
+  }
+
+  void escape(Escape esc) {
+    esc.loops++;
+    test.escape(esc, null);
+    body.escape(esc);
+    esc.loops--;
+  }
 }
 
 //----------------------------------------------------------------------------
@@ -935,6 +1413,58 @@ class If extends Stmt {
       }
     });
   }
+
+  void scan(Inliner in, int loops) {
+    in.size++;
+    test.scan(in, loops);
+    ifTrue.scan(in, loops);
+    if (ifFalse!=null) {
+      ifFalse.scan(in, loops);
+    }
+  }
+
+  Stmt copy(Inliner in, boolean tail) {
+    Expr t = test.copy(in);
+    Stmt a = (t==null) ? null : ifTrue.copyBlock(in, tail);
+    if (a==null || a==Inliner.SKIP) {
+      return null;
+    }
+    Stmt b = null;
+    if (ifFalse!=null) {
+      b = ifFalse.copyBlock(in, tail);
+      if (b==null || b==Inliner.SKIP) {
+        return null;
+      }
+    }
+    return new If(t, a, b);
+  }
+
+  /** A test that is a call chosen for inlining is replaced by the body
+   *  of the function, saving its result in a new variable to test.
+   */
+  Stmt inline(Inliner in) {
+    test   = test.inline(in);
+    ifTrue = ifTrue.inline(in);
+    if (ifFalse!=null) {
+      ifFalse = ifFalse.inline(in);
+    }
+    String v = Inliner.fresh("test");
+    Stmt   s = test.expand(in, new Var(v),
+                           Inliner.declare(Type.BOOLEAN, v, null));
+    if (s!=null) {
+      test = new Var(v);
+      return Inliner.seq(s, this);
+    }
+    return this;
+  }
+
+  void escape(Escape esc) {
+    test.escape(esc, null);
+    ifTrue.escape(esc);
+    if (ifFalse!=null) {
+      ifFalse.escape(esc);
+    }
+  }
 }
 
 //----------------------------------------------------------------------------
@@ -963,6 +1493,30 @@ class Print extends Stmt {
     // function called "print" that takes one argument:
     return exp.compile(fn, v -> new llvm.CallVoid("print", new Value[] {v}, andThen));
   }
+
+  void scan(Inliner in, int loops) {
+    in.size++;
+    exp.scan(in, loops);
+  }
+
+  Stmt copy(Inliner in, boolean tail) {
+    Expr e = exp.copy(in);
+    return (e==null) ? null : new Print(e);
+  }
+
+  /** A call that has been chosen for inlining is replaced by the body
+   *  of the function, saving its result in a new variable to print.
+   */
+  Stmt inline(Inliner in) {
+    exp      = exp.inline(in);
+    String v = Inliner.fresh("print");
+    Stmt   s = exp.expand(in, new Var(v), Inliner.declare(Type.INT, v, null));
+    return (s==null) ? this : Inliner.seq(s, new Print(new Var(v)));
+  }
+
+  void escape(Escape esc) {
+    exp.escape(esc, null);
+  }
 }
 
 //----------------------------------------------------------------------------
@@ -1011,6 +1565,330 @@ class Return extends Stmt {
          ? new llvm.RetVoid()
          : exp.compile(fn, v -> new llvm.Ret(v));
   }
+
+  void scan(Inliner in, int loops) {
+    in.size++;
+    if (exp!=null) {
+      exp.scan(in, loops);
+    }
+  }
+
+  Stmt copy(Inliner in, boolean tail) {
+    Expr e = null;
+    if (exp!=null && (e=exp.copy(in))==null) {
+      return null;
+    }
+    return in.result(e, tail);
+  }
+
+  Stmt inline(Inliner in) {
+    if (exp!=null) {
+      exp    = exp.inline(in);
+      Stmt s = exp.expand(in, Inliner.RETURN, null);
+      if (s!=null) {
+        return s;
+      }
+    }
+    return this;
+  }
+
+  /** A value that is returned escapes from the function.
+   */
+  void escape(Escape esc) {
+    if (exp!=null) {
+      exp.escape(esc, Escape.ESCAPES);
+    }
+  }
+}
+
+//----------------------------------------------------------------------------
+/** Abstract syntax for break statements.
+ */
+class Break extends Stmt {
+
+  /** The loop or switch statement that this break statement leaves,
+   *  which is found by the static analysis.
+   */
+  private Breakable target;
+
+  Break() { }
+
+  void print(int ind) {
+    indent(ind);
+    System.out.println("break;");
+  }
+
+  TypeEnv check(Context ctxt, boolean canContinue, boolean canBreak, TypeEnv env)
+   throws StaticError {
+    if (!canBreak) {
+      throw new StaticError("illegal use of break statement");
+    }
+    target = ctxt.breakTo;
+    return env;
+  }
+
+  /** Generate LLVM code that will jump to the code that follows the
+   *  statement that this break leaves; the follow on code is unreachable.
+   */
+  Code compile(final llvm.Function fn, final Code andThen) {
+    return new llvm.Goto(target.exit());
+  }
+
+  void scan(Inliner in, int loops) {
+    in.size++;
+  }
+
+  Stmt copy(Inliner in, boolean tail) {
+    return new Break();
+  }
+
+  Stmt inline(Inliner in) {
+    return this;
+  }
+
+  void escape(Escape esc) {
+    /* Nothing to record. */
+  }
+}
+
+//----------------------------------------------------------------------------
+/** Abstract syntax for switch statements.
+ */
+class Switch extends Breakable {
+  private Expr   test;
+  private Case[] cases;
+  Switch(Expr test, Case[] cases) {
+    this.test = test; this.cases = cases;
+  }
+
+  void print(int ind) {
+    indent(ind);
+    System.out.println("switch (" + test.show() + ") {");
+    for (int i=0; i<cases.length; i++) {
+      cases[i].print(ind+2);
+    }
+    indent(ind);
+    System.out.println("}");
+  }
+
+  /** Check the cases, using a hash set of the numbers that have been
+   *  seen so far to find repeated numbers.
+   */
+  TypeEnv check(Context ctxt, boolean canContinue, boolean canBreak, TypeEnv env)
+   throws StaticError {
+    test.require(ctxt, env, Type.INT);
+    HashSet<Integer> nums  = new HashSet<Integer>();
+    boolean          dflt  = false;
+    Breakable        outer = ctxt.breakTo;
+    ctxt.breakTo = this;
+    for (int i=0; i<cases.length; i++) {
+      cases[i].check(ctxt, canContinue, env);
+      Integer num = cases[i].num();
+      if (num==null) {
+        if (dflt) {
+          throw new StaticError("switch statement contains two default cases");
+        }
+        dflt = true;
+      } else if (!nums.add(num)) {
+        throw new StaticError("switch statement contains two cases for " + num);
+      }
+    }
+    ctxt.breakTo = outer;
+    return env;
+  }
+
+  /** Generate LLVM code that will execute this statement and
+   *  then continue with the follow on code.  The test is a single
+   *  LLVM switch instruction.  Each case falls through to the next,
+   *  so the cases are compiled from last to first, and a run of cases
+   *  with no body of their own share the block of the case that
+   *  follows them.  A break, and the end of the last case, jump to a
+   *  block holding the follow on code, which is also the default if
+   *  there is no default case.
+   */
+  Code compile(final llvm.Function fn, final Code andThen) {
+    startCompile(fn, andThen);
+    Block[] blocks = new Block[cases.length];
+    Block   dflt   = null;
+    int     count  = 0;
+    for (int i=cases.length-1; i>=0; i--) {
+      Block next = (i+1<cases.length) ? blocks[i+1] : null;
+      if (cases[i].isEmpty()) {
+        blocks[i] = (next==null) ? exit() : next;
+      } else {
+        Code fall = new llvm.Goto((next==null) ? exit() : next);
+        blocks[i] = fn.block(cases[i].compile(fn, fall));
+      }
+      if (cases[i].num()==null) {
+        dflt = blocks[i];
+      } else {
+        count++;
+      }
+    }
+
+    final int[]   nums    = new int[count];
+    final Block[] targets = new Block[count];
+    final Block   other   = (dflt==null) ? exit() : dflt;
+    for (int i=0, n=0; i<cases.length; i++) {
+      if (cases[i].num()!=null) {
+        nums[n]      = cases[i].num();
+        targets[n++] = blocks[i];
+      }
+    }
+    return test.compile(fn, v -> new llvm.Switch(v, other, nums, targets));
+  }
+
+  void scan(Inliner in, int loops) {
+    in.size++;
+    test.scan(in, loops);
+    for (int i=0; i<cases.length; i++) {
+      cases[i].scan(in, loops);
+    }
+  }
+
+  Stmt copy(Inliner in, boolean tail) {
+    Expr t = test.copy(in);
+    if (t==null) {
+      return null;
+    }
+    Case[] cs = new Case[cases.length];
+    for (int i=0; i<cases.length; i++) {
+      if ((cs[i]=cases[i].copy(in))==null) {
+        return null;
+      }
+    }
+    return new Switch(t, cs);
+  }
+
+  /** A test that is a call chosen for inlining is replaced by the body
+   *  of the function, saving its result in a new variable to test.
+   */
+  Stmt inline(Inliner in) {
+    test = test.inline(in);
+    for (int i=0; i<cases.length; i++) {
+      cases[i].inline(in);
+    }
+    String v = Inliner.fresh("switch");
+    Stmt   s = test.expand(in, new Var(v), Inliner.declare(Type.INT, v, null));
+    if (s!=null) {
+      test = new Var(v);
+      return Inliner.seq(s, this);
+    }
+    return this;
+  }
+
+  void escape(Escape esc) {
+    test.escape(esc, null);
+    for (int i=0; i<cases.length; i++) {
+      cases[i].escape(esc);
+    }
+  }
+}
+
+//----------------------------------------------------------------------------
+/** Abstract base class for the cases in a switch statement.
+ */
+abstract class Case {
+  protected Stmt body;  // Note: body may be empty (i.e., null)
+  Case(Stmt body) { this.body = body; }
+
+  abstract void print(int ind);
+
+  void check(Context ctxt, boolean canContinue, TypeEnv env)
+   throws StaticError {
+    if (body!=null) {
+      body.check(ctxt, canContinue, true, env);
+    }
+  }
+
+  /** Return true if this case has no statements of its own, and so
+   *  goes straight on to the next case.
+   */
+  boolean isEmpty() {
+    return body==null;
+  }
+
+  /** Generate LLVM code for the body of this case, continuing with the
+   *  follow on code, which falls through to the next case.
+   */
+  Code compile(final llvm.Function fn, final Code andThen) {
+    return body.compile(fn, andThen);
+  }
+
+  void scan(Inliner in, int loops) {
+    if (body!=null) {
+      body.scan(in, loops);
+    }
+  }
+
+  Case copy(Inliner in) {
+    Stmt b = null;
+    if (body!=null && (b=body.copyBlock(in, false))==null) {
+      return null;
+    }
+    return make(b);
+  }
+
+  /** Make a new case with the same label as this one.
+   */
+  abstract Case make(Stmt body);
+
+  void inline(Inliner in) {
+    if (body!=null) {
+      body = body.inline(in);
+    }
+  }
+
+  void escape(Escape esc) {
+    if (body!=null) {
+      body.escape(esc);
+    }
+  }
+
+  /** Return the value for a numeric case, or null for a default case.
+   *  A single switch statement should not have two default cases or
+   *  two numeric cases with the same integer value.
+   */
+  abstract Integer num();
+}
+
+//----------------------------------------------------------------------------
+/** Abstract syntax for a numbered case in a switch statement.
+ */
+class NumCase extends Case {
+  private int  num;
+  NumCase(int num, Stmt body) { super(body); this.num = num; }
+
+  void print(int ind) {
+    Stmt.indent(ind);
+    System.out.println("case " + num + ":");
+    if (body!=null) {
+      body.print(ind+2);
+    }
+  }
+
+  Integer num() { return num; }
+
+  Case make(Stmt body) { return new NumCase(num, body); }
+}
+
+//----------------------------------------------------------------------------
+/** Abstract syntax for a default case in a switch statement.
+ */
+class DefaultCase extends Case {
+  DefaultCase(Stmt body) { super(body); }
+
+  void print(int ind) {
+    Stmt.indent(ind);
+    System.out.println("default:");
+    if (body!=null) {
+      body.print(ind+2);
+    }
+  }
+
+  Integer num() { return null; }
+
+  Case make(Stmt body) { return new DefaultCase(body); }
 }
 
 //----------------------------------------------------------------------------
@@ -1044,6 +1922,61 @@ class VarDecl extends Stmt {
     }
     return code;
   }
+
+  void scan(Inliner in, int loops) {
+    in.size++;
+    for (int i=0; i<vars.length; i++) {
+      vars[i].scan(in, loops);
+    }
+  }
+
+  Stmt copy(Inliner in, boolean tail) {
+    VarIntro[] vs = new VarIntro[vars.length];
+    for (int i=0; i<vars.length; i++) {
+      if ((vs[i]=vars[i].copy(in))==null) {
+        return null;
+      }
+    }
+    return new VarDecl(type, vs);
+  }
+
+  /** A variable whose initializer is a call that has been chosen for
+   *  inlining is declared separately, and then set by the body of the
+   *  function.  The remaining variables are left in declarations of
+   *  their own, so that the order of the declarations is preserved.
+   */
+  Stmt inline(Inliner in) {
+    Stmt code  = null;
+    int  start = 0;
+    for (int i=0; i<vars.length; i++) {
+      Stmt s = vars[i].inline(in, type);
+      if (s!=null) {
+        code  = Inliner.seq(code, Inliner.seq(part(start, i), s));
+        start = i+1;
+      }
+    }
+    return (code==null) ? this : Inliner.seq(code, part(start, vars.length));
+  }
+
+  void escape(Escape esc) {
+    for (int i=0; i<vars.length; i++) {
+      vars[i].escape(esc);
+    }
+  }
+
+  /** Return a declaration for the variables from start up to (but not
+   *  including) end, or null if there are no such variables.
+   */
+  private Stmt part(int start, int end) {
+    if (start>=end) {
+      return null;
+    }
+    VarIntro[] vs = new VarIntro[end-start];
+    for (int i=start; i<end; i++) {
+      vs[i-start] = vars[i];
+    }
+    return new VarDecl(type, vs);
+  }
 }
 
 //----------------------------------------------------------------------------
@@ -1078,6 +2011,30 @@ class VarIntro {
     return te = new TypeEnv(name, type, loc, env);
   }
 
+  void scan(Inliner in, int loops) {
+    in.local(name);
+  }
+
+  VarIntro copy(Inliner in) {
+    return new VarIntro(in.define(name));
+  }
+
+  /** Replace calls that have been chosen for inlining in the initializer
+   *  for this variable.  Returns a statement to use in place of this
+   *  variable introduction if the initializer itself is inlined, or
+   *  else null.
+   */
+  Stmt inline(Inliner in, Type type) {
+    return null;
+  }
+
+  /** Record where the initial value of this local variable comes from,
+   *  for the escape analysis.
+   */
+  void escape(Escape esc) {
+    /* No initializer, so nothing to record. */
+  }
+
   /** Extend the global environment with an entry for the variable
    *  that is introduced here, using the given type.
    */
@@ -1136,6 +2093,25 @@ class InitVarIntro extends VarIntro {
     return super.check(ctxt, type, env);
   }
 
+  void scan(Inliner in, int loops) {
+    expr.scan(in, loops);
+    super.scan(in, loops);
+  }
+
+  VarIntro copy(Inliner in) {
+    Expr e = expr.copy(in);
+    return (e==null) ? null : new InitVarIntro(in.define(name), e);
+  }
+
+  Stmt inline(Inliner in, Type type) {
+    expr = expr.inline(in);
+    return expr.expand(in, new Var(name), Inliner.declare(type, name, null));
+  }
+
+  void escape(Escape esc) {
+    expr.escape(esc, Escape.node(loc));
+  }
+
   void addToContext(Context ctxt, Type type) throws StaticError {
     if (TypeEnv.find(name, ctxt.globals)!=null) {
       throw new StaticError("multiple global definitions for " + name);
@@ -1228,6 +2204,9 @@ abstract class Defn {
       code = program[i].initGlobals(init, code);
     }
     init.block("entry", code);
+    if (llvm.Optimizer.enabled) {
+      llvm.Optimizer.run(init);
+    }
     return init;
   }
 
@@ -1251,6 +2230,20 @@ abstract class Defn {
     // No additional code is required for function definitions
     return andThen;
   }
+
+  /** Add the functions and global variables introduced in this
+   *  definition to the inliner.
+   */
+  void addToInliner(Inliner in) {
+    /* By default, no action is required. */
+  }
+
+  /** Add the functions in this definition to the escape analysis.  The
+   *  arrays in the initializers of global variables always escape.
+   */
+  void addToEscape(Escape esc) {
+    /* By default, no action is required. */
+  }
 }
 
 //----------------------------------------------------------------------------
@@ -1305,6 +2298,15 @@ class Globals extends Defn {
     }
     return code;
   }
+
+  /** Add the functions and global variables introduced in this
+   *  definition to the inliner.
+   */
+  void addToInliner(Inliner in) {
+    for (int i=0; i<vars.length; i++) {
+      in.addGlobal(vars[i].name);
+    }
+  }
 }
 
 //----------------------------------------------------------------------------
@@ -1333,6 +2335,17 @@ class Function extends Defn {
    */
   private HashMap<String,Local> localVars;
 
+  /** Records the arrays that are allocated on the stack in this function
+   *  (see Escape).
+   */
+  private Vector<NewArray> stackArrays = new Vector<NewArray>();
+
+  /** Allocate the given array on the stack of this function.
+   */
+  void addStackArray(NewArray a) {
+    stackArrays.add(a);
+  }
+
   /** Return a local "address" for the named variable with the given
    *  type that is unique within this function.
    */
@@ -1393,8 +2406,10 @@ class Function extends Defn {
   /** Check that this is a valid function definition.
    */
   void check(Context ctxt) throws StaticError {
-    // Make a note of the current function:
+    // Make a note of the current function, and start a new set of
+    // local variables (the function may be checked more than once):
     ctxt.current = this;
+    localVars    = new HashMap<String,Local>();
 
     // Check for duplicate names in the formal parameter list:
     if (Formal.containsRepeats(formals)) {
@@ -1501,12 +2516,20 @@ class Function extends Defn {
     llvm.Formal[] fms  = new llvm.Formal[formals.length];
     llvm.Type     rt   = (retType==null) ? null : retType.toLLVM();
     llvm.Function fn   = new llvm.Function(rt, name, fms);
+    for (NewArray a : stackArrays) {
+      a.setSlot(fn.reg(llvm.Type.i32.ptr()));
+    }
     Code          code = body.compile(fn, null);
 
     // Add code to save parameters in stack frame:
     for (int i=formals.length-1; i>=0; i--) {
       fms[i] = formals[i].toLLVM();
-      code   = new llvm.Store(fms[i].getParam(), fms[i], code);
+      code   = new llvm.Store(fms[i].getParam(), formals[i].getLoc(), code);
+    }
+
+    // Add stack frame slots for the arrays that do not escape:
+    for (int i=stackArrays.size()-1; i>=0; i--) {
+      code = stackArrays.get(i).alloca(code);
     }
 
     // Add stack frame slots for all local variables, including parameters:
@@ -1514,8 +2537,70 @@ class Function extends Defn {
       code = new llvm.Op(loc, new llvm.Alloca(loc.getType().ptsTo()), code);
     }
     fn.block("entry", code);
+
+    // Promote the local variables to registers:
+    if (llvm.SSA.enabled) {
+      new llvm.SSA(fn).run();
+    }
+
+    // Remove constant computations, redundant code and dead code:
+    if (llvm.Optimizer.enabled) {
+      llvm.Optimizer.run(fn);
+    }
     fn.print(out);
   }
+
+  /** Add the functions and global variables introduced in this
+   *  definition to the inliner.
+   */
+  void addToInliner(Inliner in) {
+    in.addFunction(this);
+  }
+
+  /** Record the size, calls, and local variables of this function
+   *  for the inliner.
+   */
+  void scan(Inliner in) {
+    for (int i=0; i<formals.length; i++) {
+      in.local(formals[i].getName());
+    }
+    body.scan(in, 0);
+  }
+
+  /** Replace the calls in the body of this function that have been
+   *  chosen for inlining.
+   */
+  void inline(Inliner in) {
+    body = body.inline(in);
+  }
+
+  /** Add this function to the escape analysis.
+   */
+  void addToEscape(Escape esc) {
+    esc.scan(this);
+  }
+
+  /** Record where the values in the body of this function go.
+   */
+  void escape(Escape esc) {
+    body.escape(esc);
+  }
+
+  /** Return the name of this function.
+   */
+  String getName() { return name; }
+
+  /** Return the formal parameters of this function.
+   */
+  Formal[] getFormals() { return formals; }
+
+  /** Return the return type of this function (null for void).
+   */
+  Type getRetType() { return retType; }
+
+  /** Return the body of this function.
+   */
+  Stmt getBody() { return body; }
 }
 
 //----------------------------------------------------------------------------
@@ -1578,6 +2663,10 @@ class Formal {
    */
   private Location loc;
 
+  /** Return the LLVM location for the stack slot of this parameter.
+   */
+  Location getLoc() { return loc; }
+
   /** Generate an LLVM formal parameter reference corresponding to this
    *  source language formal parameter.
    */
@@ -1697,7 +2786,7 @@ class StaticAnalysis {
       new Context().check(defns);
     } catch (StaticError e) {
       System.out.println(e.toString());
-      System.exit(1);
+      throw new Exit(1);
     }
   }
 }
@@ -1735,6 +2824,12 @@ class Context {
    */
   Function current = null;
 
+  /** Holds a pointer to the innermost loop or switch statement around
+   *  the statement that we are currently checking, which a break
+   *  statement would leave.
+   */
+  Breakable breakTo = null;
+
   /** Run the type checker in this context.
    */
   void check(Defn[] defns) throws StaticError {
@@ -1789,6 +2884,19 @@ class StaticError extends Exception {
   StaticError(String msg) { super(msg); }
 }
 
+//----------------------------------------------------------------------------
+/** Thrown to stop the compiler after an error, with the status that
+ *  main() passes to System.exit().  The compile server in ../StevieServer
+ *  calls run() instead, and catches this to end only the request.  It is
+ *  an Error rather than an exception, so that the handlers for other
+ *  errors do not catch it.
+ */
+@SuppressWarnings("serial")
+class Exit extends Error {
+  final int status;
+  Exit(int status) { super("exit " + status); this.status = status; }
+}
+
 //____________________________________________________________________________
 // Main compiler entry point:
 //____________________________________________________________________________
@@ -1797,14 +2905,51 @@ class StaticError extends Exception {
 /** A top-level program for compiling a source program in to LLVM.
  */
 class StevieLLVM {
-  public static final String name = "demo";
+  /** The name of the LLVM code file, without its suffix.
+   */
+  static String name = "demo";
 
   public static void main(String[] args) {
+    try {
+      run(args);
+    } catch (Exit e) {
+      System.exit(e.status);
+    }
+  }
+
+  /** Run the compiler with the given command line options, throwing an
+   *  Exit if it stops after an error.
+   */
+  static void run(String[] args) {
+    // Process command line options:
+    for (int i=0; i<args.length; i++) {
+      if (args[i].equals("-no-inline")) {
+        Inliner.enabled = false;
+      } else if (args[i].startsWith("-inline-size=")) {
+        Inliner.maxSize = number(args[i].substring(13));
+      } else if (args[i].startsWith("-inline-budget=")) {
+        Inliner.budget = number(args[i].substring(15));
+      } else if (args[i].equals("-no-ssa")) {
+        llvm.SSA.enabled = false;
+      } else if (args[i].equals("-no-opt")) {
+        llvm.Optimizer.enabled = false;
+      } else if (args[i].equals("-no-stack-arrays")) {
+        Escape.enabled = false;
+      } else if (args[i].startsWith("-stack-array-size=")) {
+        Escape.maxLength = number(args[i].substring(18));
+      } else if (args[i].startsWith("-o=")) {
+        name = args[i].substring(3);
+      } else {
+        System.out.println("Unrecognized option " + args[i]);
+        throw new Exit(1);
+      }
+    }
+
     // Read and parse a source program from standard input
-    new Parser(System.in);
+    Parser parser  = new Parser(System.in);
     Defn[] program = null;
     try {
-      program = Parser.Top();
+      program = parser.Top();
 
       // Display the source program:
       System.out.println("Complete program is:");
@@ -1814,18 +2959,48 @@ class StevieLLVM {
       new StaticAnalysis().run(program);
       System.out.println("Passes static analysis!");
 
+      // Inline calls to small functions, and then check the result:
+      if (Inliner.enabled) {
+        new Inliner().run(program);
+        Inliner.report();
+        new StaticAnalysis().run(program);
+      }
+
+      // Allocate arrays that do not escape on the stack:
+      if (Escape.enabled) {
+        new Escape().run(program);
+        Escape.report();
+      }
+
       // Generate corresponding LLVM code:
       String      filename = name + ".ll";
       PrintWriter out      = new PrintWriter(new FileWriter(filename));
       Defn.compile(out, program);
       out.close();
+      if (llvm.SSA.enabled) {
+        llvm.SSA.report();
+      }
+      if (llvm.Optimizer.enabled) {
+        llvm.Optimizer.report();
+      }
       System.out.println("Generated LLVM code in " + filename);
     } catch (ParseException e) {
       System.out.println("Syntax Error");
-      System.exit(1);
+      throw new Exit(1);
     } catch (Exception e) {
       System.out.println(e.toString());
-      System.exit(1);
+      throw new Exit(1);
+    }
+  }
+
+  /** Read a numeric argument for a command line option.
+   */
+  private static int number(String s) {
+    try {
+      return Integer.parseInt(s);
+    } catch (NumberFormatException e) {
+      System.out.println("Invalid number " + s);
+      throw new Exit(1);
     }
   }
 }
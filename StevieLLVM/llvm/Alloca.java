@@ -1,6 +1,7 @@
 package llvm;
 
-/** Allocate space for a variable on the stack.
+/** Allocate space for a variable, or for an array with a fixed number
+ *  of elements, on the stack.
  */
 public class Alloca extends Rhs {
 
@@ -8,15 +9,41 @@ public class Alloca extends Rhs {
      */
     private Type ty;
 
+    /** The number of values of that type to allocate space for, or zero
+     *  for a single variable.
+     */
+    private int count;
+
     /** Default constructor.
      */
     public Alloca(Type ty) {
-        this.ty = ty;
+        this(ty, 0);
+    }
+
+    /** Allocate space for an array of count values of the given type.
+     */
+    public Alloca(Type ty, int count) {
+        this.ty    = ty;
+        this.count = count;
     }
 
     /** Generate a printable string for this instruction.
      */
     public String toString() {
-        return "alloca " + ty /* + ", align " + ty.getAlign()*/;
+        return "alloca " + ty + ((count==0) ? "" : ", i32 " + count)
+                      /* + ", align " + ty.getAlign()*/;
+    }
+
+    /** Record the variable that is allocated by this instruction.
+     */
+    void scan(SSA ssa, Lhs lhs) {
+        ssa.alloca(lhs);
+    }
+
+    /** Variables that have been promoted to registers do not need space
+     *  on the stack.
+     */
+    Rhs rename(SSA ssa, Lhs lhs) {
+        return ssa.promoted(lhs) ? null : this;
     }
 }
@@ -44,4 +44,56 @@ public abstract class BinOp extends Rhs {
     public String toString(String op) {
         return op + " " + ty + " " + l.getName() + ", " + r.getName();
     }
+
+    /** Return the left operand.
+     */
+    Value left() {
+        return l;
+    }
+
+    /** Return the right operand.
+     */
+    Value right() {
+        return r;
+    }
+
+    /** Replace each of the operands by the value that the rewrite gives.
+     */
+    void rewrite(Rewrite f) {
+        l = f.apply(l);
+        r = f.apply(r);
+    }
+
+    /** Binary operations depend only on their operands.
+     */
+    boolean pure() {
+        return true;
+    }
+
+    /** Return the constant result of this operation for the given constant
+     *  operands, or null if either of them is not a constant, or if the
+     *  result is not defined.
+     */
+    Value fold(Value a, Value b) {
+        Integer x = number(a);
+        Integer y = number(b);
+        return (x==null || y==null) ? null : fold(x, y);
+    }
+
+    /** Return the constant result of this operation for the given numbers,
+     *  or null if the result is not defined.
+     */
+    abstract Value fold(int x, int y);
+
+    /** Return the number that a constant stands for, with true as 1, or
+     *  null if the value is not a constant.
+     */
+    private static Integer number(Value v) {
+        if (v instanceof IntVal) {
+            return ((IntVal)v).getNum();
+        } else if (v instanceof BoolVal) {
+            return ((BoolVal)v).getBool() ? 1 : 0;
+        }
+        return null;
+    }
 }
@@ -24,4 +24,16 @@ public class Bitcast extends Rhs {
     public String toString() {
         return "bitcast " + v + " to " + type;
     }
+
+    /** Replace the value by the value that the rewrite gives.
+     */
+    void rewrite(Rewrite f) {
+        v = f.apply(v);
+    }
+
+    /** Conversions depend only on their operand.
+     */
+    boolean pure() {
+        return true;
+    }
 }
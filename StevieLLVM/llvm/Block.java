@@ -20,10 +20,17 @@ public class Block {
         this.code = code;
     }
 
+    /** The function that this block belongs to, if any.
+     */
+    Function fn;
+
     /** Set the code associated with this basic block.
      */
     public void set(Code code) {
         this.code = code;
+        if (fn!=null) {
+            fn.changed();
+        }
     }
 
     /** Return the entry label for this basic block.
@@ -22,6 +22,10 @@ public class BoolVal extends Value {
      */
     public static final BoolVal FALSE = new BoolVal(false);
 
+    /** Return the boolean value associated with this BoolVal.
+     */
+    public boolean getBool() { return bool; }
+
     /** Return the LLVM type of this value.
      */
     public Type getType() { return Type.i1; }
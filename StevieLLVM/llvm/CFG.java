@@ -0,0 +1,553 @@
+package llvm;
+import java.util.HashMap;
+import java.util.Vector;
+
+/** Represents the control flow graph of a function, with analyses of its
+ *  dominators, post-dominators and loops.  The blocks that can be reached
+ *  from the entry are numbered in reverse postorder, starting with zero
+ *  for the entry, and the analyses use these numbers to refer to blocks.
+ *  The graph is built when it is first requested (see Function.cfg), and
+ *  each analysis is only run when it is first used.  All of them take
+ *  time that grows linearly with the size of the function in practice:
+ *  dominators are found by the algorithm of Cooper, Harvey and Kennedy,
+ *  and loops by walking back from the edges that return to each header,
+ *  skipping over the inner loops that have already been found.
+ */
+public class CFG {
+
+    /** The reachable blocks of the function, in reverse postorder.
+     */
+    private Block[] order;
+
+    /** Maps each reachable block to its number.
+     */
+    private HashMap<Block,Integer> index = new HashMap<Block,Integer>();
+
+    /** The successors and predecessors of each block.
+     */
+    private int[][] succs, preds;
+
+    /** Build the control flow graph for the given list of blocks, whose
+     *  last element is the entry.
+     */
+    CFG(Vector<Block> blocks) {
+        int     n     = blocks.size();
+        Block[] stack = new Block[n];
+        int[]   next  = new int[n];
+        int     top   = 0;
+        int     count = n;
+        order    = new Block[n];
+        stack[0] = blocks.lastElement();
+        index.put(stack[0], -1);
+        while (top>=0) {
+            Block[] ss = stack[top].code().succs();
+            if (next[top]<ss.length) {
+                Block s = ss[next[top]++];
+                if (!index.containsKey(s)) {
+                    index.put(s, -1);
+                    stack[++top] = s;
+                    next[top]    = 0;
+                }
+            } else {
+                // Blocks are placed from the end as they are finished:
+                order[--count] = stack[top--];
+            }
+        }
+        if (count>0) {
+            Block[] reached = new Block[n-count];
+            System.arraycopy(order, count, reached, 0, n-count);
+            order = reached;
+            n     = reached.length;
+        }
+        for (int b=0; b<n; b++) {
+            index.put(order[b], b);
+        }
+
+        succs = new int[n][];
+        int[] npreds = new int[n];
+        for (int b=0; b<n; b++) {
+            Block[] ss = order[b].code().succs();
+            succs[b]   = new int[ss.length];
+            for (int i=0; i<ss.length; i++) {
+                succs[b][i] = index.get(ss[i]);
+                npreds[succs[b][i]]++;
+            }
+        }
+        preds = new int[n][];
+        for (int b=0; b<n; b++) {
+            preds[b]  = new int[npreds[b]];
+            npreds[b] = 0;
+        }
+        for (int b=0; b<n; b++) {
+            for (int i=0; i<succs[b].length; i++) {
+                int s = succs[b][i];
+                preds[s][npreds[s]++] = b;
+            }
+        }
+    }
+
+    /** Return the number of reachable blocks.
+     */
+    public int size() {
+        return order.length;
+    }
+
+    /** Return the block with the given number.
+     */
+    public Block block(int b) {
+        return order[b];
+    }
+
+    /** Return the number of the given block, or -1 if it cannot be
+     *  reached from the entry.
+     */
+    public int index(Block b) {
+        Integer i = index.get(b);
+        return (i==null) ? -1 : i;
+    }
+
+    /** Return true if the given block can be reached from the entry.
+     */
+    public boolean reachable(Block b) {
+        return index.containsKey(b);
+    }
+
+    /** Return the successors of a block.  A block that ends with a
+     *  conditional branch to the same block in both cases lists it twice.
+     */
+    public int[] succs(int b) {
+        return succs[b];
+    }
+
+    /** Return the predecessors of a block, with one entry for each edge.
+     */
+    public int[] preds(int b) {
+        return preds[b];
+    }
+
+    //- Dominators ---------------------------------------------------------
+
+    /** The immediate dominator of each block (with the entry as its own
+     *  immediate dominator), and the interval of preorder numbers for the
+     *  subtree of the dominator tree at each block.
+     */
+    private int[] idom, pre, last;
+
+    /** The children of each block in the dominator tree.
+     */
+    private int[][] children;
+
+    /** The dominance frontier of each block.
+     */
+    private int[][] frontier;
+
+    /** Return the immediate dominator of a block, or -1 for the entry.
+     */
+    public int idom(int b) {
+        dominators();
+        return (b==0) ? -1 : idom[b];
+    }
+
+    /** Return true if block a dominates block b (which includes the case
+     *  where they are the same block).
+     */
+    public boolean dominates(int a, int b) {
+        dominators();
+        return pre[a]<=pre[b] && pre[b]<=last[a];
+    }
+
+    /** Return the blocks that are immediately dominated by a block, in
+     *  reverse postorder.
+     */
+    public int[] children(int b) {
+        dominators();
+        return children[b];
+    }
+
+    /** Return the dominance frontier of a block: the blocks that it does
+     *  not strictly dominate, but that have a predecessor that it does
+     *  dominate.
+     */
+    public int[] frontier(int b) {
+        if (frontier==null) {
+            dominators();
+            int n = order.length;
+            int[][] df   = new int[n][];
+            int[]   size = new int[n];
+            int[]   seen = new int[n];
+            for (int i=0; i<n; i++) {
+                seen[i] = -1;
+            }
+            for (int j=0; j<n; j++) {
+                // Walk up from each predecessor to the immediate dominator,
+                // or, for the entry, all the way to the entry itself:
+                if (preds[j].length>1 || j==0) {
+                    int stop = (j==0) ? -1 : idom[j];
+                    for (int i=0; i<preds[j].length; i++) {
+                        int r = preds[j][i];
+                        while (r!=stop && seen[r]!=j) {
+                            seen[r] = j;
+                            df[r]   = add(df[r], size[r]++, j);
+                            r       = idom[r];
+                        }
+                    }
+                }
+            }
+            for (int i=0; i<n; i++) {
+                df[i] = trim(df[i], size[i]);
+            }
+            frontier = df;
+        }
+        return frontier[b];
+    }
+
+    /** Compute the dominators of each block, if this has not been done
+     *  already.
+     */
+    private void dominators() {
+        if (idom==null) {
+            int   n   = order.length;
+            int[] rpo = new int[n];
+            for (int b=0; b<n; b++) {
+                rpo[b] = b;
+            }
+            idom     = dominators(rpo, n, rpo, preds);
+            children = tree(idom, 0);
+            pre      = new int[n];
+            last     = new int[n];
+            number(children, 0, pre, last);
+        }
+    }
+
+    /** Compute the immediate dominators of a graph by the algorithm of
+     *  Cooper, Harvey and Kennedy.  The first m elements of node list the
+     *  nodes that can be reached from the root in reverse postorder,
+     *  starting with the root, and rpo gives the position of each node in
+     *  that list, or -1 if it is not reachable.  The root is its own
+     *  immediate dominator, and the result is -1 for unreachable nodes.
+     */
+    private static int[] dominators(int[] node, int m, int[] rpo, int[][] preds) {
+        int[] idom = new int[rpo.length];
+        for (int b=0; b<idom.length; b++) {
+            idom[b] = -1;
+        }
+        idom[node[0]] = node[0];
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i=1; i<m; i++) {
+                int b = node[i];
+                int d = -1;
+                for (int j=0; j<preds[b].length; j++) {
+                    int p = preds[b][j];
+                    if (idom[p]>=0) {
+                        d = (d<0) ? p : intersect(idom, rpo, p, d);
+                    }
+                }
+                if (d!=idom[b]) {
+                    idom[b] = d;
+                    changed = true;
+                }
+            }
+        }
+        return idom;
+    }
+
+    /** Find the closest common dominator of two nodes.
+     */
+    private static int intersect(int[] idom, int[] rpo, int a, int b) {
+        while (a!=b) {
+            while (rpo[a]>rpo[b]) {
+                a = idom[a];
+            }
+            while (rpo[b]>rpo[a]) {
+                b = idom[b];
+            }
+        }
+        return a;
+    }
+
+    /** Return the children of each node in the tree described by the
+     *  given parent array, in increasing order.
+     */
+    private static int[][] tree(int[] parent, int root) {
+        int     n     = parent.length;
+        int[]   count = new int[n];
+        for (int b=0; b<n; b++) {
+            if (b!=root && parent[b]>=0) {
+                count[parent[b]]++;
+            }
+        }
+        int[][] kids = new int[n][];
+        for (int b=0; b<n; b++) {
+            kids[b]  = new int[count[b]];
+            count[b] = 0;
+        }
+        for (int b=0; b<n; b++) {
+            if (b!=root && parent[b]>=0) {
+                kids[parent[b]][count[parent[b]]++] = b;
+            }
+        }
+        return kids;
+    }
+
+    /** Number the nodes of a tree in preorder, recording the number of
+     *  each node, and the last number in its subtree.
+     */
+    private static void number(int[][] kids, int root, int[] pre, int[] last) {
+        int   n     = kids.length;
+        int[] stack = new int[n];
+        int[] next  = new int[n];
+        int   top   = 0;
+        int   count = 0;
+        stack[0]    = root;
+        pre[root]   = count++;
+        while (top>=0) {
+            int b = stack[top];
+            if (next[top]<kids[b].length) {
+                int c       = kids[b][next[top]++];
+                pre[c]      = count++;
+                stack[++top] = c;
+                next[top]   = 0;
+            } else {
+                last[b] = count-1;
+                top--;
+            }
+        }
+    }
+
+    //- Post-dominators ----------------------------------------------------
+
+    /** The immediate post-dominator of each block, with the number of
+     *  blocks standing for the exit from the function, and the interval
+     *  of preorder numbers for the subtree of the post-dominator tree at
+     *  each block.
+     */
+    private int[] ipdom, ppre, plast;
+
+    /** Return the immediate post-dominator of a block, or -1 if the only
+     *  block that post-dominates it is the exit from the function, or it
+     *  cannot reach an exit.
+     */
+    public int ipdom(int b) {
+        postDominators();
+        return (ipdom[b]==order.length) ? -1 : ipdom[b];
+    }
+
+    /** Return true if block a post-dominates block b (which includes the
+     *  case where they are the same block).  Blocks that cannot reach an
+     *  exit are only post-dominated by themselves.
+     */
+    public boolean postDominates(int a, int b) {
+        postDominators();
+        if (ipdom[a]<0 || ipdom[b]<0) {
+            return a==b;
+        }
+        return ppre[a]<=ppre[b] && ppre[b]<=plast[a];
+    }
+
+    /** Compute the post-dominators of each block, if this has not been
+     *  done already, as the dominators of the reverse graph, with an
+     *  extra node for the exit, whose predecessors in the reverse graph
+     *  are the blocks that end the function.
+     */
+    private void postDominators() {
+        if (ipdom==null) {
+            int     n     = order.length;
+            int[][] rsucc = new int[n+1][];
+            int[][] rpred = new int[n+1][];
+            int     exits = 0;
+            for (int b=0; b<n; b++) {
+                rsucc[b] = preds[b];
+                if (succs[b].length==0) {
+                    rpred[b] = new int[] { n };
+                    exits++;
+                } else {
+                    rpred[b] = succs[b];
+                }
+            }
+            rsucc[n] = new int[exits];
+            rpred[n] = new int[0];
+            for (int b=0, i=0; b<n; b++) {
+                if (succs[b].length==0) {
+                    rsucc[n][i++] = b;
+                }
+            }
+
+            // Number the reverse graph in reverse postorder from the exit:
+            int[] rpo   = new int[n+1];
+            int[] node  = new int[n+1];
+            int[] stack = new int[n+1];
+            int[] next  = new int[n+1];
+            int   top   = 0;
+            int   count = n+1;
+            for (int b=0; b<n; b++) {
+                rpo[b] = -1;
+            }
+            stack[0] = n;
+            while (top>=0) {
+                int b = stack[top];
+                if (next[top]<rsucc[b].length) {
+                    int s = rsucc[b][next[top]++];
+                    if (rpo[s]<0) {
+                        rpo[s]       = 0;
+                        stack[++top] = s;
+                        next[top]    = 0;
+                    }
+                } else {
+                    node[--count] = b;
+                    top--;
+                }
+            }
+            int m = n+1-count;
+            System.arraycopy(node, count, node, 0, m);
+            for (int i=0; i<m; i++) {
+                rpo[node[i]] = i;
+            }
+            ipdom = dominators(node, m, rpo, rpred);
+            ppre  = new int[n+1];
+            plast = new int[n+1];
+            number(tree(ipdom, n), n, ppre, plast);
+        }
+    }
+
+    //- Loops --------------------------------------------------------------
+
+    /** The innermost loop that contains each block, or null.
+     */
+    private Loop[] loopOf;
+
+    /** The outermost loops in the function.
+     */
+    private Vector<Loop> loops;
+
+    /** Return the loops of the function that are not inside other loops,
+     *  in reverse postorder of their headers.
+     */
+    public Vector<Loop> loops() {
+        findLoops();
+        return loops;
+    }
+
+    /** Return the innermost loop that contains a block, or null if it is
+     *  not in a loop.
+     */
+    public Loop loopOf(int b) {
+        findLoops();
+        return loopOf[b];
+    }
+
+    /** Return the number of loops that contain a block.
+     */
+    public int loopDepth(int b) {
+        Loop l = loopOf(b);
+        return (l==null) ? 0 : l.depth();
+    }
+
+    /** Find the natural loops of the function, if this has not been done
+     *  already.  A block is a loop header if it dominates one of its
+     *  predecessors, and the loop contains the blocks that can reach
+     *  such a predecessor without passing through the header.  Headers
+     *  are visited from the last to the first in reverse postorder, so
+     *  inner loops are found before the loops that contain them, and the
+     *  walk back from each header jumps straight from each inner loop
+     *  that it meets to the header of that loop.  Retreating edges to
+     *  blocks that do not dominate their source (in irreducible control
+     *  flow) do not form loops.
+     */
+    private void findLoops() {
+        if (loopOf==null) {
+            dominators();
+            int n  = order.length;
+            loopOf = new Loop[n];
+            Vector<Loop> found = new Vector<Loop>();
+            int edges = 0;
+            for (int b=0; b<n; b++) {
+                edges += preds[b].length;
+            }
+            int[] work = new int[edges];
+            for (int h=n-1; h>=0; h--) {
+                int top = 0;
+                for (int i=0; i<preds[h].length; i++) {
+                    int p = preds[h][i];
+                    if (dominates(h, p)) {
+                        work[top++] = p;
+                    }
+                }
+                if (top==0) {
+                    continue;
+                }
+                Loop loop = new Loop(order[h]);
+                found.add(loop);
+                loopOf[h] = loop;
+                loop.add(order[h]);
+                while (top>0) {
+                    int  b = work[--top];
+                    Loop l = loopOf[b];
+                    if (l==null) {
+                        loopOf[b] = loop;
+                        loop.add(order[b]);
+                        for (int i=0; i<preds[b].length; i++) {
+                            work[top++] = preds[b][i];
+                        }
+                    } else {
+                        l = l.outermost();
+                        if (l!=loop) {
+                            // An inner loop: continue from its entries.
+                            loop.addChild(l);
+                            int s = index.get(l.header());
+                            for (int i=0; i<preds[s].length; i++) {
+                                int p = preds[s][i];
+                                if (!dominates(s, p)) {
+                                    work[top++] = p;
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+            loops = new Vector<Loop>();
+            for (int i=found.size()-1; i>=0; i--) {
+                Loop l = found.elementAt(i);
+                l.setDepth();
+                if (l.parent()==null) {
+                    loops.add(l);
+                }
+            }
+        }
+    }
+
+    //- Helpers ------------------------------------------------------------
+
+    /** Add an element at position i of a growable array.
+     */
+    private static int[] add(int[] a, int i, int x) {
+        if (a==null) {
+            a = new int[2];
+        } else if (i>=a.length) {
+            int[] b = new int[2*a.length];
+            System.arraycopy(a, 0, b, 0, a.length);
+            a = b;
+        }
+        a[i] = x;
+        return a;
+    }
+
+    /** An empty array of block numbers.
+     */
+    private static final int[] NONE = new int[0];
+
+    /** Return the first size elements of a growable array.
+     */
+    private static int[] trim(int[] a, int size) {
+        if (size==0) {
+            return NONE;
+        }
+        if (size==a.length) {
+            return a;
+        }
+        int[] b = new int[size];
+        System.arraycopy(a, 0, b, 0, size);
+        return b;
+    }
+}
@@ -29,4 +29,19 @@ public class Call extends Rhs {
     public String toString() {
         return "call " + type + " @X" + name + Value.toString(args);
     }
+
+    /** Replace each of the arguments by the value that the rewrite gives.
+     */
+    void rewrite(Rewrite f) {
+        for (int i=0; i<args.length; i++) {
+            args[i] = f.apply(args[i]);
+        }
+    }
+
+    /** A call may have other effects than computing its result, so it
+     *  cannot be removed.
+     */
+    boolean removable() {
+        return false;
+    }
 }
@@ -32,4 +32,30 @@ public class CallVoid extends Code {
         out.println("  call void @X" + name + Value.toString(args));
         next.print(out);
     }
+
+    /** Return the blocks that this code sequence may branch to at its end.
+     */
+    public Block[] succs() {
+        return next.succs();
+    }
+
+    /** Return the rest of the code in this block.
+     */
+    Code next() {
+        return next;
+    }
+
+    /** Change the rest of the code in this block.
+     */
+    void setNext(Code next) {
+        this.next = next;
+    }
+
+    /** Replace each of the arguments by the value that the rewrite gives.
+     */
+    void rewrite(Rewrite f) {
+        for (int i=0; i<args.length; i++) {
+            args[i] = f.apply(args[i]);
+        }
+    }
 }
@@ -8,4 +8,57 @@ public abstract class Code {
     /** Print out this code sequence to the specified PrintWriter.
      */
     public abstract void print(PrintWriter out);
+
+    /** An empty array of blocks, for code that does not branch.
+     */
+    static final Block[] NO_BLOCKS = new Block[0];
+
+    /** Return the blocks that this code sequence may branch to at its
+     *  end; the default, for code that leaves the function, is none.
+     */
+    public Block[] succs() {
+        return NO_BLOCKS;
+    }
+
+    /** Return the rest of the code in this block after the first
+     *  instruction, or null if this code ends the block.
+     */
+    Code next() {
+        return null;
+    }
+
+    /** Change the rest of the code in this block after the first
+     *  instruction; only valid if next() is not null.
+     */
+    void setNext(Code next) {
+        throw new IllegalStateException("no code follows " + getClass());
+    }
+
+    /** Replace each of the values that are used by the first instruction
+     *  of this code sequence by the value that the rewrite gives for it.
+     */
+    void rewrite(Rewrite f) {
+        /* By default, no values are used. */
+    }
+
+    /** Record the values that are used, and the variables that are
+     *  loaded and stored, by this code sequence (see SSA).
+     */
+    void scan(SSA ssa) {
+        rewrite(ssa.user);
+        if (next()!=null) {
+            next().scan(ssa);
+        }
+    }
+
+    /** Replace the values used by this code sequence with their values
+     *  in SSA form, returning the code that should be used in its place.
+     */
+    Code rename(SSA ssa) {
+        rewrite(ssa::value);
+        if (next()!=null) {
+            setNext(next().rename(ssa));
+        }
+        return this;
+    }
 }
@@ -33,4 +33,22 @@ public class Cond extends Code {
                                + ", label %" + ifTrue.label()
                                + ", label %" + ifFalse.label());
     }
+
+    /** Return the blocks that this code sequence may branch to at its end.
+     */
+    public Block[] succs() {
+        return new Block[] { ifTrue, ifFalse };
+    }
+
+    /** Return the value that is used to make the branch decision.
+     */
+    Value value() {
+        return v;
+    }
+
+    /** Replace the value by the value that the rewrite gives for it.
+     */
+    void rewrite(Rewrite f) {
+        v = f.apply(v);
+    }
 }
@@ -0,0 +1,79 @@
+package llvm;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Vector;
+
+/** Dead code elimination.  Starting from the instructions that must be
+ *  kept, because they have an effect other than computing a result
+ *  (stores, calls, and the instructions that end each block), marks the
+ *  instructions whose results they use, and so on; the instructions that
+ *  are not marked are removed.  Unlike counting the uses of each result,
+ *  this also removes cycles of phi functions that feed only each other.
+ */
+class DCE extends Pass {
+
+    /** Default constructor.
+     */
+    DCE() {
+        super("dead code");
+    }
+
+    /** Maps each register to the instruction that defines it.
+     */
+    private HashMap<Value,Op> defs;
+
+    /** The registers that hold results that are needed.
+     */
+    private HashSet<Value> live;
+
+    /** Registers that have been found to be needed but whose definitions
+     *  have not been marked yet.
+     */
+    private Vector<Value> work;
+
+    /** Remove the instructions whose results are not needed from the
+     *  given function.
+     */
+    void run(Function fn) {
+        CFG cfg = fn.cfg();
+        defs    = new HashMap<Value,Op>();
+        live    = new HashSet<Value>();
+        work    = new Vector<Value>();
+        for (int b=0; b<cfg.size(); b++) {
+            for (Code c=cfg.block(b).code(); c!=null; c=c.next()) {
+                if (c instanceof Op) {
+                    defs.put(((Op)c).lhs(), (Op)c);
+                }
+            }
+        }
+        Rewrite mark = v -> {
+            if (defs.containsKey(v) && live.add(v)) {
+                work.add(v);
+            }
+            return v;
+        };
+        for (int b=0; b<cfg.size(); b++) {
+            for (Code c=cfg.block(b).code(); c!=null; c=c.next()) {
+                if (!(c instanceof Op)) {
+                    c.rewrite(mark);
+                } else if (!((Op)c).rhs().removable()) {
+                    mark.apply(((Op)c).lhs());
+                }
+            }
+        }
+        while (!work.isEmpty()) {
+            defs.get(work.remove(work.size()-1)).rewrite(mark);
+        }
+        for (int b=0; b<cfg.size(); b++) {
+            Block blk  = cfg.block(b);
+            Code  prev = null;
+            for (Code c=blk.code(); c!=null; c=c.next()) {
+                if (c instanceof Op && !live.contains(((Op)c).lhs())) {
+                    follow(blk, prev, c.next());
+                } else {
+                    prev = c;
+                }
+            }
+        }
+    }
+}
@@ -13,4 +13,12 @@ public class Div extends BinOp {
     /** Generate a printable string for this instruction.
      */
     public String toString() { return toString("sdiv"); }
+
+    /** Compute the result of this operation for constant operands, which
+     *  is not defined for division by zero or overflow.
+     */
+    Value fold(int x, int y) {
+        return (y==0 || (x==Integer.MIN_VALUE && y==-1)) ? null
+                                                         : new IntVal(x/y);
+    }
 }
@@ -13,4 +13,8 @@ public class Eql extends CmpOp {
     /** Generate a printable string for this instruction.
      */
     public String toString() { return toString("icmp eq");  }
+
+    /** Compute the result of this operation for constant operands.
+     */
+    Value fold(int x, int y) { return new BoolVal(x==y); }
 }
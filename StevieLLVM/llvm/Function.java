@@ -1,5 +1,6 @@
 package llvm;
 import java.io.PrintWriter;
+import java.util.HashMap;
 import java.util.Vector;
 
 /** Represents a function in an LLVM module.
@@ -32,6 +33,84 @@ public class Function {
      */
     private Vector<Block> blocks = new Vector<Block>();
 
+    /** Holds the control flow graph for this function, or null if it has
+     *  not been built since the blocks were last changed.
+     */
+    private CFG cfg = null;
+
+    /** Return the control flow graph for this function, building it if
+     *  the blocks have been changed since it was last built.
+     */
+    public CFG cfg() {
+        if (cfg==null) {
+            cfg = new CFG(blocks);
+        }
+        return cfg;
+    }
+
+    /** Record a change to the blocks of this function, after which the
+     *  control flow graph must be built again.
+     */
+    void changed() {
+        cfg = null;
+    }
+
+    /** Remove the blocks that cannot be reached from the entry.  This does
+     *  not change the control flow graph, which only includes the blocks
+     *  that can be reached.
+     */
+    public void prune() {
+        CFG g = cfg();
+        if (g.size()<blocks.size()) {
+            Vector<Block> live = new Vector<Block>();
+            for (Block b : blocks) {
+                if (g.reachable(b)) {
+                    live.add(b);
+                }
+            }
+            blocks = live;
+        }
+    }
+
+    /** Drop the values passed in to each phi function from blocks that no
+     *  longer branch to the block that it is in, keeping one value for
+     *  each edge that is left.
+     */
+    void fixPhis() {
+        CFG g = cfg();
+        for (int b=0; b<g.size(); b++) {
+            int[] preds = g.preds(b);
+            for (Code c=g.block(b).code(); c!=null; c=c.next()) {
+                if (c instanceof Op && ((Op)c).rhs() instanceof Phi) {
+                    HashMap<Block,Integer> edges = new HashMap<Block,Integer>();
+                    for (int i=0; i<preds.length; i++) {
+                        edges.merge(g.block(preds[i]), 1, Integer::sum);
+                    }
+                    ((Phi)((Op)c).rhs()).retain(blk -> {
+                        Integer n = edges.get(blk);
+                        if (n==null || n==0) {
+                            return false;
+                        }
+                        edges.put(blk, n-1);
+                        return true;
+                    });
+                }
+            }
+        }
+    }
+
+    /** Return the number of instructions in the blocks of this function.
+     */
+    public int instructions() {
+        int n = 0;
+        for (Block b : blocks) {
+            for (Code c=b.code(); c!=null; c=c.next()) {
+                n++;
+            }
+        }
+        return n;
+    }
+
     /** Counts the total number of registers/temporaries that have been
      *  used in this function.
      */
@@ -48,7 +127,9 @@ public class Function {
      */
     public Block block(String label, Code code) {
         Block l = new Block(label, code);
+        l.fn    = this;
         blocks.add(l);
+        cfg     = null;
         return l;
     }
 
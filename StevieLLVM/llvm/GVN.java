@@ -0,0 +1,125 @@
+package llvm;
+import java.util.HashMap;
+import java.util.Vector;
+
+/** Removes redundant computations, using a walk over the dominator tree
+ *  (dominator-based value numbering).  An instruction that depends only
+ *  on its operands (see Rhs.pure) is replaced by the result of the same
+ *  instruction on the same operands in a block that dominates it, and a
+ *  phi function whose values are all the same is replaced by that value.
+ *  Within each block, a load is replaced by the value that was last
+ *  loaded from, or stored to, the same address, so long as no store in
+ *  between could have changed it: a store to a variable only changes
+ *  that variable, a store to a computed address (an array element) may
+ *  change any computed address, and a call may change anything.
+ */
+class GVN extends Pass {
+
+    /** Default constructor.
+     */
+    GVN() {
+        super("common subexpressions");
+    }
+
+    /** The control flow graph of the function.
+     */
+    private CFG cfg;
+
+    /** Maps the text of each pure instruction in the blocks that dominate
+     *  the current block to the register that holds its result.
+     */
+    private HashMap<String,Value> available;
+
+    /** The instructions that have been added to available, so that they
+     *  can be taken out again when the walk leaves a block.
+     */
+    private Vector<String> added;
+
+    /** Maps the registers whose instructions have been removed to the
+     *  values that replace them.
+     */
+    private HashMap<Value,Value> replaced;
+
+    /** Remove the redundant computations in the given function.
+     */
+    void run(Function fn) {
+        cfg       = fn.cfg();
+        available = new HashMap<String,Value>();
+        added     = new Vector<String>();
+        replaced  = new HashMap<Value,Value>();
+        visit(0);
+
+        // The phi functions may use values from blocks that were visited
+        // after their own, so they are replaced again at the end:
+        for (int b=0; b<cfg.size(); b++) {
+            for (Code c=cfg.block(b).code(); c!=null; c=c.next()) {
+                if (c instanceof Op && ((Op)c).rhs() instanceof Phi) {
+                    c.rewrite(this::value);
+                }
+            }
+        }
+    }
+
+    /** Return the value that should be used in place of the given value.
+     */
+    private Value value(Value v) {
+        Value val = replaced.get(v);
+        return (val==null) ? v : val;
+    }
+
+    /** Remove the redundant computations in a block, and then in each of
+     *  the blocks that it immediately dominates.
+     */
+    private void visit(int b) {
+        int                  mark  = added.size();
+        HashMap<Value,Value> loads = new HashMap<Value,Value>();
+        Block                blk   = cfg.block(b);
+        Code                 prev  = null;
+        for (Code c=blk.code(); c!=null; c=c.next()) {
+            c.rewrite(this::value);
+            if (c instanceof Op) {
+                Lhs   lhs = ((Op)c).lhs();
+                Rhs   rhs = ((Op)c).rhs();
+                Value val = null;
+                if (rhs instanceof Phi) {
+                    val = ((Phi)rhs).unique(lhs);
+                } else if (rhs.pure()) {
+                    String key = rhs.toString();
+                    val        = available.get(key);
+                    if (val==null) {
+                        available.put(key, lhs);
+                        added.add(key);
+                    }
+                } else if (rhs instanceof Load) {
+                    val = loads.get(((Load)rhs).v);
+                    if (val==null) {
+                        loads.put(((Load)rhs).v, lhs);
+                    }
+                } else if (!rhs.removable()) {
+                    loads.clear();
+                }
+                if (val!=null) {
+                    replaced.put(lhs, val);
+                    follow(blk, prev, c.next());
+                    continue;
+                }
+            } else if (c instanceof Store) {
+                Value addr = ((Store)c).addr;
+                if (addr instanceof Reg) {
+                    loads.keySet().removeIf(a -> a instanceof Reg);
+                }
+                loads.put(addr, ((Store)c).v);
+            } else if (c instanceof CallVoid) {
+                loads.clear();
+            }
+            prev = c;
+        }
+        int[] children = cfg.children(b);
+        for (int i=0; i<children.length; i++) {
+            visit(children[i]);
+        }
+        while (added.size()>mark) {
+            available.remove(added.remove(added.size()-1));
+        }
+    }
+}
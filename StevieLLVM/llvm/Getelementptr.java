@@ -42,4 +42,20 @@ public class Getelementptr extends Rhs {
         }
         return buf.toString();
     }
+
+    /** Replace the pointer and each of the offsets by the value that the
+     *  rewrite gives.
+     */
+    void rewrite(Rewrite f) {
+        ptr = f.apply(ptr);
+        for (int i=0; i<offsets.length; i++) {
+            offsets[i] = f.apply(offsets[i]);
+        }
+    }
+
+    /** Address calculations depend only on their operands.
+     */
+    boolean pure() {
+        return true;
+    }
 }
@@ -20,4 +20,10 @@ public class Goto extends Code {
     public void print(PrintWriter out) {
         out.println("  br label %" + b.label());
     }
+
+    /** Return the blocks that this code sequence may branch to at its end.
+     */
+    public Block[] succs() {
+        return new Block[] { b };
+    }
 }
@@ -22,6 +22,10 @@ public class IntVal extends Value {
      */
     public static final IntVal ONES = new IntVal(~0);
 
+    /** Return the numeric value associated with this IntVal.
+     */
+    public int getNum() { return num; }
+
     /** Return the LLVM type of this value.
      */
     public Type getType() { return Type.i32; }
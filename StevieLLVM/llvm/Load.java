@@ -19,4 +19,28 @@ public class Load extends Rhs {
     public String toString() {
         return "load " + v /*+ ", align " + v.getType().ptsTo().getAlign()*/;
     }
+
+    /** Replace the location by the value that the rewrite gives.
+     */
+    void rewrite(Rewrite f) {
+        v = f.apply(v);
+    }
+
+    /** Record the variable that is loaded by this instruction.
+     */
+    void scan(SSA ssa, Lhs lhs) {
+        ssa.load(v);
+    }
+
+    /** A load from a variable that has been promoted to registers is
+     *  replaced by the current value of the variable.
+     */
+    Rhs rename(SSA ssa, Lhs lhs) {
+        if (ssa.promoted(v)) {
+            ssa.replace(lhs, ssa.current(v));
+            return null;
+        }
+        rewrite(ssa::value);
+        return this;
+    }
 }
@@ -0,0 +1,113 @@
+package llvm;
+import java.util.Vector;
+
+/** Represents a natural loop in the control flow graph of a function
+ *  (see CFG.loops).
+ */
+public class Loop {
+
+    /** The block at the entry to this loop, which dominates all of the
+     *  blocks in the loop.
+     */
+    private Block header;
+
+    /** The loop that immediately contains this one, or null.
+     */
+    private Loop parent;
+
+    /** The loops immediately inside this one.
+     */
+    private Vector<Loop> children = new Vector<Loop>();
+
+    /** The blocks in this loop that are not inside any inner loop,
+     *  starting with the header.
+     */
+    private Vector<Block> blocks = new Vector<Block>();
+
+    /** The number of loops that contain this one, including itself.
+     */
+    private int depth;
+
+    /** Points towards the outermost loop that has been found so far that
+     *  contains this one (used while the loops are being found).
+     */
+    private Loop outer = this;
+
+    /** Default constructor.
+     */
+    Loop(Block header) {
+        this.header = header;
+    }
+
+    /** Return the header block of this loop.
+     */
+    public Block header() {
+        return header;
+    }
+
+    /** Return the loop that immediately contains this one, or null.
+     */
+    public Loop parent() {
+        return parent;
+    }
+
+    /** Return the loops immediately inside this one.
+     */
+    public Vector<Loop> children() {
+        return children;
+    }
+
+    /** Return the blocks in this loop that are not inside an inner loop.
+     */
+    public Vector<Block> blocks() {
+        return blocks;
+    }
+
+    /** Return the number of loops that contain this one, including itself.
+     */
+    public int depth() {
+        return depth;
+    }
+
+    /** Return true if this loop contains the given loop (which includes
+     *  the case where they are the same loop).
+     */
+    public boolean contains(Loop l) {
+        while (l!=null && l.depth>depth) {
+            l = l.parent;
+        }
+        return l==this;
+    }
+
+    /** Add a block to this loop.
+     */
+    void add(Block b) {
+        blocks.add(b);
+    }
+
+    /** Add an inner loop to this loop.
+     */
+    void addChild(Loop l) {
+        children.add(l);
+        l.parent = this;
+        l.outer  = this;
+    }
+
+    /** Return the outermost loop that has been found so far that contains
+     *  this one, shortening the path for future searches.
+     */
+    Loop outermost() {
+        Loop l = this;
+        while (l.outer!=l) {
+            l.outer = l.outer.outer;
+            l       = l.outer;
+        }
+        return l;
+    }
+
+    /** Set the depth of this loop, once the depth of its parent is known.
+     */
+    void setDepth() {
+        depth = (parent==null) ? 1 : parent.depth+1;
+    }
+}
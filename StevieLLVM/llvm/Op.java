@@ -33,4 +33,63 @@ public class Op extends Code {
         out.println("  " + lhs.getName() + " = " + rhs);
         next.print(out);
     }
+
+    /** Return the blocks that this code sequence may branch to at its end.
+     */
+    public Block[] succs() {
+        return next.succs();
+    }
+
+    /** Return the left hand side where the result will be saved.
+     */
+    Lhs lhs() {
+        return lhs;
+    }
+
+    /** Return the right hand side operation.
+     */
+    Rhs rhs() {
+        return rhs;
+    }
+
+    /** Return the rest of the code in this block.
+     */
+    Code next() {
+        return next;
+    }
+
+    /** Change the rest of the code in this block.
+     */
+    void setNext(Code next) {
+        this.next = next;
+    }
+
+    /** Replace each of the values used by the operation by the value
+     *  that the rewrite gives for it.
+     */
+    void rewrite(Rewrite f) {
+        rhs.rewrite(f);
+    }
+
+    /** Record the values that are used, and the variables that are
+     *  loaded and stored, by this code sequence (see SSA).
+     */
+    void scan(SSA ssa) {
+        rhs.scan(ssa, lhs);
+        next.scan(ssa);
+    }
+
+    /** Replace the values used by this code sequence with their values
+     *  in SSA form, returning the code that should be used in its place.
+     *  Operations that are not needed in SSA form are dropped.
+     */
+    Code rename(SSA ssa) {
+        Rhs r = rhs.rename(ssa, lhs);
+        if (r==null) {
+            return next.rename(ssa);
+        }
+        rhs  = r;
+        next = next.rename(ssa);
+        return this;
+    }
 }
@@ -0,0 +1,54 @@
+package llvm;
+
+/** Runs a sequence of optimization passes over the code for each
+ *  function before it is printed: constant propagation (SCCP), removal
+ *  of unreachable blocks (Prune), removal of redundant computations
+ *  (GVN), and dead code elimination (DCE).  The passes work on any
+ *  code, but find much more to do once the function is in SSA form.
+ */
+public class Optimizer {
+
+    /** Set to false to print the code for each function as it was
+     *  generated.
+     */
+    public static boolean enabled = true;
+
+    /** The passes, in the order that they are run.  These are created
+     *  for each program, as they hold the times for the report.
+     */
+    private static Pass[] passes = null;
+
+    /** Counts the functions that have been optimized, and the number of
+     *  instructions in them before and after, for the report.
+     */
+    private static int functions = 0, before = 0, after = 0;
+
+    /** Run each of the passes over the given function.
+     */
+    public static void run(Function fn) {
+        if (passes==null) {
+            passes = new Pass[] {
+                new SCCP(), new Prune(), new GVN(), new DCE()
+            };
+        }
+        functions++;
+        before += fn.instructions();
+        for (int i=0; i<passes.length; i++) {
+            passes[i].time(fn);
+        }
+        after += fn.instructions();
+    }
+
+    /** Display the time taken by each pass, and the change that it made
+     *  to the number of instructions.
+     */
+    public static void report() {
+        System.out.println("Optimizer: reduced " + before + " instructions to "
+                           + after + " in " + functions + " functions");
+        if (passes!=null) {
+            for (int i=0; i<passes.length; i++) {
+                System.out.println(passes[i].report());
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package llvm;
+
+/** A base class for the optimization passes that the Optimizer runs on
+ *  each function.  Records the total time that the pass has taken, and
+ *  the number of instructions that it has removed, for the report.
+ */
+abstract class Pass {
+
+    /** The name of this pass, for the report.
+     */
+    private String name;
+
+    /** The total time that this pass has taken, in nanoseconds.
+     */
+    private long time = 0;
+
+    /** The total number of instructions that this pass has removed.
+     */
+    private int removed = 0;
+
+    /** Default constructor.
+     */
+    Pass(String name) {
+        this.name = name;
+    }
+
+    /** Optimize the given function.
+     */
+    abstract void run(Function fn);
+
+    /** Run this pass on the given function, recording the time that it
+     *  takes and the number of instructions that it removes.
+     */
+    void time(Function fn) {
+        int  before = fn.instructions();
+        long start  = System.nanoTime();
+        run(fn);
+        time    += System.nanoTime() - start;
+        removed += before - fn.instructions();
+    }
+
+    /** Return a line for the report, with the name of this pass, its
+     *  time in milliseconds, and the change in the number of instructions.
+     */
+    String report() {
+        return String.format("  %-24s %8.2fms %+8d instructions",
+                             name, time/1e6, -removed);
+    }
+
+    /** Set the code in a block that follows the instruction prev, or the
+     *  code for the whole block if prev is null.  Either way, as with
+     *  Block.set, the control flow graph of the function must be built
+     *  again, because the code that is replaced may end with a branch.
+     */
+    static void follow(Block blk, Code prev, Code code) {
+        if (prev==null) {
+            blk.set(code);
+        } else {
+            prev.setNext(code);
+            if (blk.fn!=null) {
+                blk.fn.changed();
+            }
+        }
+    }
+}
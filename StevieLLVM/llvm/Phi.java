@@ -1,4 +1,5 @@
 package llvm;
+import java.util.function.Predicate;
 
 /** Represents a phi function.
  */
@@ -45,4 +46,79 @@ public class Phi extends Rhs {
         }
         return buf.toString();
     }
+
+    /** Return the predecessor blocks.
+     */
+    Block[] blocks() {
+        return blocks;
+    }
+
+    /** Return the values passed in from the predecessor blocks.
+     */
+    Value[] values() {
+        return values;
+    }
+
+    /** Replace each of the values passed in by the value that the rewrite
+     *  gives for it.
+     */
+    void rewrite(Rewrite f) {
+        for (int i=0; i<values.length; i++) {
+            values[i] = f.apply(values[i]);
+        }
+    }
+
+    /** The values passed in to a phi function may be defined in blocks
+     *  that have not been renamed yet, so they are replaced once all of
+     *  the blocks have been renamed (see SSA.run).
+     */
+    Rhs rename(SSA ssa, Lhs lhs) {
+        ssa.fixLater(this);
+        return this;
+    }
+
+    /** Drop the values that are passed in from blocks that are not kept.
+     *  The test is made once for each value, in order, so that it can
+     *  keep as many values from a block as there are edges from it.
+     */
+    void retain(Predicate<Block> keep) {
+        boolean[] kept = new boolean[blocks.length];
+        int       n    = 0;
+        for (int i=0; i<blocks.length; i++) {
+            if (kept[i] = keep.test(blocks[i])) {
+                n++;
+            }
+        }
+        if (n<blocks.length) {
+            Block[] bs = new Block[n];
+            Value[] vs = new Value[n];
+            n = 0;
+            for (int i=0; i<blocks.length; i++) {
+                if (kept[i]) {
+                    bs[n]   = blocks[i];
+                    vs[n++] = values[i];
+                }
+            }
+            blocks = bs;
+            values = vs;
+        }
+    }
+
+    /** Return the value that is passed in from every predecessor, not
+     *  counting the result of the phi function itself, which is given as
+     *  self, or null if the values are not all the same.
+     */
+    Value unique(Value self) {
+        Value v = null;
+        for (int i=0; i<values.length; i++) {
+            if (values[i]!=self) {
+                if (v==null) {
+                    v = values[i];
+                } else if (!v.toString().equals(values[i].toString())) {
+                    return null;
+                }
+            }
+        }
+        return v;
+    }
 }
@@ -0,0 +1,21 @@
+package llvm;
+
+/** Removes the blocks that cannot be reached from the entry, and the
+ *  values that phi functions take from them, or from blocks that no
+ *  longer branch to the phi function's block.
+ */
+class Prune extends Pass {
+
+    /** Default constructor.
+     */
+    Prune() {
+        super("unreachable blocks");
+    }
+
+    /** Remove the unreachable blocks from the given function.
+     */
+    void run(Function fn) {
+        fn.prune();
+        fn.fixPhis();
+    }
+}
@@ -21,4 +21,10 @@ public class Ret extends Code {
     public void print(PrintWriter out) {
         out.println("  ret " + v);
      }
+
+    /** Replace the value by the value that the rewrite gives for it.
+     */
+    void rewrite(Rewrite f) {
+        v = f.apply(v);
+    }
 }
@@ -0,0 +1,9 @@
+package llvm;
+
+/** Gives the value that should be used in place of each of the values
+ *  used by an instruction (see Code.rewrite and Rhs.rewrite).  Passes
+ *  that only need to look at the values can return them unchanged.
+ */
+interface Rewrite {
+    Value apply(Value v);
+}
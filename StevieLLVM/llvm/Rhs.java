@@ -7,4 +7,42 @@ public abstract class Rhs {
     /** Generate a printable string for this instruction.
      */
     public abstract String toString();
+
+    /** Replace each of the values that are used by this instruction by
+     *  the value that the rewrite gives for it.
+     */
+    void rewrite(Rewrite f) {
+        /* By default, no values are used. */
+    }
+
+    /** Return true if this instruction always gives the same result for
+     *  the same values, and has no other effect, so that a later copy of
+     *  it can use the result of an earlier one (see GVN).
+     */
+    boolean pure() {
+        return false;
+    }
+
+    /** Return true if this instruction can be removed when its result is
+     *  not used (see DCE).
+     */
+    boolean removable() {
+        return true;
+    }
+
+    /** Record the values that are used by this instruction, whose result
+     *  will be saved in lhs (see SSA).
+     */
+    void scan(SSA ssa, Lhs lhs) {
+        rewrite(ssa.user);
+    }
+
+    /** Replace the values used by this instruction, whose result will be
+     *  saved in lhs, with their values in SSA form.  Returns the
+     *  instruction to use in its place, or null if it is no longer needed.
+     */
+    Rhs rename(SSA ssa, Lhs lhs) {
+        rewrite(ssa::value);
+        return this;
+    }
 }
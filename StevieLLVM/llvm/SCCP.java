@@ -0,0 +1,300 @@
+package llvm;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Vector;
+
+/** Sparse conditional constant propagation (Wegman and Zadeck).  Finds
+ *  the registers that always hold the same constant, assuming that a
+ *  block cannot be reached until a branch to it has been found that can
+ *  be taken, and that a register holds no value until its definition has
+ *  been found to be reached.  Uses of those registers are replaced by
+ *  the constants, and conditional branches and switches on constants are
+ *  replaced by jumps, which may leave blocks that cannot be reached (see
+ *  Prune).  The values of registers that are defined by phi functions
+ *  and binary operations are tracked; other instructions give unknown
+ *  values.
+ */
+class SCCP extends Pass {
+
+    /** Default constructor.
+     */
+    SCCP() {
+        super("constant propagation");
+    }
+
+    /** Stands for a register whose value is not a constant.  A register
+     *  with no entry in values has not been given a value yet.
+     */
+    private static final Value VARIES = new Undef(Type.i1);
+
+    /** The control flow graph of the function.
+     */
+    private CFG cfg;
+
+    /** Maps each register that is tracked to its value so far, which is
+     *  either a constant or VARIES.
+     */
+    private HashMap<Value,Value> values;
+
+    /** Maps each register that is tracked to its defining instruction.
+     */
+    private HashMap<Value,Op> defs;
+
+    /** Maps each register that is tracked to the instructions that use it.
+     */
+    private HashMap<Value,Vector<Code>> users;
+
+    /** Maps each instruction that uses a tracked register, or that ends a
+     *  block, to the number of its block.
+     */
+    private HashMap<Code,Integer> blockOf;
+
+    /** The blocks that have been found to be reachable.
+     */
+    private boolean[] reached;
+
+    /** The edges that have been found to be taken, with an edge from
+     *  block p to block s numbered as p*n+s.
+     */
+    private HashSet<Long> taken;
+
+    /** Edges that have been found to be taken, and instructions whose
+     *  operands have changed, that are still to be processed.
+     */
+    private Vector<Long> edgeWork;
+    private Vector<Code> codeWork;
+
+    /** Propagate constants through the given function.
+     */
+    void run(Function fn) {
+        cfg      = fn.cfg();
+        values   = new HashMap<Value,Value>();
+        defs     = new HashMap<Value,Op>();
+        users    = new HashMap<Value,Vector<Code>>();
+        blockOf  = new HashMap<Code,Integer>();
+        reached  = new boolean[cfg.size()];
+        taken    = new HashSet<Long>();
+        edgeWork = new Vector<Long>();
+        codeWork = new Vector<Code>();
+        findUsers();
+        solve();
+        replace();
+    }
+
+    /** Find the registers that are tracked and the instructions that use
+     *  each of them.
+     */
+    private void findUsers() {
+        for (int b=0; b<cfg.size(); b++) {
+            for (Code c=cfg.block(b).code(); c!=null; c=c.next()) {
+                if (c instanceof Op) {
+                    Op op = (Op)c;
+                    defs.put(op.lhs(), op);
+                    users.put(op.lhs(), new Vector<Code>());
+                }
+            }
+        }
+        for (int b=0; b<cfg.size(); b++) {
+            Integer blk = b;
+            for (Code c=cfg.block(b).code(); c!=null; c=c.next()) {
+                Code user = c;
+                c.rewrite(v -> {
+                    Vector<Code> us = users.get(v);
+                    if (us!=null) {
+                        us.add(user);
+                        blockOf.put(user, blk);
+                    }
+                    return v;
+                });
+                if (c.next()==null) {
+                    blockOf.put(c, blk);
+                }
+            }
+        }
+    }
+
+    /** Find the values of the registers, and the blocks that are reached,
+     *  starting from the entry.
+     */
+    private void solve() {
+        reached[0] = true;
+        visitBlock(0);
+        while (!edgeWork.isEmpty() || !codeWork.isEmpty()) {
+            while (!edgeWork.isEmpty()) {
+                long e = edgeWork.remove(edgeWork.size()-1);
+                int  s = (int)(e % cfg.size());
+                if (!reached[s]) {
+                    reached[s] = true;
+                    visitBlock(s);
+                } else {
+                    visitPhis(s);
+                }
+            }
+            while (!codeWork.isEmpty()) {
+                Code c = codeWork.remove(codeWork.size()-1);
+                int  b = blockOf.get(c);
+                if (reached[b]) {
+                    visit(c, b);
+                }
+            }
+        }
+    }
+
+    /** Visit each of the instructions in a block that has been reached.
+     */
+    private void visitBlock(int b) {
+        for (Code c=cfg.block(b).code(); c!=null; c=c.next()) {
+            visit(c, b);
+        }
+    }
+
+    /** Visit the phi functions in a block that has been reached by a new
+     *  edge.
+     */
+    private void visitPhis(int b) {
+        for (Code c=cfg.block(b).code(); c!=null; c=c.next()) {
+            if (c instanceof Op && ((Op)c).rhs() instanceof Phi) {
+                visit(c, b);
+            }
+        }
+    }
+
+    /** Visit an instruction in a block that has been reached, updating
+     *  the value of the register that it defines, or the edges that are
+     *  taken if it ends the block.
+     */
+    private void visit(Code c, int b) {
+        if (c instanceof Op) {
+            Op    op  = (Op)c;
+            Value old = values.get(op.lhs());
+            Value val = evaluate(op.rhs(), b);
+            if (val!=null && old!=VARIES
+                          && (old==null || !same(old, val))) {
+                values.put(op.lhs(), val);
+                codeWork.addAll(users.get(op.lhs()));
+            }
+        } else if (c instanceof Cond) {
+            Value  v     = valueOf(((Cond)c).value());
+            Block[] succs = c.succs();
+            if (v instanceof BoolVal) {
+                take(b, ((BoolVal)v).getBool() ? succs[0] : succs[1]);
+            } else if (v==VARIES) {
+                take(b, succs[0]);
+                take(b, succs[1]);
+            }
+        } else if (c instanceof Switch) {
+            Value v = valueOf(((Switch)c).value());
+            if (v instanceof IntVal) {
+                take(b, ((Switch)c).target(((IntVal)v).getNum()));
+            } else if (v==VARIES) {
+                Block[] succs = c.succs();
+                for (int i=0; i<succs.length; i++) {
+                    take(b, succs[i]);
+                }
+            }
+        } else if (c.next()==null) {
+            Block[] succs = c.succs();
+            for (int i=0; i<succs.length; i++) {
+                take(b, succs[i]);
+            }
+        }
+    }
+
+    /** Record that the edge from block b to the given block is taken.
+     */
+    private void take(int b, Block blk) {
+        long e = (long)b*cfg.size() + cfg.index(blk);
+        if (taken.add(e)) {
+            edgeWork.add(e);
+        }
+    }
+
+    /** Return the value that an instruction in block b gives from the
+     *  values so far, which is null if it has no value yet.
+     */
+    private Value evaluate(Rhs rhs, int b) {
+        if (rhs instanceof Phi) {
+            Block[] blocks = ((Phi)rhs).blocks();
+            Value[] vals   = ((Phi)rhs).values();
+            Value   val    = null;
+            for (int i=0; i<blocks.length; i++) {
+                int p = cfg.index(blocks[i]);
+                if (p>=0 && taken.contains((long)p*cfg.size() + b)) {
+                    Value v = valueOf(vals[i]);
+                    if (v==VARIES || (val!=null && v!=null && !same(val, v))) {
+                        return VARIES;
+                    } else if (v!=null) {
+                        val = v;
+                    }
+                }
+            }
+            return val;
+        } else if (rhs instanceof BinOp) {
+            BinOp op = (BinOp)rhs;
+            Value l  = valueOf(op.left());
+            Value r  = valueOf(op.right());
+            if (l==VARIES || r==VARIES) {
+                return VARIES;
+            } else if (l==null || r==null) {
+                return null;
+            }
+            Value val = op.fold(l, r);
+            return (val==null) ? VARIES : val;
+        }
+        return VARIES;
+    }
+
+    /** Return the value so far of an operand: a constant, VARIES, or null
+     *  if it is a register that has no value yet.
+     */
+    private Value valueOf(Value v) {
+        if (v instanceof IntVal || v instanceof BoolVal) {
+            return v;
+        } else if (defs.containsKey(v)) {
+            return values.get(v);
+        }
+        return VARIES;
+    }
+
+    /** Return true if two constants are the same.
+     */
+    private static boolean same(Value a, Value b) {
+        return a.toString().equals(b.toString());
+    }
+
+    /** Replace the registers that hold constants by their values, removing
+     *  the instructions that defined them, and replace branches and
+     *  switches on constants by jumps.
+     */
+    private void replace() {
+        Rewrite constants = v -> {
+            Value val = values.get(v);
+            return (val==null || val==VARIES) ? v : val;
+        };
+        for (int b=0; b<cfg.size(); b++) {
+            if (!reached[b]) {
+                continue;
+            }
+            Block blk  = cfg.block(b);
+            Code  prev = null;
+            for (Code c=blk.code(); c!=null; c=c.next()) {
+                if (c instanceof Op && constants.apply(((Op)c).lhs())
+                                       !=((Op)c).lhs()) {
+                    follow(blk, prev, c.next());
+                    continue;
+                }
+                c.rewrite(constants);
+                if (c instanceof Cond && ((Cond)c).value() instanceof BoolVal) {
+                    Block[] succs = c.succs();
+                    boolean v     = ((BoolVal)((Cond)c).value()).getBool();
+                    follow(blk, prev, new Goto(v ? succs[0] : succs[1]));
+                } else if (c instanceof Switch
+                           && ((Switch)c).value() instanceof IntVal) {
+                    int n = ((IntVal)((Switch)c).value()).getNum();
+                    follow(blk, prev, new Goto(((Switch)c).target(n)));
+                }
+                prev = c;
+            }
+        }
+    }
+}
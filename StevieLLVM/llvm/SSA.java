@@ -0,0 +1,382 @@
+package llvm;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Vector;
+
+/** Converts the code for a function into static single assignment (SSA)
+ *  form.  Each local variable whose stack slot is only used to load and
+ *  store its value is promoted to registers: loads are replaced by the
+ *  value that was last stored, and phi functions are placed at the
+ *  blocks where different values of the variable meet.  The phi
+ *  functions are placed using dominance frontiers (Cytron et al, see
+ *  CFG), but only at blocks where the variable is live ("pruned" SSA),
+ *  so that no phi functions are generated for values that are never
+ *  used.  Blocks that cannot be reached from the entry are removed from
+ *  the function.
+ */
+public class SSA {
+
+    /** Set to false to leave local variables in stack slots.
+     */
+    public static boolean enabled = true;
+
+    /** Counts the local variables that have been seen, the number of them
+     *  that have been promoted to registers, and the number of phi
+     *  functions that have been placed, for the report.
+     */
+    private static int locals = 0, promotions = 0, phis = 0;
+
+    /** Display a summary of the variables that have been promoted.
+     */
+    public static void report() {
+        System.out.println("SSA: promoted " + promotions + " of " + locals
+                           + " local variables to registers, with "
+                           + phis + " phi functions");
+    }
+
+    /** The function that is being converted.
+     */
+    private Function fn;
+
+    /** The control flow graph of the function.
+     */
+    private CFG cfg;
+
+    /** The variables that are stored, and the variables that are loaded
+     *  before they are stored, in each block.
+     */
+    private BitSet[] defs, uses;
+
+    /** Maps each local variable (that is, the location of its stack slot)
+     *  that has been seen to a number, and back again.
+     */
+    private HashMap<Value,Integer> slots = new HashMap<Value,Integer>();
+    private Vector<Value> vars = new Vector<Value>();
+
+    /** The variables with stack slots that are allocated in this function,
+     *  and the variables whose slots are used in some other way than to
+     *  load and store their value.
+     */
+    private BitSet allocated = new BitSet(), escaped = new BitSet();
+
+    /** The variables that are being promoted to registers.
+     */
+    private BitSet promote;
+
+    /** The block that is being scanned.
+     */
+    private int current;
+
+    /** Default constructor.
+     */
+    public SSA(Function fn) {
+        this.fn = fn;
+    }
+
+    /** Convert the function into SSA form.
+     */
+    public void run() {
+        fn.prune();
+        cfg = fn.cfg();
+        scan();
+        place();
+        values = new Value[vars.size()];
+        rename(0);
+        for (int i=0; i<pending.size(); i++) {
+            Phi phi = pending.elementAt(i);
+            phi.rewrite(this::value);
+            phi.retain(cfg::reachable);
+        }
+        for (int b=0; b<cfg.size(); b++) {
+            Block blk  = cfg.block(b);
+            Code  code = blk.code();
+            for (Join j=joins[b]; j!=null; j=j.next) {
+                int[]   preds = cfg.preds(b);
+                Block[] from  = new Block[preds.length];
+                for (int i=0; i<from.length; i++) {
+                    from[i] = cfg.block(preds[i]);
+                }
+                code = new Op(j.reg, new Phi(from, j.values), code);
+            }
+            blk.set(code);
+        }
+    }
+
+    //- Finding the variables to promote -----------------------------------
+
+    /** Scan the code of each block to find the variables that it loads and
+     *  stores, and the variables that can be promoted.
+     */
+    private void scan() {
+        int n = cfg.size();
+        defs  = new BitSet[n];
+        uses  = new BitSet[n];
+        for (current=0; current<n; current++) {
+            defs[current] = new BitSet();
+            uses[current] = new BitSet();
+            cfg.block(current).code().scan(this);
+        }
+        promote = (BitSet)allocated.clone();
+        promote.andNot(escaped);
+        locals     += allocated.cardinality();
+        promotions += promote.cardinality();
+    }
+
+    /** Return the number for a local variable, or -1 if the given value
+     *  is not the location of a local variable.
+     */
+    private int slot(Value v) {
+        if (!(v instanceof Local)) {
+            return -1;
+        }
+        Integer s = slots.get(v);
+        if (s==null) {
+            s = vars.size();
+            slots.put(v, s);
+            vars.add(v);
+        }
+        return s;
+    }
+
+    /** Record a stack slot that is allocated for a local variable.
+     */
+    void alloca(Value v) {
+        int s = slot(v);
+        if (s>=0) {
+            allocated.set(s);
+        }
+    }
+
+    /** Record a load from the given location.
+     */
+    void load(Value v) {
+        int s = slot(v);
+        if (s>=0 && !defs[current].get(s)) {
+            uses[current].set(s);
+        }
+    }
+
+    /** Record a store to the given location.
+     */
+    void store(Value v) {
+        int s = slot(v);
+        if (s>=0) {
+            defs[current].set(s);
+        }
+    }
+
+    /** Record a use of a value other than as the location for a load or a
+     *  store; a local variable whose location is used in this way cannot
+     *  be promoted.
+     */
+    void use(Value v) {
+        int s = slot(v);
+        if (s>=0) {
+            escaped.set(s);
+        }
+    }
+
+    /** Records each of the values that an instruction uses (see use).
+     */
+    final Rewrite user = v -> { use(v); return v; };
+
+    //- Placing phi functions ----------------------------------------------
+
+    /** Represents a phi function that has been placed at the start of a
+     *  block for a variable.  The joins for each block are kept in a list.
+     */
+    private static class Join {
+        int     var;
+        Reg     reg;
+        Value[] values;
+        Join    next;
+        Join(int var, Reg reg, Value[] values, Join next) {
+            this.var    = var;
+            this.reg    = reg;
+            this.values = values;
+            this.next   = next;
+        }
+    }
+
+    /** The phi functions that have been placed at the start of each block.
+     */
+    private Join[] joins;
+
+    /** Place phi functions for each of the promoted variables at the
+     *  blocks in the iterated dominance frontier of the blocks that
+     *  store to it, where the variable is live.
+     */
+    private void place() {
+        int      n    = cfg.size();
+        BitSet[] live = liveness();
+        joins         = new Join[n];
+        int[] work    = new int[n];
+        for (int v=promote.nextSetBit(0); v>=0; v=promote.nextSetBit(v+1)) {
+            BitSet placed = new BitSet();
+            BitSet queued = new BitSet();
+            int    top    = 0;
+            for (int b=0; b<n; b++) {
+                if (defs[b].get(v)) {
+                    queued.set(b);
+                    work[top++] = b;
+                }
+            }
+            Type ty = vars.elementAt(v).getType().ptsTo();
+            while (top>0) {
+                int[] df = cfg.frontier(work[--top]);
+                for (int i=0; i<df.length; i++) {
+                    int d = df[i];
+                    if (!placed.get(d) && live[d].get(v)) {
+                        placed.set(d);
+                        joins[d] = new Join(v, fn.reg(ty),
+                                            new Value[cfg.preds(d).length],
+                                            joins[d]);
+                        phis++;
+                        if (!queued.get(d)) {
+                            queued.set(d);
+                            work[top++] = d;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /** Return the set of variables that are live on entry to each block.
+     */
+    private BitSet[] liveness() {
+        int      n    = cfg.size();
+        BitSet[] live = new BitSet[n];
+        for (int b=0; b<n; b++) {
+            live[b] = (BitSet)uses[b].clone();
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int b=n-1; b>=0; b--) {
+                BitSet out   = new BitSet();
+                int[]  succs = cfg.succs(b);
+                for (int i=0; i<succs.length; i++) {
+                    out.or(live[succs[i]]);
+                }
+                out.andNot(defs[b]);
+                out.or(uses[b]);
+                if (!out.equals(live[b])) {
+                    live[b] = out;
+                    changed = true;
+                }
+            }
+        }
+        return live;
+    }
+
+    //- Renaming -----------------------------------------------------------
+
+    /** The current value of each variable during renaming, or null if no
+     *  value has been stored yet.
+     */
+    private Value[] values;
+
+    /** Records the previous values of variables that have been changed,
+     *  so that they can be restored when renaming leaves a block.
+     */
+    private Vector<Integer> changedVars   = new Vector<Integer>();
+    private Vector<Value>   changedValues = new Vector<Value>();
+
+    /** Maps the registers that held values loaded from promoted variables
+     *  to the values that they are replaced by.
+     */
+    private HashMap<Value,Value> replaced = new HashMap<Value,Value>();
+
+    /** The phi functions in the original code, whose values are replaced
+     *  once the renaming is complete.
+     */
+    private Vector<Phi> pending = new Vector<Phi>();
+
+    /** Rename the values in the given block, and then in each of the
+     *  blocks that it immediately dominates.
+     */
+    private void rename(int b) {
+        int mark = changedVars.size();
+        for (Join j=joins[b]; j!=null; j=j.next) {
+            set(j.var, j.reg);
+        }
+        Block blk = cfg.block(b);
+        blk.set(blk.code().rename(this));
+        int[] succs = cfg.succs(b);
+        for (int i=0; i<succs.length; i++) {
+            int   s     = succs[i];
+            int[] preds = cfg.preds(s);
+            for (Join j=joins[s]; j!=null; j=j.next) {
+                for (int k=0; k<preds.length; k++) {
+                    if (preds[k]==b) {
+                        j.values[k] = current(j.var);
+                    }
+                }
+            }
+        }
+        int[] children = cfg.children(b);
+        for (int i=0; i<children.length; i++) {
+            rename(children[i]);
+        }
+        while (changedVars.size()>mark) {
+            int last = changedVars.size()-1;
+            values[changedVars.remove(last)] = changedValues.remove(last);
+        }
+    }
+
+    /** Set the current value of a variable.
+     */
+    private void set(int v, Value val) {
+        changedVars.add(v);
+        changedValues.add(values[v]);
+        values[v] = val;
+    }
+
+    /** Return true if the given location is a variable that is being
+     *  promoted to registers.
+     */
+    boolean promoted(Value v) {
+        Integer s = slots.get(v);
+        return s!=null && promote.get(s);
+    }
+
+    /** Record a store of a value to a promoted variable.
+     */
+    void define(Value v, Value val) {
+        set(slots.get(v), val);
+    }
+
+    /** Return the current value of a promoted variable.
+     */
+    Value current(Value v) {
+        return current(slots.get(v));
+    }
+
+    private Value current(int v) {
+        Value val = values[v];
+        return (val==null) ? new Undef(vars.elementAt(v).getType().ptsTo())
+                           : val;
+    }
+
+    /** Record that a register holding a value loaded from a promoted
+     *  variable should be replaced by the given value.
+     */
+    void replace(Value reg, Value val) {
+        replaced.put(reg, val);
+    }
+
+    /** Return the value that should be used in place of the given value.
+     */
+    Value value(Value v) {
+        Value val = replaced.get(v);
+        return (val==null) ? v : val;
+    }
+
+    /** Record a phi function whose values should be replaced once all of
+     *  the blocks have been renamed.
+     */
+    void fixLater(Phi phi) {
+        pending.add(phi);
+    }
+}
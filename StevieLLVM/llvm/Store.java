@@ -33,4 +33,54 @@ public class Store extends Code {
                         /*+ ", align " + v.getType().getAlign()*/);
         next.print(out);
     }
+
+    /** Return the blocks that this code sequence may branch to at its end.
+     */
+    public Block[] succs() {
+        return next.succs();
+    }
+
+    /** Return the rest of the code in this block.
+     */
+    Code next() {
+        return next;
+    }
+
+    /** Change the rest of the code in this block.
+     */
+    void setNext(Code next) {
+        this.next = next;
+    }
+
+    /** Replace the value and the address by the values that the rewrite
+     *  gives for them.
+     */
+    void rewrite(Rewrite f) {
+        v    = f.apply(v);
+        addr = f.apply(addr);
+    }
+
+    /** Record the values that are used, and the variables that are
+     *  loaded and stored, by this code sequence (see SSA).
+     */
+    void scan(SSA ssa) {
+        ssa.use(v);
+        ssa.store(addr);
+        next.scan(ssa);
+    }
+
+    /** Replace the values used by this code sequence with their values
+     *  in SSA form, returning the code that should be used in its place.
+     *  A store to a variable that has been promoted to registers is
+     *  dropped, and the value becomes the current value of the variable.
+     */
+    Code rename(SSA ssa) {
+        if (ssa.promoted(addr)) {
+            ssa.define(addr, ssa.value(v));
+            return next.rename(ssa);
+        }
+        rewrite(ssa::value);
+        next = next.rename(ssa);
+        return this;
+    }
 }
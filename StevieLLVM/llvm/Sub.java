@@ -13,4 +13,8 @@ public class Sub extends BinOp {
     /** Generate a printable string for this instruction.
      */
     public String toString() { return toString("sub");  }
+
+    /** Compute the result of this operation for constant operands.
+     */
+    Value fold(int x, int y) { return new IntVal(x-y); }
 }
@@ -0,0 +1,81 @@
+package llvm;
+import java.io.PrintWriter;
+
+/** A multi-way branch that compares an integer value with a list of
+ *  constants, branching to the block for the constant that it matches,
+ *  or to a default block if it matches none of them.  LLVM chooses how
+ *  to implement the test: with a jump table, a bit test, or a search.
+ */
+public class Switch extends Code {
+
+    /** The value to use in making the branch decision.
+     */
+    private Value v;
+
+    /** The block to branch to if the value matches none of the constants.
+     */
+    private Block dflt;
+
+    /** The constants that the value is compared with, which should all
+     *  be different.
+     */
+    private int[] nums;
+
+    /** The block to branch to for each of the constants.
+     */
+    private Block[] blocks;
+
+    /** Default constructor.
+     */
+    public Switch(Value v, Block dflt, int[] nums, Block[] blocks) {
+        this.v      = v;
+        this.dflt   = dflt;
+        this.nums   = nums;
+        this.blocks = blocks;
+    }
+
+    /** Print out this code sequence to the specified PrintWriter.
+     */
+    public void print(PrintWriter out) {
+        out.println("  switch " + v + ", label %" + dflt.label() + " [");
+        for (int i=0; i<nums.length; i++) {
+            out.println("    " + v.getType() + " " + nums[i]
+                                + ", label %" + blocks[i].label());
+        }
+        out.println("  ]");
+    }
+
+    /** Return the blocks that this code sequence may branch to at its end,
+     *  starting with the default, and listing a block once for each of
+     *  the constants that branch to it.
+     */
+    public Block[] succs() {
+        Block[] succs = new Block[1+blocks.length];
+        succs[0] = dflt;
+        System.arraycopy(blocks, 0, succs, 1, blocks.length);
+        return succs;
+    }
+
+    /** Return the value that is used to make the branch decision.
+     */
+    Value value() {
+        return v;
+    }
+
+    /** Return the block that this switch branches to for the given value.
+     */
+    Block target(int n) {
+        for (int i=0; i<nums.length; i++) {
+            if (nums[i]==n) {
+                return blocks[i];
+            }
+        }
+        return dflt;
+    }
+
+    /** Replace the value by the value that the rewrite gives for it.
+     */
+    void rewrite(Rewrite f) {
+        v = f.apply(v);
+    }
+}
@@ -0,0 +1,25 @@
+package llvm;
+
+/** Represents an undefined value of a given type, such as the value of a
+ *  local variable that is used before it has been initialized.
+ */
+public class Undef extends Value {
+
+    /** The LLVM type of this value.
+     */
+    private Type ty;
+
+    /** Default constructor.
+     */
+    public Undef(Type ty) {
+        this.ty = ty;
+    }
+
+    /** Return the LLVM type of this value.
+     */
+    public Type getType() { return ty; }
+
+    /** Return the LLVM name for this value.
+     */
+    public String getName() { return "undef"; }
+}
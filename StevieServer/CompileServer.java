@@ -0,0 +1,593 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+//____________________________________________________________________________
+/** Holds the class files of one of the compilers, which are read from
+ *  its directory the first time that they are needed, and read again if
+ *  they change, so that the compiler can be rebuilt while the server is
+ *  running.
+ */
+class ClassFiles {
+  private Path dir;
+
+  private static class Entry {
+    long   modified;
+    byte[] bytes;
+  }
+  private ConcurrentHashMap<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+
+  ClassFiles(Path dir) {
+    this.dir = dir;
+  }
+
+  /** Return the contents of the class file for the named class, or null
+   *  if there is no such file.
+   */
+  byte[] get(String name) throws IOException {
+    Path file = dir.resolve(name.replace('.', '/') + ".class");
+    if (!Files.isRegularFile(file)) {
+      return null;
+    }
+    long  modified = Files.getLastModifiedTime(file).toMillis();
+    Entry e        = cache.get(name);
+    if (e==null || e.modified!=modified) {
+      e          = new Entry();
+      e.modified = modified;
+      e.bytes    = Files.readAllBytes(file);
+      cache.put(name, e);
+    }
+    return e.bytes;
+  }
+
+  /** Return the names of all of the classes in the directory.
+   */
+  Vector<String> names() throws IOException {
+    Vector<String> names = new Vector<String>();
+    try (Stream<Path> files = Files.walk(dir)) {
+      for (Path f : (Iterable<Path>)files::iterator) {
+        String name = dir.relativize(f).toString();
+        if (name.endsWith(".class")) {
+          names.add(name.substring(0, name.length()-6).replace('/', '.'));
+        }
+      }
+    }
+    return names;
+  }
+
+  /** Return a string that changes whenever a class file is added,
+   *  removed, or changed.
+   */
+  String stamp() throws IOException {
+    long latest = 0;
+    int  count  = 0;
+    try (Stream<Path> files = Files.walk(dir)) {
+      for (Path f : (Iterable<Path>)files::iterator) {
+        if (f.toString().endsWith(".class")) {
+          latest = Math.max(latest, Files.getLastModifiedTime(f).toMillis());
+          count++;
+        }
+      }
+    }
+    return count + "@" + latest;
+  }
+}
+
+//____________________________________________________________________________
+/** Loads the classes of a compiler, so that each request that is
+ *  running has its own copy of every class, with its own static
+ *  variables, such as the options and the statistics.  Only the classes
+ *  of the Java platform are shared.  A loader is used for one request
+ *  at a time, but can be used again once its static variables have been
+ *  put back as they were, so that later requests run code that the JIT
+ *  has already compiled.
+ */
+class CompilerLoader extends ClassLoader {
+  static {
+    registerAsParallelCapable();
+  }
+
+  private ClassFiles files;
+  String             stamp;    // the stamp of the class files when loaded
+  Statics            statics;  // the initial values of static variables
+
+  private CompilerLoader(ClassFiles files) {
+    super(ClassLoader.getPlatformClassLoader());
+    this.files = files;
+  }
+
+  /** Return a loader that has loaded and initialized all of the classes
+   *  in the given class files.
+   */
+  static CompilerLoader load(ClassFiles files) throws IOException {
+    CompilerLoader   l       = new CompilerLoader(files);
+    Vector<Class<?>> classes = new Vector<Class<?>>();
+    l.stamp = files.stamp();
+    for (String name : files.names()) {
+      try {
+        classes.add(Class.forName(name, true, l));
+      } catch (Throwable e) {
+        // Leave the class to fail in the same way when it is used
+      }
+    }
+    l.statics = new Statics(classes);
+    return l;
+  }
+
+  protected Class<?> findClass(String name) throws ClassNotFoundException {
+    byte[] bytes;
+    try {
+      bytes = files.get(name);
+    } catch (IOException e) {
+      throw new ClassNotFoundException(name, e);
+    }
+    if (bytes==null) {
+      throw new ClassNotFoundException(name);
+    }
+    return defineClass(name, bytes, 0, bytes.length);
+  }
+}
+
+//____________________________________________________________________________
+/** Records the values of the static variables of a set of classes, so
+ *  that they can be put back after a request.  The contents of counters
+ *  and string buffers are put back too; other objects that are held in
+ *  static variables, such as tables of registers, are assumed not to
+ *  change once the class has been initialized.
+ */
+class Statics {
+  private Vector<Field>  fields   = new Vector<Field>();
+  private Vector<Object> values   = new Vector<Object>();
+  private Vector<Object> contents = new Vector<Object>();
+
+  Statics(Vector<Class<?>> classes) {
+    for (Class<?> c : classes) {
+      for (Field f : c.getDeclaredFields()) {
+        if (Modifier.isStatic(f.getModifiers())) {
+          f.setAccessible(true);
+          try {
+            Object v = f.get(null);
+            fields.add(f);
+            values.add(v);
+            contents.add((v instanceof AtomicInteger) ? ((AtomicInteger)v).get()
+                       : (v instanceof StringBuilder) ? v.toString()
+                       : null);
+          } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+          }
+        }
+      }
+    }
+  }
+
+  /** Put back the values that were recorded.
+   */
+  void restore() throws IllegalAccessException {
+    for (int i=0; i<fields.size(); i++) {
+      Field  f = fields.elementAt(i);
+      Object v = values.elementAt(i);
+      if (!Modifier.isFinal(f.getModifiers())) {
+        f.set(null, v);
+      }
+      if (v instanceof AtomicInteger) {
+        ((AtomicInteger)v).set((Integer)contents.elementAt(i));
+      } else if (v instanceof StringBuilder) {
+        ((StringBuilder)v).setLength(0);
+        ((StringBuilder)v).append((String)contents.elementAt(i));
+      }
+    }
+  }
+}
+
+//____________________________________________________________________________
+/** Connects System.in, System.out, and System.err to the streams of
+ *  the request that is running in the current thread.  The streams are
+ *  inherited by threads that a compiler starts, such as the ones that
+ *  StevieFun uses to generate code in parallel.  Output that is not
+ *  part of a request goes to the standard error stream of the server.
+ */
+class Streams {
+  private static InheritableThreadLocal<InputStream>  in  = new InheritableThreadLocal<InputStream>();
+  private static InheritableThreadLocal<OutputStream> out = new InheritableThreadLocal<OutputStream>();
+
+  /** Redirect the standard streams, given the original error stream.
+   */
+  static void install(final PrintStream err) {
+    System.setIn(new InputStream() {
+      public int read() throws IOException {
+        InputStream s = in.get();
+        return (s==null) ? -1 : s.read();
+      }
+      public int read(byte[] b, int off, int len) throws IOException {
+        InputStream s = in.get();
+        return (s==null) ? -1 : s.read(b, off, len);
+      }
+      public int available() throws IOException {
+        InputStream s = in.get();
+        return (s==null) ? 0 : s.available();
+      }
+    });
+    OutputStream o = new OutputStream() {
+      public void write(int b) throws IOException {
+        OutputStream s = out.get();
+        (s==null ? err : s).write(b);
+      }
+      public void write(byte[] b, int off, int len) throws IOException {
+        OutputStream s = out.get();
+        (s==null ? err : s).write(b, off, len);
+      }
+    };
+    System.setOut(new PrintStream(o, true));
+    System.setErr(new PrintStream(o, true));
+  }
+
+  /** Start a request in the current thread, reading from the given input
+   *  and writing both standard output and standard error to log.
+   */
+  static void begin(InputStream input, OutputStream log) {
+    in.set(input);
+    out.set(log);
+  }
+
+  /** End the request in the current thread.
+   */
+  static void end() {
+    in.remove();
+    out.remove();
+  }
+}
+
+//____________________________________________________________________________
+/** Represents a compiler that the server can run: the name of its main
+ *  class, the directory that holds its class files, and the options
+ *  that the server passes to it in addition to those in the request.
+ */
+class Compiler {
+  String     name;
+  ClassFiles files;
+  String[]   flags;
+
+  // Loaders that are not in use, and whose static variables have been
+  // put back as they were after loading:
+  private Vector<CompilerLoader> idle = new Vector<CompilerLoader>();
+
+  /** Return a loader for a new request, using one that is idle if the
+   *  class files have not changed since it was loaded.
+   */
+  private CompilerLoader take() throws IOException {
+    String stamp = files.stamp();
+    synchronized (idle) {
+      while (!idle.isEmpty()) {
+        CompilerLoader l = idle.remove(idle.size()-1);
+        if (l.stamp.equals(stamp)) {
+          return l;
+        }
+      }
+    }
+    return CompilerLoader.load(files);
+  }
+
+  /** Make a loader available to later requests once its request has
+   *  finished, either normally or by stopping after an error.  A loader
+   *  whose request failed in any other way is dropped instead, in case
+   *  it stopped in the middle of changing an object that is held in a
+   *  static variable.
+   */
+  private void release(CompilerLoader l) {
+    try {
+      l.statics.restore();
+      idle.add(l);
+    } catch (IllegalAccessException e) {
+      // Drop the loader
+    }
+  }
+
+  Compiler(String name, Path dir, String... flags) {
+    this.name  = name;
+    this.files = new ClassFiles(dir);
+    this.flags = flags;
+  }
+
+  /** Return the status of the Exit that the compiler threw to stop
+   *  after an error, or null if the given exception was not caused by
+   *  one.  The Exit may have been thrown in another thread, and each
+   *  copy of the compiler has its own Exit class, so it is found by
+   *  name.
+   */
+  private static Integer exitStatus(Throwable t) {
+    for (Throwable c=t; c!=null; c=c.getCause()) {
+      if (c.getClass().getName().equals("Exit")) {
+        try {
+          Field status = c.getClass().getDeclaredField("status");
+          status.setAccessible(true);
+          return status.getInt(c);
+        } catch (ReflectiveOperationException e) {
+          return null;
+        }
+      }
+    }
+    return null;
+  }
+
+  /** Run the compiler with the given options on the given source text,
+   *  writing its output files in dir and its messages to log, and
+   *  return its exit status.  The compiler is started by calling its
+   *  run() method, which throws an Exit where main() would call
+   *  System.exit().
+   */
+  int run(String[] options, byte[] source, Path dir, ByteArrayOutputStream log) {
+    Vector<String> args = new Vector<String>(Arrays.asList(options));
+    args.addAll(Arrays.asList(flags));
+    args.add("-o=" + dir.resolve("demo"));
+    Streams.begin(new ByteArrayInputStream(source), log);
+    CompilerLoader l = null;
+    try {
+      l = take();
+      Method run = Class.forName(name, true, l).getDeclaredMethod("run", String[].class);
+      run.setAccessible(true);  // the main classes are not public
+      run.invoke(null, (Object)args.toArray(new String[0]));
+      release(l);
+      return 0;
+    } catch (Throwable e) {
+      Throwable t      = (e instanceof InvocationTargetException) ? e.getCause() : e;
+      Integer   status = exitStatus(t);
+      if (status==null) {
+        t.printStackTrace(new PrintStream(log, true));
+        return 1;
+      }
+      release(l);
+      return status;
+    } finally {
+      Streams.end();
+    }
+  }
+}
+
+//____________________________________________________________________________
+/** A long running server that compiles Stevie programs, so that the
+ *  cost of starting the JVM and of loading and compiling the Java
+ *  platform classes is only paid once.  Requests are read from a Unix
+ *  domain socket, or from standard input with -stdio, and each one runs
+ *  in its own thread, with its own copy of the compiler (see
+ *  CompilerLoader).  A request consists of a line of the form:
+ *
+ *    id compiler length options...
+ *
+ *  followed by length bytes of source text.  The response, which may
+ *  come back out of order if there is more than one request on the same
+ *  connection, starts with a line of the form:
+ *
+ *    id status count
+ *
+ *  where status is the exit status of the compiler, and is followed by
+ *  count items, each a line "name length" and then length bytes.  The
+ *  first item is named "-" and holds the messages of the compiler; the
+ *  others are the files that it generated, such as demo.s or demo.ll.
+ */
+class CompileServer {
+  private static HashMap<String, Compiler> compilers = new HashMap<String, Compiler>();
+  private static ExecutorService           pool;
+  private static Semaphore                 jobs;
+  private static PrintStream               log;
+
+  public static void main(String[] args) throws IOException {
+    compilers.put("StevieFun",  new Compiler("StevieFun",  Paths.get("../StevieFun"), "-no-link"));
+    compilers.put("StevieLLVM", new Compiler("StevieLLVM", Paths.get("../StevieLLVM")));
+
+    // Process command line options:
+    String  socket = "stevie.sock";
+    boolean stdio  = false;
+    int     njobs  = Runtime.getRuntime().availableProcessors();
+    for (int i=0; i<args.length; i++) {
+      if (args[i].equals("-stdio")) {
+        stdio = true;
+      } else if (args[i].startsWith("-socket=")) {
+        socket = args[i].substring(8);
+      } else if (args[i].startsWith("-jobs=")) {
+        njobs = Math.max(1, number(args[i].substring(6)));
+      } else if (args[i].startsWith("-StevieFun=")) {
+        compilers.get("StevieFun").files  = new ClassFiles(Paths.get(args[i].substring(11)));
+      } else if (args[i].startsWith("-StevieLLVM=")) {
+        compilers.get("StevieLLVM").files = new ClassFiles(Paths.get(args[i].substring(12)));
+      } else {
+        System.err.println("Unrecognized option " + args[i]);
+        System.exit(1);
+      }
+    }
+
+    // Use a virtual thread for each request if this version of Java
+    // supports them (Java 21 or later), and a pool of threads if not.
+    // Only njobs requests run at once, and the others wait, because
+    // each running request needs its own copy of the compiler, which
+    // is slow until the JIT has compiled it:
+    jobs = new Semaphore(njobs);
+    try {
+      pool = (ExecutorService)Executors.class
+                                       .getMethod("newVirtualThreadPerTaskExecutor")
+                                       .invoke(null);
+    } catch (ReflectiveOperationException e) {
+      pool = Executors.newCachedThreadPool();
+    }
+
+    log = System.err;
+    Streams.install(log);
+
+    if (stdio) {
+      serve(new FileInputStream(FileDescriptor.in),
+            new FileOutputStream(FileDescriptor.out));
+      pool.shutdown();
+    } else {
+      Path path = Paths.get(socket);
+      Files.deleteIfExists(path);
+      ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+      server.bind(UnixDomainSocketAddress.of(path));
+      log.println("Listening on " + path);
+      for (;;) {
+        SocketChannel ch = server.accept();
+        pool.execute(() -> {
+          try (SocketChannel c = ch) {
+            serve(Channels.newInputStream(c), Channels.newOutputStream(c));
+          } catch (IOException e) {
+            log.println(e.toString());
+          }
+        });
+      }
+    }
+  }
+
+  /** Read a numeric argument for a command line option.
+   */
+  private static int number(String s) {
+    try {
+      return Integer.parseInt(s);
+    } catch (NumberFormatException e) {
+      System.err.println("Invalid number " + s);
+      System.exit(1);
+      return 0; // not reached
+    }
+  }
+
+  /** Read requests from a connection, running each one in a new thread,
+   *  until the end of the input, and then wait for them to finish.
+   */
+  private static void serve(InputStream input, OutputStream out) throws IOException {
+    InputStream       in      = new BufferedInputStream(input);
+    Vector<Future<?>> running = new Vector<Future<?>>();
+    for (;;) {
+      String line = readLine(in);
+      if (line==null) {
+        break;
+      }
+      String[] words = line.trim().split(" +");
+      int      length;
+      try {
+        length = Integer.parseInt(words[2]);
+        if (length<0) {
+          throw new NumberFormatException("Negative length");
+        }
+      } catch (RuntimeException e) {
+        respond(out, words[0], 2, "Invalid request " + line + "\n", new Path[0]);
+        break;
+      }
+      final String   id       = words[0];
+      final String   compiler = words[1];
+      final String[] options  = Arrays.copyOfRange(words, 3, words.length);
+      final byte[]   source   = in.readNBytes(length);
+      if (source.length<length) {
+        throw new EOFException("Incomplete request " + id);
+      }
+      running.add(pool.submit(() -> {
+        try {
+          compile(out, id, compiler, options, source);
+        } catch (IOException e) {
+          log.println(e.toString());
+        }
+      }));
+    }
+    for (Future<?> f : running) {
+      try {
+        f.get();
+      } catch (Exception e) {
+        log.println(e.toString());
+      }
+    }
+  }
+
+  /** Run a single request and send its response.
+   */
+  private static void compile(OutputStream out, String id, String name,
+                              String[] options, byte[] source) throws IOException {
+    Compiler c = compilers.get(name);
+    if (c==null) {
+      respond(out, id, 2, "Unknown compiler " + name + "\n", new Path[0]);
+      return;
+    }
+    long                  start  = System.nanoTime();
+    Path                  dir    = Files.createTempDirectory("stevie");
+    ByteArrayOutputStream msgs   = new ByteArrayOutputStream();
+    int                   status;
+    jobs.acquireUninterruptibly();
+    try {
+      status = c.run(options, source, dir, msgs);
+    } finally {
+      jobs.release();
+    }
+    Path[]                files  = Files.list(dir).sorted().toArray(Path[]::new);
+    respond(out, id, status, msgs.toString(StandardCharsets.UTF_8), files);
+    for (Path f : files) {
+      Files.delete(f);
+    }
+    Files.delete(dir);
+    log.println("Request " + id + ": " + name + " exited with status " + status
+                + " in " + (System.nanoTime() - start) / 1000000 + "ms");
+  }
+
+  /** Send a response, holding the given messages and files.
+   */
+  private static void respond(OutputStream out, String id, int status,
+                              String msgs, Path[] files) throws IOException {
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    buf.write((id + " " + status + " " + (files.length+1) + "\n").getBytes(StandardCharsets.UTF_8));
+    item(buf, "-", msgs.getBytes(StandardCharsets.UTF_8));
+    for (Path f : files) {
+      item(buf, f.getFileName().toString(), Files.readAllBytes(f));
+    }
+    synchronized (out) {
+      buf.writeTo(out);
+      out.flush();
+    }
+  }
+
+  /** Write a single item of a response.
+   */
+  private static void item(ByteArrayOutputStream buf, String name, byte[] bytes) throws IOException {
+    buf.write((name + " " + bytes.length + "\n").getBytes(StandardCharsets.UTF_8));
+    buf.write(bytes);
+  }
+
+  /** Read a line of text from an input stream, returning null at the
+   *  end of the input.
+   */
+  private static String readLine(InputStream in) throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    int c;
+    while ((c=in.read())!='\n') {
+      if (c<0) {
+        return (line.size()==0) ? null : line.toString(StandardCharsets.UTF_8);
+      }
+      line.write(c);
+    }
+    return line.toString(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,114 @@
+/* A client for the compile server (see CompileServer.java), which can be
+ * used in place of running a compiler directly.  For example:
+ *
+ *   ./stevie StevieFun -no-inline < sourcefile.stv
+ *
+ * sends the source program and options to the server, prints the
+ * messages of the compiler, writes the files that it generated (such as
+ * demo.s) in the current directory, and exits with the same status as
+ * the compiler.  The socket can be chosen with -socket=path before the
+ * name of the compiler.
+ */
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+#include <sys/socket.h>
+#include <sys/un.h>
+
+static void fail(const char* msg) {
+    perror(msg);
+    exit(2);
+}
+
+/* Read a line of the response, without its newline.
+ */
+static void readLine(FILE* in, char* buf, int size) {
+    if (fgets(buf, size, in)==NULL || strchr(buf, '\n')==NULL) {
+        fprintf(stderr, "Incomplete response from server\n");
+        exit(2);
+    }
+    *strchr(buf, '\n') = '\0';
+}
+
+int main(int argc, char** argv) {
+    const char* socketName = "stevie.sock";
+    int         first      = 1;
+    if (argc>1 && strncmp(argv[1], "-socket=", 8)==0) {
+        socketName = argv[1] + 8;
+        first++;
+    }
+    if (first>=argc) {
+        fprintf(stderr, "usage: %s [-socket=path] compiler [options] < sourcefile\n", argv[0]);
+        exit(2);
+    }
+
+    /* Read the source program: */
+    size_t len = 0, cap = 4096;
+    char*  src = malloc(cap);
+    size_t n;
+    while ((n = fread(src + len, 1, cap - len, stdin))>0) {
+        len += n;
+        if (len==cap) {
+            src = realloc(src, cap *= 2);
+        }
+    }
+
+    /* Connect to the server: */
+    struct sockaddr_un addr;
+    memset(&addr, 0, sizeof(addr));
+    addr.sun_family = AF_UNIX;
+    strncpy(addr.sun_path, socketName, sizeof(addr.sun_path) - 1);
+    int fd = socket(AF_UNIX, SOCK_STREAM, 0);
+    if (fd<0 || connect(fd, (struct sockaddr*)&addr, sizeof(addr))<0) {
+        fail(socketName);
+    }
+
+    /* Send the request: */
+    FILE* out = fdopen(dup(fd), "w");
+    fprintf(out, "1 %s %zu", argv[first], len);
+    for (int i=first+1; i<argc; i++) {
+        fprintf(out, " %s", argv[i]);
+    }
+    fprintf(out, "\n");
+    fwrite(src, 1, len, out);
+    fclose(out);
+    shutdown(fd, SHUT_WR);
+
+    /* Read the response, and write out the items that it contains: */
+    FILE* in = fdopen(fd, "r");
+    char  line[1024];
+    int   id, status, count;
+    readLine(in, line, sizeof(line));
+    if (sscanf(line, "%d %d %d", &id, &status, &count)!=3) {
+        fprintf(stderr, "Invalid response from server: %s\n", line);
+        exit(2);
+    }
+    for (int i=0; i<count; i++) {
+        char   name[1024];
+        size_t size;
+        readLine(in, line, sizeof(line));
+        if (sscanf(line, "%1023s %zu", name, &size)!=2 || strchr(name, '/')!=NULL) {
+            fprintf(stderr, "Invalid response from server: %s\n", line);
+            exit(2);
+        }
+        FILE* f = (strcmp(name, "-")==0) ? stdout : fopen(name, "w");
+        if (f==NULL) {
+            fail(name);
+        }
+        char buf[8192];
+        while (size>0) {
+            size_t k = fread(buf, 1, size<sizeof(buf) ? size : sizeof(buf), in);
+            if (k==0) {
+                fprintf(stderr, "Incomplete response from server\n");
+                exit(2);
+            }
+            fwrite(buf, 1, k, f);
+            size -= k;
+        }
+        if (f!=stdout) {
+            fclose(f);
+        }
+    }
+    return status;
+}